@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.LoginException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.yubico.shibboleth.idp.multifactor.LoginFactors;
+import com.yubico.shibboleth.idp.multifactor.MultiFactorAuthLoginServlet;
+
+/**
+ * The login servlet with the hand-offs to the IdP's authentication engine and to the login page short-circuited, so
+ * that it can run outside of a servlet container, and with its internal steps exposed to the benchmarks.
+ */
+public class BenchmarkLoginServlet extends MultiFactorAuthLoginServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -3169284518870531422L;
+
+    /**
+     * Authenticates a user.
+     *
+     * @param request current request
+     * @param username the user
+     * @param password the user's password
+     * @param secrets the authentication factors, password first
+     *
+     * @throws LoginException thrown if the user could not be authenticated
+     */
+    public void authenticate(HttpServletRequest request, String username, String password, ArrayList<char[]> secrets)
+            throws LoginException {
+        authenticateUser(request, username, password, secrets);
+    }
+
+    /**
+     * Extracts the authentication factors from a request.
+     *
+     * @param request current request
+     *
+     * @return the authentication factors
+     *
+     * @throws IOException never, the request is in memory
+     * @throws LoginException if the request holds too many or too long factors
+     */
+    public LoginFactors extract(HttpServletRequest request) throws IOException, LoginException {
+        return extractFactors(request);
+    }
+
+    /**
+     * Creates the callback handler passed to the JAAS login modules.
+     *
+     * @param username the user
+     * @param secrets the authentication factors, password first
+     *
+     * @return the callback handler
+     */
+    public CallbackHandler newCallbackHandler(String username, ArrayList<char[]> secrets) {
+        return new MultiAuthCallbackHandler(username, secrets);
+    }
+
+    /** {@inheritDoc} */
+    protected void returnToAuthenticationEngine(HttpServletRequest request, HttpServletResponse response) {
+        // no authentication engine outside of the IdP
+    }
+
+    /** {@inheritDoc} */
+    protected void redirectToLoginPage(HttpServletRequest request, HttpServletResponse response) {
+        // no login page outside of a servlet container
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.LoginException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yubico.shibboleth.idp.multifactor.JaasConfiguration;
+import com.yubico.shibboleth.idp.multifactor.JaasConfigurationRegistry;
+import com.yubico.shibboleth.idp.multifactor.LoginFactors;
+
+/**
+ * Benchmarks of the login servlet's hot path : a whole login through <code>service()</code>, the authentication
+ * against in-process stub login modules, the JAAS callback handler and the extraction of the authentication factors
+ * from the request, each with 0 to 8 tokens.
+ *
+ * Every benchmark is run in throughput and sample time mode, the latter reporting latency percentiles.
+ * {@link BenchmarkMain} adds the GC profiler reporting the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class LoginBenchmark {
+
+    /** Servlet path the login servlet is mapped to. */
+    private static final String SERVLET_PATH = "/Authn/MultiFactor";
+
+    /** JAAS application verifying the password and every token with a separate login module. */
+    private static final String JAAS_CONFIG = "ShibUserPassAuth {\n"
+            + "    " + StubLoginModule.class.getName() + " required;\n"
+            + "    " + StubLoginModule.class.getName() + " required;\n"
+            + "};\n";
+
+    /** The user logging in. */
+    private static final String USERNAME = "alice";
+
+    /** The user's password. */
+    private static final String PASSWORD = "correct horse battery staple";
+
+    /** A YubiKey OTP sized token. */
+    private static final String TOKEN = "vvgnkjjhndihvgsuhcrcrgijvnkrcrvrhnhtlifhrjbf";
+
+    /** Number of tokens submitted with the password. */
+    @Param({"0", "1", "2", "4", "8"})
+    private int tokens;
+
+    /** The servlet under test. */
+    private BenchmarkLoginServlet servlet;
+
+    /** The JAAS configuration registered for the servlet. */
+    private JaasConfiguration jaasConfiguration;
+
+    /** A login request. */
+    private HttpServletRequest request;
+
+    /** The response to the login request. */
+    private HttpServletResponse response;
+
+    /** The authentication factors extracted from the login request. */
+    private LoginFactors factors;
+
+    /** The authentication factors of the login request, password first. */
+    private ArrayList<char[]> secrets;
+
+    /**
+     * Creates the servlet and the login request.
+     *
+     * @throws IOException if the JAAS configuration can not be parsed
+     * @throws ServletException if the servlet can not be initialized
+     * @throws LoginException if the factors can not be extracted from the request
+     */
+    @Setup
+    public void setUp() throws IOException, ServletException, LoginException {
+        jaasConfiguration = JaasConfiguration.parse(new StringReader(JAAS_CONFIG)).withDelegatingLoginModules();
+        JaasConfigurationRegistry.register(SERVLET_PATH, jaasConfiguration);
+
+        servlet = new BenchmarkLoginServlet();
+        servlet.init(MockServlets.config("MultiFactorAuthBenchmark", new HashMap<String, String>()));
+
+        Map<String, String[]> parameters = new HashMap<String, String[]>();
+        parameters.put("j_username", new String[] {USERNAME});
+        parameters.put("j_password", new String[] {PASSWORD});
+        for (int i = 0; i < tokens; i++) {
+            parameters.put("j_tokens[" + i + "]", new String[] {TOKEN});
+        }
+        request = MockServlets.request(SERVLET_PATH, parameters);
+        response = MockServlets.response();
+        factors = servlet.extract(request);
+        secrets = factors.getSecrets();
+    }
+
+    /** Wipes the authentication factors and destroys the servlet. */
+    @TearDown
+    public void tearDown() {
+        factors.wipe(true);
+        servlet.destroy();
+        JaasConfigurationRegistry.unregister(SERVLET_PATH, jaasConfiguration);
+    }
+
+    /**
+     * A whole login, from the request parameters to the hand-off to the authentication engine.
+     *
+     * @return the request, holding the authenticated subject
+     *
+     * @throws IOException never
+     * @throws ServletException never
+     */
+    @Benchmark
+    public Object service() throws IOException, ServletException {
+        servlet.service(request, response);
+        return request;
+    }
+
+    /**
+     * Authentication of already extracted factors against the stub login modules.
+     *
+     * @return the request, holding the authenticated subject
+     *
+     * @throws LoginException if the stub login modules reject the login
+     */
+    @Benchmark
+    public Object authenticateUser() throws LoginException {
+        servlet.authenticate(request, USERNAME, PASSWORD, new ArrayList<char[]>(secrets));
+        return request;
+    }
+
+    /**
+     * The callback handler answering the name and password callbacks of one login module.
+     *
+     * @return the password handed to the login module
+     *
+     * @throws IOException never
+     * @throws UnsupportedCallbackException never
+     */
+    @Benchmark
+    public Object callbackHandler() throws IOException, UnsupportedCallbackException {
+        CallbackHandler handler = servlet.newCallbackHandler(USERNAME, new ArrayList<char[]>(secrets));
+        NameCallback name = new NameCallback("Username: ");
+        PasswordCallback password = new PasswordCallback("Password: ", false);
+        handler.handle(new Callback[] {name, password});
+        return password.getPassword();
+    }
+
+    /**
+     * Extraction of the username, password and tokens from the request parameters, whose buffers are wiped and
+     * returned to the pool as after a login.
+     *
+     * @return the extracted username
+     *
+     * @throws IOException never
+     * @throws LoginException never
+     */
+    @Benchmark
+    public Object extractFactors() throws IOException, LoginException {
+        LoginFactors extracted = servlet.extract(request);
+        try {
+            return extracted.getUsername();
+        } finally {
+            extracted.wipe(true);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal in-memory implementations of the servlet API interfaces used by the login servlet, built as dynamic
+ * proxies so that they do not depend on a particular servlet API version.
+ */
+public final class MockServlets {
+
+    /** Constructor. */
+    private MockServlets() {
+    }
+
+    /**
+     * Creates a request.
+     *
+     * @param servletPath servlet path of the request
+     * @param parameters request parameters
+     *
+     * @return the request
+     */
+    public static HttpServletRequest request(final String servletPath, final Map<String, String[]> parameters) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getParameter".equals(name)) {
+                    String[] values = parameters.get(args[0]);
+                    return values == null || values.length == 0 ? null : values[0];
+                } else if ("getParameterValues".equals(name)) {
+                    return parameters.get(args[0]);
+                } else if ("getParameterMap".equals(name)) {
+                    return Collections.unmodifiableMap(parameters);
+                } else if ("getParameterNames".equals(name)) {
+                    return Collections.enumeration(parameters.keySet());
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                } else if ("removeAttribute".equals(name)) {
+                    attributes.remove(args[0]);
+                    return null;
+                } else if ("getServletPath".equals(name)) {
+                    return servletPath;
+                } else if ("getContextPath".equals(name)) {
+                    return "/idp";
+                } else if ("getRemoteAddr".equals(name)) {
+                    return "192.0.2.1";
+                } else if ("getMethod".equals(name)) {
+                    return "POST";
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a response discarding everything written to it.
+     *
+     * @return the response
+     */
+    public static HttpServletResponse response() {
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a servlet configuration.
+     *
+     * @param servletName name of the servlet
+     * @param initParameters init-params of the servlet
+     *
+     * @return the servlet configuration
+     */
+    public static ServletConfig config(final String servletName, final Map<String, String> initParameters) {
+        final ServletContext context = proxy(ServletContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method);
+            }
+        });
+        return proxy(ServletConfig.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getServletName".equals(name)) {
+                    return servletName;
+                } else if ("getInitParameter".equals(name)) {
+                    return initParameters.get(args[0]);
+                } else if ("getInitParameterNames".equals(name)) {
+                    return Collections.enumeration(initParameters.keySet());
+                } else if ("getServletContext".equals(name)) {
+                    return context;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a dynamic proxy.
+     *
+     * @param <T> the proxied interface
+     * @param type the proxied interface
+     * @param handler handler of the proxy's method calls
+     *
+     * @return the proxy
+     */
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(MockServlets.class.getClassLoader(), new Class<?>[] {type},
+                handler));
+    }
+
+    /**
+     * Gets the value returned by methods not implemented by a mock.
+     *
+     * @param method the method
+     *
+     * @return null, or the zero value of primitive return types
+     */
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+}
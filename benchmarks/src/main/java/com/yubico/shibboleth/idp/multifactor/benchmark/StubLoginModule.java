@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.benchmark;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+/**
+ * An in-process JAAS login module standing in for a real authentication backend. It requests the username and
+ * password like a typical password or OTP module, and accepts any password unless the <code>reject</code> option is
+ * <code>true</code>.
+ */
+public class StubLoginModule implements LoginModule {
+
+    /** Subject being authenticated. */
+    private Subject subject;
+
+    /** Callback handler of the login. */
+    private CallbackHandler callbackHandler;
+
+    /** Whether all logins are rejected. */
+    private boolean reject;
+
+    /** The authenticated username. */
+    private String username;
+
+    /** {@inheritDoc} */
+    public void initialize(Subject newSubject, CallbackHandler handler, Map<String, ?> sharedState,
+            Map<String, ?> options) {
+        subject = newSubject;
+        callbackHandler = handler;
+        reject = "true".equals(options.get("reject"));
+    }
+
+    /** {@inheritDoc} */
+    public boolean login() throws LoginException {
+        NameCallback name = new NameCallback("Username: ");
+        PasswordCallback password = new PasswordCallback("Password: ", false);
+        try {
+            callbackHandler.handle(new Callback[] {name, password});
+        } catch (IOException e) {
+            throw new LoginException(e.toString());
+        } catch (UnsupportedCallbackException e) {
+            throw new LoginException(e.toString());
+        }
+        if (reject || password.getPassword() == null) {
+            throw new FailedLoginException("Rejected by stub login module");
+        }
+        password.clearPassword();
+        username = name.getName();
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean commit() {
+        subject.getPrincipals().add(new StubPrincipal(username));
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean abort() {
+        username = null;
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean logout() {
+        return true;
+    }
+
+    /** Principal added by the stub login module. */
+    private static class StubPrincipal implements Principal {
+
+        /** Name of the principal. */
+        private final String name;
+
+        /**
+         * Constructor.
+         *
+         * @param newName name of the principal
+         */
+        StubPrincipal(String newName) {
+            name = newName;
+        }
+
+        /** {@inheritDoc} */
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -32,7 +32,31 @@
               <form id="login" action="j_security_check" method="post">
             <% } %>
 
-              <% if ("true".equals(request.getAttribute("loginFailed"))) { %>
+              <% if ("TOKEN_REPLAYED".equals(request.getAttribute("loginFailureReason"))) { %>
+                <section>
+                  <p class="form-element form-error">Login has failed. That token has already been used, please generate a new one.</p>
+                </section>
+              <% } else if ("UNKNOWN_TOKEN".equals(request.getAttribute("loginFailureReason"))) { %>
+                <section>
+                  <p class="form-element form-error">Login has failed. That token is not from a YubiKey registered to you.</p>
+                </section>
+              <% } else if ("THROTTLED".equals(request.getAttribute("loginFailureReason"))) { %>
+                <section>
+                  <p class="form-element form-error">Login has failed. Too many login attempts, please wait a minute and try again.</p>
+                </section>
+              <% } else if ("INVALID_FACTORS".equals(request.getAttribute("loginFailureReason"))) { %>
+                <section>
+                  <p class="form-element form-error">Login has failed. Too many or too long tokens were submitted.</p>
+                </section>
+              <% } else if ("BACKEND_UNAVAILABLE".equals(request.getAttribute("loginFailureReason"))) { %>
+                <section>
+                  <p class="form-element form-error">Login is temporarily unavailable. Please try again in a minute.</p>
+                </section>
+              <% } else if ("BACKEND_TIMEOUT".equals(request.getAttribute("loginFailureReason"))) { %>
+                <section>
+                  <p class="form-element form-error">Login is taking too long to verify. Please try again in a minute.</p>
+                </section>
+              <% } else if ("true".equals(request.getAttribute("loginFailed"))) { %>
                 <section>
                   <p class="form-element form-error">Login has failed. Double-check your username and password.</p>
                 </section>
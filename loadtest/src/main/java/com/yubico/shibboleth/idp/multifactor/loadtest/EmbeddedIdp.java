@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.yubico.shibboleth.idp.multifactor.JaasConfiguration;
+import com.yubico.shibboleth.idp.multifactor.JaasConfigurationRegistry;
+import com.yubico.shibboleth.idp.multifactor.MultiFactorAuthLoginHandler;
+
+/**
+ * An embedded servlet container running the parts of the IdP a login goes through : the
+ * {@link MultiFactorAuthLoginHandler} at {@link #LOGIN_PATH} and the login servlet at {@link #SERVLET_PATH}, with a
+ * JAAS configuration verifying the password with the JDK's <code>LdapLoginModule</code> and the token with the
+ * {@link StubOtpLoginModule}.
+ */
+public class EmbeddedIdp {
+
+    /** Context path of the IdP. */
+    public static final String CONTEXT_PATH = "/idp";
+
+    /** Servlet path at which a login starts. */
+    public static final String LOGIN_PATH = "/profile/Login";
+
+    /** Servlet path of the login servlet. */
+    public static final String SERVLET_PATH = "/Authn/MultiFactor";
+
+    /** The HTTP server. */
+    private final Server server;
+
+    /** The connector of the HTTP server. */
+    private final SelectChannelConnector connector;
+
+    /** The JAAS configuration registered for the login servlet. */
+    private final JaasConfiguration jaasConfiguration;
+
+    /**
+     * Constructor.
+     *
+     * @param threads size of the container's thread pool
+     * @param ldapUrl URL of the user entries in the LDAP server
+     * @param initParams init-params of the login servlet
+     *
+     * @throws IOException if the JAAS configuration can not be parsed
+     */
+    public EmbeddedIdp(int threads, String ldapUrl, Map<String, String> initParams) throws IOException {
+        jaasConfiguration = JaasConfiguration.parse(new StringReader("ShibUserPassAuth {\n"
+                + "    com.sun.security.auth.module.LdapLoginModule required\n"
+                + "        userProvider=\"" + ldapUrl + "\"\n"
+                + "        authIdentity=\"uid={USERNAME}," + StubLdapServer.PEOPLE_DN + "\"\n"
+                + "        useSSL=false;\n"
+                + "    " + StubOtpLoginModule.class.getName() + " required;\n"
+                + "};\n")).withDelegatingLoginModules();
+
+        server = new Server();
+        server.setThreadPool(new QueuedThreadPool(threads));
+        connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath(CONTEXT_PATH);
+
+        MultiFactorAuthLoginHandler handler = new MultiFactorAuthLoginHandler(SERVLET_PATH);
+        handler.setDispatchMode(MultiFactorAuthLoginHandler.DispatchMode.REDIRECT);
+        context.addServlet(new ServletHolder(new LoginHandlerServlet(handler)), LOGIN_PATH);
+
+        ServletHolder servlet = new ServletHolder(new LoadTestLoginServlet());
+        servlet.setInitParameters(initParams);
+        servlet.setAsyncSupported(true);
+        servlet.setInitOrder(0);
+        context.addServlet(servlet, SERVLET_PATH);
+
+        server.setHandler(context);
+    }
+
+    /**
+     * Starts the container, on an ephemeral port.
+     *
+     * @throws Exception if the container can not be started
+     */
+    public void start() throws Exception {
+        JaasConfigurationRegistry.register(SERVLET_PATH, jaasConfiguration);
+        server.start();
+    }
+
+    /**
+     * Gets the URL at which a login starts.
+     *
+     * @return login URL
+     */
+    public String getLoginUrl() {
+        return "http://127.0.0.1:" + connector.getLocalPort() + CONTEXT_PATH + LOGIN_PATH;
+    }
+
+    /**
+     * Stops the container.
+     *
+     * @throws Exception if the container can not be stopped
+     */
+    public void stop() throws Exception {
+        try {
+            server.stop();
+        } finally {
+            JaasConfigurationRegistry.unregister(SERVLET_PATH, jaasConfiguration);
+        }
+    }
+}
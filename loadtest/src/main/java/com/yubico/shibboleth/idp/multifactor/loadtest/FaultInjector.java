@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.util.Random;
+
+/**
+ * Latency and error injection for the stub backends. Every request is delayed by a fixed latency plus an
+ * exponentially distributed jitter, so that a few requests are much slower than the mean like with a real backend,
+ * and a percentage of requests fails.
+ */
+public class FaultInjector {
+
+    /** Random numbers of the current thread. */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /** Fixed latency, in milliseconds. */
+    private final long latency;
+
+    /** Mean of the additional random latency, in milliseconds. */
+    private final long jitter;
+
+    /** Percentage of requests failing. */
+    private final double errorRate;
+
+    /**
+     * Constructor.
+     *
+     * @param newLatency fixed latency, in milliseconds
+     * @param newJitter mean of the additional random latency, in milliseconds
+     * @param newErrorRate percentage of requests failing
+     */
+    public FaultInjector(long newLatency, long newJitter, double newErrorRate) {
+        latency = newLatency;
+        jitter = newJitter;
+        errorRate = newErrorRate;
+    }
+
+    /**
+     * Delays the current request.
+     *
+     * @return true if the request must fail
+     *
+     * @throws InterruptedException if interrupted while delaying
+     */
+    public boolean inject() throws InterruptedException {
+        Random random = RANDOM.get();
+        long delay = latency;
+        if (jitter > 0) {
+            delay += (long) (-jitter * Math.log(1 - random.nextDouble()));
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        return errorRate > 0 && random.nextDouble() * 100 < errorRate;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "latency " + latency + " ms + " + jitter + " ms mean jitter, " + errorRate + "% errors";
+    }
+}
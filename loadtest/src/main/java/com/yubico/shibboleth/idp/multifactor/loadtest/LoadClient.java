@@ -0,0 +1,297 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yubico.shibboleth.idp.multifactor.LatencyHistogram;
+
+/**
+ * A multi-threaded client driving whole login flows against an {@link EmbeddedIdp}, the way a browser would : a GET
+ * of the login URL, redirected by the login handler to the login servlet, then a POST of the username, password and
+ * one token to the servlet.
+ *
+ * Users are picked at random among the users of the {@link StubLdapServer}. A percentage of the logins is sent with a
+ * wrong password or a token rejected by the {@link StubValidationServer}, and every token is unique, so the token
+ * replay cache never rejects a login. Only the logins completed after the warm-up are counted.
+ */
+public class LoadClient {
+
+    /** Modhex alphabet, the characters typed by a YubiKey. */
+    private static final char[] MODHEX = "cbdefghijklnrtuv".toCharArray();
+
+    /** Public id of the valid tokens. */
+    private static final String PUBLIC_ID = "cccccccccccc";
+
+    /** Public id of the tokens rejected by the validation servers. */
+    private static final String BAD_PUBLIC_ID = StubValidationServer.BAD_OTP_PREFIX + "cccccc";
+
+    /** URL at which a login starts. */
+    private final String loginUrl;
+
+    /** Number of users. */
+    private final int users;
+
+    /** Percentage of logins sent with a wrong password. */
+    private final double badPasswordRate;
+
+    /** Percentage of logins sent with a rejected token. */
+    private final double badTokenRate;
+
+    /** Latency of the counted logins, from the GET of the login URL to the response of the servlet. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Number of counted logins, keyed by result. */
+    private final ConcurrentMap<String, AtomicLong> results = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Counter making every token unique. */
+    private final AtomicLong tokenCounter = new AtomicLong();
+
+    /** Whether logins are counted. */
+    private volatile boolean measuring;
+
+    /** Whether the client threads keep running. */
+    private volatile boolean running;
+
+    /** Time the measurement started, from {@link System#nanoTime()}. */
+    private volatile long measureStart;
+
+    /** Time the measurement ended, from {@link System#nanoTime()}. */
+    private volatile long measureEnd;
+
+    /**
+     * Constructor.
+     *
+     * @param url URL at which a login starts
+     * @param userCount number of users
+     * @param newBadPasswordRate percentage of logins sent with a wrong password
+     * @param newBadTokenRate percentage of logins sent with a rejected token
+     */
+    public LoadClient(String url, int userCount, double newBadPasswordRate, double newBadTokenRate) {
+        loginUrl = url;
+        users = userCount;
+        badPasswordRate = newBadPasswordRate;
+        badTokenRate = newBadTokenRate;
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param threads number of concurrent clients
+     * @param warmUp milliseconds of logins not counted, at the start
+     * @param duration milliseconds of counted logins
+     *
+     * @throws InterruptedException if interrupted while running
+     */
+    public void run(int threads, long warmUp, long duration) throws InterruptedException {
+        running = true;
+        Thread[] clients = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            clients[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random();
+                    while (running) {
+                        login(random);
+                    }
+                }
+            }, "LoadClient-" + i);
+            clients[i].setDaemon(true);
+            clients[i].start();
+        }
+
+        try {
+            Thread.sleep(warmUp);
+            measureStart = System.nanoTime();
+            measuring = true;
+            Thread.sleep(duration);
+        } finally {
+            measuring = false;
+            measureEnd = System.nanoTime();
+            running = false;
+            for (Thread client : clients) {
+                client.join();
+            }
+        }
+    }
+
+    /**
+     * Prints the number of logins by result, the throughput and the latency percentiles.
+     *
+     * @param out stream to print to
+     */
+    public void report(PrintStream out) {
+        double seconds = (measureEnd - measureStart) / 1e9;
+        long count = latency.getCount();
+        out.printf("%d logins in %.1f s : %.1f logins/s%n", count, seconds, count / seconds);
+        for (Map.Entry<String, AtomicLong> result : new TreeMap<String, AtomicLong>(results).entrySet()) {
+            out.printf("  %-32s %10d%n", result.getKey(), result.getValue().get());
+        }
+        out.printf("latency (ms) : mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                latency.getMeanMicros() / 1e3, latency.getPercentileMicros(50) / 1e3,
+                latency.getPercentileMicros(90) / 1e3, latency.getPercentileMicros(99) / 1e3,
+                latency.getPercentileMicros(99.9) / 1e3, latency.getMaxMicros() / 1e3);
+    }
+
+    /**
+     * Runs one login flow and counts its result.
+     *
+     * @param random random numbers of the current thread
+     */
+    private void login(Random random) {
+        String username = "user" + random.nextInt(users);
+        boolean badPassword = random.nextDouble() * 100 < badPasswordRate;
+        boolean badToken = random.nextDouble() * 100 < badTokenRate;
+        String password = badPassword ? "wrong" : StubLdapServer.PASSWORD;
+        String token = newToken(badToken ? BAD_PUBLIC_ID : PUBLIC_ID, random);
+
+        String result;
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection redirect = open(new URL(loginUrl));
+            String location = redirect.getHeaderField("Location");
+            int status = drain(redirect);
+            if (status != HttpURLConnection.HTTP_MOVED_TEMP || location == null) {
+                result = "error: login handler status " + status;
+            } else {
+                HttpURLConnection post = open(new URL(new URL(loginUrl), location));
+                post.setRequestMethod("POST");
+                post.setDoOutput(true);
+                post.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                byte[] body = ("j_username=" + URLEncoder.encode(username, "UTF-8") + "&j_password="
+                        + URLEncoder.encode(password, "UTF-8") + "&j_tokens%5B0%5D=" + token).getBytes("UTF-8");
+                post.setFixedLengthStreamingMode(body.length);
+                OutputStream out = post.getOutputStream();
+                out.write(body);
+                out.close();
+                String reason = post.getHeaderField(LoadTestLoginServlet.FAILURE_REASON_HEADER);
+                status = drain(post);
+                result = classify(status, reason, badPassword || badToken);
+            }
+        } catch (IOException e) {
+            result = "error: " + e.getClass().getSimpleName();
+        }
+        long nanos = System.nanoTime() - start;
+
+        if (measuring) {
+            latency.record(nanos);
+            AtomicLong counter = results.get(result);
+            if (counter == null) {
+                counter = new AtomicLong();
+                AtomicLong existing = results.putIfAbsent(result, counter);
+                if (existing != null) {
+                    counter = existing;
+                }
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Classifies the response of the login servlet.
+     *
+     * @param status HTTP status of the response
+     * @param reason failure reason of the response, or null
+     * @param expectRejection whether the login was sent with a wrong factor
+     *
+     * @return name of the result
+     */
+    private String classify(int status, String reason, boolean expectRejection) {
+        if (status == HttpURLConnection.HTTP_OK) {
+            return expectRejection ? "unexpected success" : "success";
+        }
+        if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            String suffix = reason != null ? " " + reason : "";
+            return (expectRejection ? "rejected" : "unexpected rejection") + suffix;
+        }
+        return "error: login servlet status " + status;
+    }
+
+    /**
+     * Opens a connection, not following redirects.
+     *
+     * @param url the URL
+     *
+     * @return the connection
+     *
+     * @throws IOException if the connection can not be opened
+     */
+    private HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(60000);
+        return connection;
+    }
+
+    /**
+     * Reads the whole response, so that the connection is kept alive.
+     *
+     * @param connection the connection
+     *
+     * @return HTTP status of the response
+     *
+     * @throws IOException if the response can not be read
+     */
+    private int drain(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection
+                .getErrorStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                continue;
+            }
+            in.close();
+        }
+        return status;
+    }
+
+    /**
+     * Creates a unique YubiKey OTP shaped token.
+     *
+     * @param publicId public id of the token
+     * @param random random numbers of the current thread
+     *
+     * @return the token
+     */
+    private String newToken(String publicId, Random random) {
+        StringBuilder token = new StringBuilder(publicId.length() + 32).append(publicId);
+        long unique = tokenCounter.incrementAndGet();
+        long noise = random.nextLong();
+        for (int i = 0; i < 16; i++) {
+            token.append(MODHEX[(int) (unique >>> (i * 4)) & 0xf]);
+        }
+        for (int i = 0; i < 16; i++) {
+            token.append(MODHEX[(int) (noise >>> (i * 4)) & 0xf]);
+        }
+        return token.toString();
+    }
+}
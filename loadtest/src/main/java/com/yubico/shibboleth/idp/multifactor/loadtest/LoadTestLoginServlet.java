@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.shibboleth.idp.multifactor.MultiFactorAuthLoginServlet;
+
+/**
+ * The login servlet with the hand-offs to the IdP's authentication engine and to the login page replaced by plain
+ * status codes the load test client can count : 200 after a successful login, 401 after a failed one, with the
+ * failure reason in the {@link #FAILURE_REASON_HEADER} header, and 400 if the request held no credentials.
+ */
+public class LoadTestLoginServlet extends MultiFactorAuthLoginServlet {
+
+    /** Header giving the reason of a failed login. */
+    public static final String FAILURE_REASON_HEADER = "X-Login-Failure-Reason";
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 6047710593180215268L;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LoadTestLoginServlet.class);
+
+    /** {@inheritDoc} */
+    protected void returnToAuthenticationEngine(HttpServletRequest request, HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /** {@inheritDoc} */
+    protected void redirectToLoginPage(HttpServletRequest request, HttpServletResponse response) {
+        try {
+            if ("true".equals(request.getAttribute("loginFailed"))) {
+                Object reason = request.getAttribute("loginFailureReason");
+                if (reason != null) {
+                    response.setHeader(FAILURE_REASON_HEADER, reason.toString());
+                }
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            } else {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        } catch (IOException e) {
+            log.debug("Unable to send login failure", e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a load test : starts the stub LDAP and OTP validation servers and the embedded IdP, drives logins against it
+ * with a {@link LoadClient} and prints the throughput and latency percentiles.
+ *
+ * Options are given as <code>--name=value</code>, see {@link #DEFAULTS}. Options named <code>--init.&lt;param&gt;</code>
+ * set init-params of the login servlet, e.g. <code>--init.asyncLogin=true</code>.
+ */
+public final class LoadTestMain {
+
+    /** Prefix of the options setting init-params of the login servlet. */
+    private static final String INIT_PREFIX = "init.";
+
+    /** Options and their default values. */
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULTS.put("threads", "64");
+        DEFAULTS.put("warmUp", "10");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("users", "1000");
+        DEFAULTS.put("badPasswordRate", "5");
+        DEFAULTS.put("badTokenRate", "5");
+        DEFAULTS.put("containerThreads", "200");
+        DEFAULTS.put("ldapLatency", "5");
+        DEFAULTS.put("ldapJitter", "5");
+        DEFAULTS.put("ldapErrorRate", "0");
+        DEFAULTS.put("otpServers", "2");
+        DEFAULTS.put("otpThreads", "200");
+        DEFAULTS.put("otpLatency", "20");
+        DEFAULTS.put("otpJitter", "20");
+        DEFAULTS.put("otpErrorRate", "0");
+    }
+
+    /** Constructor. */
+    private LoadTestMain() {
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args options, <code>--name=value</code>
+     *
+     * @throws Exception if the load test can not be run
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+        Map<String, String> initParams = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                usage("Invalid option " + arg);
+            }
+            String name = arg.substring(2, equals);
+            if (name.startsWith(INIT_PREFIX)) {
+                initParams.put(name.substring(INIT_PREFIX.length()), arg.substring(equals + 1));
+            } else if (DEFAULTS.containsKey(name)) {
+                options.put(name, arg.substring(equals + 1));
+            } else {
+                usage("Unknown option " + name);
+            }
+        }
+
+        int users = Integer.parseInt(options.get("users"));
+        FaultInjector ldapFaults = faults(options, "ldap");
+        StubLdapServer ldap = new StubLdapServer(users, ldapFaults);
+        FaultInjector otpFaults = faults(options, "otp");
+        List<StubValidationServer> otpServers = new ArrayList<StubValidationServer>();
+        for (int i = 0; i < Integer.parseInt(options.get("otpServers")); i++) {
+            otpServers.add(new StubValidationServer(Integer.parseInt(options.get("otpThreads")), otpFaults));
+        }
+
+        EmbeddedIdp idp = null;
+        try {
+            ldap.start();
+            StringBuilder urls = new StringBuilder();
+            for (StubValidationServer otpServer : otpServers) {
+                otpServer.start();
+                urls.append(urls.length() > 0 ? "," : "").append(otpServer.getUrl());
+            }
+
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("validationClients", "otp");
+            params.put("validationClient.otp.urls", urls.toString());
+            params.putAll(initParams);
+            idp = new EmbeddedIdp(Integer.parseInt(options.get("containerThreads")), ldap.getPeopleUrl(), params);
+            idp.start();
+
+            System.out.println("LDAP : " + ldapFaults);
+            System.out.println("OTP  : " + otpServers.size() + " servers, " + otpFaults);
+            System.out.println("Servlet init-params : " + params);
+
+            LoadClient client = new LoadClient(idp.getLoginUrl(), users,
+                    Double.parseDouble(options.get("badPasswordRate")),
+                    Double.parseDouble(options.get("badTokenRate")));
+            client.run(Integer.parseInt(options.get("threads")), Long.parseLong(options.get("warmUp")) * 1000,
+                    Long.parseLong(options.get("duration")) * 1000);
+            client.report(System.out);
+        } finally {
+            if (idp != null) {
+                idp.stop();
+            }
+            for (StubValidationServer otpServer : otpServers) {
+                otpServer.stop();
+            }
+            ldap.stop();
+        }
+    }
+
+    /**
+     * Creates the fault injector of a stub backend.
+     *
+     * @param options the options
+     * @param backend prefix of the backend's options
+     *
+     * @return the fault injector
+     */
+    private static FaultInjector faults(Map<String, String> options, String backend) {
+        return new FaultInjector(Long.parseLong(options.get(backend + "Latency")), Long.parseLong(options.get(backend
+                + "Jitter")), Double.parseDouble(options.get(backend + "ErrorRate")));
+    }
+
+    /**
+     * Prints the usage and exits.
+     *
+     * @param error the error in the options
+     */
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Options, with their defaults (times in seconds, latencies in milliseconds, rates in %) :");
+        for (Map.Entry<String, String> option : DEFAULTS.entrySet()) {
+            System.err.println("  --" + option.getKey() + "=" + option.getValue());
+        }
+        System.err.println("  --" + INIT_PREFIX + "<param>=<value>  init-param of the login servlet");
+        System.exit(1);
+    }
+}
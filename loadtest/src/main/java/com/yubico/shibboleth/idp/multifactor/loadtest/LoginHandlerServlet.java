@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.yubico.shibboleth.idp.multifactor.MultiFactorAuthLoginHandler;
+
+/**
+ * Stands in for the IdP's authentication engine at the start of a login, handing the request to a
+ * {@link MultiFactorAuthLoginHandler}. Without the engine no login context is bound to the request, so the handler
+ * redirects the browser to the login servlet.
+ */
+public class LoginHandlerServlet extends HttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -1934512896406178823L;
+
+    /** The login handler. */
+    private final transient MultiFactorAuthLoginHandler handler;
+
+    /**
+     * Constructor.
+     *
+     * @param loginHandler the login handler
+     */
+    public LoginHandlerServlet(MultiFactorAuthLoginHandler loginHandler) {
+        handler = loginHandler;
+    }
+
+    /** {@inheritDoc} */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        handler.login(request, response);
+    }
+}
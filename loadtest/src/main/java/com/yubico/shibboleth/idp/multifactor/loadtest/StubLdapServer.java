@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * An in-process LDAP server holding the load test users, <code>user0</code> to <code>user&lt;n-1&gt;</code> under
+ * {@link #PEOPLE_DN}, all with the password {@link #PASSWORD}. Simple binds go through a {@link FaultInjector}.
+ */
+public class StubLdapServer {
+
+    /** Base DN of the directory. */
+    public static final String BASE_DN = "dc=example,dc=com";
+
+    /** DN of the entry holding the users. */
+    public static final String PEOPLE_DN = "ou=people," + BASE_DN;
+
+    /** Password of every user. */
+    public static final String PASSWORD = "password";
+
+    /** The directory server. */
+    private final InMemoryDirectoryServer server;
+
+    /**
+     * Constructor.
+     *
+     * @param users number of users
+     * @param faults latency and errors of binds
+     *
+     * @throws LDAPException if the directory can not be created
+     */
+    public StubLdapServer(int users, final FaultInjector faults) throws LDAPException {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) throws LDAPException {
+                try {
+                    if (faults.inject()) {
+                        throw new LDAPException(ResultCode.UNAVAILABLE, "Injected error");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LDAPException(ResultCode.UNAVAILABLE, "Interrupted");
+                }
+            }
+        });
+
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+        server.add("dn: " + PEOPLE_DN, "objectClass: organizationalUnit", "ou: people");
+        for (int i = 0; i < users; i++) {
+            server.add("dn: uid=user" + i + "," + PEOPLE_DN, "objectClass: inetOrgPerson", "uid: user" + i,
+                    "cn: User " + i, "sn: " + i, "userPassword: " + PASSWORD);
+        }
+    }
+
+    /**
+     * Starts listening, on an ephemeral port.
+     *
+     * @throws LDAPException if the server can not listen
+     */
+    public void start() throws LDAPException {
+        server.startListening();
+    }
+
+    /**
+     * Gets the URL of the user entries, as expected by the <code>userProvider</code> option of the JDK's
+     * <code>LdapLoginModule</code>.
+     *
+     * @return LDAP URL
+     */
+    public String getPeopleUrl() {
+        return "ldap://127.0.0.1:" + server.getListenPort() + "/" + PEOPLE_DN;
+    }
+
+    /** Stops the server. */
+    public void stop() {
+        server.shutDown(true);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import com.yubico.shibboleth.idp.multifactor.ValidationClient;
+import com.yubico.shibboleth.idp.multifactor.ValidationClientCallback;
+
+/**
+ * A JAAS login module validating the token of a login against the {@link StubValidationServer}s, through the login
+ * servlet's shared {@link ValidationClient} named by the <code>client</code> option (default: the first client).
+ */
+public class StubOtpLoginModule implements LoginModule {
+
+    /** Callback handler of the login. */
+    private CallbackHandler callbackHandler;
+
+    /** Name of the validation client, or null for the default client. */
+    private String clientName;
+
+    /** {@inheritDoc} */
+    public void initialize(Subject subject, CallbackHandler handler, Map<String, ?> sharedState,
+            Map<String, ?> options) {
+        callbackHandler = handler;
+        clientName = (String) options.get("client");
+    }
+
+    /** {@inheritDoc} */
+    public boolean login() throws LoginException {
+        NameCallback name = new NameCallback("Username: ");
+        PasswordCallback token = new PasswordCallback("Token: ", false);
+        ValidationClientCallback client = new ValidationClientCallback(clientName);
+        try {
+            callbackHandler.handle(new Callback[] {name, token, client});
+        } catch (IOException e) {
+            throw new LoginException(e.toString());
+        } catch (UnsupportedCallbackException e) {
+            throw new LoginException(e.toString());
+        }
+        if (token.getPassword() == null) {
+            throw new FailedLoginException("No token");
+        }
+        if (client.getClient() == null) {
+            throw new LoginException("No validation client");
+        }
+
+        String otp = new String(token.getPassword());
+        token.clearPassword();
+        ValidationClient.Response response;
+        try {
+            response = client.getClient().validate("id=1&otp=" + URLEncoder.encode(otp, "UTF-8"));
+        } catch (IOException e) {
+            throw new LoginException("OTP validation failed: " + e.getMessage());
+        }
+        if (!"OK".equals(response.getField("status"))) {
+            throw new FailedLoginException("OTP rejected: " + response.getField("status"));
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean commit() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean abort() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean logout() {
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor.loadtest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * An in-process OTP validation server answering like the YubiCloud validation protocol, with <code>key=value</code>
+ * lines. Every OTP is valid, except those starting with {@link #BAD_OTP_PREFIX}. Requests go through a
+ * {@link FaultInjector}, injected errors being answered with HTTP status 503.
+ */
+public class StubValidationServer {
+
+    /** Prefix of the OTPs answered with <code>status=BAD_OTP</code>. */
+    public static final String BAD_OTP_PREFIX = "dddddd";
+
+    /** The HTTP server. */
+    private final Server server;
+
+    /** The connector of the HTTP server. */
+    private final SelectChannelConnector connector;
+
+    /**
+     * Constructor.
+     *
+     * @param threads largest number of requests served at the same time
+     * @param faults latency and errors of requests
+     */
+    public StubValidationServer(int threads, FaultInjector faults) {
+        server = new Server();
+        server.setThreadPool(new QueuedThreadPool(threads));
+        connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new ValidationServlet(faults)), "/verify");
+        server.setHandler(context);
+    }
+
+    /**
+     * Starts the server, on an ephemeral port.
+     *
+     * @throws Exception if the server can not be started
+     */
+    public void start() throws Exception {
+        server.start();
+    }
+
+    /**
+     * Gets the URL OTPs are validated at.
+     *
+     * @return validation URL
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + connector.getLocalPort() + "/verify";
+    }
+
+    /**
+     * Stops the server.
+     *
+     * @throws Exception if the server can not be stopped
+     */
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /** The validation endpoint. */
+    private static class ValidationServlet extends HttpServlet {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 2718504261370986631L;
+
+        /** Latency and errors of requests. */
+        private final transient FaultInjector faults;
+
+        /**
+         * Constructor.
+         *
+         * @param newFaults latency and errors of requests
+         */
+        ValidationServlet(FaultInjector newFaults) {
+            faults = newFaults;
+        }
+
+        /** {@inheritDoc} */
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            try {
+                if (faults.inject()) {
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+
+            String otp = request.getParameter("otp");
+            String status;
+            if (otp == null) {
+                status = "MISSING_PARAMETER";
+            } else if (otp.startsWith(BAD_OTP_PREFIX)) {
+                status = "BAD_OTP";
+            } else {
+                status = "OK";
+            }
+            response.setContentType("text/plain");
+            PrintWriter out = response.getWriter();
+            out.print("otp=" + (otp != null ? otp : "") + "\r\n");
+            out.print("status=" + status + "\r\n");
+        }
+    }
+}
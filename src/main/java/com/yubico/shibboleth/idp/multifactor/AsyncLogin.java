@@ -0,0 +1,307 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One login processed asynchronously by {@link MultiFactorAuthLoginServlet}.
+ *
+ * The login runs on a thread of the servlet's executor, where the request can not be forwarded. It is therefore
+ * processed with the request returned by {@link #getRequest()}, whose request dispatchers hand the forward to the
+ * container with {@link AsyncContext#dispatch(String)}. The asynchronous request ends exactly once : by that dispatch,
+ * by {@link #complete()} once the login has written its response, or by a container timeout or error. After a timeout
+ * or error the login is cancelled, and what it still writes to the response returned by {@link #getResponse()} is
+ * discarded, as the container may already have recycled the response.
+ */
+class AsyncLogin implements AsyncListener {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AsyncLogin.class);
+
+    /** Context of the asynchronous request. */
+    private final AsyncContext asyncContext;
+
+    /** The request, dispatching forwards to the container. */
+    private final HttpServletRequest request;
+
+    /** The response, discarding what is written once the asynchronous request has ended. */
+    private final HttpServletResponse response;
+
+    /** Whether the asynchronous request has ended. */
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /** The running login, or null if it is not running on the executor. */
+    private volatile Future<?> task;
+
+    /**
+     * Constructor. Registers this login as listener of the asynchronous request.
+     *
+     * @param context context of the asynchronous request
+     * @param httpRequest the request
+     * @param httpResponse the response
+     * @param timeout asynchronous request timeout, in milliseconds
+     */
+    AsyncLogin(AsyncContext context, HttpServletRequest httpRequest, HttpServletResponse httpResponse, long timeout) {
+        asyncContext = context;
+        request = new HttpServletRequestWrapper(httpRequest) {
+            public RequestDispatcher getRequestDispatcher(String path) {
+                return new Dispatcher(path);
+            }
+        };
+        response = new GuardedResponse(httpResponse);
+        asyncContext.setTimeout(timeout);
+        asyncContext.addListener(this);
+    }
+
+    /**
+     * Gets the request to process the login with.
+     *
+     * @return the request, whose forwards are dispatched by the container
+     */
+    HttpServletRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Gets the response to process the login with.
+     *
+     * @return the response, discarding what is written once the asynchronous request has ended
+     */
+    HttpServletResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Sets the running login, cancelled if the asynchronous request times out.
+     *
+     * @param runningTask the running login
+     */
+    void setTask(Future<?> runningTask) {
+        task = runningTask;
+        if (completed.get()) {
+            runningTask.cancel(true);
+        }
+    }
+
+    /**
+     * Whether the asynchronous request has ended, and the login must no longer touch the request and response.
+     *
+     * @return true if the asynchronous request has ended
+     */
+    boolean isCompleted() {
+        return completed.get();
+    }
+
+    /** Ends the asynchronous request once the login has written its response, unless it has already ended. */
+    void complete() {
+        if (completed.compareAndSet(false, true)) {
+            asyncContext.complete();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void onTimeout(AsyncEvent event) throws IOException {
+        if (completed.compareAndSet(false, true)) {
+            log.warn("Asynchronous login timed out");
+            cancel();
+            HttpServletResponse timedOut = (HttpServletResponse) asyncContext.getResponse();
+            if (!timedOut.isCommitted()) {
+                timedOut.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+            asyncContext.complete();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void onError(AsyncEvent event) throws IOException {
+        if (completed.compareAndSet(false, true)) {
+            log.debug("Asynchronous login failed", event.getThrowable());
+            cancel();
+            asyncContext.complete();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void onComplete(AsyncEvent event) {
+        completed.set(true);
+    }
+
+    /** {@inheritDoc} */
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /** Cancels the running login. */
+    private void cancel() {
+        Future<?> runningTask = task;
+        if (runningTask != null) {
+            runningTask.cancel(true);
+        }
+    }
+
+    /** A request dispatcher handing forwards to the container. */
+    private class Dispatcher implements RequestDispatcher {
+
+        /** Context-relative path to forward to. */
+        private final String path;
+
+        /**
+         * Constructor.
+         *
+         * @param forwardPath context-relative path to forward to
+         */
+        Dispatcher(String forwardPath) {
+            path = forwardPath;
+        }
+
+        /** {@inheritDoc} */
+        public void forward(ServletRequest forwardRequest, ServletResponse forwardResponse) throws ServletException {
+            if (!path.startsWith("/")) {
+                throw new ServletException("Unable to dispatch an asynchronous login to relative path " + path);
+            }
+            if (completed.compareAndSet(false, true)) {
+                asyncContext.dispatch(path);
+            } else {
+                log.debug("Asynchronous login already ended, not forwarding to {}", path);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void include(ServletRequest includeRequest, ServletResponse includeResponse)
+                throws ServletException {
+            throw new ServletException("Unable to include " + path + " in an asynchronous login");
+        }
+    }
+
+    /** A response ignoring what the login writes once the asynchronous request has ended. */
+    private class GuardedResponse extends HttpServletResponseWrapper {
+
+        /**
+         * Constructor.
+         *
+         * @param httpResponse the response
+         */
+        GuardedResponse(HttpServletResponse httpResponse) {
+            super(httpResponse);
+        }
+
+        /** {@inheritDoc} */
+        public void setStatus(int status) {
+            if (!completed.get()) {
+                super.setStatus(status);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void sendError(int status) throws IOException {
+            if (!completed.get()) {
+                super.sendError(status);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void sendError(int status, String message) throws IOException {
+            if (!completed.get()) {
+                super.sendError(status, message);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void sendRedirect(String location) throws IOException {
+            if (!completed.get()) {
+                super.sendRedirect(location);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void setHeader(String name, String value) {
+            if (!completed.get()) {
+                super.setHeader(name, value);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void addHeader(String name, String value) {
+            if (!completed.get()) {
+                super.addHeader(name, value);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void addCookie(Cookie cookie) {
+            if (!completed.get()) {
+                super.addCookie(cookie);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void setContentType(String type) {
+            if (!completed.get()) {
+                super.setContentType(type);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public PrintWriter getWriter() throws IOException {
+            if (completed.get()) {
+                return new PrintWriter(new DiscardingOutputStream());
+            }
+            return super.getWriter();
+        }
+
+        /** {@inheritDoc} */
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (completed.get()) {
+                return new DiscardingOutputStream();
+            }
+            return super.getOutputStream();
+        }
+    }
+
+    /** An output stream discarding what is written to it. */
+    private static class DiscardingOutputStream extends ServletOutputStream {
+
+        /** {@inheritDoc} */
+        public void write(int b) {
+        }
+
+        /** {@inheritDoc} */
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
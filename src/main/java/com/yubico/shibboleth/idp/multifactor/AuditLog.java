@@ -0,0 +1,459 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/**
+ * An audit trail of all logins, written to a rolling file by a background thread.
+ *
+ * Logins are recorded into a fixed-size ring buffer of preallocated events, so recording allocates nothing and never
+ * blocks the request thread. If the writer falls behind and the buffer is full, events are dropped and counted. The
+ * writer drains the buffer in batches, writing one JSON object per line :
+ *
+ * <pre>
+ * {"time":"2011-06-01T12:00:00.000Z","user":"alice","client":"192.0.2.1","outcome":"BAD_TOKEN","reason":null,
+ *  "factors":2,"micros":48211,"backends":[{"name":"ldap","factor":"PASSWORD","result":"SUCCESS","micros":3120},
+ *  {"name":"yubikey","factor":"TOKEN","result":"FAILURE","micros":44790}]}
+ * </pre>
+ *
+ * When the file grows beyond the maximum size it is renamed with the suffix <code>.1</code>, earlier files being
+ * shifted to <code>.2</code> and so on, and the oldest deleted.
+ */
+public class AuditLog {
+
+    /** Largest number of backend calls recorded per login. */
+    public static final int MAX_BACKEND_CALLS = 8;
+
+    /** Largest number of events written per batch. */
+    private static final int BATCH_SIZE = 512;
+
+    /** Time the writer waits when the buffer is empty, in nanoseconds. */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+    /** The audit log file. */
+    private final File file;
+
+    /** Size at which the file is rolled, in bytes. */
+    private final long maxFileSize;
+
+    /** Number of rolled files kept. */
+    private final int maxFiles;
+
+    /** The ring buffer. */
+    private final Event[] events;
+
+    /** Mask of the buffer indices. */
+    private final int mask;
+
+    /** Sequence of the next event recorded. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Sequence of the next event written. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Number of events dropped because the buffer was full. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** The writer thread. */
+    private final Thread writerThread;
+
+    /** Whether the log has been closed. */
+    private volatile boolean closed;
+
+    /** Writer of the current file, only used by the writer thread. */
+    private Writer out;
+
+    /** Size of the current file in bytes, only used by the writer thread. */
+    private long fileSize;
+
+    /**
+     * Constructor. Opens the file and starts the writer thread.
+     *
+     * @param auditFile the audit log file, appended to if it exists
+     * @param bufferSize number of events buffered, rounded up to a power of two
+     * @param rollSize size at which the file is rolled, in bytes
+     * @param rolledFiles number of rolled files kept
+     *
+     * @throws IOException thrown if the file can not be opened
+     */
+    public AuditLog(File auditFile, int bufferSize, long rollSize, int rolledFiles) throws IOException {
+        this(auditFile, bufferSize, rollSize, rolledFiles, true);
+    }
+
+    /**
+     * Constructor. Opens the file.
+     *
+     * @param auditFile the audit log file, appended to if it exists
+     * @param bufferSize number of events buffered, rounded up to a power of two
+     * @param rollSize size at which the file is rolled, in bytes
+     * @param rolledFiles number of rolled files kept
+     * @param startWriter whether to start the writer thread, else it is started by {@link #start()}
+     *
+     * @throws IOException thrown if the file can not be opened
+     */
+    AuditLog(File auditFile, int bufferSize, long rollSize, int rolledFiles, boolean startWriter)
+            throws IOException {
+        file = auditFile;
+        maxFileSize = rollSize;
+        maxFiles = rolledFiles;
+
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        events = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            events[i] = new Event();
+        }
+        mask = capacity - 1;
+
+        open();
+        writerThread = new DaemonThreadFactory("audit-log").newThread(new Runnable() {
+            public void run() {
+                writeEvents();
+            }
+        });
+        if (startWriter) {
+            start();
+        }
+    }
+
+    /** Starts the writer thread. */
+    void start() {
+        writerThread.start();
+    }
+
+    /**
+     * Records a login. Never blocks, the login is dropped if the buffer is full.
+     *
+     * @param attempt the login attempt, with its backend calls, or null if the login failed before
+     * @param username the user
+     * @param clientAddress address of the client
+     * @param outcome outcome of the login
+     * @param reason reason of a failure, or null
+     * @param factorCount number of authentication factors submitted
+     * @param nanos latency of the login, in nanoseconds
+     *
+     * @return false if the login was dropped
+     */
+    public boolean record(LoginAttempt attempt, String username, String clientAddress, LoginMetrics.Outcome outcome,
+            MultiFactorAuthLoginException.Reason reason, int factorCount, long nanos) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= events.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        Event event = events[(int) sequence & mask];
+        event.time = System.currentTimeMillis();
+        event.username = username;
+        event.clientAddress = clientAddress;
+        event.outcome = outcome;
+        event.reason = reason;
+        event.factorCount = factorCount;
+        event.nanos = nanos;
+        event.calls = 0;
+        if (attempt != null) {
+            event.calls = Math.min(MAX_BACKEND_CALLS, attempt.getRecordedCalls());
+            for (int i = 0; i < event.calls; i++) {
+                event.backends[i] = attempt.getCalledBackend(i);
+                event.factors[i] = attempt.getCalledFactor(i);
+                event.results[i] = attempt.getCallResult(i);
+                event.callNanos[i] = attempt.getCallNanos(i);
+            }
+        }
+        event.published = sequence;
+        return true;
+    }
+
+    /**
+     * Gets the number of logins dropped because the buffer was full.
+     *
+     * @return number of dropped logins
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Writes the events still buffered, stops the writer thread and closes the file. */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Body of the writer thread. */
+    private void writeEvents() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 256);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date date = new Date();
+
+        while (true) {
+            int count = 0;
+            long sequence = tail.get();
+            while (count < BATCH_SIZE) {
+                Event event = events[(int) sequence & mask];
+                if (event.published != sequence) {
+                    break;
+                }
+                int length = batch.length();
+                try {
+                    date.setTime(event.time);
+                    event.format(batch, timeFormat.format(date));
+                } catch (RuntimeException e) {
+                    batch.setLength(length);
+                    log.error("Unable to format audit event of user {}", event.username, e);
+                }
+                event.clear();
+                sequence++;
+                tail.lazySet(sequence);
+                count++;
+            }
+
+            if (count > 0) {
+                write(batch);
+                batch.setLength(0);
+            } else if (closed) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.error("Unable to close audit log {}", file, e);
+        }
+    }
+
+    /**
+     * Writes a batch of events, rolling the file if it has grown too large.
+     *
+     * @param batch the formatted events
+     */
+    private void write(StringBuilder batch) {
+        try {
+            out.append(batch);
+            out.flush();
+            fileSize += utf8Length(batch);
+            if (fileSize >= maxFileSize) {
+                roll();
+            }
+        } catch (IOException e) {
+            log.error("Unable to write {} characters to audit log {}", new Object[] {batch.length(), file, e});
+        } catch (RuntimeException e) {
+            log.error("Unable to write {} characters to audit log {}", new Object[] {batch.length(), file, e});
+        }
+    }
+
+    /**
+     * Computes the length of characters encoded in UTF-8, as the file is written.
+     *
+     * @param chars the characters
+     *
+     * @return number of bytes
+     */
+    static long utf8Length(CharSequence chars) {
+        long length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // written as '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Opens the current file for appending.
+     *
+     * @throws IOException thrown if the file can not be opened
+     */
+    private void open() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+        fileSize = file.length();
+    }
+
+    /**
+     * Renames the current file and the earlier rolled files, and opens a new file.
+     *
+     * @throws IOException thrown if the new file can not be opened
+     */
+    private void roll() throws IOException {
+        out.close();
+        File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            log.warn("Unable to delete rolled audit log {}", oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File rolled = new File(file.getPath() + "." + i);
+            if (rolled.exists() && !rolled.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                log.warn("Unable to rename rolled audit log {}", rolled);
+            }
+        }
+        if (maxFiles > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            log.warn("Unable to roll audit log {}", file);
+        } else if (maxFiles == 0 && !file.delete()) {
+            log.warn("Unable to delete audit log {}", file);
+        }
+        open();
+    }
+
+    /**
+     * Appends a string as a JSON string literal.
+     *
+     * @param sb the builder to append to
+     * @param value the string, or null
+     */
+    private static void appendJson(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /** A preallocated slot of the ring buffer. */
+    private static class Event {
+
+        /** Sequence of the event in this slot, once it is fully recorded. */
+        private volatile long published = -1;
+
+        /** Time of the login. */
+        private long time;
+
+        /** The user. */
+        private String username;
+
+        /** Address of the client. */
+        private String clientAddress;
+
+        /** Outcome of the login. */
+        private LoginMetrics.Outcome outcome;
+
+        /** Reason of a failure, or null. */
+        private MultiFactorAuthLoginException.Reason reason;
+
+        /** Number of factors submitted. */
+        private int factorCount;
+
+        /** Latency of the login, in nanoseconds. */
+        private long nanos;
+
+        /** Number of backend calls. */
+        private int calls;
+
+        /** Names of the backends called. */
+        private final String[] backends = new String[MAX_BACKEND_CALLS];
+
+        /** Kinds of factor verified by the backends. */
+        private final LoginAttempt.Factor[] factors = new LoginAttempt.Factor[MAX_BACKEND_CALLS];
+
+        /** Results of the backend calls. */
+        private final BackendResult[] results = new BackendResult[MAX_BACKEND_CALLS];
+
+        /** Latencies of the backend calls, in nanoseconds. */
+        private final long[] callNanos = new long[MAX_BACKEND_CALLS];
+
+        /**
+         * Formats this event as a line of JSON.
+         *
+         * @param sb the builder to append to
+         * @param timestamp the formatted time of the login
+         */
+        void format(StringBuilder sb, String timestamp) {
+            sb.append("{\"time\":\"").append(timestamp).append("\",\"user\":");
+            appendJson(sb, username);
+            sb.append(",\"client\":");
+            appendJson(sb, clientAddress);
+            sb.append(",\"outcome\":\"").append(outcome.name()).append("\",\"reason\":");
+            appendJson(sb, reason != null ? reason.name() : null);
+            sb.append(",\"factors\":").append(factorCount);
+            sb.append(",\"micros\":").append(nanos / 1000);
+            sb.append(",\"backends\":[");
+            for (int i = 0; i < calls; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"name\":");
+                appendJson(sb, backends[i]);
+                sb.append(",\"factor\":\"").append(factors[i].name());
+                sb.append("\",\"result\":\"").append(results[i].name());
+                sb.append("\",\"micros\":").append(callNanos[i] / 1000).append('}');
+            }
+            sb.append("]}\n");
+        }
+
+        /** Releases the references held by this event. */
+        void clear() {
+            username = null;
+            clientAddress = null;
+            for (int i = 0; i < calls; i++) {
+                backends[i] = null;
+            }
+        }
+    }
+}
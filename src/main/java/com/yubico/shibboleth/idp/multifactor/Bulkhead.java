@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bulkhead limiting the number of concurrent calls to one authentication backend, a JAAS login module or a
+ * {@link FactorVerifier}.
+ *
+ * A call beyond the limit waits for a free slot, but only if few enough calls are already waiting and only for a short
+ * time, bounded by the factor timeout of the login deadline. Otherwise the login fails at once with
+ * {@link MultiFactorAuthLoginException.Reason#BACKEND_UNAVAILABLE}. A slow backend thus holds at most its own slots and
+ * waiters, leaving the other request threads to logins that do not need it. Waiting times and rejections are reported
+ * to the backend's {@link LoginMetrics}.
+ */
+public class Bulkhead {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(Bulkhead.class);
+
+    /** Name of the backend. */
+    private final String name;
+
+    /** Free slots. */
+    private final Semaphore slots;
+
+    /** Largest number of calls concurrently in the backend. */
+    private final int maxConcurrent;
+
+    /** Largest number of calls waiting for a slot. */
+    private final int maxWaiting;
+
+    /** Longest time a call waits for a slot, in nanoseconds. */
+    private final long maxWaitNanos;
+
+    /** Number of calls waiting for a slot. */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param backend name of the backend
+     * @param concurrent largest number of calls concurrently in the backend
+     * @param waiters largest number of calls waiting for a slot
+     * @param maxWaitMillis longest time a call waits for a slot, in milliseconds
+     */
+    public Bulkhead(String backend, int concurrent, int waiters, long maxWaitMillis) {
+        name = backend;
+        maxConcurrent = concurrent;
+        maxWaiting = waiters;
+        maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        slots = new Semaphore(concurrent, true);
+    }
+
+    /**
+     * Gets the name of the backend.
+     *
+     * @return backend name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the largest number of calls concurrently in the backend.
+     *
+     * @return concurrency limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Gets the number of calls currently in the backend.
+     *
+     * @return active calls
+     */
+    public int getActive() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    /**
+     * Gets the number of calls currently waiting for a slot.
+     *
+     * @return waiting calls
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * Takes a slot for a call, waiting for one if needed. Every successful call must be paired with a
+     * {@link #release()}.
+     *
+     * @param attempt the login attempt calling the backend
+     *
+     * @throws LoginException thrown if no slot could be taken, or if interrupted while waiting
+     */
+    public void acquire(LoginAttempt attempt) throws LoginException {
+        long start = System.nanoTime();
+        if (slots.tryAcquire()) {
+            recordQueued(attempt, 0);
+            return;
+        }
+
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            throw reject(attempt, "all " + maxConcurrent + " slots and " + maxWaiting + " waiting places taken");
+        }
+        try {
+            long wait = maxWaitNanos;
+            long factorTimeout = attempt.getFactorTimeout();
+            if (factorTimeout >= 0) {
+                wait = Math.min(wait, factorTimeout);
+            }
+            if (!slots.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                throw reject(attempt, "no slot freed within " + TimeUnit.NANOSECONDS.toMillis(wait) + " ms");
+            }
+            recordQueued(attempt, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while waiting for backend " + name);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /** Gives back the slot of a call. */
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * Records the time a call waited for its slot.
+     *
+     * @param attempt the login attempt calling the backend
+     * @param nanos waiting time in nanoseconds
+     */
+    private void recordQueued(LoginAttempt attempt, long nanos) {
+        if (attempt.getMetrics() != null) {
+            attempt.getMetrics().getBackend(name).recordQueued(nanos);
+        }
+    }
+
+    /**
+     * Records and creates the failure of a call finding no slot.
+     *
+     * @param attempt the login attempt calling the backend
+     * @param why why no slot was found, for the log
+     *
+     * @return the exception to throw
+     */
+    private MultiFactorAuthLoginException reject(LoginAttempt attempt, String why) {
+        log.debug("Bulkhead of backend {} rejected a call for user {} : {}", new Object[] {name,
+                attempt.getUsername(), why});
+        if (attempt.getMetrics() != null) {
+            attempt.getMetrics().getBackend(name).recordBulkheadRejection();
+        }
+        return new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.BACKEND_UNAVAILABLE,
+                "Authentication backend " + name + " is saturated");
+    }
+}
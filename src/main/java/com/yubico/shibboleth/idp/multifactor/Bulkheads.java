@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link Bulkhead}s of the authentication backends of one {@link MultiFactorAuthLoginServlet}, one per backend
+ * name, sharing the same waiting limits. The concurrency limit can be set per backend.
+ */
+public class Bulkheads {
+
+    /** Bulkheads, keyed by backend name. */
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    /** Concurrency limit of backends without one of their own. */
+    private final int maxConcurrent;
+
+    /** Concurrency limits, keyed by backend name. */
+    private final Map<String, Integer> backendMaxConcurrent;
+
+    /** Largest number of calls waiting for a slot of a backend. */
+    private final int maxWaiting;
+
+    /** Longest time a call waits for a slot, in milliseconds. */
+    private final long maxWaitMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param concurrent concurrency limit of backends without one of their own
+     * @param backendConcurrent concurrency limits, keyed by backend name
+     * @param waiters largest number of calls waiting for a slot of a backend
+     * @param maxWait longest time a call waits for a slot, in milliseconds
+     */
+    public Bulkheads(int concurrent, Map<String, Integer> backendConcurrent, int waiters, long maxWait) {
+        maxConcurrent = concurrent;
+        backendMaxConcurrent = new HashMap<String, Integer>(backendConcurrent);
+        maxWaiting = waiters;
+        maxWaitMillis = maxWait;
+    }
+
+    /**
+     * Gets the bulkhead of a backend, creating it if needed.
+     *
+     * @param backend name of the backend
+     *
+     * @return the bulkhead
+     */
+    public Bulkhead getOrCreate(String backend) {
+        Bulkhead bulkhead = bulkheads.get(backend);
+        if (bulkhead == null) {
+            Integer limit = backendMaxConcurrent.get(backend);
+            Bulkhead created = new Bulkhead(backend, limit != null ? limit : maxConcurrent, maxWaiting,
+                    maxWaitMillis);
+            bulkhead = bulkheads.putIfAbsent(backend, created);
+            if (bulkhead == null) {
+                bulkhead = created;
+            }
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Gets all bulkheads.
+     *
+     * @return bulkheads created so far
+     */
+    public Collection<Bulkhead> getAll() {
+        return bulkheads.values();
+    }
+}
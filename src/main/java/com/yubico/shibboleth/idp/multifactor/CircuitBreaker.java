@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/**
+ * A circuit breaker guarding one authentication backend, a JAAS login module or a {@link FactorVerifier}.
+ *
+ * The breaker keeps rolling counts of the calls to the backend over a time window. Calls ending in an error, or
+ * taking longer than the slow call threshold, are counted as failed; a rejected credential is a normal answer and
+ * counts as a success. When the share of failed calls reaches the failure rate, the breaker opens and logins needing
+ * the backend fail fast with {@link MultiFactorAuthLoginException.Reason#BACKEND_UNAVAILABLE} instead of waiting for
+ * the backend to time out.
+ *
+ * While open, the backend is probed in the background after every open period, and the breaker closes as soon as a
+ * probe gets an answer. Without a probe the breaker goes half-open after the open period instead, letting a single
+ * login through as a trial. A trial that is not recorded within another open period, for example because it was
+ * rejected by a bulkhead or abandoned at the login deadline, counts as failed and the breaker opens again.
+ */
+public class CircuitBreaker {
+
+    /** A background check of a backend's health. */
+    public static interface Probe {
+
+        /**
+         * Calls the backend. The backend is considered healthy if the call returns or throws an exception rejecting
+         * the credentials, see {@link BackendResult#of(Throwable)}.
+         *
+         * @throws Exception thrown by the backend
+         */
+        void run() throws Exception;
+    }
+
+    /** States of a circuit breaker. */
+    public static enum State {
+
+        /** Calls go through. */
+        CLOSED,
+
+        /** Calls fail fast. */
+        OPEN,
+
+        /** A single trial call is going through. */
+        HALF_OPEN,
+    }
+
+    /** Number of buckets of the rolling window. */
+    private static final int BUCKETS = 10;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** Name of the guarded backend. */
+    private final String name;
+
+    /** Settings of the breaker. */
+    private final CircuitBreakers settings;
+
+    /** Background probe of the backend, or null. */
+    private final Probe probe;
+
+    /** Milliseconds covered by each bucket of the rolling window. */
+    private final long bucketMillis;
+
+    /** Window number of each bucket. */
+    private final long[] bucketWindows = new long[BUCKETS];
+
+    /** Calls counted in each bucket. */
+    private final int[] bucketCalls = new int[BUCKETS];
+
+    /** Failed calls counted in each bucket. */
+    private final int[] bucketFailures = new int[BUCKETS];
+
+    /** Current state. */
+    private volatile State state = State.CLOSED;
+
+    /** Time the current open period ends, or while half-open the time the trial call counts as failed. */
+    private volatile long openUntil;
+
+    /** Number of times the breaker has opened. */
+    private volatile long openCount;
+
+    /**
+     * Constructor.
+     *
+     * @param backend name of the guarded backend
+     * @param breakerSettings settings of the breaker
+     * @param backendProbe background probe of the backend, or null
+     */
+    public CircuitBreaker(String backend, CircuitBreakers breakerSettings, Probe backendProbe) {
+        name = backend;
+        settings = breakerSettings;
+        probe = backendProbe;
+        bucketMillis = Math.max(1, settings.getWindowMillis() / BUCKETS);
+    }
+
+    /**
+     * Gets the name of the guarded backend.
+     *
+     * @return backend name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the current state.
+     *
+     * @return state of the breaker
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Gets the number of times the breaker has opened.
+     *
+     * @return number of times opened
+     */
+    public long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Checks that the backend may be called.
+     *
+     * @throws MultiFactorAuthLoginException thrown if the breaker is open
+     */
+    public void checkAllowed() throws MultiFactorAuthLoginException {
+        if (state == State.CLOSED || tryHalfOpen()) {
+            return;
+        }
+        throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.BACKEND_UNAVAILABLE,
+                "Authentication backend " + name + " is unavailable");
+    }
+
+    /**
+     * Records a call to the backend.
+     *
+     * @param result result of the call
+     * @param nanos latency in nanoseconds
+     */
+    public void record(BackendResult result, long nanos) {
+        boolean failed = result == BackendResult.ERROR || nanos > settings.getSlowCallNanos();
+        if (state == State.HALF_OPEN) {
+            if (failed) {
+                open();
+            } else {
+                close();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            long window = System.currentTimeMillis() / bucketMillis;
+            int bucket = (int) (window % BUCKETS);
+            if (bucketWindows[bucket] != window) {
+                bucketWindows[bucket] = window;
+                bucketCalls[bucket] = 0;
+                bucketFailures[bucket] = 0;
+            }
+            bucketCalls[bucket]++;
+            if (!failed) {
+                return;
+            }
+            bucketFailures[bucket]++;
+
+            int calls = 0;
+            int failures = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (bucketWindows[i] > window - BUCKETS) {
+                    calls += bucketCalls[i];
+                    failures += bucketFailures[i];
+                }
+            }
+            if (state == State.CLOSED && calls >= settings.getMinimumCalls()
+                    && failures * 100 >= settings.getFailureRate() * calls) {
+                log.warn("Opening circuit breaker of authentication backend {} after {} of {} calls failed",
+                        new Object[] {name, failures, calls});
+                open();
+            }
+        }
+    }
+
+    /** Opens the breaker for one open period and schedules the background probe. */
+    private synchronized void open() {
+        state = State.OPEN;
+        openCount++;
+        openUntil = System.currentTimeMillis() + settings.getOpenMillis();
+        if (probe != null) {
+            scheduleProbe(settings.getProbeExecutor());
+        }
+    }
+
+    /** Closes the breaker, forgetting the calls counted so far. */
+    private synchronized void close() {
+        if (state != State.CLOSED) {
+            log.info("Closing circuit breaker of authentication backend {}", name);
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketWindows[i] = 0;
+        }
+        state = State.CLOSED;
+    }
+
+    /**
+     * Lets a single trial call through once the open period has ended, if there is no background probe. Opens the
+     * breaker again if the trial call has not been recorded within one open period.
+     *
+     * @return true if this call is the trial
+     */
+    private synchronized boolean tryHalfOpen() {
+        if (probe != null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN && now >= openUntil) {
+            log.debug("Trial call of authentication backend {} was not recorded, keeping circuit breaker open", name);
+            open();
+        } else if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+            openUntil = now + settings.getOpenMillis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the background probe at the end of the open period.
+     *
+     * @param executor executor running the probes
+     */
+    private void scheduleProbe(ScheduledExecutorService executor) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.schedule(new Runnable() {
+            public void run() {
+                runProbe();
+            }
+        }, settings.getOpenMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Probes the backend, closing the breaker if it answers and extending the open period if not. */
+    private void runProbe() {
+        if (state != State.OPEN) {
+            return;
+        }
+        Throwable failure = null;
+        long start = System.nanoTime();
+        try {
+            probe.run();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        long nanos = System.nanoTime() - start;
+
+        if (BackendResult.of(failure) != BackendResult.ERROR && nanos <= settings.getSlowCallNanos()) {
+            close();
+        } else {
+            log.debug("Probe of authentication backend {} failed, keeping circuit breaker open", name);
+            synchronized (this) {
+                openUntil = System.currentTimeMillis() + settings.getOpenMillis();
+                scheduleProbe(settings.getProbeExecutor());
+            }
+        }
+    }
+}
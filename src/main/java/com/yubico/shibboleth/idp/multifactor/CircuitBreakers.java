@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker}s of the authentication backends of one {@link MultiFactorAuthLoginServlet}, one per
+ * backend name, sharing the same settings and background probe thread.
+ */
+public class CircuitBreakers {
+
+    /** Breakers, keyed by backend name. */
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /** Percentage of failed calls opening a breaker. */
+    private final int failureRate;
+
+    /** Minimum number of calls in the window before a breaker can open. */
+    private final int minimumCalls;
+
+    /** Latency above which a call counts as failed, in nanoseconds. */
+    private final long slowCallNanos;
+
+    /** Milliseconds covered by the rolling window. */
+    private final long windowMillis;
+
+    /** Milliseconds a breaker stays open before the backend is probed. */
+    private final long openMillis;
+
+    /** Username used by the background probes, or null if backends are not probed. */
+    private final String probeUsername;
+
+    /** Password used by the background probes, or null if backends are not probed. */
+    private final String probePassword;
+
+    /** Executor running the background probes. */
+    private final ScheduledExecutorService probeExecutor = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("MultiFactorAuth circuit breaker probe"));
+
+    /**
+     * Constructor.
+     *
+     * @param rate percentage of failed calls opening a breaker
+     * @param calls minimum number of calls in the window before a breaker can open
+     * @param slowCallMillis latency above which a call counts as failed, in milliseconds
+     * @param window milliseconds covered by the rolling window
+     * @param open milliseconds a breaker stays open before the backend is probed
+     * @param username username used by the background probes, or null to not probe backends
+     * @param password password used by the background probes, or null to not probe backends
+     */
+    public CircuitBreakers(int rate, int calls, long slowCallMillis, long window, long open, String username,
+            String password) {
+        failureRate = rate;
+        minimumCalls = calls;
+        slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        windowMillis = window;
+        openMillis = open;
+        probeUsername = username;
+        probePassword = password;
+    }
+
+    /**
+     * Gets the breaker of a backend.
+     *
+     * @param backend name of the backend
+     *
+     * @return the breaker, or null if the backend has not been called yet
+     */
+    public CircuitBreaker get(String backend) {
+        return breakers.get(backend);
+    }
+
+    /**
+     * Gets the breaker of a backend, creating it if needed.
+     *
+     * @param backend name of the backend
+     * @param probe background probe of the backend, or null; only used if the breaker is created
+     *
+     * @return the breaker
+     */
+    public CircuitBreaker getOrCreate(String backend, CircuitBreaker.Probe probe) {
+        CircuitBreaker breaker = breakers.get(backend);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(backend, this, probe);
+            breaker = breakers.putIfAbsent(backend, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Gets all breakers.
+     *
+     * @return breakers created so far
+     */
+    public Collection<CircuitBreaker> getAll() {
+        return breakers.values();
+    }
+
+    /**
+     * Gets the percentage of failed calls opening a breaker.
+     *
+     * @return failure rate, in percent
+     */
+    public int getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * Gets the minimum number of calls in the window before a breaker can open.
+     *
+     * @return minimum number of calls
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Gets the latency above which a call counts as failed.
+     *
+     * @return slow call threshold, in nanoseconds
+     */
+    public long getSlowCallNanos() {
+        return slowCallNanos;
+    }
+
+    /**
+     * Gets the milliseconds covered by the rolling window.
+     *
+     * @return window length
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Gets the milliseconds a breaker stays open before the backend is probed.
+     *
+     * @return open period
+     */
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Gets whether backends are probed in the background while their breaker is open. They are only probed if both
+     * probe credentials are configured, otherwise a breaker lets a single trial call through after the open period.
+     *
+     * @return true if backends are probed
+     */
+    public boolean isProbing() {
+        return probeUsername != null && probePassword != null;
+    }
+
+    /**
+     * Gets the username used by the background probes.
+     *
+     * @return probe username, or null if backends are not probed
+     */
+    public String getProbeUsername() {
+        return probeUsername;
+    }
+
+    /**
+     * Gets the password used by the background probes.
+     *
+     * @return probe password, or null if backends are not probed
+     */
+    public String getProbePassword() {
+        return probePassword;
+    }
+
+    /**
+     * Gets the executor running the background probes.
+     *
+     * @return probe executor
+     */
+    ScheduledExecutorService getProbeExecutor() {
+        return probeExecutor;
+    }
+
+    /** Stops the background probes. */
+    public void shutdown() {
+        probeExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so background work of this login handler never keeps the container from shutting
+ * down.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    /** Prefix of the thread names. */
+    private final String namePrefix;
+
+    /** Number of the next thread. */
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix of the thread names, followed by a sequence number
+     */
+    DaemonThreadFactory(String name) {
+        namePrefix = name + " ";
+    }
+
+    /** {@inheritDoc} */
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+}
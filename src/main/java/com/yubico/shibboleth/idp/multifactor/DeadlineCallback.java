@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+
+/**
+ * A JAAS {@link Callback} with which a login module learns how much time it has left, so that it can bound its own
+ * network timeouts instead of being interrupted by {@link MultiFactorAuthLoginServlet} once the login deadline has
+ * passed :
+ *
+ * <pre>
+ * DeadlineCallback dcb = new DeadlineCallback();
+ * callbackHandler.handle(new Callback[] {dcb});
+ * if (dcb.getFactorTimeoutMillis() &gt;= 0) {
+ *     connection.setReadTimeout((int) Math.max(1, dcb.getFactorTimeoutMillis()));
+ * }
+ * </pre>
+ *
+ * The factor timeout is the time left until the deadline, split evenly between the factors not verified yet.
+ */
+public class DeadlineCallback implements Callback {
+
+    /** Deadline of the login, from {@link System#nanoTime()}, or 0 if the login has no deadline. */
+    private long deadline;
+
+    /** Time the login module may take, in nanoseconds, or -1 if the login has no deadline. */
+    private long factorTimeout = -1;
+
+    /**
+     * Gets the time left until the deadline of the login.
+     *
+     * @return milliseconds left, 0 if the deadline has passed, or -1 if the login has no deadline
+     */
+    public long getRemainingMillis() {
+        if (deadline == 0) {
+            return -1;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Gets the time the login module may take.
+     *
+     * @return milliseconds, 0 if the deadline has passed, or -1 if the login has no deadline
+     */
+    public long getFactorTimeoutMillis() {
+        return factorTimeout < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(factorTimeout);
+    }
+
+    /**
+     * Sets the deadline.
+     *
+     * @param loginDeadline deadline of the login, from {@link System#nanoTime()}, or 0 if the login has no deadline
+     * @param newFactorTimeout time the login module may take, in nanoseconds, or -1 if the login has no deadline
+     */
+    public void setDeadline(long loginDeadline, long newFactorTimeout) {
+        deadline = loginDeadline;
+        factorTimeout = newFactorTimeout;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/**
+ * A JAAS {@link LoginModule} wrapping another login module, so that every call to it can be observed.
+ *
+ * {@link JaasConfiguration#withDelegatingLoginModules()} replaces each configured login module by this one, naming
+ * the original class in the <code>multifactor.delegate</code> option. When the login is run by
+ * {@link MultiFactorAuthLoginServlet}, each <code>login()</code> of the wrapped module is timed and reported to the
+ * servlet's {@link LoginAttempt}. The kind of factor a module verifies can be set with the
+ * <code>multifactor.factor</code> option (<code>password</code> or <code>token</code>), by default the first module
+ * configured verifies the password. Options starting with <code>multifactor.</code> are not passed to the wrapped
+ * module.
+ *
+ * Calls are reported, and circuit breakers and bulkheads applied, per backend. The backend is named by the
+ * <code>multifactor.backendName</code> option, which {@link JaasConfiguration#withDelegatingLoginModules()} sets to
+ * the application name and position of the login module unless configured, so that two login modules of the same
+ * class are still separate backends. Without the option, the backend is named after the class of the wrapped module.
+ */
+public class DelegatingLoginModule implements LoginModule {
+
+    /** Prefix of the options used by this module. */
+    public static final String OPTION_PREFIX = "multifactor.";
+
+    /** Option naming the class of the wrapped login module. */
+    public static final String DELEGATE_OPTION = OPTION_PREFIX + "delegate";
+
+    /** Option giving the kind of factor verified by the wrapped login module. */
+    public static final String FACTOR_OPTION = OPTION_PREFIX + "factor";
+
+    /** Option giving the position of the login module in its configured application, set when it is reordered. */
+    public static final String POSITION_OPTION = OPTION_PREFIX + "position";
+
+    /** Option naming the backend of the wrapped login module. */
+    public static final String BACKEND_OPTION = OPTION_PREFIX + "backendName";
+
+    /** The wrapped login module. */
+    private LoginModule delegate;
+
+    /** Class name of the wrapped login module. */
+    private String delegateName;
+
+    /** Name of the backend of the wrapped login module. */
+    private String backendName;
+
+    /** Kind of factor verified by the wrapped login module, or null to determine by call order. */
+    private LoginAttempt.Factor factor;
+
+    /** Configured position of the login module, or -1 if it is called in configuration order. */
+    private int position = -1;
+
+    /** The login attempt, or null if not run by {@link MultiFactorAuthLoginServlet}. */
+    private LoginAttempt attempt;
+
+    /** Options passed to the wrapped login module. */
+    private Map<String, Object> delegateOptions;
+
+    /** {@inheritDoc} */
+    public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState,
+            Map<String, ?> options) {
+        delegateName = (String) options.get(DELEGATE_OPTION);
+        if (delegateName == null) {
+            throw new IllegalArgumentException("Option " + DELEGATE_OPTION + " is required");
+        }
+        delegate = newLoginModule(delegateName);
+        Object backendOption = options.get(BACKEND_OPTION);
+        backendName = backendOption != null ? backendOption.toString() : delegateName;
+
+        Object factorOption = options.get(FACTOR_OPTION);
+        if (factorOption != null) {
+            factor = LoginAttempt.Factor.valueOf(factorOption.toString().toUpperCase(Locale.ENGLISH));
+        }
+        Object positionOption = options.get(POSITION_OPTION);
+        if (positionOption != null) {
+            position = Integer.parseInt(positionOption.toString());
+        }
+
+        CallbackHandler delegateHandler = callbackHandler;
+        if (callbackHandler instanceof MultiFactorAuthLoginServlet.MultiAuthCallbackHandler) {
+            final MultiFactorAuthLoginServlet.MultiAuthCallbackHandler handler =
+                    (MultiFactorAuthLoginServlet.MultiAuthCallbackHandler) callbackHandler;
+            attempt = handler.getLoginAttempt();
+            if (position >= 0) {
+                final int configuredPosition = position;
+                delegateHandler = new CallbackHandler() {
+                    public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                        handler.handle(callbacks, configuredPosition);
+                    }
+                };
+            }
+        }
+
+        delegateOptions = new HashMap<String, Object>(options.size());
+        for (Map.Entry<String, ?> option : options.entrySet()) {
+            if (!option.getKey().startsWith(OPTION_PREFIX)) {
+                delegateOptions.put(option.getKey(), option.getValue());
+            }
+        }
+        delegate.initialize(subject, delegateHandler, sharedState, delegateOptions);
+    }
+
+    /** {@inheritDoc} */
+    public boolean login() throws LoginException {
+        if (attempt == null) {
+            return delegate.login();
+        }
+
+        LoginAttempt.Factor calledFactor = factor;
+        if (calledFactor == null) {
+            calledFactor = position >= 0 ? attempt.factorAt(position) : attempt.nextLoginModuleFactor();
+        }
+        CircuitBreakers breakers = attempt.getCircuitBreakers();
+        if (breakers != null) {
+            CircuitBreaker breaker = breakers.get(backendName);
+            if (breaker == null) {
+                breaker = breakers.getOrCreate(backendName, breakers.isProbing() ? new LoginModuleProbe(delegateName,
+                        delegateOptions, breakers.getProbeUsername(), breakers.getProbePassword()) : null);
+            }
+            breaker.checkAllowed();
+        }
+        Bulkhead bulkhead = attempt.getBulkheads() != null ? attempt.getBulkheads().getOrCreate(backendName) : null;
+        if (bulkhead != null) {
+            bulkhead.acquire(attempt);
+        }
+
+        Throwable failure = null;
+        long start = System.nanoTime();
+        try {
+            return delegate.login();
+        } catch (LoginException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            attempt.backendCalled(backendName, calledFactor, BackendResult.of(failure), System.nanoTime() - start);
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean commit() throws LoginException {
+        return delegate.commit();
+    }
+
+    /** {@inheritDoc} */
+    public boolean abort() throws LoginException {
+        return delegate.abort();
+    }
+
+    /** {@inheritDoc} */
+    public boolean logout() throws LoginException {
+        return delegate.logout();
+    }
+
+    /**
+     * Gets the backend name of a login module.
+     *
+     * @param application name of the application the login module is configured in
+     * @param position position of the login module in the application
+     * @param options options of the login module
+     *
+     * @return the configured <code>multifactor.backendName</code>, or the application name and position
+     */
+    static String getBackendName(String application, int position, Map<String, ?> options) {
+        Object backendOption = options.get(BACKEND_OPTION);
+        if (backendOption != null) {
+            return backendOption.toString();
+        }
+        return application + "." + position;
+    }
+
+    /**
+     * Instantiates a login module.
+     *
+     * @param className class name of the login module
+     *
+     * @return the login module
+     */
+    static LoginModule newLoginModule(String className) {
+        try {
+            Class<?> clazz = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+            return (LoginModule) clazz.newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Login module class " + className + " not found", e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Unable to instantiate login module " + className, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Unable to instantiate login module " + className, e);
+        }
+    }
+
+    /** Background probe of a login module, logging in with the probe credentials. */
+    private static class LoginModuleProbe implements CircuitBreaker.Probe, CallbackHandler {
+
+        /** Class name of the login module. */
+        private final String className;
+
+        /** Options of the login module. */
+        private final Map<String, Object> options;
+
+        /** Username of the probe. */
+        private final String username;
+
+        /** Password of the probe. */
+        private final String password;
+
+        /**
+         * Constructor.
+         *
+         * @param loginModule class name of the login module
+         * @param loginModuleOptions options of the login module
+         * @param probeUsername username of the probe
+         * @param probePassword password of the probe
+         */
+        LoginModuleProbe(String loginModule, Map<String, Object> loginModuleOptions, String probeUsername,
+                String probePassword) {
+            className = loginModule;
+            options = loginModuleOptions;
+            username = probeUsername;
+            password = probePassword;
+        }
+
+        /** {@inheritDoc} */
+        public void run() throws LoginException {
+            LoginModule module = newLoginModule(className);
+            module.initialize(new Subject(), this, new HashMap<String, Object>(), options);
+            try {
+                module.login();
+            } finally {
+                module.abort();
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void handle(Callback[] callbacks) {
+            for (Callback cb : callbacks) {
+                if (cb instanceof NameCallback) {
+                    ((NameCallback) cb).setName(username);
+                } else if (cb instanceof PasswordCallback) {
+                    ((PasswordCallback) cb).setPassword(password.toCharArray());
+                }
+            }
+        }
+    }
+}
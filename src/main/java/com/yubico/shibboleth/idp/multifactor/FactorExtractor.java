@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.login.LoginException;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Extracts the authentication factors of a login from the request, by consulting a list of {@link FactorSource}s in
+ * order. The number of tokens and the length of every factor are capped, so that a hostile request can not cause
+ * unbounded work. The password and tokens are read into buffers of a {@link SecretPool}, the caller wipes them with
+ * {@link LoginFactors#wipe(boolean)} once the login finishes.
+ */
+public class FactorExtractor {
+
+    /** Sources of factors, in the order they are consulted. */
+    private final List<FactorSource> sources;
+
+    /** Maximum number of tokens. */
+    private final int maxTokens;
+
+    /** Maximum length of a username, password or token. */
+    private final int maxLength;
+
+    /** Pool of the buffers holding the password and tokens, or null. */
+    private final SecretPool secretPool;
+
+    /**
+     * Constructor.
+     *
+     * @param newSources sources of factors, in the order they are consulted
+     * @param maxTokenCount maximum number of tokens
+     * @param maxFactorLength maximum length of a username, password or token
+     */
+    public FactorExtractor(List<FactorSource> newSources, int maxTokenCount, int maxFactorLength) {
+        this(newSources, maxTokenCount, maxFactorLength, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param newSources sources of factors, in the order they are consulted
+     * @param maxTokenCount maximum number of tokens
+     * @param maxFactorLength maximum length of a username, password or token
+     * @param pool pool of the buffers holding the password and tokens, or null to allocate them
+     */
+    public FactorExtractor(List<FactorSource> newSources, int maxTokenCount, int maxFactorLength, SecretPool pool) {
+        sources = new ArrayList<FactorSource>(newSources);
+        maxTokens = maxTokenCount;
+        maxLength = maxFactorLength;
+        secretPool = pool;
+    }
+
+    /**
+     * Extracts the authentication factors from a request.
+     *
+     * @param request the login request
+     *
+     * @return the extracted factors, the username and password are null if not found; the factors read so far are
+     *         wiped if extraction fails
+     *
+     * @throws IOException thrown if the request can not be read
+     * @throws LoginException thrown if the request holds too many or too long factors
+     */
+    public LoginFactors extract(HttpServletRequest request) throws IOException, LoginException {
+        LoginFactors factors = new LoginFactors(maxTokens, maxLength, secretPool);
+        boolean extracted = false;
+        try {
+            for (FactorSource source : sources) {
+                source.extract(request, factors);
+            }
+            extracted = true;
+        } finally {
+            if (!extracted) {
+                factors.wipe(true);
+            }
+        }
+        return factors;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/**
+ * Orders the authentication backends of a login so that a bad login is rejected with the least backend work.
+ *
+ * For each backend, the latency and the rate of failed calls are tracked as exponentially weighted moving averages.
+ * Backends are called in increasing order of latency divided by failure rate, the expected time spent per rejected
+ * login, so a fast backend that often rejects factors (typically a token check) runs before a slow one that rarely
+ * does (typically a directory bind). Backends not called yet come first, in configuration order.
+ *
+ * Only the order of calls changes, never the outcome : {@link FactorVerification} verifies the factors one after
+ * another instead of in parallel, and a JAAS application is only reordered if all its login modules are required or
+ * requisite, in which case they are all made requisite so the login stops at the first failure.
+ */
+public class FactorOrdering {
+
+    /** Weight of the latest call in the moving averages. */
+    private static final double SMOOTHING = 0.05;
+
+    /** Smallest failure rate used in the ranking, so that backends that never fail are still ordered by latency. */
+    private static final double MIN_FAILURE_RATE = 0.01;
+
+    /** Statistics, keyed by backend name. */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Records a call to a backend.
+     *
+     * @param backend name of the backend
+     * @param result result of the call
+     * @param nanos latency in nanoseconds
+     */
+    public void record(String backend, BackendResult result, long nanos) {
+        Stats backendStats = stats.get(backend);
+        if (backendStats == null) {
+            backendStats = new Stats();
+            Stats existing = stats.putIfAbsent(backend, backendStats);
+            if (existing != null) {
+                backendStats = existing;
+            }
+        }
+        backendStats.record(result != BackendResult.SUCCESS, nanos / 1000);
+    }
+
+    /**
+     * Gets the rank of a backend, the expected time spent on it per rejected login.
+     *
+     * @param backend name of the backend
+     *
+     * @return rank in microseconds, lower ranks being called first, or -1 if the backend has not been called yet
+     */
+    public double getRank(String backend) {
+        Stats backendStats = stats.get(backend);
+        return backendStats != null ? backendStats.rank() : -1;
+    }
+
+    /**
+     * Orders backends by increasing rank, keeping the given order between backends of equal rank.
+     *
+     * @param backends names of the backends
+     *
+     * @return indices into <code>backends</code>, in the order the backends should be called
+     */
+    public int[] order(String[] backends) {
+        int[] order = new int[backends.length];
+        double[] ranks = new double[backends.length];
+        for (int i = 0; i < backends.length; i++) {
+            double rank = getRank(backends[i]);
+            int j = i;
+            while (j > 0 && ranks[j - 1] > rank) {
+                ranks[j] = ranks[j - 1];
+                order[j] = order[j - 1];
+                j--;
+            }
+            ranks[j] = rank;
+            order[j] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Gets a view of a JAAS configuration whose applications are reordered by backend rank where that does not change
+     * the outcome of the login.
+     *
+     * @param base the JAAS configuration
+     *
+     * @return the reordering configuration
+     */
+    public Configuration reorder(Configuration base) {
+        return new ReorderingConfiguration(base);
+    }
+
+    /** Moving averages of one backend. */
+    private static class Stats {
+
+        /** Mean latency, in microseconds. */
+        private double latency;
+
+        /** Rate of failed calls. */
+        private double failureRate;
+
+        /** Whether a call has been recorded. */
+        private boolean initialized;
+
+        /**
+         * Records a call.
+         *
+         * @param failed whether the call failed
+         * @param micros latency in microseconds
+         */
+        synchronized void record(boolean failed, long micros) {
+            if (!initialized) {
+                latency = micros;
+                failureRate = failed ? 1 : 0;
+                initialized = true;
+            } else {
+                latency += SMOOTHING * (micros - latency);
+                failureRate += SMOOTHING * ((failed ? 1 : 0) - failureRate);
+            }
+        }
+
+        /**
+         * Computes the rank.
+         *
+         * @return expected time per rejected login, in microseconds
+         */
+        synchronized double rank() {
+            return latency / Math.max(MIN_FAILURE_RATE, failureRate);
+        }
+    }
+
+    /** A JAAS configuration reordering the login modules of its applications. */
+    private class ReorderingConfiguration extends Configuration {
+
+        /** The configuration reordered. */
+        private final Configuration base;
+
+        /**
+         * Constructor.
+         *
+         * @param baseConfiguration the configuration reordered
+         */
+        ReorderingConfiguration(Configuration baseConfiguration) {
+            base = baseConfiguration;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Login modules are wrapped in a {@link DelegatingLoginModule}, so that their calls are tracked, and given
+         * their position in the configuration, so that the factor they verify is still known after reordering.
+         */
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+            AppConfigurationEntry[] entries = base.getAppConfigurationEntry(name);
+            if (entries == null || entries.length < 2) {
+                return entries;
+            }
+            for (AppConfigurationEntry entry : entries) {
+                if (entry.getControlFlag() != LoginModuleControlFlag.REQUIRED
+                        && entry.getControlFlag() != LoginModuleControlFlag.REQUISITE) {
+                    return entries;
+                }
+            }
+
+            String[] backends = new String[entries.length];
+            Map<String, Object>[] options = newOptionsArray(entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                options[i] = new HashMap<String, Object>(entries[i].getOptions());
+                if (!DelegatingLoginModule.class.getName().equals(entries[i].getLoginModuleName())) {
+                    options[i].put(DelegatingLoginModule.DELEGATE_OPTION, entries[i].getLoginModuleName());
+                }
+                backends[i] = DelegatingLoginModule.getBackendName(name, i, options[i]);
+                options[i].put(DelegatingLoginModule.BACKEND_OPTION, backends[i]);
+                options[i].put(DelegatingLoginModule.POSITION_OPTION, Integer.toString(i));
+            }
+
+            int[] order = order(backends);
+            AppConfigurationEntry[] reordered = new AppConfigurationEntry[entries.length];
+            for (int i = 0; i < order.length; i++) {
+                reordered[i] = new AppConfigurationEntry(DelegatingLoginModule.class.getName(),
+                        LoginModuleControlFlag.REQUISITE, options[order[i]]);
+            }
+            return reordered;
+        }
+
+        /** {@inheritDoc} */
+        public void refresh() {
+            base.refresh();
+        }
+    }
+
+    /**
+     * Creates an array of option maps.
+     *
+     * @param length length of the array
+     *
+     * @return the array
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newOptionsArray(int length) {
+        return new Map[length];
+    }
+}
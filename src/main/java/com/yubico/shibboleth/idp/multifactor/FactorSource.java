@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+
+import javax.security.auth.login.LoginException;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A source of authentication factors in a login request, used by {@link FactorExtractor}.
+ *
+ * Sources are consulted in the configured order and add what they find to a shared {@link LoginFactors}, which
+ * enforces the limits on the number and length of the factors.
+ */
+public interface FactorSource {
+
+    /**
+     * Adds the username, password and tokens found in a request.
+     *
+     * @param request the login request
+     * @param factors the factors extracted so far
+     *
+     * @throws IOException thrown if the request can not be read
+     * @throws LoginException thrown if the request holds too many or too long factors
+     */
+    void extract(HttpServletRequest request, LoginFactors factors) throws IOException, LoginException;
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/**
+ * Verifies all authentication factors of a login with a set of {@link FactorVerifier}s, in parallel.
+ *
+ * Each factor is assigned to the first verifier that handles it, and every verifier must be assigned at least one
+ * factor. The verifications are then run at the same time on an executor and their results ANDed : the first failure
+ * cancels all verifications still running and fails the login. Login latency is thereby bounded by the slowest
+ * backend rather than the sum of all of them.
+ *
+ * If the login attempt has a {@link FactorOrdering}, the verifications are instead run one after another in the
+ * calling thread, in order of rank, and the first failure ends the login without calling the remaining backends.
+ * This trades the latency of valid logins for less backend work on invalid ones.
+ */
+public class FactorVerification {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(FactorVerification.class);
+
+    /** Configured verifiers, in order of precedence. */
+    private final List<FactorVerifier> verifiers;
+
+    /** Executor running the verifications. */
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param newVerifiers verifiers, in order of precedence
+     * @param newExecutor executor running the verifications
+     */
+    public FactorVerification(List<FactorVerifier> newVerifiers, ExecutorService newExecutor) {
+        verifiers = new ArrayList<FactorVerifier>(newVerifiers);
+        executor = newExecutor;
+    }
+
+    /**
+     * Creates an executor suitable for running factor verifications.
+     *
+     * Verifications that can not be queued are run by the submitting thread, so a full executor degrades to
+     * sequential verification rather than failing logins.
+     *
+     * @param threads maximum number of threads
+     *
+     * @return the executor
+     */
+    public static ExecutorService newExecutor(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads), new DaemonThreadFactory("MultiFactorAuth factor verifier"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Gets the configured verifiers.
+     *
+     * @return verifiers, in order of precedence
+     */
+    public List<FactorVerifier> getVerifiers() {
+        return verifiers;
+    }
+
+    /**
+     * Verifies the authentication factors of a user.
+     *
+     * @param username the user being authenticated
+     * @param factors the factors, password first
+     *
+     * @return a subject holding the principals and credentials added by the verifiers
+     *
+     * @throws LoginException thrown if any factor fails verification
+     */
+    public Subject verify(String username, List<char[]> factors) throws LoginException {
+        return verify(username, factors, false);
+    }
+
+    /**
+     * Verifies the authentication factors of a user, optionally skipping the password.
+     *
+     * @param username the user being authenticated
+     * @param factors the factors, password first
+     * @param skipPassword true if the password is already known to be valid, in which case verifiers handling the
+     *            password are not required to be given any factor
+     *
+     * @return a subject holding the principals and credentials added by the verifiers
+     *
+     * @throws LoginException thrown if any factor fails verification
+     */
+    public Subject verify(String username, List<char[]> factors, boolean skipPassword) throws LoginException {
+        return verify(username, factors, skipPassword, null);
+    }
+
+    /**
+     * Verifies the authentication factors of a user, reporting each verification to a login attempt.
+     *
+     * @param username the user being authenticated
+     * @param factors the factors, password first
+     * @param skipPassword true if the password is already known to be valid, in which case verifiers handling the
+     *            password are not required to be given any factor
+     * @param attempt the login attempt to report verifications to, or null; if its tokens are skipped only the
+     *            password is verified, and verifiers not handling it are not required to be given any factor
+     *
+     * @return a subject holding the principals and credentials added by the verifiers
+     *
+     * @throws LoginException thrown if any factor fails verification
+     */
+    public Subject verify(String username, List<char[]> factors, boolean skipPassword, LoginAttempt attempt)
+            throws LoginException {
+        List<Verification> verifications = assign(username, factors, skipPassword, attempt);
+        if (verifications.isEmpty()) {
+            throw new FailedLoginException("No authentication factors to verify");
+        }
+        Subject subject = new Subject();
+
+        if (verifications.size() == 1) {
+            merge(subject, verifications.get(0).call());
+            return subject;
+        }
+
+        FactorOrdering ordering = attempt != null ? attempt.getFactorOrdering() : null;
+        if (ordering != null) {
+            String[] backends = new String[verifications.size()];
+            for (int i = 0; i < backends.length; i++) {
+                backends[i] = verifications.get(i).verifier.getName();
+            }
+            for (int i : ordering.order(backends)) {
+                merge(subject, verifications.get(i).call());
+            }
+            return subject;
+        }
+
+        CompletionService<Subject> completion = new ExecutorCompletionService<Subject>(executor);
+        List<Future<Subject>> futures = new ArrayList<Future<Subject>>(verifications.size());
+        try {
+            for (Verification v : verifications) {
+                futures.add(completion.submit(v));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                merge(subject, getResult(completion.take()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while verifying authentication factors");
+        } finally {
+            // after a failure, stop all verifications still running
+            for (Future<Subject> f : futures) {
+                if (f.cancel(true) && attempt != null) {
+                    attempt.abandon();
+                }
+            }
+        }
+        return subject;
+    }
+
+    /** Shuts down the executor running the verifications. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Assigns each factor to the first verifier handling it.
+     *
+     * @param username the user being authenticated
+     * @param factors the factors, password first
+     * @param skipPassword true if the password should not be assigned
+     * @param attempt the login attempt to report verifications to, or null
+     *
+     * @return one verification per factor
+     *
+     * @throws LoginException thrown if a factor is not handled by any verifier, or a verifier is given no factor
+     */
+    private List<Verification> assign(String username, List<char[]> factors, boolean skipPassword,
+            LoginAttempt attempt) throws LoginException {
+        List<Verification> verifications = new ArrayList<Verification>(factors.size());
+        boolean[] used = new boolean[verifiers.size()];
+
+        if (skipPassword && !factors.isEmpty()) {
+            for (int v = 0; v < used.length; v++) {
+                used[v] = verifiers.get(v).handles(0, factors.get(0));
+            }
+        }
+        int end = factors.size();
+        if (attempt != null && attempt.isTokensSkipped() && !factors.isEmpty()) {
+            for (int v = 0; v < used.length; v++) {
+                used[v] |= !verifiers.get(v).handles(0, factors.get(0));
+            }
+            end = 1;
+        }
+
+        for (int position = skipPassword ? 1 : 0; position < end; position++) {
+            char[] factor = factors.get(position);
+            int v = 0;
+            while (v < verifiers.size() && !verifiers.get(v).handles(position, factor)) {
+                v++;
+            }
+            if (v == verifiers.size()) {
+                throw new FailedLoginException("No verifier handles authentication factor " + position);
+            }
+            used[v] = true;
+            verifications.add(new Verification(verifiers.get(v), username, factor,
+                    position == 0 ? LoginAttempt.Factor.PASSWORD : LoginAttempt.Factor.TOKEN, attempt));
+        }
+
+        for (int v = 0; v < used.length; v++) {
+            if (!used[v]) {
+                throw new FailedLoginException("No authentication factor for verifier " + verifiers.get(v).getName());
+            }
+        }
+        return verifications;
+    }
+
+    /**
+     * Gets the result of a completed verification.
+     *
+     * @param future the completed verification
+     *
+     * @return the subject of the verification
+     *
+     * @throws LoginException thrown if the verification failed
+     * @throws InterruptedException thrown if interrupted while waiting for the result
+     */
+    private Subject getResult(Future<Subject> future) throws LoginException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LoginException) {
+                throw (LoginException) e.getCause();
+            }
+            log.error("Unexpected error verifying authentication factor", e.getCause());
+            LoginException le = new LoginException("unknown authentication error");
+            le.initCause(e.getCause());
+            throw le;
+        }
+    }
+
+    /**
+     * Adds the principals and credentials of one subject to another.
+     *
+     * @param target subject to add to
+     * @param source subject to copy from
+     */
+    private void merge(Subject target, Subject source) {
+        target.getPrincipals().addAll(source.getPrincipals());
+        target.getPublicCredentials().addAll(source.getPublicCredentials());
+        target.getPrivateCredentials().addAll(source.getPrivateCredentials());
+    }
+
+    /** Verification of one factor by one verifier. */
+    private static class Verification implements Callable<Subject> {
+
+        /** The verifier. */
+        private final FactorVerifier verifier;
+
+        /** The user being authenticated. */
+        private final String username;
+
+        /** The factor to verify. */
+        private final char[] factor;
+
+        /** Kind of the factor. */
+        private final LoginAttempt.Factor kind;
+
+        /** The login attempt to report the verification to, or null. */
+        private final LoginAttempt attempt;
+
+        /**
+         * Constructor.
+         *
+         * @param newVerifier the verifier
+         * @param newUsername the user being authenticated
+         * @param newFactor the factor to verify
+         * @param newKind kind of the factor
+         * @param newAttempt the login attempt to report the verification to, or null
+         */
+        Verification(FactorVerifier newVerifier, String newUsername, char[] newFactor, LoginAttempt.Factor newKind,
+                LoginAttempt newAttempt) {
+            verifier = newVerifier;
+            username = newUsername;
+            factor = newFactor;
+            kind = newKind;
+            attempt = newAttempt;
+        }
+
+        /** {@inheritDoc} */
+        public Subject call() throws LoginException {
+            if (attempt != null && attempt.getCircuitBreakers() != null) {
+                CircuitBreakers breakers = attempt.getCircuitBreakers();
+                CircuitBreaker breaker = breakers.get(verifier.getName());
+                if (breaker == null) {
+                    breaker = breakers.getOrCreate(verifier.getName(), breakers.isProbing() ? new VerifierProbe(
+                            verifier, breakers.getProbeUsername(), breakers.getProbePassword()) : null);
+                }
+                breaker.checkAllowed();
+            }
+            Bulkhead bulkhead = null;
+            if (attempt != null && attempt.getBulkheads() != null) {
+                bulkhead = attempt.getBulkheads().getOrCreate(verifier.getName());
+                bulkhead.acquire(attempt);
+            }
+
+            Subject subject = new Subject();
+            Throwable failure = null;
+            long start = System.nanoTime();
+            try {
+                verifier.verify(username, factor, subject);
+            } catch (LoginException e) {
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                if (attempt != null) {
+                    attempt.backendCalled(verifier.getName(), kind, BackendResult.of(failure),
+                            System.nanoTime() - start);
+                }
+                if (bulkhead != null) {
+                    bulkhead.release();
+                }
+            }
+            return subject;
+        }
+    }
+
+    /** Background probe of a verifier, verifying the probe credentials. */
+    private static class VerifierProbe implements CircuitBreaker.Probe {
+
+        /** The verifier. */
+        private final FactorVerifier verifier;
+
+        /** Username of the probe. */
+        private final String username;
+
+        /** Factor verified by the probe. */
+        private final String factor;
+
+        /**
+         * Constructor.
+         *
+         * @param newVerifier the verifier
+         * @param probeUsername username of the probe
+         * @param probeFactor factor verified by the probe
+         */
+        VerifierProbe(FactorVerifier newVerifier, String probeUsername, String probeFactor) {
+            verifier = newVerifier;
+            username = probeUsername;
+            factor = probeFactor;
+        }
+
+        /** {@inheritDoc} */
+        public void run() throws LoginException {
+            verifier.verify(username, factor.toCharArray(), new Subject());
+        }
+    }
+}
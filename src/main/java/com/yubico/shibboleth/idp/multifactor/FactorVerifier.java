@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Verifies a single authentication factor, independently of all other factors of the login.
+ *
+ * Factor verifiers are an alternative to a multi-module JAAS configuration : instead of one JAAS login checking all
+ * factors one after another, each factor collected by {@link MultiFactorAuthLoginServlet} is handed to the first
+ * configured verifier that {@link #handles(int, char[]) handles} it, and all verifiers run at the same time. The login
+ * succeeds only if every verifier accepts its factors.
+ *
+ * Implementations must have a public no-argument constructor and be thread safe, since one instance verifies
+ * factors for all concurrent logins.
+ */
+public interface FactorVerifier {
+
+    /**
+     * Initializes the verifier. Called once, before any factors are verified.
+     *
+     * @param name name of this verifier, as configured in the servlet
+     * @param options verifier specific options
+     *
+     * @throws IOException thrown if some resource needed by the verifier can not be read
+     */
+    public void initialize(String name, Map<String, String> options) throws IOException;
+
+    /**
+     * Gets the name of this verifier.
+     *
+     * @return name of this verifier
+     */
+    public String getName();
+
+    /**
+     * Checks if this verifier handles an authentication factor.
+     *
+     * @param position position of the factor in the request, 0 for <code>j_password</code> and i + 1 for
+     *            <code>j_tokens[i]</code>
+     * @param factor the factor
+     *
+     * @return true if this verifier should verify the factor
+     */
+    public boolean handles(int position, char[] factor);
+
+    /**
+     * Verifies an authentication factor.
+     *
+     * Implementations should respond to thread interruption where they can, since verification of a factor is
+     * cancelled as soon as any other factor of the same login has failed.
+     *
+     * @param username the user being authenticated
+     * @param factor the factor to verify
+     * @param subject subject to which the verifier may add principals and credentials
+     *
+     * @throws LoginException thrown if the factor is not valid for the user or can not be verified
+     */
+    public void verify(String username, char[] factor, Subject subject) throws LoginException;
+}
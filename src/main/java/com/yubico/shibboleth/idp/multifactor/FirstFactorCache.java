@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Remembers, for a short time, that a user's password has been verified, so that a forced re-authentication or
+ * step-up login shortly afterwards only needs to verify the user's tokens.
+ *
+ * Only a salted PBKDF2 hash of each verified password is kept, never the password itself, along with the principals
+ * of the login that verified it, so that a login verifying only the tokens still gets the principals added by the
+ * password's login module or verifier. The cache holds at most a fixed number of users, evicting the least recently
+ * used one first.
+ */
+public class FirstFactorCache {
+
+    /** Key derivation algorithm. */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /** Length of the derived hashes, in bits. */
+    private static final int HASH_BITS = 160;
+
+    /** Milliseconds a verified password is remembered. */
+    private final long timeToLive;
+
+    /** PBKDF2 iteration count. */
+    private final int iterations;
+
+    /** Verified passwords, keyed by username, in least recently used order. */
+    private final Map<String, VerifiedPassword> entries;
+
+    /** Source of salts. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Number of logins where the password was found in the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of logins where the password was not found in the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param ttl milliseconds a verified password is remembered
+     * @param maxEntries maximum number of users remembered
+     * @param hashIterations PBKDF2 iteration count
+     */
+    public FirstFactorCache(long ttl, final int maxEntries, int hashIterations) {
+        timeToLive = ttl;
+        iterations = hashIterations;
+        entries = new LinkedHashMap<String, VerifiedPassword>(16, 0.75f, true) {
+            private static final long serialVersionUID = 5309718457306421963L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, VerifiedPassword> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Remembers that a user's password has been verified.
+     *
+     * @param username the user
+     * @param password the verified password
+     * @param principals principals of the login that verified the password
+     */
+    public void put(String username, char[] password, Set<Principal> principals) {
+        put(username, password, principals, System.currentTimeMillis());
+    }
+
+    /**
+     * Remembers that a user's password has been verified at a given time.
+     *
+     * @param username the user
+     * @param password the verified password
+     * @param principals principals of the login that verified the password
+     * @param time current time, in milliseconds since the epoch
+     */
+    void put(String username, char[] password, Set<Principal> principals, long time) {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        VerifiedPassword entry = new VerifiedPassword(salt, hash(password, salt), Collections
+                .unmodifiableSet(new LinkedHashSet<Principal>(principals)), time + timeToLive);
+        synchronized (entries) {
+            entries.put(username, entry);
+        }
+    }
+
+    /**
+     * Checks if a password has recently been verified for a user.
+     *
+     * @param username the user
+     * @param password the password to check
+     *
+     * @return the principals of the login that verified the same password for the user within the time to live, or
+     *         null if there was none
+     */
+    public Set<Principal> getVerifiedPrincipals(String username, char[] password) {
+        return getVerifiedPrincipals(username, password, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks if a password has been verified for a user within the time to live before a given time.
+     *
+     * @param username the user
+     * @param password the password to check
+     * @param time current time, in milliseconds since the epoch
+     *
+     * @return the principals of the login that verified the same password for the user, or null if there was none
+     */
+    Set<Principal> getVerifiedPrincipals(String username, char[] password, long time) {
+        VerifiedPassword entry = getEntry(username, time);
+        if (entry != null && MessageDigest.isEqual(entry.hash, hash(password, entry.salt))) {
+            hits.incrementAndGet();
+            return entry.principals;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Gets the hash of the verified password of a user.
+     *
+     * @param username the user
+     * @param time current time, in milliseconds since the epoch
+     *
+     * @return the hash, or null if no password has been verified for the user within the time to live
+     */
+    byte[] getHash(String username, long time) {
+        VerifiedPassword entry = getEntry(username, time);
+        return entry != null ? entry.hash.clone() : null;
+    }
+
+    /**
+     * Gets the verified password of a user, forgetting it if it has expired.
+     *
+     * @param username the user
+     * @param time current time, in milliseconds since the epoch
+     *
+     * @return the verified password, or null if none has been verified within the time to live
+     */
+    private VerifiedPassword getEntry(String username, long time) {
+        synchronized (entries) {
+            VerifiedPassword entry = entries.get(username);
+            if (entry != null && entry.expires <= time) {
+                entries.remove(username);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Forgets the verified password of a user.
+     *
+     * @param username the user
+     */
+    public void remove(String username) {
+        synchronized (entries) {
+            entries.remove(username);
+        }
+    }
+
+    /**
+     * Gets the number of logins where the password was found in the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of logins where the password was not found in the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Hashes a password.
+     *
+     * @param password the password
+     * @param salt the salt
+     *
+     * @return the hash
+     */
+    private byte[] hash(char[] password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not supported by this JVM", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /** A verified password. */
+    private static class VerifiedPassword {
+
+        /** Salt of the hash. */
+        private final byte[] salt;
+
+        /** Hash of the password. */
+        private final byte[] hash;
+
+        /** Principals of the login that verified the password. */
+        private final Set<Principal> principals;
+
+        /** Time the entry expires. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param newSalt salt of the hash
+         * @param newHash hash of the password
+         * @param loginPrincipals principals of the login that verified the password
+         * @param expiry time the entry expires
+         */
+        VerifiedPassword(byte[] newSalt, byte[] newHash, Set<Principal> loginPrincipals, long expiry) {
+            salt = newSalt;
+            hash = newHash;
+            principals = loginPrincipals;
+            expires = expiry;
+        }
+    }
+}
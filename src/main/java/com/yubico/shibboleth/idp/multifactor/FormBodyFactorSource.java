@@ -0,0 +1,373 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads the authentication factors by streaming an <code>application/x-www-form-urlencoded</code> POST body, instead
+ * of having the container parse the whole body into parameter strings.
+ *
+ * Only the username, password and token fields are buffered, each up to the maximum factor length, and they are
+ * URL-decoded directly into the secret buffers of the {@link LoginFactors}, never turned into strings (except the
+ * username). Unknown fields are skipped without being buffered. The scratch buffers used while reading are wiped and
+ * reused by later requests. Once the body has been read the container can no longer parse it, so this source
+ * must come before a {@link ParameterFactorSource} and is ignored for requests that are not form POSTs.
+ */
+public class FormBodyFactorSource implements FactorSource {
+
+    /** Content type of form bodies. */
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    /** Maximum length of a field name that is considered, longer names are skipped. */
+    private static final int MAX_NAME_LENGTH = 64;
+
+    /** Maximum number of digits of a token index. */
+    private static final int MAX_INDEX_DIGITS = 6;
+
+    /** Field is skipped. */
+    private static final int SKIP = -1;
+
+    /** Field holds the username. */
+    private static final int USERNAME = -2;
+
+    /** Field holds the password. */
+    private static final int PASSWORD = -3;
+
+    /** Name of the field holding the username, as bytes. */
+    private final byte[] usernameField;
+
+    /** Name of the field holding the password, as bytes. */
+    private final byte[] passwordField;
+
+    /** Name of the field holding the tokens, without the index, as bytes. */
+    private final byte[] tokenField;
+
+    /** Maximum number of bytes read from a body. */
+    private final int maxBodyLength;
+
+    /** Scratch buffers not used by any request. */
+    private final ConcurrentLinkedQueue<Scratch> scratches = new ConcurrentLinkedQueue<Scratch>();
+
+    /**
+     * Constructor.
+     *
+     * @param usernameName name of the field holding the username
+     * @param passwordName name of the field holding the password
+     * @param tokenName name of the field holding the tokens, without the index
+     * @param maxBytes maximum number of bytes read from a body
+     */
+    public FormBodyFactorSource(String usernameName, String passwordName, String tokenName, int maxBytes) {
+        usernameField = ascii(usernameName);
+        passwordField = ascii(passwordName);
+        tokenField = ascii(tokenName);
+        maxBodyLength = maxBytes;
+    }
+
+    /** {@inheritDoc} */
+    public void extract(HttpServletRequest request, LoginFactors factors) throws IOException,
+            MultiFactorAuthLoginException {
+        String contentType = request.getContentType();
+        if (!"POST".equals(request.getMethod()) || contentType == null
+                || !contentType.toLowerCase(Locale.ENGLISH).startsWith(FORM_CONTENT_TYPE)) {
+            return;
+        }
+
+        String encoding = request.getCharacterEncoding();
+        Scratch scratch = scratches.poll();
+        if (scratch == null || scratch.value.length != factors.getMaxLength() * 4) {
+            scratch = new Scratch(factors.getMaxLength());
+        }
+        CharsetDecoder decoder;
+        try {
+            decoder = scratch.decoder(encoding != null ? encoding : "UTF-8");
+        } catch (IllegalArgumentException e) {
+            // unsupported or illegal charset name
+            scratches.offer(scratch);
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                    "Unsupported login request character encoding " + encoding);
+        }
+        byte[] name = scratch.name;
+        byte[] value = scratch.value;
+        byte[] buffer = scratch.buffer;
+        CharBuffer chars = scratch.chars;
+        int nameLength = 0;
+        int valueLength = 0;
+        boolean inValue = false;
+        int field = SKIP;
+
+        // percent-escape state : number of hex digits still expected, and the value of those seen
+        int escapeDigits = 0;
+        int escaped = 0;
+
+        InputStream in = request.getInputStream();
+        int total = 0;
+        try {
+            int n = in.read(buffer);
+            while (n != -1) {
+                total += n;
+                if (total > maxBodyLength) {
+                    throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                            "Login request body longer than " + maxBodyLength + " bytes");
+                }
+
+                for (int i = 0; i < n; i++) {
+                    int b = buffer[i];
+                    if ((b == '&' || b == '=' && !inValue) && escapeDigits > 0) {
+                        throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                                "Malformed login request");
+                    }
+                    if (b == '&') {
+                        if (inValue) {
+                            deliver(factors, field, value, valueLength, decoder, chars);
+                        }
+                        nameLength = 0;
+                        valueLength = 0;
+                        inValue = false;
+                        escapeDigits = 0;
+                        continue;
+                    }
+                    if (b == '=' && !inValue) {
+                        field = classify(name, nameLength);
+                        inValue = true;
+                        escapeDigits = 0;
+                        continue;
+                    }
+                    if (inValue && field == SKIP) {
+                        continue;
+                    }
+
+                    if (escapeDigits > 0) {
+                        int digit = Character.digit(b, 16);
+                        if (digit < 0) {
+                            throw new MultiFactorAuthLoginException(
+                                    MultiFactorAuthLoginException.Reason.INVALID_FACTORS, "Malformed login request");
+                        }
+                        escaped = escaped << 4 | digit;
+                        if (--escapeDigits > 0) {
+                            continue;
+                        }
+                        b = escaped;
+                    } else if (b == '%') {
+                        escapeDigits = 2;
+                        escaped = 0;
+                        continue;
+                    } else if (b == '+') {
+                        b = ' ';
+                    }
+
+                    if (!inValue) {
+                        if (nameLength < name.length) {
+                            name[nameLength] = (byte) b;
+                        }
+                        nameLength++;
+                    } else {
+                        if (valueLength == value.length) {
+                            throw new MultiFactorAuthLoginException(
+                                    MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                                    "Authentication factor longer than " + factors.getMaxLength() + " characters");
+                        }
+                        value[valueLength++] = (byte) b;
+                    }
+                }
+                n = in.read(buffer);
+            }
+            if (escapeDigits > 0) {
+                throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                        "Malformed login request");
+            }
+            if (inValue) {
+                deliver(factors, field, value, valueLength, decoder, chars);
+            }
+        } finally {
+            Arrays.fill(value, (byte) 0);
+            Arrays.fill(buffer, (byte) 0);
+            Arrays.fill(chars.array(), '\0');
+            scratches.offer(scratch);
+        }
+    }
+
+    /**
+     * Determines what a field holds from its name.
+     *
+     * @param name decoded bytes of the field name
+     * @param length length of the field name, possibly more than the bytes kept
+     *
+     * @return {@link #USERNAME}, {@link #PASSWORD}, the token index, or {@link #SKIP}
+     */
+    private int classify(byte[] name, int length) {
+        if (length > name.length) {
+            return SKIP;
+        }
+        if (matches(name, length, usernameField)) {
+            return USERNAME;
+        }
+        if (matches(name, length, passwordField)) {
+            return PASSWORD;
+        }
+
+        int start = tokenField.length + 1;
+        int end = length - 1;
+        if (end <= start || end - start > MAX_INDEX_DIGITS || name[start - 1] != '[' || name[end] != ']'
+                || !matches(name, tokenField.length, tokenField)) {
+            return SKIP;
+        }
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            if (name[i] < '0' || name[i] > '9') {
+                return SKIP;
+            }
+            index = index * 10 + name[i] - '0';
+        }
+        return index;
+    }
+
+    /**
+     * Adds a field to the extracted factors.
+     *
+     * @param factors the extracted factors
+     * @param field what the field holds
+     * @param value decoded bytes of the value
+     * @param length length of the value
+     * @param decoder decoder of the request character encoding
+     * @param out scratch buffer the value is decoded into
+     *
+     * @throws MultiFactorAuthLoginException thrown if the factor is too long or there are too many tokens
+     */
+    private void deliver(LoginFactors factors, int field, byte[] value, int length, CharsetDecoder decoder,
+            CharBuffer out) throws MultiFactorAuthLoginException {
+        if (field == SKIP) {
+            return;
+        }
+
+        out.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(value, 0, length), out, true);
+        decoder.flush(out);
+        Arrays.fill(value, 0, length, (byte) 0);
+        int decoded = out.position();
+        try {
+            if (field == USERNAME) {
+                factors.setUsername(new String(out.array(), 0, decoded));
+                return;
+            }
+            char[] secret = factors.newSecret(decoded);
+            System.arraycopy(out.array(), 0, secret, 0, decoded);
+            if (field == PASSWORD) {
+                factors.setPassword(secret);
+            } else {
+                factors.addToken(field, secret);
+            }
+        } finally {
+            Arrays.fill(out.array(), 0, decoded, '\0');
+        }
+    }
+
+    /**
+     * Compares a field name to an expected name.
+     *
+     * @param name decoded bytes of the field name
+     * @param length number of bytes to compare
+     * @param expected expected name
+     *
+     * @return true if the first <code>length</code> bytes of the name are the expected name
+     */
+    private static boolean matches(byte[] name, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a field name.
+     *
+     * @param name the field name
+     *
+     * @return the name as US-ASCII bytes
+     */
+    private static byte[] ascii(String name) {
+        return name.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    /** Buffers used while reading one body. */
+    private static class Scratch {
+
+        /** Decoded bytes of the current field name. */
+        private final byte[] name = new byte[MAX_NAME_LENGTH];
+
+        /** Decoded bytes of the current field value, a character is at most four bytes. */
+        private final byte[] value;
+
+        /** Bytes read from the body. */
+        private final byte[] buffer = new byte[4096];
+
+        /** Characters of the current field value. */
+        private final CharBuffer chars;
+
+        /** Name of the character encoding of {@link #charsetDecoder}, or null. */
+        private String encoding;
+
+        /** Decoder of the character encoding of the last body read, or null. */
+        private CharsetDecoder charsetDecoder;
+
+        /**
+         * Constructor.
+         *
+         * @param maxLength maximum length of a username, password or token
+         */
+        Scratch(int maxLength) {
+            value = new byte[maxLength * 4];
+            chars = CharBuffer.allocate(value.length);
+        }
+
+        /**
+         * Gets a decoder of a character encoding, replacing malformed and unmappable input.
+         *
+         * @param charsetName name of the character encoding
+         *
+         * @return the decoder
+         *
+         * @throws IllegalArgumentException thrown if the character encoding is not supported or its name is illegal
+         */
+        CharsetDecoder decoder(String charsetName) {
+            if (!charsetName.equals(encoding)) {
+                charsetDecoder = Charset.forName(charsetName).newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                encoding = charsetName;
+            }
+            return charsetDecoder;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads authentication tokens from a request header, one token per header value, e.g. from a reverse proxy or a
+ * non-browser client. The tokens follow any tokens found in the request parameters.
+ */
+public class HeaderFactorSource implements FactorSource {
+
+    /** Name of the header holding the tokens. */
+    private final String headerName;
+
+    /**
+     * Constructor.
+     *
+     * @param name name of the header holding the tokens
+     */
+    public HeaderFactorSource(String name) {
+        headerName = name;
+    }
+
+    /** {@inheritDoc} */
+    public void extract(HttpServletRequest request, LoginFactors factors) throws MultiFactorAuthLoginException {
+        Enumeration<String> values = request.getHeaders(headerName);
+        if (values == null) {
+            return;
+        }
+        while (values.hasMoreElements()) {
+            String value = values.nextElement().trim();
+            if (value.length() > 0) {
+                factors.addToken(LoginFactors.UNINDEXED, factors.newSecret(value));
+            }
+        }
+    }
+}
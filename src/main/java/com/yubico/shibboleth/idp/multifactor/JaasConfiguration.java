@@ -0,0 +1,377 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+
+/**
+ * An immutable, in-memory JAAS {@link Configuration}.
+ *
+ * The configuration is parsed once from the standard JAAS login configuration file syntax :
+ *
+ * <pre>
+ * ShibUserPassAuth {
+ *     com.sun.security.auth.module.LdapLoginModule required
+ *         userProvider="ldap://ldap.example.org/ou=people,dc=example,dc=org";
+ *     com.yubico.jaas.YubikeyLoginModule required clientId="4711";
+ * };
+ * </pre>
+ *
+ * Option values may reference system properties as <code>${name}</code>. Instances are never modified after parsing,
+ * so they can be shared between threads and handed directly to {@link javax.security.auth.login.LoginContext}
+ * without touching the JVM-wide configuration.
+ */
+public class JaasConfiguration extends Configuration {
+
+    /** Application configuration entries, keyed by application name. */
+    private final Map<String, AppConfigurationEntry[]> entries;
+
+    /**
+     * Constructor.
+     *
+     * @param newEntries application configuration entries, keyed by application name
+     */
+    public JaasConfiguration(Map<String, AppConfigurationEntry[]> newEntries) {
+        super();
+        entries = Collections.unmodifiableMap(new HashMap<String, AppConfigurationEntry[]>(newEntries));
+    }
+
+    /**
+     * Gets the names of all applications in this configuration.
+     *
+     * @return application names
+     */
+    public Set<String> getApplicationNames() {
+        return entries.keySet();
+    }
+
+    /** {@inheritDoc} */
+    public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+        AppConfigurationEntry[] appEntries = entries.get(name);
+        if (appEntries == null) {
+            return null;
+        }
+        return appEntries.clone();
+    }
+
+    /** {@inheritDoc} */
+    public void refresh() {
+        // immutable, nothing to refresh
+    }
+
+    /**
+     * Gets a copy of this configuration in which every login module is wrapped in a {@link DelegatingLoginModule}, so
+     * that its calls are reported to the login metrics. Login modules that are already wrapped are left as they are.
+     * Login modules without a <code>multifactor.backendName</code> option are named after their application and
+     * position, for example <code>MultiFactor.0</code>.
+     *
+     * @return the wrapping configuration
+     */
+    public JaasConfiguration withDelegatingLoginModules() {
+        Map<String, AppConfigurationEntry[]> wrapped = new HashMap<String, AppConfigurationEntry[]>();
+        for (Map.Entry<String, AppConfigurationEntry[]> app : entries.entrySet()) {
+            wrapped.put(app.getKey(), wrapLoginModules(app.getKey(), app.getValue()));
+        }
+        return new JaasConfiguration(wrapped);
+    }
+
+    /**
+     * Gets a view of a JAAS configuration in which every login module is wrapped in a {@link DelegatingLoginModule},
+     * as {@link #withDelegatingLoginModules()} does. Use this for configurations whose applications can not be listed,
+     * like the JVM-wide one.
+     *
+     * @param base the JAAS configuration
+     *
+     * @return the wrapping configuration
+     */
+    public static Configuration withDelegatingLoginModules(Configuration base) {
+        return new DelegatingConfiguration(base);
+    }
+
+    /**
+     * Wraps the login modules of an application in a {@link DelegatingLoginModule}.
+     *
+     * @param appName name of the application
+     * @param appEntries configuration entries of the application
+     *
+     * @return the wrapped configuration entries
+     */
+    private static AppConfigurationEntry[] wrapLoginModules(String appName, AppConfigurationEntry[] appEntries) {
+        AppConfigurationEntry[] wrapped = new AppConfigurationEntry[appEntries.length];
+        for (int i = 0; i < appEntries.length; i++) {
+            AppConfigurationEntry entry = appEntries[i];
+            Map<String, Object> options = new HashMap<String, Object>(entry.getOptions());
+            options.put(DelegatingLoginModule.BACKEND_OPTION, DelegatingLoginModule.getBackendName(appName, i,
+                    options));
+            if (DelegatingLoginModule.class.getName().equals(entry.getLoginModuleName())) {
+                wrapped[i] = new AppConfigurationEntry(entry.getLoginModuleName(), entry.getControlFlag(), options);
+                continue;
+            }
+            options.put(DelegatingLoginModule.DELEGATE_OPTION, entry.getLoginModuleName());
+            wrapped[i] = new AppConfigurationEntry(DelegatingLoginModule.class.getName(), entry.getControlFlag(),
+                    options);
+        }
+        return wrapped;
+    }
+
+    /**
+     * Loads and instantiates the login module of every application of this configuration, so that configuration
+     * errors show at once and the first logins do not pay for class loading.
+     *
+     * @return number of login modules loaded
+     *
+     * @throws IllegalArgumentException thrown if a login module can not be loaded or instantiated
+     */
+    public int loadLoginModules() {
+        int loaded = 0;
+        for (AppConfigurationEntry[] appEntries : entries.values()) {
+            loaded += loadLoginModules(appEntries);
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads and instantiates the login modules of an application. Login modules wrapped in a
+     * {@link DelegatingLoginModule} are unwrapped.
+     *
+     * @param appEntries configuration entries of the application
+     *
+     * @return number of login modules loaded
+     *
+     * @throws IllegalArgumentException thrown if a login module can not be loaded or instantiated
+     */
+    public static int loadLoginModules(AppConfigurationEntry[] appEntries) {
+        for (AppConfigurationEntry entry : appEntries) {
+            String className = entry.getLoginModuleName();
+            if (DelegatingLoginModule.class.getName().equals(className)
+                    && entry.getOptions().get(DelegatingLoginModule.DELEGATE_OPTION) != null) {
+                className = entry.getOptions().get(DelegatingLoginModule.DELEGATE_OPTION).toString();
+            }
+            DelegatingLoginModule.newLoginModule(className);
+        }
+        return appEntries.length;
+    }
+
+    /**
+     * Parses a JAAS login configuration.
+     *
+     * @param reader source of the configuration, not closed by this method
+     *
+     * @return the parsed configuration
+     *
+     * @throws IOException thrown if the configuration could not be read or has syntax errors
+     */
+    public static JaasConfiguration parse(Reader reader) throws IOException {
+        StreamTokenizer st = new StreamTokenizer(reader);
+        st.resetSyntax();
+        st.wordChars('a', 'z');
+        st.wordChars('A', 'Z');
+        st.wordChars('0', '9');
+        st.wordChars('.', '.');
+        st.wordChars('_', '_');
+        st.wordChars('$', '$');
+        st.wordChars('-', '-');
+        st.wordChars('*', '*');
+        st.wordChars(128 + 32, 255);
+        st.whitespaceChars(0, ' ');
+        st.quoteChar('"');
+        st.slashSlashComments(true);
+        st.slashStarComments(true);
+
+        Map<String, AppConfigurationEntry[]> parsed = new LinkedHashMap<String, AppConfigurationEntry[]>();
+
+        while (st.nextToken() != StreamTokenizer.TT_EOF) {
+            String appName = expectValue(st, "application name");
+            if (parsed.containsKey(appName)) {
+                throw parseError(st, "duplicate application name '" + appName + "'");
+            }
+            st.nextToken();
+            expectChar(st, '{');
+
+            List<AppConfigurationEntry> appEntries = new ArrayList<AppConfigurationEntry>();
+            while (st.nextToken() != '}') {
+                String moduleClass = expectValue(st, "login module class name");
+                st.nextToken();
+                LoginModuleControlFlag flag = parseControlFlag(st, expectValue(st, "control flag"));
+
+                Map<String, String> options = new LinkedHashMap<String, String>();
+                while (st.nextToken() != ';') {
+                    String key = expectValue(st, "option name or ';'");
+                    st.nextToken();
+                    expectChar(st, '=');
+                    st.nextToken();
+                    options.put(key, expandProperties(st, expectValue(st, "option value")));
+                }
+                appEntries.add(new AppConfigurationEntry(moduleClass, flag, options));
+            }
+            st.nextToken();
+            expectChar(st, ';');
+
+            if (appEntries.isEmpty()) {
+                throw parseError(st, "no login modules configured for '" + appName + "'");
+            }
+            parsed.put(appName, appEntries.toArray(new AppConfigurationEntry[appEntries.size()]));
+        }
+
+        return new JaasConfiguration(parsed);
+    }
+
+    /**
+     * Gets the current token as a word or quoted string.
+     *
+     * @param st tokenizer positioned at the token
+     * @param expected description of the expected token, used in error messages
+     *
+     * @return the token value
+     *
+     * @throws IOException thrown if the current token is not a word or quoted string
+     */
+    private static String expectValue(StreamTokenizer st, String expected) throws IOException {
+        if (st.ttype == StreamTokenizer.TT_WORD || st.ttype == '"') {
+            return st.sval;
+        }
+        throw parseError(st, "expected " + expected);
+    }
+
+    /**
+     * Checks that the current token is the given character.
+     *
+     * @param st tokenizer positioned at the token
+     * @param c expected character
+     *
+     * @throws IOException thrown if the current token is something else
+     */
+    private static void expectChar(StreamTokenizer st, char c) throws IOException {
+        if (st.ttype != c) {
+            throw parseError(st, "expected '" + c + "'");
+        }
+    }
+
+    /**
+     * Parses a login module control flag.
+     *
+     * @param st tokenizer, used in error messages
+     * @param flag the flag as written in the configuration
+     *
+     * @return the control flag
+     *
+     * @throws IOException thrown if the flag is not known
+     */
+    private static LoginModuleControlFlag parseControlFlag(StreamTokenizer st, String flag) throws IOException {
+        if ("required".equalsIgnoreCase(flag)) {
+            return LoginModuleControlFlag.REQUIRED;
+        } else if ("requisite".equalsIgnoreCase(flag)) {
+            return LoginModuleControlFlag.REQUISITE;
+        } else if ("sufficient".equalsIgnoreCase(flag)) {
+            return LoginModuleControlFlag.SUFFICIENT;
+        } else if ("optional".equalsIgnoreCase(flag)) {
+            return LoginModuleControlFlag.OPTIONAL;
+        }
+        throw parseError(st, "invalid control flag '" + flag + "'");
+    }
+
+    /**
+     * Expands <code>${name}</code> references to system properties.
+     *
+     * @param st tokenizer, used in error messages
+     * @param value the value to expand
+     *
+     * @return the expanded value
+     *
+     * @throws IOException thrown if a reference is unterminated or names an undefined property
+     */
+    private static String expandProperties(StreamTokenizer st, String value) throws IOException {
+        int start = value.indexOf("${");
+        if (start < 0) {
+            return value;
+        }
+
+        StringBuilder expanded = new StringBuilder(value.length());
+        int pos = 0;
+        while (start >= 0) {
+            int end = value.indexOf('}', start);
+            if (end < 0) {
+                throw parseError(st, "unterminated property reference in '" + value + "'");
+            }
+            String property = System.getProperty(value.substring(start + 2, end));
+            if (property == null) {
+                throw parseError(st, "undefined property in '" + value + "'");
+            }
+            expanded.append(value, pos, start).append(property);
+            pos = end + 1;
+            start = value.indexOf("${", pos);
+        }
+        expanded.append(value, pos, value.length());
+        return expanded.toString();
+    }
+
+    /**
+     * Creates an exception describing a syntax error.
+     *
+     * @param st tokenizer, used for the line number
+     * @param message description of the error
+     *
+     * @return the exception
+     */
+    private static IOException parseError(StreamTokenizer st, String message) {
+        return new IOException("JAAS configuration error at line " + st.lineno() + ": " + message);
+    }
+
+    /** A JAAS configuration wrapping the login modules of another one in a {@link DelegatingLoginModule}. */
+    private static class DelegatingConfiguration extends Configuration {
+
+        /** The configuration wrapped. */
+        private final Configuration base;
+
+        /**
+         * Constructor.
+         *
+         * @param baseConfiguration the configuration wrapped
+         */
+        DelegatingConfiguration(Configuration baseConfiguration) {
+            base = baseConfiguration;
+        }
+
+        /** {@inheritDoc} */
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+            AppConfigurationEntry[] appEntries = base.getAppConfigurationEntry(name);
+            if (appEntries == null) {
+                return null;
+            }
+            return wrapLoginModules(name, appEntries);
+        }
+
+        /** {@inheritDoc} */
+        public void refresh() {
+            base.refresh();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.login.Configuration;
+
+/**
+ * Hands the JAAS configuration of each {@link MultiFactorAuthLoginHandler} over to the
+ * {@link MultiFactorAuthLoginServlet} serving it.
+ *
+ * Login handlers are created by the IdP's Spring configuration while the servlets are created by the servlet
+ * container, so the two meet here, keyed by the context-relative path of the authentication servlet.
+ */
+public final class JaasConfigurationRegistry {
+
+    /** Registered configurations, keyed by normalized servlet path. */
+    private static final ConcurrentMap<String, Configuration> CONFIGURATIONS =
+            new ConcurrentHashMap<String, Configuration>();
+
+    /** Constructor. */
+    private JaasConfigurationRegistry() {
+    }
+
+    /**
+     * Registers the JAAS configuration to use for an authentication servlet.
+     *
+     * @param servletPath context-relative path of the authentication servlet
+     * @param configuration the JAAS configuration
+     *
+     * @return the configuration previously registered for the path, or null
+     */
+    public static Configuration register(String servletPath, Configuration configuration) {
+        return CONFIGURATIONS.put(normalize(servletPath), configuration);
+    }
+
+    /**
+     * Removes the JAAS configuration of an authentication servlet, if it is still the given one.
+     *
+     * @param servletPath context-relative path of the authentication servlet
+     * @param configuration the JAAS configuration to remove
+     */
+    public static void unregister(String servletPath, Configuration configuration) {
+        CONFIGURATIONS.remove(normalize(servletPath), configuration);
+    }
+
+    /**
+     * Gets the JAAS configuration registered for an authentication servlet.
+     *
+     * @param servletPath context-relative path of the authentication servlet
+     *
+     * @return the configuration, or null if none has been registered
+     */
+    public static Configuration lookup(String servletPath) {
+        if (servletPath == null) {
+            return null;
+        }
+        return CONFIGURATIONS.get(normalize(servletPath));
+    }
+
+    /**
+     * Normalizes a servlet path to always start with "/".
+     *
+     * @param servletPath servlet path
+     *
+     * @return normalized servlet path
+     */
+    private static String normalize(String servletPath) {
+        if (servletPath.startsWith("/")) {
+            return servletPath;
+        }
+        return "/" + servletPath;
+    }
+}
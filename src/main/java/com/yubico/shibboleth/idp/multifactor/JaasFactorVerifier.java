@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+/**
+ * A {@link FactorVerifier} verifying a single factor through a JAAS application configuration, typically a
+ * directory bind for the password.
+ *
+ * Options :
+ * <ul>
+ * <li><code>jaasConfigName</code> - name of the JAAS application to log in to (required)</li>
+ * <li><code>jaasConfigurationLocation</code> - JAAS configuration file, defaults to the JVM-wide configuration</li>
+ * <li><code>factor</code> - <code>password</code> (default) to verify <code>j_password</code>, <code>token</code>
+ * to verify the <code>j_tokens</code></li>
+ * </ul>
+ */
+public class JaasFactorVerifier implements FactorVerifier {
+
+    /** Name of this verifier. */
+    private String name;
+
+    /** Name of the JAAS application. */
+    private String jaasConfigName;
+
+    /** JAAS configuration, or null to use the JVM-wide configuration. */
+    private Configuration jaasConfig;
+
+    /** Whether this verifier handles the password rather than the tokens. */
+    private boolean password;
+
+    /** {@inheritDoc} */
+    public void initialize(String newName, Map<String, String> options) throws IOException {
+        name = newName;
+
+        jaasConfigName = options.get("jaasConfigName");
+        if (jaasConfigName == null) {
+            throw new IllegalArgumentException("Option jaasConfigName is required");
+        }
+
+        if (options.get("jaasConfigurationLocation") != null) {
+            jaasConfig = new ReloadingJaasConfiguration(options.get("jaasConfigurationLocation"));
+        }
+
+        String factor = options.get("factor");
+        if (factor == null || "password".equals(factor)) {
+            password = true;
+        } else if ("token".equals(factor)) {
+            password = false;
+        } else {
+            throw new IllegalArgumentException("Option factor must be 'password' or 'token', not '" + factor + "'");
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return name;
+    }
+
+    /** {@inheritDoc} */
+    public boolean handles(int position, char[] factor) {
+        return password == (position == 0);
+    }
+
+    /** {@inheritDoc} */
+    public void verify(final String username, final char[] factor, Subject subject) throws LoginException {
+        CallbackHandler cbh = new CallbackHandler() {
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback cb : callbacks) {
+                    if (cb instanceof NameCallback) {
+                        ((NameCallback) cb).setName(username);
+                    } else if (cb instanceof PasswordCallback) {
+                        ((PasswordCallback) cb).setPassword(factor);
+                    }
+                }
+            }
+        };
+
+        new LoginContext(jaasConfigName, subject, cbh, jaasConfig).login();
+    }
+}
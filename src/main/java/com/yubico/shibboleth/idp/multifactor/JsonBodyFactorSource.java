@@ -0,0 +1,422 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads the authentication factors from a JSON request body, for non-browser clients :
+ *
+ * <pre>
+ * {"username": "alice", "password": "secret", "tokens": ["vvgnkjjhndihvgsuhcrcrgijvnkrcrvrhnhtlifhrjbf"]}
+ * </pre>
+ *
+ * The body is parsed in a single streaming pass. The password and tokens are decoded directly into character arrays
+ * and never turned into strings, other members are skipped without being buffered. The body length and nesting depth
+ * are bounded, and a malformed body fails the login.
+ */
+public class JsonBodyFactorSource implements FactorSource {
+
+    /** Content type of JSON bodies. */
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    /** Maximum nesting depth of skipped values. */
+    private static final int MAX_DEPTH = 8;
+
+    /** Maximum length of a member name that is considered. */
+    private static final int MAX_NAME_LENGTH = 64;
+
+    /** Name of the member holding the username. */
+    private final String usernameMember;
+
+    /** Name of the member holding the password. */
+    private final String passwordMember;
+
+    /** Name of the member holding the array of tokens. */
+    private final String tokensMember;
+
+    /** Maximum number of characters read from a body. */
+    private final int maxBodyLength;
+
+    /**
+     * Constructor.
+     *
+     * @param usernameName name of the member holding the username
+     * @param passwordName name of the member holding the password
+     * @param tokensName name of the member holding the array of tokens
+     * @param maxLength maximum number of characters read from a body
+     */
+    public JsonBodyFactorSource(String usernameName, String passwordName, String tokensName, int maxLength) {
+        usernameMember = usernameName;
+        passwordMember = passwordName;
+        tokensMember = tokensName;
+        maxBodyLength = maxLength;
+    }
+
+    /** {@inheritDoc} */
+    public void extract(HttpServletRequest request, LoginFactors factors) throws IOException,
+            MultiFactorAuthLoginException {
+        String contentType = request.getContentType();
+        if (!"POST".equals(request.getMethod()) || contentType == null
+                || !contentType.toLowerCase(Locale.ENGLISH).startsWith(JSON_CONTENT_TYPE)) {
+            return;
+        }
+        Reader reader;
+        try {
+            if (request.getCharacterEncoding() == null) {
+                request.setCharacterEncoding("UTF-8");
+            }
+            reader = request.getReader();
+        } catch (UnsupportedEncodingException e) {
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                    "Unsupported login request character encoding " + request.getCharacterEncoding());
+        }
+        new Parser(reader, factors).parse();
+    }
+
+    /** Parser of one request body. */
+    private class Parser {
+
+        /** The request body. */
+        private final Reader in;
+
+        /** The extracted factors. */
+        private final LoginFactors factors;
+
+        /** Buffer of the string being read. */
+        private final char[] buffer;
+
+        /** Characters read from the body so far. */
+        private int position;
+
+        /** Character read ahead, or -2 if none. */
+        private int next = -2;
+
+        /**
+         * Constructor.
+         *
+         * @param reader the request body
+         * @param loginFactors the extracted factors
+         */
+        Parser(Reader reader, LoginFactors loginFactors) {
+            in = reader;
+            factors = loginFactors;
+            buffer = new char[Math.max(loginFactors.getMaxLength(), MAX_NAME_LENGTH)];
+        }
+
+        /**
+         * Parses the body.
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the body is malformed or holds too many or too long factors
+         */
+        void parse() throws IOException, MultiFactorAuthLoginException {
+            try {
+                expect('{');
+                if (peekNonSpace() == '}') {
+                    read();
+                    return;
+                }
+                do {
+                    expect('"');
+                    int length = readString(true);
+                    String name = length <= MAX_NAME_LENGTH ? new String(buffer, 0, length) : null;
+                    expect(':');
+
+                    if (usernameMember.equals(name)) {
+                        expect('"');
+                        factors.setUsername(new String(buffer, 0, readString(true)));
+                    } else if (passwordMember.equals(name)) {
+                        expect('"');
+                        factors.setPassword(copy(readString(true)));
+                    } else if (tokensMember.equals(name)) {
+                        readTokens();
+                    } else {
+                        skipValue(0);
+                    }
+                } while (nextMember('}'));
+            } finally {
+                Arrays.fill(buffer, '\0');
+            }
+        }
+
+        /**
+         * Reads the array of tokens.
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the array is malformed or holds too many or too long tokens
+         */
+        private void readTokens() throws IOException, MultiFactorAuthLoginException {
+            expect('[');
+            if (peekNonSpace() == ']') {
+                read();
+                return;
+            }
+            int index = 0;
+            do {
+                expect('"');
+                factors.addToken(index++, copy(readString(true)));
+            } while (nextMember(']'));
+        }
+
+        /**
+         * Copies the string just read into a buffer of the factors.
+         *
+         * @param length length of the string
+         *
+         * @return a buffer holding the string
+         *
+         * @throws MultiFactorAuthLoginException thrown if the string is too long
+         */
+        private char[] copy(int length) throws MultiFactorAuthLoginException {
+            char[] secret = factors.newSecret(length);
+            System.arraycopy(buffer, 0, secret, 0, length);
+            return secret;
+        }
+
+        /**
+         * Skips a value.
+         *
+         * @param depth nesting depth of the value
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the value is malformed or nested too deeply
+         */
+        private void skipValue(int depth) throws IOException, MultiFactorAuthLoginException {
+            if (depth > MAX_DEPTH) {
+                throw malformed();
+            }
+            int c = peekNonSpace();
+            if (c == '"') {
+                read();
+                readString(false);
+            } else if (c == '{') {
+                read();
+                if (peekNonSpace() == '}') {
+                    read();
+                    return;
+                }
+                do {
+                    expect('"');
+                    readString(false);
+                    expect(':');
+                    skipValue(depth + 1);
+                } while (nextMember('}'));
+            } else if (c == '[') {
+                read();
+                if (peekNonSpace() == ']') {
+                    read();
+                    return;
+                }
+                do {
+                    skipValue(depth + 1);
+                } while (nextMember(']'));
+            } else {
+                // number, true, false or null
+                int length = 0;
+                while (c == '-' || c == '+' || c == '.' || Character.isLetterOrDigit(c)) {
+                    read();
+                    length++;
+                    c = peek();
+                }
+                if (length == 0) {
+                    throw malformed();
+                }
+            }
+        }
+
+        /**
+         * Reads the separator after a member or element.
+         *
+         * @param end character closing the object or array
+         *
+         * @return true if another member or element follows, false if the object or array is closed
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if neither a comma nor the closing character follows
+         */
+        private boolean nextMember(char end) throws IOException, MultiFactorAuthLoginException {
+            int c = peekNonSpace();
+            read();
+            if (c == ',') {
+                return true;
+            }
+            if (c == end) {
+                return false;
+            }
+            throw malformed();
+        }
+
+        /**
+         * Reads the rest of a string, after the opening quote.
+         *
+         * @param keep true to keep the string in the buffer, false to skip it
+         *
+         * @return length of the string in the buffer
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the string is malformed, or too long to keep
+         */
+        private int readString(boolean keep) throws IOException, MultiFactorAuthLoginException {
+            int length = 0;
+            int c = read();
+            while (c != '"') {
+                if (c == -1 || c < 0x20) {
+                    throw malformed();
+                }
+                if (c == '\\') {
+                    c = readEscape();
+                }
+                if (keep) {
+                    if (length == buffer.length) {
+                        factors.checkLength(length + 1);
+                        throw malformed();
+                    }
+                    buffer[length] = (char) c;
+                }
+                length++;
+                c = read();
+            }
+            return length;
+        }
+
+        /**
+         * Reads an escape sequence, after the backslash.
+         *
+         * @return the escaped character
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the escape sequence is malformed
+         */
+        private int readEscape() throws IOException, MultiFactorAuthLoginException {
+            int c = read();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    return c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) {
+                            throw malformed();
+                        }
+                        value = value << 4 | digit;
+                    }
+                    return value;
+                default:
+                    throw malformed();
+            }
+        }
+
+        /**
+         * Reads the next non-whitespace character and checks it.
+         *
+         * @param expected the expected character
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if another character is read
+         */
+        private void expect(char expected) throws IOException, MultiFactorAuthLoginException {
+            if (peekNonSpace() != expected) {
+                throw malformed();
+            }
+            read();
+        }
+
+        /**
+         * Skips whitespace and peeks at the next character.
+         *
+         * @return the next character, or -1 at the end of the body
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the body is too long
+         */
+        private int peekNonSpace() throws IOException, MultiFactorAuthLoginException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                read();
+                c = peek();
+            }
+            return c;
+        }
+
+        /**
+         * Peeks at the next character.
+         *
+         * @return the next character, or -1 at the end of the body
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the body is too long
+         */
+        private int peek() throws IOException, MultiFactorAuthLoginException {
+            if (next == -2) {
+                next = read();
+            }
+            return next;
+        }
+
+        /**
+         * Reads the next character.
+         *
+         * @return the next character, or -1 at the end of the body
+         *
+         * @throws IOException thrown if the body can not be read
+         * @throws MultiFactorAuthLoginException thrown if the body is too long
+         */
+        private int read() throws IOException, MultiFactorAuthLoginException {
+            if (next != -2) {
+                int c = next;
+                next = -2;
+                return c;
+            }
+            if (++position > maxBodyLength) {
+                throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                        "Login request body longer than " + maxBodyLength + " characters");
+            }
+            return in.read();
+        }
+
+        /**
+         * Creates the exception failing the login on a malformed body.
+         *
+         * @return the exception
+         */
+        private MultiFactorAuthLoginException malformed() {
+            return new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                    "Malformed JSON login request at character " + position);
+        }
+    }
+}
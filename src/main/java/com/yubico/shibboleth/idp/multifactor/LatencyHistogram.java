@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, with microsecond resolution.
+ *
+ * Latencies are counted in logarithmic buckets, four per power of two, so percentiles are accurate to within 25% over
+ * the whole range from one microsecond to several days. Recording a latency is a handful of atomic increments and
+ * never allocates.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 4;
+
+    /** Number of bits selecting the bucket within a power of two. */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /** Largest power of two covered, latencies above it are counted in the last bucket. */
+    private static final int MAX_EXPONENT = 40;
+
+    /** Bucket counts. */
+    private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT + 1) * SUB_BUCKETS);
+
+    /** Number of recorded latencies. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of recorded latencies, in microseconds. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Largest recorded latency, in microseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long currentMax = max.get();
+        while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Gets the number of recorded latencies.
+     *
+     * @return number of recorded latencies
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the sum of all recorded latencies.
+     *
+     * @return sum of recorded latencies, in microseconds
+     */
+    public long getSumMicros() {
+        return sum.get();
+    }
+
+    /**
+     * Gets the largest recorded latency.
+     *
+     * @return largest recorded latency, in microseconds
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of all recorded latencies.
+     *
+     * @return mean latency in microseconds, 0 if nothing has been recorded
+     */
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Estimates a percentile of the recorded latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     *
+     * @return upper bound of the bucket holding the percentile in microseconds, 0 if nothing has been recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[buckets.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Gets the bucket counting a latency.
+     *
+     * @param micros the latency, in microseconds
+     *
+     * @return index of the bucket
+     */
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest latency counted by a bucket.
+     *
+     * @param bucket index of the bucket
+     *
+     * @return largest latency of the bucket, in microseconds
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
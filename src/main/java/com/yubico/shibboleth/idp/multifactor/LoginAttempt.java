@@ -0,0 +1,410 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/**
+ * State of one login, shared between {@link MultiFactorAuthLoginServlet} and the authentication backends it calls.
+ *
+ * JAAS login modules wrapped in a {@link DelegatingLoginModule} reach the attempt through the servlet's callback
+ * handler, factor verifiers are handed it by {@link FactorVerification}. Backend calls may be reported from several
+ * threads at once.
+ */
+public class LoginAttempt {
+
+    /** Kinds of authentication factor. */
+    public static enum Factor {
+
+        /** The password, <code>j_password</code>. */
+        PASSWORD,
+
+        /** A token, <code>j_tokens[i]</code>. */
+        TOKEN,
+    }
+
+    /** Metrics to report backend calls to. */
+    private final LoginMetrics metrics;
+
+    /** Circuit breakers of the backends, or null. */
+    private final CircuitBreakers circuitBreakers;
+
+    /** The user being authenticated. */
+    private final String username;
+
+    /** Time the attempt started, from {@link System#nanoTime()}. */
+    private final long startTime;
+
+    /** Whether the password is known to be valid and not verified by any backend. */
+    private boolean passwordSkipped;
+
+    /** Whether the device is trusted and the tokens are not verified by any backend. */
+    private boolean tokensSkipped;
+
+    /** Bulkheads of the backends, or null. */
+    private volatile Bulkheads bulkheads;
+
+    /** Ordering of the backends, fed with every backend call, or null. */
+    private volatile FactorOrdering factorOrdering;
+
+    /** Deadline of the login, from {@link System#nanoTime()}, or 0 if the login has no deadline. */
+    private long deadline;
+
+    /** Number of factors verified by the backends before the deadline. */
+    private int deadlineFactors;
+
+    /** Number of backend calls completed so far. */
+    private int backendCalls;
+
+    /** Number of JAAS login modules called so far. */
+    private int loginModuleCalls;
+
+    /** Whether backend calls may still be running after the login finished. */
+    private boolean abandoned;
+
+    /** Kind of the first factor rejected by a backend, or null. */
+    private Factor rejectedFactor;
+
+    /** Names of the backends called, or null if calls are not recorded. */
+    private String[] calledBackends;
+
+    /** Kinds of factor verified by the backends called. */
+    private Factor[] calledFactors;
+
+    /** Results of the backend calls. */
+    private BackendResult[] callResults;
+
+    /** Latencies of the backend calls, in nanoseconds. */
+    private long[] callNanos;
+
+    /** Number of backend calls recorded. */
+    private int recordedCalls;
+
+    /**
+     * Constructor.
+     *
+     * @param loginMetrics metrics to report backend calls to
+     * @param user the user being authenticated
+     */
+    public LoginAttempt(LoginMetrics loginMetrics, String user) {
+        this(loginMetrics, null, user);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param loginMetrics metrics to report backend calls to
+     * @param breakers circuit breakers of the backends, or null
+     * @param user the user being authenticated
+     */
+    public LoginAttempt(LoginMetrics loginMetrics, CircuitBreakers breakers, String user) {
+        metrics = loginMetrics;
+        circuitBreakers = breakers;
+        username = user;
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Gets the user being authenticated.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets the time the attempt started.
+     *
+     * @return start time, from {@link System#nanoTime()}
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Gets the metrics backend calls are reported to.
+     *
+     * @return login metrics
+     */
+    public LoginMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the circuit breakers of the backends.
+     *
+     * @return circuit breakers, or null if not enabled
+     */
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    /**
+     * Gets the bulkheads of the backends.
+     *
+     * @return bulkheads, or null if not enabled
+     */
+    public Bulkheads getBulkheads() {
+        return bulkheads;
+    }
+
+    /**
+     * Sets the bulkheads of the backends, limiting the concurrent calls to each backend.
+     *
+     * @param backendBulkheads bulkheads, or null to not limit concurrent calls
+     */
+    public void setBulkheads(Bulkheads backendBulkheads) {
+        bulkheads = backendBulkheads;
+    }
+
+    /**
+     * Gets the ordering of the backends.
+     *
+     * @return factor ordering, or null if backends are called in configuration order
+     */
+    public FactorOrdering getFactorOrdering() {
+        return factorOrdering;
+    }
+
+    /**
+     * Sets the ordering of the backends, so that backends are called in order of rank and every call is recorded to
+     * it.
+     *
+     * @param ordering factor ordering, or null to call backends in configuration order
+     */
+    public void setFactorOrdering(FactorOrdering ordering) {
+        factorOrdering = ordering;
+    }
+
+    /**
+     * Sets the deadline of the login, shared by the factors still to be verified.
+     *
+     * @param newDeadline deadline, from {@link System#nanoTime()}
+     * @param factors number of factors verified by the backends
+     */
+    public synchronized void setDeadline(long newDeadline, int factors) {
+        deadline = newDeadline;
+        deadlineFactors = factors;
+    }
+
+    /**
+     * Gets the deadline of the login.
+     *
+     * @return deadline, from {@link System#nanoTime()}, or 0 if the login has no deadline
+     */
+    public synchronized long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Gets the time the next backend may take, the remaining time until the deadline split evenly between the factors
+     * not verified yet.
+     *
+     * @return timeout in nanoseconds, 0 if the deadline has passed, or -1 if the login has no deadline
+     */
+    public synchronized long getFactorTimeout() {
+        if (deadline == 0) {
+            return -1;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return 0;
+        }
+        return remaining / Math.max(1, deadlineFactors - backendCalls);
+    }
+
+    /**
+     * Starts recording the backend calls of this attempt, for the audit log.
+     *
+     * @param maxCalls largest number of calls recorded, later calls are only reported to the metrics
+     */
+    public synchronized void recordCalls(int maxCalls) {
+        calledBackends = new String[maxCalls];
+        calledFactors = new Factor[maxCalls];
+        callResults = new BackendResult[maxCalls];
+        callNanos = new long[maxCalls];
+    }
+
+    /**
+     * Gets the number of backend calls recorded.
+     *
+     * @return number of calls, 0 if calls are not recorded
+     */
+    public synchronized int getRecordedCalls() {
+        return recordedCalls;
+    }
+
+    /**
+     * Gets the name of the backend of a recorded call.
+     *
+     * @param call index of the call
+     *
+     * @return name of the backend
+     */
+    public synchronized String getCalledBackend(int call) {
+        return calledBackends[call];
+    }
+
+    /**
+     * Gets the kind of factor verified by a recorded call.
+     *
+     * @param call index of the call
+     *
+     * @return kind of factor
+     */
+    public synchronized Factor getCalledFactor(int call) {
+        return calledFactors[call];
+    }
+
+    /**
+     * Gets the result of a recorded call.
+     *
+     * @param call index of the call
+     *
+     * @return result of the call
+     */
+    public synchronized BackendResult getCallResult(int call) {
+        return callResults[call];
+    }
+
+    /**
+     * Gets the latency of a recorded call.
+     *
+     * @param call index of the call
+     *
+     * @return latency in nanoseconds
+     */
+    public synchronized long getCallNanos(int call) {
+        return callNanos[call];
+    }
+
+    /**
+     * Marks the password as known to be valid, so that no backend is verifying it.
+     *
+     * @param skipped true if the password is not verified by any backend
+     */
+    public synchronized void setPasswordSkipped(boolean skipped) {
+        passwordSkipped = skipped;
+    }
+
+    /**
+     * Marks the device as trusted, so that only the password is verified by the backends.
+     *
+     * @param skipped true if the tokens are not verified by any backend
+     */
+    public synchronized void setTokensSkipped(boolean skipped) {
+        tokensSkipped = skipped;
+    }
+
+    /**
+     * Determines whether the tokens are verified by the backends.
+     *
+     * @return true if the device is trusted and the tokens are not verified
+     */
+    public synchronized boolean isTokensSkipped() {
+        return tokensSkipped;
+    }
+
+    /**
+     * Determines the factor verified by the next JAAS login module called. Unless configured otherwise, the first
+     * login module called verifies the password and all others verify tokens.
+     *
+     * @return kind of factor
+     */
+    public synchronized Factor nextLoginModuleFactor() {
+        loginModuleCalls++;
+        return loginModuleCalls == 1 && !passwordSkipped ? Factor.PASSWORD : Factor.TOKEN;
+    }
+
+    /**
+     * Determines the factor verified by a JAAS login module from its configured position, for login modules not
+     * called in configuration order. Unless configured otherwise, the first login module verifies the password and
+     * all others verify tokens.
+     *
+     * @param position position of the login module in its configured application
+     *
+     * @return kind of factor
+     */
+    public synchronized Factor factorAt(int position) {
+        return position == 0 && !passwordSkipped ? Factor.PASSWORD : Factor.TOKEN;
+    }
+
+    /**
+     * Marks the backend calls of this attempt as possibly still running after the login finished, e.g. when the
+     * login deadline passed, so that the factors are not reused while a backend may still read them.
+     */
+    public synchronized void abandon() {
+        abandoned = true;
+    }
+
+    /**
+     * Determines whether backend calls may still be running after the login finished.
+     *
+     * @return true if backend calls have been abandoned
+     */
+    public synchronized boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Reports a call to an authentication backend.
+     *
+     * @param backend name of the backend
+     * @param factor kind of factor verified
+     * @param result result of the call
+     * @param nanos latency in nanoseconds
+     */
+    public void backendCalled(String backend, Factor factor, BackendResult result, long nanos) {
+        if (metrics != null) {
+            metrics.recordBackend(backend, result, nanos);
+        }
+        if (circuitBreakers != null) {
+            CircuitBreaker breaker = circuitBreakers.get(backend);
+            if (breaker != null) {
+                breaker.record(result, nanos);
+            }
+        }
+        FactorOrdering ordering = factorOrdering;
+        if (ordering != null) {
+            ordering.record(backend, result, nanos);
+        }
+        synchronized (this) {
+            backendCalls++;
+            if (result == BackendResult.FAILURE && rejectedFactor == null) {
+                rejectedFactor = factor;
+            }
+            if (calledBackends != null && recordedCalls < calledBackends.length) {
+                calledBackends[recordedCalls] = backend;
+                calledFactors[recordedCalls] = factor;
+                callResults[recordedCalls] = result;
+                callNanos[recordedCalls] = nanos;
+                recordedCalls++;
+            }
+        }
+    }
+
+    /**
+     * Gets the kind of the first factor rejected by a backend.
+     *
+     * @return kind of factor, or null if no backend has rejected a factor
+     */
+    public synchronized Factor getRejectedFactor() {
+        return rejectedFactor;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The username, password and tokens extracted from a login request.
+ *
+ * Tokens are kept with their index, <code>i</code> for <code>j_tokens[i]</code>, and ordered by it; indices need not
+ * be contiguous. Tokens without an index, e.g. from headers, are placed after all indexed tokens. The number of tokens
+ * and the length of every factor are capped, exceeding a cap fails the login.
+ *
+ * The password and tokens are held in buffers taken from a {@link SecretPool} with {@link #newSecret(int)}, which
+ * the {@link FactorSource}s fill directly. Secrets passed in belong to the factors from then on : those not kept,
+ * e.g. a second password, are wiped at once, and {@link #wipe(boolean)} zeroes the others once the login finishes.
+ */
+public class LoginFactors {
+
+    /** Index of tokens without an index of their own. */
+    public static final int UNINDEXED = Integer.MAX_VALUE;
+
+    /** Maximum number of tokens. */
+    private final int maxTokens;
+
+    /** Maximum length of a username, password or token. */
+    private final int maxLength;
+
+    /** The username, or null. */
+    private String username;
+
+    /** The password, or null. */
+    private char[] password;
+
+    /** Indices of the tokens, in ascending order. */
+    private final int[] indices;
+
+    /** The tokens, in the order of {@link #indices}. */
+    private final char[][] tokens;
+
+    /** Number of tokens. */
+    private int tokenCount;
+
+    /** Pool of the buffers holding the password and tokens, or null. */
+    private final SecretPool pool;
+
+    /**
+     * Constructor.
+     *
+     * @param maxTokenCount maximum number of tokens
+     * @param maxFactorLength maximum length of a username, password or token
+     */
+    public LoginFactors(int maxTokenCount, int maxFactorLength) {
+        this(maxTokenCount, maxFactorLength, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxTokenCount maximum number of tokens
+     * @param maxFactorLength maximum length of a username, password or token
+     * @param secretPool pool of the buffers holding the password and tokens, or null to allocate them
+     */
+    public LoginFactors(int maxTokenCount, int maxFactorLength, SecretPool secretPool) {
+        pool = secretPool;
+        maxTokens = maxTokenCount;
+        maxLength = maxFactorLength;
+        indices = new int[maxTokenCount];
+        tokens = new char[maxTokenCount][];
+    }
+
+    /**
+     * Gets the maximum length of a username, password or token.
+     *
+     * @return maximum length, in characters
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Gets the username.
+     *
+     * @return the username, or null if none has been found
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Sets the username, unless one has already been found.
+     *
+     * @param name the username
+     *
+     * @throws MultiFactorAuthLoginException thrown if the username is too long
+     */
+    public void setUsername(String name) throws MultiFactorAuthLoginException {
+        checkLength(name.length());
+        if (username == null) {
+            username = name;
+        }
+    }
+
+    /**
+     * Gets the password.
+     *
+     * @return the password, or null if none has been found
+     */
+    public char[] getPassword() {
+        return password;
+    }
+
+    /**
+     * Sets the password, unless one has already been found.
+     *
+     * @param secret the password
+     *
+     * @throws MultiFactorAuthLoginException thrown if the password is too long
+     */
+    public void setPassword(char[] secret) throws MultiFactorAuthLoginException {
+        if (password != null || secret.length > maxLength) {
+            discard(secret);
+            checkLength(secret.length);
+            return;
+        }
+        password = secret;
+    }
+
+    /**
+     * Checks the length of a factor before it is copied.
+     *
+     * @param length length of the factor
+     *
+     * @throws MultiFactorAuthLoginException thrown if the factor is too long
+     */
+    public void checkLength(int length) throws MultiFactorAuthLoginException {
+        if (length > maxLength) {
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                    "Authentication factor longer than " + maxLength + " characters");
+        }
+    }
+
+    /**
+     * Gets a buffer for a password or token, to be filled and passed to {@link #setPassword(char[])} or
+     * {@link #addToken(int, char[])}.
+     *
+     * @param length length of the secret
+     *
+     * @return a zeroed buffer of exactly <code>length</code> characters
+     *
+     * @throws MultiFactorAuthLoginException thrown if the secret is too long
+     */
+    public char[] newSecret(int length) throws MultiFactorAuthLoginException {
+        checkLength(length);
+        return pool != null ? pool.take(length) : new char[length];
+    }
+
+    /**
+     * Copies a password or token the container has already turned into a string into a buffer, see
+     * {@link #newSecret(int)}.
+     *
+     * @param value the secret
+     *
+     * @return a buffer holding the secret
+     *
+     * @throws MultiFactorAuthLoginException thrown if the secret is too long
+     */
+    public char[] newSecret(String value) throws MultiFactorAuthLoginException {
+        char[] secret = newSecret(value.length());
+        value.getChars(0, secret.length, secret, 0);
+        return secret;
+    }
+
+    /**
+     * Adds a token. Empty tokens are ignored, as is a token with the index of one already added.
+     *
+     * @param index index of the token, or {@link #UNINDEXED}
+     * @param token the token
+     *
+     * @throws MultiFactorAuthLoginException thrown if the token is too long or there are too many tokens
+     */
+    public void addToken(int index, char[] token) throws MultiFactorAuthLoginException {
+        if (token.length == 0 || token.length > maxLength) {
+            discard(token);
+            checkLength(token.length);
+            return;
+        }
+
+        int position = tokenCount;
+        while (position > 0 && indices[position - 1] > index) {
+            position--;
+        }
+        if (index != UNINDEXED && position > 0 && indices[position - 1] == index) {
+            discard(token);
+            return;
+        }
+        if (tokenCount == maxTokens) {
+            discard(token);
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.INVALID_FACTORS,
+                    "More than " + maxTokens + " authentication tokens");
+        }
+        System.arraycopy(indices, position, indices, position + 1, tokenCount - position);
+        System.arraycopy(tokens, position, tokens, position + 1, tokenCount - position);
+        indices[position] = index;
+        tokens[position] = token;
+        tokenCount++;
+    }
+
+    /**
+     * Gets the number of tokens.
+     *
+     * @return number of tokens
+     */
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Gets all factors, as expected by the authentication backends.
+     *
+     * @return the password followed by the tokens in index order
+     */
+    public ArrayList<char[]> getSecrets() {
+        ArrayList<char[]> secrets = new ArrayList<char[]>(tokenCount + 1);
+        secrets.add(password);
+        for (int i = 0; i < tokenCount; i++) {
+            secrets.add(tokens[i]);
+        }
+        return secrets;
+    }
+
+    /**
+     * Zeroes the password and all tokens, and forgets them. Buffers are only returned to the pool when no other
+     * thread may still be reading them, e.g. a backend call abandoned after the login deadline; such a thread will
+     * read a wiped secret rather than the secret of a later login.
+     *
+     * @param recycle true to return the buffers to the pool, false if they may still be referenced elsewhere
+     */
+    public void wipe(boolean recycle) {
+        wipe(password, recycle);
+        password = null;
+        for (int i = 0; i < tokenCount; i++) {
+            wipe(tokens[i], recycle);
+            tokens[i] = null;
+        }
+        tokenCount = 0;
+    }
+
+    /**
+     * Wipes a secret that is not kept.
+     *
+     * @param secret the secret
+     */
+    private void discard(char[] secret) {
+        wipe(secret, true);
+    }
+
+    /**
+     * Zeroes a secret.
+     *
+     * @param secret the secret, may be null
+     * @param recycle true to return the buffer to the pool
+     */
+    private void wipe(char[] secret, boolean recycle) {
+        if (recycle && pool != null) {
+            pool.release(secret);
+        } else if (secret != null) {
+            Arrays.fill(secret, '\0');
+        }
+    }
+}
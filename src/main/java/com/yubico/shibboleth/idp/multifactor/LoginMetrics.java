@@ -0,0 +1,525 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.security.auth.login.AccountException;
+import javax.security.auth.login.CredentialException;
+import javax.security.auth.login.FailedLoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency and outcome metrics of the logins processed by one {@link MultiFactorAuthLoginServlet}.
+ *
+ * Every login is timed per {@link Phase} and counted and timed per {@link Outcome}, and every call to an
+ * authentication backend (a JAAS login module or a {@link FactorVerifier}) is counted and timed per backend. All
+ * counters and histograms are lock-free. Registered instances are exposed as JMX MBeans and by
+ * {@link MultiFactorAuthMetricsServlet}.
+ */
+public class LoginMetrics implements LoginMetricsMBean {
+
+    /** Domain of the JMX object names. */
+    public static final String JMX_DOMAIN = "com.yubico.shibboleth.idp.multifactor";
+
+    /** Percentiles included in reports. */
+    private static final double[] REPORT_PERCENTILES = {50, 90, 99, 99.9};
+
+    /** Registered instances, keyed by name. */
+    private static final ConcurrentMap<String, LoginMetrics> REGISTERED = new ConcurrentHashMap<String, LoginMetrics>();
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LoginMetrics.class);
+
+    /** Phases of a login. */
+    public static enum Phase {
+
+        /** Extracting the authentication factors from the request. */
+        EXTRACTION,
+
+        /** Checks done before any authentication backend is consulted. */
+        ADMISSION,
+
+        /** Verifying the authentication factors, e.g. the JAAS login(). */
+        AUTHENTICATION,
+
+        /** Constructing the authenticated subject. */
+        SUBJECT,
+
+        /** Returning to the authentication engine or forwarding to the login page. */
+        FORWARD,
+    }
+
+    /** Outcomes of a login. */
+    public static enum Outcome {
+
+        /** The user was authenticated. */
+        SUCCESS,
+
+        /** The password was rejected. */
+        BAD_PASSWORD,
+
+        /** A token was rejected. */
+        BAD_TOKEN,
+
+        /** The login failed, without it being known which factor was rejected. */
+        FAILED,
+
+        /** The login was rejected before any authentication backend was consulted. */
+        REJECTED,
+
+        /** The login failed because of an error. */
+        ERROR,
+    }
+
+    /** Results of a call to an authentication backend. */
+    public static enum BackendResult {
+
+        /** The backend accepted the factor. */
+        SUCCESS,
+
+        /** The backend rejected the factor. */
+        FAILURE,
+
+        /** The backend failed to verify the factor. */
+        ERROR;
+
+        /**
+         * Classifies the outcome of a call to an authentication backend.
+         *
+         * @param failure exception thrown by the backend, or null if it returned normally
+         *
+         * @return {@link #FAILURE} for exceptions rejecting the user's credentials or account, {@link #ERROR} for all
+         *         other exceptions
+         */
+        public static BackendResult of(Throwable failure) {
+            if (failure == null) {
+                return SUCCESS;
+            }
+            if (failure instanceof FailedLoginException || failure instanceof AccountException
+                    || failure instanceof CredentialException) {
+                return FAILURE;
+            }
+            return ERROR;
+        }
+    }
+
+    /** Name of this instance, typically the servlet name. */
+    private final String name;
+
+    /** Latency per phase. */
+    private final LatencyHistogram[] phases;
+
+    /** Latency per outcome. */
+    private final LatencyHistogram[] outcomes;
+
+    /** Metrics per backend, keyed by backend name. */
+    private final ConcurrentMap<String, BackendMetrics> backends = new ConcurrentHashMap<String, BackendMetrics>();
+
+    /** JMX object name, if registered. */
+    private ObjectName objectName;
+
+    /**
+     * Constructor.
+     *
+     * @param metricsName name of this instance, typically the servlet name
+     */
+    public LoginMetrics(String metricsName) {
+        name = metricsName;
+        phases = new LatencyHistogram[Phase.values().length];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+        outcomes = new LatencyHistogram[Outcome.values().length];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Registers an instance, making it visible to JMX and {@link MultiFactorAuthMetricsServlet}.
+     *
+     * @param metrics the instance to register
+     */
+    public static void register(LoginMetrics metrics) {
+        REGISTERED.put(metrics.getName(), metrics);
+        metrics.registerMBean();
+    }
+
+    /**
+     * Unregisters an instance.
+     *
+     * @param metrics the instance to unregister
+     */
+    public static void unregister(LoginMetrics metrics) {
+        REGISTERED.remove(metrics.getName(), metrics);
+        metrics.unregisterMBean();
+    }
+
+    /**
+     * Gets all registered instances.
+     *
+     * @return registered instances
+     */
+    public static Collection<LoginMetrics> getRegistered() {
+        return REGISTERED.values();
+    }
+
+    /**
+     * Gets the name of this instance.
+     *
+     * @return name of this instance
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records the latency of a login phase.
+     *
+     * @param phase the phase
+     * @param nanos latency in nanoseconds
+     */
+    public void recordPhase(Phase phase, long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the outcome and total latency of a login.
+     *
+     * @param outcome the outcome
+     * @param nanos latency in nanoseconds
+     */
+    public void recordLogin(Outcome outcome, long nanos) {
+        outcomes[outcome.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records a call to an authentication backend.
+     *
+     * @param backend name of the backend
+     * @param result result of the call
+     * @param nanos latency in nanoseconds
+     */
+    public void recordBackend(String backend, BackendResult result, long nanos) {
+        getBackend(backend).record(result, nanos);
+    }
+
+    /**
+     * Gets the metrics of an authentication backend, creating them if needed.
+     *
+     * @param backend name of the backend
+     *
+     * @return metrics of the backend
+     */
+    public BackendMetrics getBackend(String backend) {
+        BackendMetrics metrics = backends.get(backend);
+        if (metrics == null) {
+            BackendMetrics created = new BackendMetrics();
+            metrics = backends.putIfAbsent(backend, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Gets the latency histogram of a login phase.
+     *
+     * @param phase the phase
+     *
+     * @return latency histogram
+     */
+    public LatencyHistogram getPhaseLatency(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Gets the latency histogram of logins with an outcome.
+     *
+     * @param outcome the outcome
+     *
+     * @return latency histogram
+     */
+    public LatencyHistogram getLoginLatency(Outcome outcome) {
+        return outcomes[outcome.ordinal()];
+    }
+
+    /** {@inheritDoc} */
+    public long getLoginCount(String outcome) {
+        return getLoginLatency(Outcome.valueOf(outcome)).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getSuccessCount() {
+        return getLoginLatency(Outcome.SUCCESS).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getBadPasswordCount() {
+        return getLoginLatency(Outcome.BAD_PASSWORD).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getBadTokenCount() {
+        return getLoginLatency(Outcome.BAD_TOKEN).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getRejectedCount() {
+        return getLoginLatency(Outcome.REJECTED).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getErrorCount() {
+        return getLoginLatency(Outcome.ERROR).getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getLoginPercentileMicros(String outcome, double percentile) {
+        return getLoginLatency(Outcome.valueOf(outcome)).getPercentileMicros(percentile);
+    }
+
+    /** {@inheritDoc} */
+    public long getPhasePercentileMicros(String phase, double percentile) {
+        return getPhaseLatency(Phase.valueOf(phase)).getPercentileMicros(percentile);
+    }
+
+    /** {@inheritDoc} */
+    public String[] getBackendNames() {
+        return backends.keySet().toArray(new String[0]);
+    }
+
+    /** {@inheritDoc} */
+    public long getBackendPercentileMicros(String backend, double percentile) {
+        BackendMetrics metrics = backends.get(backend);
+        return metrics == null ? 0 : metrics.getLatency().getPercentileMicros(percentile);
+    }
+
+    /** {@inheritDoc} */
+    public long getBackendQueuePercentileMicros(String backend, double percentile) {
+        BackendMetrics metrics = backends.get(backend);
+        return metrics == null ? 0 : metrics.getQueueTime().getPercentileMicros(percentile);
+    }
+
+    /** {@inheritDoc} */
+    public long getBackendBulkheadRejections(String backend) {
+        BackendMetrics metrics = backends.get(backend);
+        return metrics == null ? 0 : metrics.getBulkheadRejections();
+    }
+
+    /** {@inheritDoc} */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        writeReport(report);
+        return report.toString();
+    }
+
+    /**
+     * Writes all metrics in a plain-text, line-oriented format compatible with common metrics scrapers.
+     *
+     * @param out where to write the metrics
+     */
+    public void writeReport(StringBuilder out) {
+        String servlet = "servlet=\"" + escape(name) + "\"";
+
+        for (Outcome outcome : Outcome.values()) {
+            writeHistogram(out, "multifactor_login_duration_seconds", servlet + ",outcome=\""
+                    + outcome.name().toLowerCase() + "\"", getLoginLatency(outcome));
+        }
+        for (Phase phase : Phase.values()) {
+            writeHistogram(out, "multifactor_login_phase_duration_seconds", servlet + ",phase=\""
+                    + phase.name().toLowerCase() + "\"", getPhaseLatency(phase));
+        }
+
+        Map<String, BackendMetrics> sorted = new TreeMap<String, BackendMetrics>(backends);
+        for (Map.Entry<String, BackendMetrics> backend : sorted.entrySet()) {
+            String labels = servlet + ",backend=\"" + escape(backend.getKey()) + "\"";
+            for (BackendResult result : BackendResult.values()) {
+                out.append("multifactor_backend_calls_total{").append(labels).append(",result=\"")
+                        .append(result.name().toLowerCase()).append("\"} ")
+                        .append(backend.getValue().getCount(result)).append('\n');
+            }
+            writeHistogram(out, "multifactor_backend_duration_seconds", labels, backend.getValue().getLatency());
+            if (backend.getValue().getQueueTime().getCount() > 0 || backend.getValue().getBulkheadRejections() > 0) {
+                writeHistogram(out, "multifactor_backend_queue_duration_seconds", labels, backend.getValue()
+                        .getQueueTime());
+                out.append("multifactor_backend_bulkhead_rejections_total{").append(labels).append("} ")
+                        .append(backend.getValue().getBulkheadRejections()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Writes the count, sum and percentiles of a histogram.
+     *
+     * @param out where to write
+     * @param metric name of the metric
+     * @param labels labels of the metric
+     * @param histogram the histogram
+     */
+    private void writeHistogram(StringBuilder out, String metric, String labels, LatencyHistogram histogram) {
+        for (double percentile : REPORT_PERCENTILES) {
+            out.append(metric).append('{').append(labels).append(",quantile=\"").append(percentile / 100)
+                    .append("\"} ").append(toSeconds(histogram.getPercentileMicros(percentile))).append('\n');
+        }
+        out.append(metric).append("_sum{").append(labels).append("} ")
+                .append(toSeconds(histogram.getSumMicros())).append('\n');
+        out.append(metric).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    /**
+     * Converts microseconds to seconds.
+     *
+     * @param micros microseconds
+     *
+     * @return seconds
+     */
+    private static double toSeconds(long micros) {
+        return micros / 1000000.0;
+    }
+
+    /**
+     * Escapes a label value.
+     *
+     * @param value the value
+     *
+     * @return the escaped value
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** Registers this instance with the platform MBean server. */
+    private synchronized void registerMBean() {
+        try {
+            objectName = new ObjectName(JMX_DOMAIN + ":type=LoginMetrics,name=" + ObjectName.quote(name));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn("Unable to register login metrics " + name + " with JMX", e);
+            objectName = null;
+        }
+    }
+
+    /** Unregisters this instance from the platform MBean server. */
+    private synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.debug("Unable to unregister login metrics " + name + " from JMX", e);
+        }
+        objectName = null;
+    }
+
+    /** Metrics of one authentication backend. */
+    public static class BackendMetrics {
+
+        /** Number of calls per result. */
+        private final AtomicLongArray counts = new AtomicLongArray(BackendResult.values().length);
+
+        /** Latency of all calls. */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /** Time calls waited for a slot of the backend's bulkhead. */
+        private final LatencyHistogram queueTime = new LatencyHistogram();
+
+        /** Number of calls rejected by the backend's bulkhead. */
+        private final AtomicLong bulkheadRejections = new AtomicLong();
+
+        /**
+         * Records a call.
+         *
+         * @param result result of the call
+         * @param nanos latency in nanoseconds
+         */
+        public void record(BackendResult result, long nanos) {
+            counts.incrementAndGet(result.ordinal());
+            latency.record(nanos);
+        }
+
+        /**
+         * Gets the number of calls with a result.
+         *
+         * @param result the result
+         *
+         * @return number of calls
+         */
+        public long getCount(BackendResult result) {
+            return counts.get(result.ordinal());
+        }
+
+        /**
+         * Gets the latency of all calls.
+         *
+         * @return latency histogram
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Records the time a call waited for a slot of the backend's bulkhead.
+         *
+         * @param nanos waiting time in nanoseconds
+         */
+        public void recordQueued(long nanos) {
+            queueTime.record(nanos);
+        }
+
+        /** Records a call rejected by the backend's bulkhead. */
+        public void recordBulkheadRejection() {
+            bulkheadRejections.incrementAndGet();
+        }
+
+        /**
+         * Gets the time calls waited for a slot of the backend's bulkhead.
+         *
+         * @return waiting time histogram, empty if the backend has no bulkhead
+         */
+        public LatencyHistogram getQueueTime() {
+            return queueTime;
+        }
+
+        /**
+         * Gets the number of calls rejected by the backend's bulkhead.
+         *
+         * @return number of rejected calls
+         */
+        public long getBulkheadRejections() {
+            return bulkheadRejections.get();
+        }
+    }
+}
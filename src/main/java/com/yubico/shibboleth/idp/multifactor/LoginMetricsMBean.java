@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+/**
+ * JMX management interface of {@link LoginMetrics}.
+ */
+public interface LoginMetricsMBean {
+
+    /**
+     * Gets the number of logins with a given outcome.
+     * 
+     * @param outcome name of a {@link LoginMetrics.Outcome}
+     * 
+     * @return number of logins
+     */
+    public long getLoginCount(String outcome);
+
+    /**
+     * Gets the number of successful logins.
+     * 
+     * @return number of successful logins
+     */
+    public long getSuccessCount();
+
+    /**
+     * Gets the number of logins failed because of a wrong password.
+     * 
+     * @return number of logins
+     */
+    public long getBadPasswordCount();
+
+    /**
+     * Gets the number of logins failed because of a wrong token.
+     * 
+     * @return number of logins
+     */
+    public long getBadTokenCount();
+
+    /**
+     * Gets the number of logins rejected before any authentication backend was consulted.
+     * 
+     * @return number of logins
+     */
+    public long getRejectedCount();
+
+    /**
+     * Gets the number of logins failed because of an error.
+     * 
+     * @return number of logins
+     */
+    public long getErrorCount();
+
+    /**
+     * Gets a percentile of the latency of logins with a given outcome.
+     * 
+     * @param outcome name of a {@link LoginMetrics.Outcome}
+     * @param percentile the percentile, between 0 and 100
+     * 
+     * @return the latency, in microseconds
+     */
+    public long getLoginPercentileMicros(String outcome, double percentile);
+
+    /**
+     * Gets a percentile of the latency of a login phase.
+     * 
+     * @param phase name of a {@link LoginMetrics.Phase}
+     * @param percentile the percentile, between 0 and 100
+     * 
+     * @return the latency, in microseconds
+     */
+    public long getPhasePercentileMicros(String phase, double percentile);
+
+    /**
+     * Gets the names of the authentication backends (login modules and factor verifiers) seen so far.
+     * 
+     * @return names of the backends
+     */
+    public String[] getBackendNames();
+
+    /**
+     * Gets a percentile of the latency of an authentication backend.
+     * 
+     * @param backend name of the backend
+     * @param percentile the percentile, between 0 and 100
+     * 
+     * @return the latency, in microseconds, 0 if the backend is not known
+     */
+    public long getBackendPercentileMicros(String backend, double percentile);
+
+    /**
+     * Gets a percentile of the time calls to an authentication backend waited for a slot of its bulkhead.
+     * 
+     * @param backend name of the backend
+     * @param percentile the percentile, between 0 and 100
+     * 
+     * @return the waiting time, in microseconds, 0 if the backend is not known
+     */
+    public long getBackendQueuePercentileMicros(String backend, double percentile);
+
+    /**
+     * Gets the number of calls to an authentication backend rejected by its bulkhead.
+     * 
+     * @param backend name of the backend
+     * 
+     * @return number of rejected calls, 0 if the backend is not known
+     */
+    public long getBackendBulkheadRejections(String backend);
+
+    /**
+     * Gets all metrics in the plain-text format served by {@link MultiFactorAuthMetricsServlet}.
+     * 
+     * @return the metrics
+     */
+    public String getReport();
+}
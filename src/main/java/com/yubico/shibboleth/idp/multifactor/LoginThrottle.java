@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket rate limiter for login attempts, keyed by an arbitrary string such as a username or client address.
+ *
+ * Keys are hashed, with a random seed, onto a fixed number of slots, so memory use is bounded no matter how many
+ * distinct keys are seen. Each slot holds one token bucket packed into a single <code>long</code> (the remaining
+ * tokens in thousandths in the upper 22 bits, the time of the last refill in the lower 42 bits) and is updated with
+ * compare-and-set, so there is no lock at all. Keys that collide share a bucket; with enough slots this is rare and
+ * only makes throttling somewhat stricter for the keys involved.
+ */
+public class LoginThrottle {
+
+    /** Number of bits holding the time of the last refill. */
+    private static final int TIME_BITS = 42;
+
+    /** Mask for the time of the last refill. */
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+    /** Largest number of thousandths of a token a bucket can hold. */
+    private static final long MAX_TOKENS = (1L << (64 - TIME_BITS)) - 1;
+
+    /** One token, in thousandths. */
+    private static final long TOKEN = 1000;
+
+    /** The buckets, zero meaning full. */
+    private final AtomicLongArray buckets;
+
+    /** Bucket capacity, in thousandths of a token. */
+    private final long capacity;
+
+    /** Refill rate, in thousandths of a token per millisecond. */
+    private final double refillRate;
+
+    /** Time all bucket timestamps are relative to. */
+    private final long epoch;
+
+    /** Seed of the key hash. */
+    private final long seed;
+
+    /** Number of attempts admitted. */
+    private final AtomicLong admitted = new AtomicLong();
+
+    /** Number of attempts throttled. */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param burst number of attempts a key can make in a row, at most 4194
+     * @param ratePerMinute number of attempts per minute a key regains
+     * @param slots number of buckets, rounded up to a power of two
+     */
+    public LoginThrottle(int burst, double ratePerMinute, int slots) {
+        if (burst < 1 || burst * TOKEN > MAX_TOKENS) {
+            throw new IllegalArgumentException("Burst must be between 1 and " + MAX_TOKENS / TOKEN);
+        }
+        capacity = burst * TOKEN;
+        refillRate = ratePerMinute * TOKEN / 60000;
+
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        buckets = new AtomicLongArray(size);
+        epoch = System.currentTimeMillis() - 1;
+        seed = new SecureRandom().nextLong();
+    }
+
+    /**
+     * Takes one token from the bucket of a key.
+     *
+     * @param key the key, e.g. a username or client address
+     *
+     * @return true if the attempt is admitted, false if it must be throttled
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Takes one token from the bucket of a key at a given time.
+     *
+     * @param key the key, e.g. a username or client address
+     * @param time current time, in milliseconds since the epoch
+     *
+     * @return true if the attempt is admitted, false if it must be throttled
+     */
+    boolean tryAcquire(String key, long time) {
+        int slot = (int) hash(key) & (buckets.length() - 1);
+        long now = (time - epoch) & TIME_MASK;
+
+        while (true) {
+            long state = buckets.get(slot);
+            long tokens = capacity;
+            long last = now;
+            if (state != 0) {
+                tokens = state >>> TIME_BITS;
+                last = state & TIME_MASK;
+                long refill = (long) (Math.max(0, now - last) * refillRate);
+                if (tokens + refill >= capacity) {
+                    tokens = capacity;
+                    last = now;
+                } else if (refill > 0) {
+                    // only the time the whole thousandths account for is used up, the rest still counts next time
+                    tokens += refill;
+                    last += (long) Math.ceil(refill / refillRate);
+                }
+            }
+
+            if (tokens < TOKEN) {
+                throttled.incrementAndGet();
+                return false;
+            }
+
+            long next = ((tokens - TOKEN) << TIME_BITS) | last;
+            if (next == 0) {
+                // zero means a full bucket, keep the last refill just after the epoch instead
+                next = 1;
+            }
+            if (buckets.compareAndSet(slot, state, next)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of attempts admitted.
+     *
+     * @return number of attempts admitted
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * Gets the number of attempts throttled.
+     *
+     * @return number of attempts throttled
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Computes the seeded 64-bit hash of a key.
+     *
+     * @param key the key
+     *
+     * @return hash of the key
+     */
+    private long hash(String key) {
+        long h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Arrays;
+
+/**
+ * The modhex encoding of YubiKey OTPs : hexadecimal using the characters <code>cbdefghijklnrtuv</code>, which are at
+ * the same place on most keyboard layouts.
+ */
+final class ModHex {
+
+    /** The modhex alphabet, by nibble value. */
+    private static final String ALPHABET = "cbdefghijklnrtuv";
+
+    /** Nibble value of each ASCII character, -1 for characters outside the alphabet. */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            VALUES[ALPHABET.charAt(i)] = (byte) i;
+            VALUES[Character.toUpperCase(ALPHABET.charAt(i))] = (byte) i;
+        }
+    }
+
+    /** Constructor. */
+    private ModHex() {
+    }
+
+    /**
+     * Checks that a range of characters is modhex.
+     *
+     * @param chars the characters
+     * @param from index of the first character
+     * @param to index after the last character
+     *
+     * @return true if every character of the range is in the modhex alphabet, in either case
+     */
+    static boolean isModHex(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c >= VALUES.length || VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a range of modhex characters.
+     *
+     * @param chars the characters, which must be modhex
+     * @param from index of the first character
+     * @param to index after the last character, an even number of characters after <code>from</code>
+     *
+     * @return the decoded bytes
+     */
+    static byte[] decode(char[] chars, int from, int to) {
+        byte[] bytes = new byte[(to - from) / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (VALUES[chars[from + 2 * i]] << 4 | VALUES[chars[from + 2 * i + 1]]);
+        }
+        return bytes;
+    }
+}
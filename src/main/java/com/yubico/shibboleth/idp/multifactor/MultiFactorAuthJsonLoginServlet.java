@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import javax.security.auth.login.LoginException;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This Servlet authenticates non-browser clients, e.g. ECP or API clients, that post their factors as a JSON body
+ * instead of filling in the login page :
+ *
+ * <pre>
+ * {"username": "alice", "password": "secret", "tokens": ["vvgnkjjhndihvgsuhcrcrgijvnkrcrvrhnhtlifhrjbf"]}
+ * </pre>
+ *
+ * Users are authenticated exactly like by {@link MultiFactorAuthLoginServlet}, and on success control is returned to
+ * the authentication engine. A failed login is answered directly with a compact JSON status instead of a forward to
+ * the login page, e.g. <code>{"status":"failed","reason":"THROTTLED"}</code>, with one of the HTTP status codes 400
+ * (malformed request or missing credentials), 401 (rejected credentials), 429 (throttled) or 503 (authentication
+ * backend error, unavailable or timed out).
+ */
+public class MultiFactorAuthJsonLoginServlet extends MultiFactorAuthLoginServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 8451726304115988245L;
+
+    /** HTTP status code of throttled logins. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MultiFactorAuthJsonLoginServlet.class);
+
+    /** {@inheritDoc} */
+    protected String getDefaultFactorSources() {
+        return "json";
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * In addition to the sources of {@link MultiFactorAuthLoginServlet}, supports <code>json</code>, reading a JSON
+     * request body.
+     */
+    protected FactorSource createFactorSource(ServletConfig config, String name) throws ServletException {
+        if ("json".equals(name)) {
+            return new JsonBodyFactorSource("username", "password", "tokens", getMaxLoginBodyLength(config));
+        }
+        return super.createFactorSource(config, name);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The request holds the factors as a JSON body.
+     */
+    protected HttpServletRequest createWarmUpRequest(String username, String password, List<String> tokens) {
+        StringBuilder body = new StringBuilder();
+        body.append("{\"username\": ");
+        appendString(body, username);
+        body.append(", \"password\": ");
+        appendString(body, password);
+        body.append(", \"tokens\": [");
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i > 0) {
+                body.append(", ");
+            }
+            appendString(body, tokens.get(i));
+        }
+        body.append("]}");
+        try {
+            return WarmUpRequest.newRequest("application/json", body.toString().getBytes("UTF-8"),
+                    Collections.<String, String[]> emptyMap());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Appends a JSON string.
+     * 
+     * @param json the JSON text
+     * @param value the string
+     */
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /** {@inheritDoc} */
+    protected void loginFailed(HttpServletRequest request, HttpServletResponse response, LoginException e)
+            throws IOException {
+        String reason;
+        int status;
+        if (e instanceof MultiFactorAuthLoginException) {
+            MultiFactorAuthLoginException.Reason failureReason = ((MultiFactorAuthLoginException) e).getReason();
+            reason = failureReason.name();
+            switch (failureReason) {
+                case THROTTLED:
+                    status = SC_TOO_MANY_REQUESTS;
+                    response.setHeader("Retry-After", "60");
+                    break;
+                case INVALID_FACTORS:
+                    status = HttpServletResponse.SC_BAD_REQUEST;
+                    break;
+                case BACKEND_UNAVAILABLE:
+                case BACKEND_TIMEOUT:
+                    status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                    break;
+                default:
+                    status = HttpServletResponse.SC_UNAUTHORIZED;
+                    break;
+            }
+        } else if (LoginMetrics.BackendResult.of(e) == LoginMetrics.BackendResult.FAILURE) {
+            reason = "AUTHENTICATION_FAILED";
+            status = HttpServletResponse.SC_UNAUTHORIZED;
+        } else {
+            reason = "AUTHENTICATION_ERROR";
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        }
+        writeStatus(response, status, reason);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * There is no login page for non-browser clients, they are told that credentials are missing.
+     */
+    protected void redirectToLoginPage(HttpServletRequest request, HttpServletResponse response) {
+        try {
+            writeStatus(response, HttpServletResponse.SC_BAD_REQUEST, "MISSING_CREDENTIALS");
+        } catch (IOException e) {
+            log.error("Unable to write login status.", e);
+        }
+    }
+
+    /**
+     * Answers a failed login.
+     * 
+     * @param response current response
+     * @param status HTTP status code
+     * @param reason machine-readable failure reason
+     * 
+     * @throws IOException thrown if the response can not be written
+     */
+    protected void writeStatus(HttpServletResponse response, int status, String reason) throws IOException {
+        log.debug("Login failed, answering {} {}", status, reason);
+        response.setStatus(status);
+        response.setContentType("application/json; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        Writer out = response.getWriter();
+        out.write("{\"status\":\"failed\",\"reason\":\"");
+        out.write(reason);
+        out.write("\"}");
+        out.flush();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * A login failure with a machine-readable reason.
+ *
+ * {@link MultiFactorAuthLoginServlet} exposes the reason to the login page in the <code>loginFailureReason</code>
+ * request attribute, so that the page can tell the user more than that the login failed.
+ */
+public class MultiFactorAuthLoginException extends LoginException {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 2930847710526483152L;
+
+    /** Reasons a login can fail for. */
+    public static enum Reason {
+
+        /** An authentication token has already been used. */
+        TOKEN_REPLAYED,
+
+        /** An authentication token is not an OTP of a YubiKey registered to the user. */
+        UNKNOWN_TOKEN,
+
+        /** Too many login attempts for the user or from the client address. */
+        THROTTLED,
+
+        /** The request holds too many or too long authentication factors. */
+        INVALID_FACTORS,
+
+        /** An authentication backend is failing and its circuit breaker is open. */
+        BACKEND_UNAVAILABLE,
+
+        /** The authentication backends did not verify the factors within the login deadline. */
+        BACKEND_TIMEOUT,
+    }
+
+    /** Reason for the failure. */
+    private final Reason reason;
+
+    /**
+     * Constructor.
+     * 
+     * @param failureReason reason for the failure
+     * @param message detail message
+     */
+    public MultiFactorAuthLoginException(Reason failureReason, String message) {
+        super(message);
+        reason = failureReason;
+    }
+
+    /**
+     * Gets the reason for the failure.
+     * 
+     * @return reason for the failure
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
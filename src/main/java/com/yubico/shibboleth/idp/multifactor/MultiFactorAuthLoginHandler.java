@@ -46,12 +46,15 @@ package com.yubico.shibboleth.idp.multifactor;
 
 import java.io.IOException;
 
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.provider.AbstractLoginHandler;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
@@ -70,9 +73,22 @@ public class MultiFactorAuthLoginHandler extends AbstractLoginHandler {
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(MultiFactorAuthLoginHandler.class);
 
+    /** Ways of handing control to the authentication servlet. */
+    public static enum DispatchMode {
+
+        /** Forward the request to the servlet within the container. */
+        FORWARD,
+
+        /** Redirect the browser to the servlet. */
+        REDIRECT,
+    }
+
     /** The context-relative path of the servlet used to perform authentication. */
     private String authenticationServletPath;
 
+    /** How control is handed to the authentication servlet. */
+    private DispatchMode dispatchMode = DispatchMode.FORWARD;
+
     /**
      * Constructor.
      * 
@@ -85,8 +101,30 @@ public class MultiFactorAuthLoginHandler extends AbstractLoginHandler {
         authenticationServletPath = servletPath;
     }
 
+    /**
+     * Gets how control is handed to the authentication servlet.
+     * 
+     * @return dispatch mode
+     */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * Sets how control is handed to the authentication servlet.
+     * 
+     * @param mode dispatch mode
+     */
+    public void setDispatchMode(DispatchMode mode) {
+        dispatchMode = mode;
+    }
+
     /** {@inheritDoc} */
     public void login(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) {
+        if (dispatchMode == DispatchMode.FORWARD && forwardToServlet(httpRequest, httpResponse)) {
+            return;
+        }
+
         // forward control to the servlet.
         try {
             String authnServletUrl = HttpServletHelper.getContextRelativeUrl(httpRequest, authenticationServletPath)
@@ -99,4 +137,51 @@ public class MultiFactorAuthLoginHandler extends AbstractLoginHandler {
         }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Forwards the request to the authentication servlet within the container, saving the browser the round trip of
+     * a redirect. The login context bound to the request by the authentication engine stays available to the servlet.
+     * 
+     * @param httpRequest current request
+     * @param httpResponse current response
+     * 
+     * @return true if the request was forwarded, or the response was committed by a failed forward; false if it must
+     *         be redirected instead
+     */
+    protected boolean forwardToServlet(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        if (getLoginContext(httpRequest) == null) {
+            log.debug("No login context bound to the request, redirecting instead of forwarding");
+            return false;
+        }
+
+        String servletPath = authenticationServletPath.startsWith("/") ? authenticationServletPath : "/"
+                + authenticationServletPath;
+        try {
+            log.debug("Forwarding to {}", servletPath);
+            httpRequest.getRequestDispatcher(servletPath).forward(httpRequest, httpResponse);
+            return true;
+        } catch (IOException ex) {
+            log.error("Unable to forward to authentication servlet.", ex);
+        } catch (ServletException ex) {
+            log.error("Unable to forward to authentication servlet.", ex);
+        }
+        if (httpResponse.isCommitted()) {
+            log.error("Response already committed, unable to redirect to authentication servlet instead");
+            return true;
+        }
+        log.debug("Redirecting to authentication servlet instead");
+        return false;
+    }
+
+    /**
+     * Gets the login context the authentication engine bound to the request.
+     * 
+     * @param httpRequest current request
+     * 
+     * @return the login context, or null if there is none
+     */
+    protected LoginContext getLoginContext(HttpServletRequest httpRequest) {
+        ServletContext context = httpRequest.getServletContext();
+        return HttpServletHelper.getLoginContext(HttpServletHelper.getStorageService(context), context, httpRequest);
+    }
+}
@@ -44,6 +44,8 @@
 
 package com.yubico.shibboleth.idp.multifactor;
 
+import java.util.Locale;
+
 import javax.xml.namespace.QName;
 
 import org.opensaml.xml.util.DatatypeHelper;
@@ -83,8 +85,30 @@ public class MultiFactorAuthLoginHandlerBeanDefinitionParser extends AbstractLog
             builder.addPropertyValue("authenticationServletURL", "/Authn/MultiFactor");
         }
 
-        String jaasConfigurationURL = DatatypeHelper.safeTrim(config.getAttributeNS(null, "jaasConfigurationLocation"));
-        log.debug("Setting JAAS configuration file to: {}", jaasConfigurationURL);
-        System.setProperty("java.security.auth.login.config", jaasConfigurationURL);
+        String dispatchMode = DatatypeHelper.safeTrimOrNullString(config.getAttributeNS(null,
+                "authenticationServletDispatch"));
+        if (dispatchMode != null) {
+            builder.addPropertyValue("dispatchMode", MultiFactorAuthLoginHandler.DispatchMode.valueOf(dispatchMode
+                    .toUpperCase(Locale.ENGLISH)));
+        } else {
+            builder.addPropertyValue("dispatchMode", MultiFactorAuthLoginHandler.DispatchMode.FORWARD);
+        }
+
+        String jaasConfigurationURL = DatatypeHelper.safeTrimOrNullString(config.getAttributeNS(null,
+                "jaasConfigurationLocation"));
+        if (jaasConfigurationURL != null) {
+            log.debug("Setting JAAS configuration file to: {}", jaasConfigurationURL);
+            builder.addPropertyValue("jaasConfigurationLocation", jaasConfigurationURL);
+        }
+
+        if (config.hasAttributeNS(null, "jaasConfigurationPollingFrequency")) {
+            builder.addPropertyValue("jaasConfigurationPollingFrequency", Long.parseLong(DatatypeHelper.safeTrim(config
+                    .getAttributeNS(null, "jaasConfigurationPollingFrequency"))));
+        } else {
+            builder.addPropertyValue("jaasConfigurationPollingFrequency", 60000L);
+        }
+
+        String warmUp = DatatypeHelper.safeTrimOrNullString(config.getAttributeNS(null, "warmUp"));
+        builder.addPropertyValue("warmUp", "true".equals(warmUp) || "1".equals(warmUp));
     }
 }
\ No newline at end of file
@@ -44,6 +44,9 @@
 
 package com.yubico.shibboleth.idp.multifactor;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import edu.internet2.middleware.shibboleth.idp.config.profile.authn.AbstractLoginHandlerFactoryBean;
 import com.yubico.shibboleth.idp.multifactor.MultiFactorAuthLoginHandler;
 
@@ -52,9 +55,27 @@ import com.yubico.shibboleth.idp.multifactor.MultiFactorAuthLoginHandler;
  */
 public class MultiFactorAuthLoginHandlerFactoryBean extends AbstractLoginHandlerFactoryBean {
 
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MultiFactorAuthLoginHandlerFactoryBean.class);
+
     /** URL to authentication servlet. */
     private String authenticationServletURL;
 
+    /** How the handler hands control to the authentication servlet. */
+    private MultiFactorAuthLoginHandler.DispatchMode dispatchMode = MultiFactorAuthLoginHandler.DispatchMode.FORWARD;
+
+    /** Location of the JAAS configuration. */
+    private String jaasConfigurationLocation;
+
+    /** Milliseconds between checks for a modified JAAS configuration file, 0 to never check. */
+    private long jaasConfigurationPollingFrequency;
+
+    /** Whether the login modules of the JAAS configuration are loaded when the handler is created. */
+    private boolean warmUp;
+
+    /** JAAS configuration of the most recently created handler. */
+    private ReloadingJaasConfiguration jaasConfiguration;
+
     /**
      * Gets the URL to authentication servlet.
      * 
@@ -73,16 +94,109 @@ public class MultiFactorAuthLoginHandlerFactoryBean extends AbstractLoginHandler
         authenticationServletURL = url;
     }
 
+    /**
+     * Gets how the handler hands control to the authentication servlet.
+     * 
+     * @return dispatch mode
+     */
+    public MultiFactorAuthLoginHandler.DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * Sets how the handler hands control to the authentication servlet.
+     * 
+     * @param mode dispatch mode
+     */
+    public void setDispatchMode(MultiFactorAuthLoginHandler.DispatchMode mode) {
+        dispatchMode = mode;
+    }
+
+    /**
+     * Gets the location of the JAAS configuration.
+     * 
+     * @return location of the JAAS configuration
+     */
+    public String getJaasConfigurationLocation() {
+        return jaasConfigurationLocation;
+    }
+
+    /**
+     * Sets the location of the JAAS configuration.
+     * 
+     * @param location location of the JAAS configuration
+     */
+    public void setJaasConfigurationLocation(String location) {
+        jaasConfigurationLocation = location;
+    }
+
+    /**
+     * Gets the milliseconds between checks for a modified JAAS configuration file.
+     * 
+     * @return milliseconds between checks, 0 if never checked
+     */
+    public long getJaasConfigurationPollingFrequency() {
+        return jaasConfigurationPollingFrequency;
+    }
+
+    /**
+     * Sets the milliseconds between checks for a modified JAAS configuration file.
+     * 
+     * @param frequency milliseconds between checks, 0 to never check
+     */
+    public void setJaasConfigurationPollingFrequency(long frequency) {
+        jaasConfigurationPollingFrequency = frequency;
+    }
+
+    /**
+     * Gets whether the login modules of the JAAS configuration are loaded when the handler is created.
+     * 
+     * @return true if the login modules are loaded eagerly
+     */
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Sets whether the login modules of the JAAS configuration are loaded when the handler is created.
+     * 
+     * @param eager true to load the login modules eagerly
+     */
+    public void setWarmUp(boolean eager) {
+        warmUp = eager;
+    }
+
     /** {@inheritDoc} */
     protected Object createInstance() throws Exception {
         MultiFactorAuthLoginHandler handler = new MultiFactorAuthLoginHandler(
                 authenticationServletURL);
 
         populateHandler(handler);
+        handler.setDispatchMode(dispatchMode);
+
+        if (jaasConfigurationLocation != null) {
+            jaasConfiguration = new ReloadingJaasConfiguration(jaasConfigurationLocation);
+            if (warmUp) {
+                log.info("Loaded {} login modules of JAAS configuration {}", jaasConfiguration.getSnapshot()
+                        .loadLoginModules(), jaasConfigurationLocation);
+            }
+            jaasConfiguration.startPolling(jaasConfigurationPollingFrequency);
+            JaasConfigurationRegistry.register(authenticationServletURL, jaasConfiguration);
+        }
 
         return handler;
     }
 
+    /** {@inheritDoc} */
+    protected void destroyInstance(Object instance) throws Exception {
+        if (jaasConfiguration != null) {
+            jaasConfiguration.stopPolling();
+            JaasConfigurationRegistry.unregister(authenticationServletURL, jaasConfiguration);
+            jaasConfiguration = null;
+        }
+        super.destroyInstance(instance);
+    }
+
     /** {@inheritDoc} */
     @SuppressWarnings("unchecked")
 	public Class getObjectType() {
@@ -52,11 +52,34 @@
 
 package com.yubico.shibboleth.idp.multifactor;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.security.Principal;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
@@ -64,9 +87,13 @@ import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -77,19 +104,27 @@ import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
 import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
-import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
 import edu.internet2.middleware.shibboleth.idp.authn.provider.UsernamePasswordCredential;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
- * This Servlet authenticates a user via JAAS. The user's credential is always added to the returned {@link Subject} as
- * a {@link MultiFactorAuthCredential} within the subject's private credentials.
+ * This Servlet authenticates a user via JAAS. The returned {@link Subject} is built by a {@link SubjectBuilder}, by
+ * default holding the user's credential as a {@link UsernamePasswordCredential} within the subject's private
+ * credentials.
  */
 public class MultiFactorAuthLoginServlet extends HttpServlet {
 
     /** Serial version UID. */
     private static final long serialVersionUID = -572799841125956990L;
 
+    /** User of the in-process warm-up logins, never passed to a backend. */
+    private static final String WARM_UP_USERNAME = "multifactor-warmup";
+
+    /** Token of the in-process warm-up logins if no warm-up tokens are configured, shaped like a Yubico OTP. */
+    private static final String WARM_UP_TOKEN = "cccccccccccccccccccccccccccccccccccccccccccc";
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(MultiFactorAuthLoginServlet.class);
     
@@ -99,88 +134,1407 @@ public class MultiFactorAuthLoginServlet extends HttpServlet {
     /** Name of JAAS configuration used to authenticate users. */
     private String jaasConfigName = "ShibUserPassAuth";
 
-    /** init-param which can be passed to the servlet to override the default JAAS config. */
-    private final String jaasInitParam = "jaasConfigName";
+    /** init-param which can be passed to the servlet to override the default JAAS config. */
+    private final String jaasInitParam = "jaasConfigName";
+
+    /** Path under which the login handler registered the JAAS configuration, or null for the servlet's own path. */
+    private String jaasConfigurationPath;
+
+    /** init-param which can be passed to the servlet to use the JAAS configuration registered for another path. */
+    private final String jaasConfigurationPathInitParam = "jaasConfigurationPath";
+
+    /** Login page name. */
+    private String loginPage = "login.jsp";
+
+    /** init-param which can be passed to the servlet to override the default login page. */
+    private final String loginPageInitParam = "loginPage";
+
+    /** Parameter name to indicate login failure. */
+    private final String failureParam = "loginFailed";
+
+    /** Parameter name holding the {@link MultiFactorAuthLoginException.Reason} of a login failure, if known. */
+    private final String failureReasonParam = "loginFailureReason";
+
+    /** HTTP request parameter containing the user name. */
+    private final String usernameAttribute = "j_username";
+
+    /** HTTP request parameter containing the user's password. */
+    private final String passwordAttribute = "j_password";
+
+    /** HTTP request parameter containing the user's authentication tokens. */
+    private final String tokenAttribute = "j_tokens";
+
+    /** init-param listing the sources of authentication factors : parameters, headers and/or body. */
+    private final String factorSourcesInitParam = "factorSources";
+
+    /** init-param giving the maximum number of tokens in a login. */
+    private final String maxTokensInitParam = "maxTokens";
+
+    /** init-param giving the maximum length of a username, password or token. */
+    private final String maxFactorLengthInitParam = "maxFactorLength";
+
+    /** init-param giving the number of reusable buffers kept for passwords and tokens of each length. */
+    private final String secretBuffersInitParam = "secretBuffers";
+
+    /** init-param naming the request header holding tokens, for the headers source. */
+    private final String tokenHeaderInitParam = "tokenHeader";
+
+    /** init-param giving the maximum length in bytes of a login request body, for the body source. */
+    private final String maxLoginBodyLengthInitParam = "maxLoginBodyLength";
+
+    /** Extraction of the authentication factors from login requests. */
+    private FactorExtractor factorExtractor;
+
+    /** init-param listing the names of the factor verifiers to use instead of JAAS. */
+    private final String factorVerifiersInitParam = "factorVerifiers";
+
+    /** Prefix of the init-params configuring a factor verifier, followed by the verifier name and a dot. */
+    private final String factorVerifierInitParamPrefix = "factorVerifier.";
+
+    /** init-param giving the maximum number of threads verifying factors in parallel. */
+    private final String factorVerifierThreadsInitParam = "factorVerifierThreads";
+
+    /** Parallel factor verification, or null if factors are verified by JAAS. */
+    private FactorVerification factorVerification;
+
+    /** init-param enabling asynchronous processing of logins. */
+    private final String asyncLoginInitParam = "asyncLogin";
+
+    /** init-param giving the number of threads processing asynchronous logins. */
+    private final String asyncLoginThreadsInitParam = "asyncLoginThreads";
+
+    /** init-param giving the number of asynchronous logins that may wait for a thread. */
+    private final String asyncLoginQueueSizeInitParam = "asyncLoginQueueSize";
+
+    /** init-param selecting virtual threads for asynchronous logins, where the JVM has them. */
+    private final String asyncLoginVirtualThreadsInitParam = "asyncLoginVirtualThreads";
+
+    /** init-param giving the asynchronous request timeout in milliseconds. */
+    private final String asyncLoginTimeoutInitParam = "asyncLoginTimeout";
+
+    /** Executor processing asynchronous logins, or null if logins are processed on the container thread. */
+    private ExecutorService asyncLoginExecutor;
+
+    /** Asynchronous request timeout in milliseconds. */
+    private long asyncLoginTimeout;
+
+    /** init-param giving the milliseconds a login may take before it fails with a backend timeout, 0 for no limit. */
+    private final String loginTimeoutInitParam = "loginTimeout";
+
+    /** init-param giving the largest number of logins waiting on authentication backends under a deadline. */
+    private final String loginTimeoutThreadsInitParam = "loginTimeoutThreads";
+
+    /** Milliseconds a login may take, or 0 for no limit. */
+    private long loginTimeout;
+
+    /** Executor calling the authentication backends of logins with a deadline, or null if logins have none. */
+    private ExecutorService loginTimeoutExecutor;
+
+    /** init-param enabling rejection of replayed authentication tokens. */
+    private final String tokenReplayCacheInitParam = "tokenReplayCache";
+
+    /** init-param giving the milliseconds an authentication token is remembered. */
+    private final String tokenReplayCacheTTLInitParam = "tokenReplayCacheTTL";
+
+    /** init-param giving the approximate upper bound of the heap used to remember tokens, in bytes. */
+    private final String tokenReplayCacheMaxBytesInitParam = "tokenReplayCacheMaxBytes";
+
+    /** Recently submitted authentication tokens, or null if replayed tokens are left to the backends to detect. */
+    private TokenReplayCache tokenReplayCache;
+
+    /** init-param naming the file listing the YubiKeys registered to each user. */
+    private final String yubiKeyIndexInitParam = "yubiKeyIndexFile";
+
+    /** init-param giving the milliseconds between checks of the YubiKey index file for modifications, 0 to never. */
+    private final String yubiKeyIndexPollingInitParam = "yubiKeyIndexPollingFrequency";
+
+    /** YubiKeys registered to each user, or null if tokens are not checked against it. */
+    private YubiKeyIndex yubiKeyIndex;
+
+    /** init-param giving the number of login attempts a user can make in a row, 0 for no limit. */
+    private final String throttleUserBurstInitParam = "throttleUserBurst";
+
+    /** init-param giving the number of login attempts per minute a user regains. */
+    private final String throttleUserRateInitParam = "throttleUserRate";
+
+    /** init-param giving the number of login attempts a client address can make in a row, 0 for no limit. */
+    private final String throttleAddressBurstInitParam = "throttleAddressBurst";
+
+    /** init-param giving the number of login attempts per minute a client address regains. */
+    private final String throttleAddressRateInitParam = "throttleAddressRate";
+
+    /** init-param naming the request header holding the client address, e.g. X-Forwarded-For, when set by a proxy. */
+    private final String clientAddressHeaderInitParam = "clientAddressHeader";
+
+    /** init-param listing the addresses of the proxies trusted to set the client address header. */
+    private final String trustedProxiesInitParam = "trustedProxies";
+
+    /** Request header holding the client address behind trusted proxies, or null to use the remote address. */
+    private String clientAddressHeader;
+
+    /** Addresses of the proxies trusted to set the client address header. */
+    private Set<String> trustedProxies = Collections.emptySet();
+
+    /** init-param giving the number of token buckets of each throttle. */
+    private final String throttleSlotsInitParam = "throttleSlots";
+
+    /** Throttle of login attempts per username, or null if not throttled. */
+    private LoginThrottle userThrottle;
+
+    /** Throttle of login attempts per client address, or null if not throttled. */
+    private LoginThrottle addressThrottle;
+
+    /** init-param giving the milliseconds a verified password is remembered, 0 to never remember it. */
+    private final String firstFactorCacheTTLInitParam = "firstFactorCacheTTL";
+
+    /** init-param giving the maximum number of users whose verified password is remembered. */
+    private final String firstFactorCacheSizeInitParam = "firstFactorCacheSize";
+
+    /** init-param giving the PBKDF2 iteration count used to hash remembered passwords. */
+    private final String firstFactorCacheIterationsInitParam = "firstFactorCacheIterations";
+
+    /** init-param naming the JAAS configuration verifying only the tokens, used when the password is remembered. */
+    private final String tokenOnlyJaasInitParam = "tokenOnlyJaasConfigName";
+
+    /** Name of JAAS configuration verifying only the tokens, or null. */
+    private String tokenOnlyJaasConfigName;
+
+    /** Recently verified passwords, or null if passwords are always verified. */
+    private FirstFactorCache firstFactorCache;
+
+    /** init-param giving the milliseconds a device is trusted after a multi-factor login, 0 to never trust it. */
+    private final String trustedDeviceTTLInitParam = "trustedDeviceTTL";
+
+    /** init-param giving the hex key signing trusted-device cookies. */
+    private final String trustedDeviceKeyInitParam = "trustedDeviceKey";
+
+    /** init-param naming the trusted-device cookie. */
+    private final String trustedDeviceCookieInitParam = "trustedDeviceCookieName";
+
+    /** init-param naming the JAAS configuration verifying only the password, used on trusted devices. */
+    private final String passwordOnlyJaasInitParam = "passwordOnlyJaasConfigName";
+
+    /** Name of JAAS configuration verifying only the password, or null. */
+    private String passwordOnlyJaasConfigName;
+
+    /** Issuer of trusted-device cookies, or null if tokens are always verified. */
+    private TrustedDevices trustedDevices;
+
+    /** Name of the trusted-device cookie. */
+    private String trustedDeviceCookieName;
+
+    /** init-param enabling circuit breakers around the authentication backends. */
+    private final String circuitBreakerInitParam = "circuitBreaker";
+
+    /** init-param giving the percentage of failed calls opening a circuit breaker. */
+    private final String circuitBreakerFailureRateInitParam = "circuitBreakerFailureRate";
+
+    /** init-param giving the minimum number of calls in the window before a circuit breaker can open. */
+    private final String circuitBreakerMinimumCallsInitParam = "circuitBreakerMinimumCalls";
+
+    /** init-param giving the latency in milliseconds above which a backend call counts as failed. */
+    private final String circuitBreakerSlowCallInitParam = "circuitBreakerSlowCall";
+
+    /** init-param giving the milliseconds covered by the rolling window of a circuit breaker. */
+    private final String circuitBreakerWindowInitParam = "circuitBreakerWindow";
+
+    /** init-param giving the milliseconds a circuit breaker stays open before the backend is probed. */
+    private final String circuitBreakerOpenInitParam = "circuitBreakerOpen";
+
+    /** init-param giving the username used to probe backends, backends are only probed if it is set. */
+    private final String circuitBreakerProbeUsernameInitParam = "circuitBreakerProbeUsername";
+
+    /** init-param giving the password used to probe backends, backends are only probed if it is set. */
+    private final String circuitBreakerProbePasswordInitParam = "circuitBreakerProbePassword";
+
+    /** Circuit breakers of the authentication backends, or null if not enabled. */
+    private CircuitBreakers circuitBreakers;
+
+    /** init-param enabling a bulkhead per authentication backend. */
+    private final String bulkheadInitParam = "bulkhead";
+
+    /** init-param giving the largest number of concurrent calls to a backend. */
+    private final String bulkheadMaxConcurrentInitParam = "bulkheadMaxConcurrent";
+
+    /** Prefix of the init-params giving the largest number of concurrent calls to one backend, followed by its name. */
+    private final String bulkheadMaxConcurrentInitParamPrefix = "bulkheadMaxConcurrent.";
+
+    /** init-param giving the largest number of calls waiting for a backend. */
+    private final String bulkheadMaxWaitingInitParam = "bulkheadMaxWaiting";
+
+    /** init-param giving the milliseconds a call waits for a backend. */
+    private final String bulkheadMaxWaitInitParam = "bulkheadMaxWait";
+
+    /** Bulkheads of the authentication backends, or null if not enabled. */
+    private Bulkheads bulkheads;
+
+    /** init-param enabling the adaptive ordering of the authentication backends. */
+    private final String adaptiveFactorOrderingInitParam = "adaptiveFactorOrdering";
+
+    /** Ordering of the authentication backends, or null if they are called in configuration order. */
+    private FactorOrdering factorOrdering;
+
+    /** init-param listing the names of the shared validation clients. */
+    private final String validationClientsInitParam = "validationClients";
+
+    /** Prefix of the init-params configuring a validation client, followed by its name. */
+    private final String validationClientInitParamPrefix = "validationClient.";
+
+    /** Shared validation clients, keyed by name, the first being the default. */
+    private Map<String, ValidationClient> validationClients = Collections.emptyMap();
+
+    /** init-param listing the class names of the principals kept in the subject, besides the username. */
+    private final String subjectPrincipalsInitParam = "subjectPrincipals";
+
+    /** init-param selecting the credentials kept in the subject : all, login or none. */
+    private final String subjectCredentialsInitParam = "subjectCredentials";
+
+    /** init-param listing the class names of immutable principals shared between subjects, besides the username. */
+    private final String subjectInternedPrincipalsInitParam = "subjectInternedPrincipals";
+
+    /** init-param giving the largest number of shared principals, 0 to disable sharing. */
+    private final String subjectInternerSizeInitParam = "subjectInternerSize";
+
+    /** Builds the subjects of authenticated users. */
+    private SubjectBuilder subjectBuilder;
+
+    /** init-param naming the audit log file, no audit log is written if not set. */
+    private final String auditLogInitParam = "auditLog";
+
+    /** init-param giving the number of logins buffered for the audit log. */
+    private final String auditLogBufferSizeInitParam = "auditLogBufferSize";
+
+    /** init-param giving the size at which the audit log is rolled, in bytes. */
+    private final String auditLogMaxFileSizeInitParam = "auditLogMaxFileSize";
+
+    /** init-param giving the number of rolled audit log files kept. */
+    private final String auditLogMaxFilesInitParam = "auditLogMaxFiles";
+
+    /** Audit trail of the logins, or null. */
+    private AuditLog auditLog;
+
+    /** init-param enabling the warm-up of the login path when the servlet is initialized. */
+    private final String warmUpInitParam = "warmUp";
+
+    /** init-param giving the number of in-process and synthetic logins run by the warm-up. */
+    private final String warmUpLoginsInitParam = "warmUpLogins";
+
+    /** init-param giving the longest time the synthetic logins may take, in milliseconds. */
+    private final String warmUpTimeInitParam = "warmUpTime";
+
+    /** init-param giving the user of the synthetic logins, backends are only warmed up if it is set. */
+    private final String warmUpUsernameInitParam = "warmUpUsername";
+
+    /** init-param giving the password of the synthetic logins, backends are only warmed up if it is set. */
+    private final String warmUpPasswordInitParam = "warmUpPassword";
+
+    /** init-param giving the comma separated tokens of the synthetic logins. */
+    private final String warmUpTokensInitParam = "warmUpTokens";
+
+    /** Latency and outcome metrics of the logins processed by this servlet. */
+    private LoginMetrics loginMetrics;
+
+    /** {@inheritDoc} */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        if (getInitParameter(jaasInitParam) != null) {
+            jaasConfigName = getInitParameter(jaasInitParam);
+        }
+        jaasConfigurationPath = DatatypeHelper.safeTrimOrNullString(getInitParameter(jaasConfigurationPathInitParam));
+
+        if (getInitParameter(loginPageInitParam) != null) {
+            loginPage = getInitParameter(loginPageInitParam);
+        }
+        if (!loginPage.startsWith("/")) {
+            loginPage = "/" + loginPage;
+        }
+        
+        String method =
+                DatatypeHelper.safeTrimOrNullString(config.getInitParameter(LoginHandler.AUTHENTICATION_METHOD_KEY));
+        if (method != null) {
+            authenticationMethod = method;
+        } else {
+            authenticationMethod = "urn:oasis:names:tc:SAML:2.0:ac:classes:Token";
+        }
+
+        factorExtractor = createFactorExtractor(config);
+
+        String verifierNames = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(factorVerifiersInitParam));
+        if (verifierNames != null) {
+            factorVerification = createFactorVerification(config, verifierNames.split("[,\\s]+"));
+        }
+
+        loginTimeout = getLongInitParameter(config, loginTimeoutInitParam, 0);
+        if (getBooleanInitParameter(config, asyncLoginInitParam, false)) {
+            asyncLoginExecutor = createAsyncLoginExecutor(config);
+            asyncLoginTimeout = getLongInitParameter(config, asyncLoginTimeoutInitParam, Math.max(60000,
+                    2 * loginTimeout));
+            if (loginTimeout > 0 && asyncLoginTimeout <= loginTimeout) {
+                log.warn("{} {} ms does not exceed {} {} ms, slow logins will time out in the container",
+                        new Object[] {asyncLoginTimeoutInitParam, asyncLoginTimeout, loginTimeoutInitParam,
+                                loginTimeout});
+            }
+        }
+
+        if (loginTimeout > 0) {
+            loginTimeoutExecutor = new ThreadPoolExecutor(0, getIntInitParameter(config, loginTimeoutThreadsInitParam,
+                    100), 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory(
+                    "MultiFactorAuth login deadline"));
+        }
+
+        if (getBooleanInitParameter(config, tokenReplayCacheInitParam, false)) {
+            tokenReplayCache = new TokenReplayCache(getLongInitParameter(config, tokenReplayCacheTTLInitParam, 600000),
+                    getLongInitParameter(config, tokenReplayCacheMaxBytesInitParam, 16 * 1024 * 1024), 16);
+        }
+
+        String yubiKeyIndexFile = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(yubiKeyIndexInitParam));
+        if (yubiKeyIndexFile != null) {
+            try {
+                yubiKeyIndex = new YubiKeyIndex(new File(yubiKeyIndexFile));
+            } catch (IOException e) {
+                throw new ServletException("Unable to read YubiKey index " + yubiKeyIndexFile, e);
+            }
+            yubiKeyIndex.startPolling(getLongInitParameter(config, yubiKeyIndexPollingInitParam, 60000));
+        }
+
+        clientAddressHeader = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(
+                clientAddressHeaderInitParam));
+        String proxies = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(trustedProxiesInitParam));
+        if (proxies != null) {
+            trustedProxies = new HashSet<String>(Arrays.asList(proxies.split("[,\\s]+")));
+        }
+        if (clientAddressHeader != null && trustedProxies.isEmpty()) {
+            log.warn("{} is set but not {}, the client address header is ignored", clientAddressHeaderInitParam,
+                    trustedProxiesInitParam);
+        }
+
+        int throttleSlots = getIntInitParameter(config, throttleSlotsInitParam, 65536);
+        int userBurst = getIntInitParameter(config, throttleUserBurstInitParam, 0);
+        if (userBurst > 0) {
+            userThrottle = new LoginThrottle(userBurst, getIntInitParameter(config, throttleUserRateInitParam,
+                    userBurst), throttleSlots);
+        }
+        int addressBurst = getIntInitParameter(config, throttleAddressBurstInitParam, 0);
+        if (addressBurst > 0) {
+            addressThrottle = new LoginThrottle(addressBurst, getIntInitParameter(config,
+                    throttleAddressRateInitParam, addressBurst), throttleSlots);
+        }
+
+        tokenOnlyJaasConfigName = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(tokenOnlyJaasInitParam));
+        long firstFactorCacheTTL = getLongInitParameter(config, firstFactorCacheTTLInitParam, 0);
+        if (firstFactorCacheTTL > 0) {
+            if (factorVerification == null && tokenOnlyJaasConfigName == null) {
+                log.warn("{} is set but neither {} nor {}, passwords will always be verified",
+                        new Object[] {firstFactorCacheTTLInitParam, factorVerifiersInitParam, tokenOnlyJaasInitParam});
+            } else {
+                firstFactorCache = new FirstFactorCache(firstFactorCacheTTL, getIntInitParameter(config,
+                        firstFactorCacheSizeInitParam, 10000), getIntInitParameter(config,
+                        firstFactorCacheIterationsInitParam, 10000));
+            }
+        }
+
+        passwordOnlyJaasConfigName = DatatypeHelper.safeTrimOrNullString(config
+                .getInitParameter(passwordOnlyJaasInitParam));
+        long trustedDeviceTTL = getLongInitParameter(config, trustedDeviceTTLInitParam, 0);
+        if (trustedDeviceTTL > 0) {
+            if (factorVerification == null && passwordOnlyJaasConfigName == null) {
+                log.warn("{} is set but neither {} nor {}, tokens will always be verified", new Object[] {
+                        trustedDeviceTTLInitParam, factorVerifiersInitParam, passwordOnlyJaasInitParam});
+            } else {
+                trustedDevices = new TrustedDevices(getTrustedDeviceKey(config), trustedDeviceTTL);
+                String cookieName = DatatypeHelper.safeTrimOrNullString(config
+                        .getInitParameter(trustedDeviceCookieInitParam));
+                trustedDeviceCookieName = cookieName != null ? cookieName : "_idp_multifactor_device";
+            }
+        }
+
+        if (getBooleanInitParameter(config, circuitBreakerInitParam, false)) {
+            String probeUsername = config.getInitParameter(circuitBreakerProbeUsernameInitParam);
+            String probePassword = config.getInitParameter(circuitBreakerProbePasswordInitParam);
+            if ((probeUsername == null) != (probePassword == null)) {
+                log.warn("Only one of {} and {} is set, backends will not be probed",
+                        circuitBreakerProbeUsernameInitParam, circuitBreakerProbePasswordInitParam);
+                probeUsername = null;
+                probePassword = null;
+            }
+            int failureRate = getIntInitParameter(config, circuitBreakerFailureRateInitParam, 50);
+            int minimumCalls = getIntInitParameter(config, circuitBreakerMinimumCallsInitParam, 20);
+            long slowCall = getLongInitParameter(config, circuitBreakerSlowCallInitParam, 5000);
+            long window = getLongInitParameter(config, circuitBreakerWindowInitParam, 10000);
+            long open = getLongInitParameter(config, circuitBreakerOpenInitParam, 30000);
+            circuitBreakers = new CircuitBreakers(failureRate, minimumCalls, slowCall, window, open, probeUsername,
+                    probePassword);
+        }
+
+        if (getBooleanInitParameter(config, bulkheadInitParam, false)) {
+            Map<String, Integer> backendLimits = new HashMap<String, Integer>();
+            for (Map.Entry<String, String> limit : getPrefixedInitParameters(config,
+                    bulkheadMaxConcurrentInitParamPrefix).entrySet()) {
+                backendLimits.put(limit.getKey(), Integer.valueOf(limit.getValue().trim()));
+            }
+            bulkheads = new Bulkheads(getIntInitParameter(config, bulkheadMaxConcurrentInitParam, 20), backendLimits,
+                    getIntInitParameter(config, bulkheadMaxWaitingInitParam, 10), getLongInitParameter(config,
+                            bulkheadMaxWaitInitParam, 100));
+        }
+
+        if (getBooleanInitParameter(config, adaptiveFactorOrderingInitParam, false)) {
+            factorOrdering = new FactorOrdering();
+        }
+
+        String clientNames = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(validationClientsInitParam));
+        if (clientNames != null) {
+            Map<String, ValidationClient> clients = new LinkedHashMap<String, ValidationClient>();
+            for (String name : clientNames.split("[,\\s]+")) {
+                clients.put(name, createValidationClient(config, name));
+            }
+            validationClients = clients;
+        }
+
+        subjectBuilder = createSubjectBuilder(config);
+
+        String auditFile = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(auditLogInitParam));
+        if (auditFile != null) {
+            try {
+                auditLog = new AuditLog(new File(auditFile), getIntInitParameter(config, auditLogBufferSizeInitParam,
+                        8192), getLongInitParameter(config, auditLogMaxFileSizeInitParam, 10 * 1024 * 1024),
+                        getIntInitParameter(config, auditLogMaxFilesInitParam, 10));
+            } catch (IOException e) {
+                throw new ServletException("Unable to open audit log " + auditFile, e);
+            }
+        }
+
+        loginMetrics = new LoginMetrics(getServletName());
+        LoginMetrics.register(loginMetrics);
+
+        if (getBooleanInitParameter(config, warmUpInitParam, false)) {
+            warmUp(config);
+        }
+    }
+
+    /**
+     * Warms up the login path before the servlet takes requests, so that classes are loaded and code is compiled when
+     * the first real login comes in. Checks that the JAAS configurations used exist and loads their login modules,
+     * then runs in-process logins : the factors of a synthetic request are extracted and, with factor verifiers,
+     * handed to {@link StubFactorVerifier}s accepting them without calling any backend. Only if both
+     * <code>warmUpUsername</code> and <code>warmUpPassword</code> are set, synthetic logins of that user are then run
+     * against the backends, also opening their connections, each within the login timeout and bulkheads of real
+     * logins; a login still running when <code>warmUpTime</code> has passed is cancelled and ends the warm-up. None of
+     * these logins is throttled, audited or counted in the metrics, and they may fail.
+     * 
+     * @param config servlet configuration
+     * 
+     * @throws ServletException thrown if a JAAS configuration is missing or a login module can not be loaded
+     */
+    protected void warmUp(ServletConfig config) throws ServletException {
+        final String servletPath = jaasConfigurationPath != null ? jaasConfigurationPath : getServletPath(config);
+
+        if (factorVerification == null) {
+            try {
+                Configuration jaasConfig = getJaasConfiguration(servletPath);
+                loadLoginModules(jaasConfig, jaasConfigName);
+                if (tokenOnlyJaasConfigName != null) {
+                    loadLoginModules(jaasConfig, tokenOnlyJaasConfigName);
+                }
+                if (passwordOnlyJaasConfigName != null) {
+                    loadLoginModules(jaasConfig, passwordOnlyJaasConfigName);
+                }
+            } catch (SecurityException e) {
+                throw new ServletException("Unable to load the JAAS configuration", e);
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Unable to load the login modules of the JAAS configuration", e);
+            }
+        }
+
+        String tokens = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(warmUpTokensInitParam));
+        List<String> tokenList = tokens != null ? Arrays.asList(tokens.split("[,\\s]+"))
+                : Collections.singletonList(WARM_UP_TOKEN);
+        int logins = getIntInitParameter(config, warmUpLoginsInitParam, 100);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getLongInitParameter(config,
+                warmUpTimeInitParam, 60000));
+
+        FactorVerification stubVerification = null;
+        if (factorVerification != null) {
+            List<FactorVerifier> stubs = new ArrayList<FactorVerifier>();
+            for (FactorVerifier verifier : factorVerification.getVerifiers()) {
+                stubs.add(new StubFactorVerifier(verifier));
+            }
+            stubVerification = new FactorVerification(stubs, FactorVerification.newExecutor(stubs.size()));
+        }
+        long start = System.nanoTime();
+        int run = 0;
+        int succeeded = 0;
+        try {
+            while (run < logins && System.nanoTime() < deadline) {
+                LoginFactors factors = null;
+                try {
+                    factors = factorExtractor.extract(createWarmUpRequest(WARM_UP_USERNAME, WARM_UP_USERNAME,
+                            tokenList));
+                    if (stubVerification != null) {
+                        stubVerification.verify(factors.getUsername(), factors.getSecrets());
+                    }
+                    succeeded++;
+                } catch (IOException e) {
+                    log.trace("In-process login {} failed", run, e);
+                } catch (LoginException e) {
+                    log.trace("In-process login {} failed", run, e);
+                } finally {
+                    if (factors != null) {
+                        factors.wipe(true);
+                    }
+                }
+                run++;
+            }
+        } finally {
+            if (stubVerification != null) {
+                stubVerification.shutdown();
+            }
+        }
+        log.info("Warm-up of {} ran {} in-process logins in {} ms, {} succeeded", new Object[] {getServletName(), run,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), succeeded});
+
+        final String username = config.getInitParameter(warmUpUsernameInitParam);
+        String password = config.getInitParameter(warmUpPasswordInitParam);
+        if (username == null || password == null) {
+            if (username != null || password != null) {
+                log.warn("Only one of {} and {} is set, backends are not warmed up", warmUpUsernameInitParam,
+                        warmUpPasswordInitParam);
+            }
+            return;
+        }
+
+        start = System.nanoTime();
+        run = 0;
+        succeeded = 0;
+        ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+                "MultiFactorAuth warm-up"));
+        try {
+            while (run < logins && System.nanoTime() < deadline) {
+                final ArrayList<char[]> secrets = new ArrayList<char[]>();
+                secrets.add(password.toCharArray());
+                if (tokens != null) {
+                    for (String token : tokenList) {
+                        secrets.add(token.toCharArray());
+                    }
+                }
+                final LoginAttempt attempt = new LoginAttempt(null, username);
+                attempt.setBulkheads(bulkheads);
+                Future<Subject> result = warmUpExecutor.submit(new Callable<Subject>() {
+                    public Subject call() throws LoginException {
+                        return loginWithDeadline(servletPath, username, secrets, false, attempt);
+                    }
+                });
+                try {
+                    subjectBuilder.build(username, password, result.get(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS));
+                    succeeded++;
+                } catch (TimeoutException e) {
+                    log.warn("Synthetic login {} did not complete within the warm-up time, ending the warm-up",
+                            run);
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    log.trace("Synthetic login {} failed", run, e.getCause());
+                } finally {
+                    result.cancel(true);
+                    for (char[] secret : secrets) {
+                        Arrays.fill(secret, '\0');
+                    }
+                }
+                run++;
+            }
+        } finally {
+            warmUpExecutor.shutdownNow();
+        }
+        log.info("Warm-up of {} ran {} synthetic logins in {} ms, {} succeeded", new Object[] {getServletName(), run,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), succeeded});
+    }
+
+    /**
+     * Creates the synthetic request of an in-process warm-up login. By default a POST holding the factors both as
+     * request parameters and as a form body, so that the <code>parameters</code> and <code>body</code> sources find
+     * them.
+     * 
+     * @param username the user
+     * @param password the password
+     * @param tokens the tokens
+     * 
+     * @return the request
+     */
+    protected HttpServletRequest createWarmUpRequest(String username, String password, List<String> tokens) {
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put(usernameAttribute, new String[] {username});
+        parameters.put(passwordAttribute, new String[] {password});
+        for (int i = 0; i < tokens.size(); i++) {
+            parameters.put(tokenAttribute + "[" + i + "]", new String[] {tokens.get(i)});
+        }
+
+        StringBuilder body = new StringBuilder();
+        try {
+            for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+                if (body.length() > 0) {
+                    body.append('&');
+                }
+                body.append(URLEncoder.encode(parameter.getKey(), "UTF-8")).append('=')
+                        .append(URLEncoder.encode(parameter.getValue()[0], "UTF-8"));
+            }
+            return WarmUpRequest.newRequest("application/x-www-form-urlencoded", body.toString().getBytes("UTF-8"),
+                    parameters);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Checks that an application of a JAAS configuration exists and loads its login modules.
+     * 
+     * @param jaasConfig the JAAS configuration
+     * @param name name of the application
+     * 
+     * @throws ServletException thrown if the application does not exist
+     */
+    private void loadLoginModules(Configuration jaasConfig, String name) throws ServletException {
+        AppConfigurationEntry[] entries = jaasConfig.getAppConfigurationEntry(name);
+        if (entries == null) {
+            throw new ServletException("No JAAS configuration named " + name);
+        }
+        log.debug("Loaded {} login modules of JAAS configuration {}", JaasConfiguration.loadLoginModules(entries),
+                name);
+    }
+
+    /**
+     * Gets the path this servlet is mapped to.
+     * 
+     * @param config servlet configuration
+     * 
+     * @return the first mapping of the servlet, without a trailing wildcard, or null if not known
+     */
+    private String getServletPath(ServletConfig config) {
+        ServletRegistration registration = config.getServletContext().getServletRegistration(getServletName());
+        if (registration == null || registration.getMappings().isEmpty()) {
+            return null;
+        }
+        String mapping = registration.getMappings().iterator().next();
+        return mapping.endsWith("/*") ? mapping.substring(0, mapping.length() - 2) : mapping;
+    }
+
+    /**
+     * Gets the path under which the JAAS configuration of the login handler is looked up.
+     * 
+     * @param request current authentication request
+     * 
+     * @return the <code>jaasConfigurationPath</code> init-param if set, or else the servlet path of the request
+     */
+    protected String getJaasConfigurationPath(HttpServletRequest request) {
+        return jaasConfigurationPath != null ? jaasConfigurationPath : request.getServletPath();
+    }
+
+    /**
+     * Gets the cache of recently submitted authentication tokens.
+     * 
+     * @return the token replay cache, or null if not enabled
+     */
+    public TokenReplayCache getTokenReplayCache() {
+        return tokenReplayCache;
+    }
+
+    /**
+     * Gets the index of the YubiKeys registered to each user.
+     * 
+     * @return the YubiKey index, or null if not enabled
+     */
+    public YubiKeyIndex getYubiKeyIndex() {
+        return yubiKeyIndex;
+    }
+
+    /**
+     * Gets the latency and outcome metrics of the logins processed by this servlet.
+     * 
+     * @return the login metrics
+     */
+    public LoginMetrics getLoginMetrics() {
+        return loginMetrics;
+    }
+
+    /**
+     * Gets a shared validation client.
+     * 
+     * @param name name of the client, or null for the default client
+     * 
+     * @return the client, or null if there is no such client
+     */
+    public ValidationClient getValidationClient(String name) {
+        if (name == null) {
+            return validationClients.isEmpty() ? null : validationClients.values().iterator().next();
+        }
+        return validationClients.get(name);
+    }
+
+    /** {@inheritDoc} */
+    public void destroy() {
+        if (loginMetrics != null) {
+            LoginMetrics.unregister(loginMetrics);
+        }
+        if (asyncLoginExecutor != null) {
+            asyncLoginExecutor.shutdownNow();
+        }
+        if (loginTimeoutExecutor != null) {
+            loginTimeoutExecutor.shutdownNow();
+        }
+        if (factorVerification != null) {
+            factorVerification.shutdown();
+        }
+        if (circuitBreakers != null) {
+            circuitBreakers.shutdown();
+        }
+        for (ValidationClient client : validationClients.values()) {
+            client.shutdown();
+        }
+        if (auditLog != null) {
+            auditLog.close();
+        }
+        if (yubiKeyIndex != null) {
+            yubiKeyIndex.stopPolling();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Creates the executor processing asynchronous logins. This is a bounded thread pool with a bounded queue, or, if
+     * requested and the JVM supports them, one virtual thread per login.
+     * 
+     * @param config servlet configuration
+     * 
+     * @return the executor
+     */
+    protected ExecutorService createAsyncLoginExecutor(ServletConfig config) {
+        if (getBooleanInitParameter(config, asyncLoginVirtualThreadsInitParam, false)) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor").invoke(null);
+                log.debug("Processing asynchronous logins on virtual threads");
+                return executor;
+            } catch (Exception e) {
+                log.warn("Virtual threads are not available in this JVM, using a thread pool for asynchronous logins");
+            }
+        }
+
+        int threads = getIntInitParameter(config, asyncLoginThreadsInitParam, 50);
+        int queueSize = getIntInitParameter(config, asyncLoginQueueSizeInitParam, 100);
+        log.debug("Processing asynchronous logins on {} threads, queueing up to {}", threads, queueSize);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("MultiFactorAuth login"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Gets an integer init-param.
+     * 
+     * @param config servlet configuration
+     * @param name name of the init-param
+     * @param defaultValue value to use if the init-param is not set
+     * 
+     * @return value of the init-param
+     */
+    protected int getIntInitParameter(ServletConfig config, String name, int defaultValue) {
+        String value = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(name));
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Gets a long init-param.
+     * 
+     * @param config servlet configuration
+     * @param name name of the init-param
+     * @param defaultValue value to use if the init-param is not set
+     * 
+     * @return value of the init-param
+     */
+    protected long getLongInitParameter(ServletConfig config, String name, long defaultValue) {
+        String value = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(name));
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    /**
+     * Gets a boolean init-param.
+     * 
+     * @param config servlet configuration
+     * @param name name of the init-param
+     * @param defaultValue value to use if the init-param is not set
+     * 
+     * @return value of the init-param
+     */
+    protected boolean getBooleanInitParameter(ServletConfig config, String name, boolean defaultValue) {
+        String value = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(name));
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    /**
+     * Gets the key signing trusted-device cookies from the <code>trustedDeviceKey</code> init-param, or else a random
+     * key, in which case trusted devices are forgotten on restart and not shared between servers.
+     * 
+     * @param config servlet configuration
+     * 
+     * @return the key
+     * 
+     * @throws ServletException thrown if the configured key is not hex or shorter than 16 bytes
+     */
+    protected byte[] getTrustedDeviceKey(ServletConfig config) throws ServletException {
+        String hex = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(trustedDeviceKeyInitParam));
+        if (hex == null) {
+            log.warn("{} is not set, using a random key, trusted devices will be forgotten on restart",
+                    trustedDeviceKeyInitParam);
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            return key;
+        }
+        byte[] key = Hex.decode(hex);
+        if (key == null || key.length < 16) {
+            throw new ServletException(trustedDeviceKeyInitParam + " must be at least 16 bytes, hex encoded");
+        }
+        return key;
+    }
+
+    /**
+     * Creates the extraction of authentication factors from the sources listed in the <code>factorSources</code>
+     * init-param, by default {@link #getDefaultFactorSources()}.
+     * 
+     * @param config servlet configuration
+     * 
+     * @return the factor extractor
+     * 
+     * @throws ServletException thrown if an unknown source is configured
+     */
+    protected FactorExtractor createFactorExtractor(ServletConfig config) throws ServletException {
+        String names = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(factorSourcesInitParam));
+        List<FactorSource> sources = new ArrayList<FactorSource>();
+        for (String name : (names != null ? names : getDefaultFactorSources()).split("[,\\s]+")) {
+            sources.add(createFactorSource(config, name));
+        }
+        int maxFactorLength = getIntInitParameter(config, maxFactorLengthInitParam, 1024);
+        int secretBuffers = getIntInitParameter(config, secretBuffersInitParam, 16);
+        return new FactorExtractor(sources, getIntInitParameter(config, maxTokensInitParam, 8), maxFactorLength,
+                secretBuffers > 0 ? new SecretPool(maxFactorLength, secretBuffers) : null);
+    }
+
+    /**
+     * Gets the sources of authentication factors used if the <code>factorSources</code> init-param is not set.
+     * 
+     * @return source names, separated by commas
+     */
+    protected String getDefaultFactorSources() {
+        return "parameters";
+    }
+
+    /**
+     * Creates a source of authentication factors.
+     * 
+     * @param config servlet configuration
+     * @param name name of the source : parameters, headers or body
+     * 
+     * @return the factor source
+     * 
+     * @throws ServletException thrown if the source is unknown
+     */
+    protected FactorSource createFactorSource(ServletConfig config, String name) throws ServletException {
+        if ("parameters".equals(name)) {
+            return new ParameterFactorSource(usernameAttribute, passwordAttribute, tokenAttribute);
+        } else if ("headers".equals(name)) {
+            String header = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(tokenHeaderInitParam));
+            return new HeaderFactorSource(header != null ? header : "X-MultiFactor-Token");
+        } else if ("body".equals(name)) {
+            return new FormBodyFactorSource(usernameAttribute, passwordAttribute, tokenAttribute,
+                    getMaxLoginBodyLength(config));
+        }
+        throw new ServletException("Unknown authentication factor source " + name);
+    }
+
+    /**
+     * Gets the maximum length in bytes of a login request body.
+     * 
+     * @param config servlet configuration
+     * 
+     * @return maximum body length
+     */
+    protected int getMaxLoginBodyLength(ServletConfig config) {
+        return getIntInitParameter(config, maxLoginBodyLengthInitParam, 16384);
+    }
+
+    /**
+     * Creates the builder of the subjects of authenticated users. By default the subject keeps all principals and
+     * credentials of the login, and the password as a {@link UsernamePasswordCredential}.
+     * 
+     * @param config servlet configuration
+     * 
+     * @return the subject builder
+     * 
+     * @throws ServletException thrown if the init-params are not valid
+     */
+    protected SubjectBuilder createSubjectBuilder(ServletConfig config) throws ServletException {
+        String principals = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(subjectPrincipalsInitParam));
+        String credentials = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(subjectCredentialsInitParam));
+        String interned = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(
+                subjectInternedPrincipalsInitParam));
+
+        SubjectBuilder.CredentialMode mode = SubjectBuilder.CredentialMode.ALL;
+        if (credentials != null) {
+            try {
+                mode = SubjectBuilder.CredentialMode.valueOf(credentials.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException(subjectCredentialsInitParam + " must be all, login or none");
+            }
+        }
+        return new SubjectBuilder(principals != null ? Arrays.asList(principals.split("[,\\s]+")) : null, mode,
+                interned != null ? Arrays.asList(interned.split("[,\\s]+")) : Collections.<String> emptyList(),
+                getIntInitParameter(config, subjectInternerSizeInitParam, 10000));
+    }
+
+    /**
+     * Creates the factor verifiers configured by the <code>factorVerifier.&lt;name&gt;.class</code> init-params. All
+     * other <code>factorVerifier.&lt;name&gt;.*</code> init-params are passed to the verifier as options.
+     * 
+     * @param config servlet configuration
+     * @param names names of the verifiers, in order of precedence
+     * 
+     * @return parallel verification using the verifiers
+     * 
+     * @throws ServletException thrown if a verifier can not be created
+     */
+    protected FactorVerification createFactorVerification(ServletConfig config, String[] names)
+            throws ServletException {
+        List<FactorVerifier> verifiers = new ArrayList<FactorVerifier>(names.length);
+
+        for (String name : names) {
+            Map<String, String> options = getPrefixedInitParameters(config, factorVerifierInitParamPrefix + name + ".");
+            String className = options.remove("class");
+            if (className == null) {
+                throw new ServletException("No class configured for factor verifier " + name);
+            }
+            try {
+                FactorVerifier verifier = (FactorVerifier) Class.forName(className, true,
+                        Thread.currentThread().getContextClassLoader()).newInstance();
+                verifier.initialize(name, options);
+                verifiers.add(verifier);
+                log.debug("Created factor verifier {} ({})", name, className);
+            } catch (Exception e) {
+                throw new ServletException("Unable to create factor verifier " + name, e);
+            }
+        }
+
+        int threads = getIntInitParameter(config, factorVerifierThreadsInitParam,
+                4 * Runtime.getRuntime().availableProcessors());
+        return new FactorVerification(verifiers, FactorVerification.newExecutor(threads));
+    }
+
+    /**
+     * Creates the validation client configured by the <code>validationClient.&lt;name&gt;.*</code> init-params:
+     * <code>urls</code>, the comma separated base URLs of the validation servers, <code>connectTimeout</code> and
+     * <code>readTimeout</code> in milliseconds, <code>hedgeDelay</code>, the smallest delay in milliseconds before a
+     * request is also sent to the next server, and <code>threads</code>, the maximum number of concurrent requests.
+     * 
+     * @param config servlet configuration
+     * @param name name of the client
+     * 
+     * @return the validation client
+     * 
+     * @throws ServletException thrown if the client is not properly configured
+     */
+    protected ValidationClient createValidationClient(ServletConfig config, String name) throws ServletException {
+        String prefix = validationClientInitParamPrefix + name + ".";
+        String urls = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(prefix + "urls"));
+        if (urls == null) {
+            throw new ServletException("No URLs configured for validation client " + name);
+        }
+        try {
+            ValidationClient client = new ValidationClient(name, Arrays.asList(urls.split("[,\\s]+")),
+                    getIntInitParameter(config, prefix + "connectTimeout", 2000), getIntInitParameter(config, prefix
+                            + "readTimeout", 5000), getIntInitParameter(config, prefix + "hedgeDelay", 50),
+                    getIntInitParameter(config, prefix + "threads", 32));
+            log.debug("Created validation client {} for {}", name, client.getUrls());
+            return client;
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Unable to create validation client " + name, e);
+        }
+    }
+
+    /**
+     * Gets the init-params starting with a prefix.
+     * 
+     * @param config servlet configuration
+     * @param prefix the prefix
+     * 
+     * @return init-param values keyed by their name without the prefix
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getPrefixedInitParameters(ServletConfig config, String prefix) {
+        Map<String, String> params = new HashMap<String, String>();
+        Enumeration<String> paramNames = config.getInitParameterNames();
+        while (paramNames.hasMoreElements()) {
+            String paramName = paramNames.nextElement();
+            if (paramName.startsWith(prefix)) {
+                params.put(paramName.substring(prefix.length()), config.getInitParameter(paramName));
+            }
+        }
+        return params;
+    }
 
-    /** Login page name. */
-    private String loginPage = "login.jsp";
+    /**
+     * {@inheritDoc}
+     * 
+     * In asynchronous mode the login is processed on a dedicated executor, releasing the container thread while the
+     * authentication backends are consulted. Forwards are then handed back to the container as asynchronous dispatches,
+     * and a login outliving the asynchronous request timeout is cancelled and answered with HTTP 503 (see
+     * {@link AsyncLogin}). If the executor is saturated, the login is processed on the container thread instead.
+     */
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+    IOException {
+        if (asyncLoginExecutor == null || !request.isAsyncSupported()) {
+            processLogin(request, response);
+            return;
+        }
 
-    /** init-param which can be passed to the servlet to override the default login page. */
-    private final String loginPageInitParam = "loginPage";
+        final AsyncLogin asyncLogin = new AsyncLogin(request.startAsync(request, response), request, response,
+                asyncLoginTimeout);
+        try {
+            asyncLogin.setTask(asyncLoginExecutor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        processLogin(asyncLogin.getRequest(), asyncLogin.getResponse());
+                    } catch (Throwable t) {
+                        if (!asyncLogin.isCompleted()) {
+                            log.error("Unexpected error processing asynchronous login", t);
+                        }
+                    } finally {
+                        asyncLogin.complete();
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            log.debug("Asynchronous login executor saturated, processing login on container thread");
+            try {
+                processLogin(asyncLogin.getRequest(), asyncLogin.getResponse());
+            } finally {
+                asyncLogin.complete();
+            }
+        }
+    }
 
-    /** Parameter name to indicate login failure. */
-    private final String failureParam = "loginFailed";
+    /**
+     * Collects the authentication factors from the request, authenticates the user and either returns to the
+     * authentication engine or sends the user back to the login page.
+     * 
+     * @param request current request
+     * @param response current response
+     * 
+     * @throws ServletException thrown if the request can not be forwarded
+     * @throws IOException thrown if the request can not be forwarded
+     */
+    protected void processLogin(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+    IOException {
+        long start = System.nanoTime();
+        long phaseStart = start;
+        LoginAttempt attempt = null;
+        LoginMetrics.Outcome outcome = null;
+        String username = null;
+        int factorCount = 0;
+        MultiFactorAuthLoginException.Reason reason = null;
+        LoginFactors factors = null;
+        List<char[]> recordedTokens = null;
+        try {
+            try {
+                factors = extractFactors(request);
+            } finally {
+                long now = System.nanoTime();
+                loginMetrics.recordPhase(LoginMetrics.Phase.EXTRACTION, now - phaseStart);
+                phaseStart = now;
+            }
 
-    /** HTTP request parameter containing the user name. */
-    private final String usernameAttribute = "j_username";
+            username = factors.getUsername();
+            /* The first factor is often a JAAS module that performs some kind of "legacy" authentication,
+             * like Kerberos or LDAP. Such JAAS modules are expected to get the password via a PasswordCallback.
+             */
+            if (username == null || factors.getPassword() == null) {
+                redirectToLoginPage(request, response);
+                return;
+            }
 
-    /** HTTP request parameter containing the user's password. */
-    private final String passwordAttribute = "j_password";
+            ArrayList<char[]> secrets = factors.getSecrets();
+            factorCount = secrets.size();
+            log.debug("Extracted {} authentication factors from request", factorCount);
 
-    /** HTTP request parameter containing the user's authentication tokens. */
-    private final String tokenAttribute = "j_tokens";
+            attempt = new LoginAttempt(loginMetrics, circuitBreakers, username);
+            attempt.setBulkheads(bulkheads);
+            attempt.setFactorOrdering(factorOrdering);
+            if (auditLog != null) {
+                attempt.recordCalls(AuditLog.MAX_BACKEND_CALLS);
+            }
+            outcome = LoginMetrics.Outcome.ERROR;
+            try {
+                checkFactors(request, username, secrets);
+                recordedTokens = secrets;
+            } finally {
+                long now = System.nanoTime();
+                loginMetrics.recordPhase(LoginMetrics.Phase.ADMISSION, now - phaseStart);
+                phaseStart = now;
+            }
+            // the password is only turned into a string if the subject keeps it as a credential
+            String password = subjectBuilder.getCredentialMode() == SubjectBuilder.CredentialMode.ALL ? new String(
+                    factors.getPassword()) : null;
+            authenticateUser(request, username, password, secrets, attempt);
+            outcome = LoginMetrics.Outcome.SUCCESS;
+            if (trustedDevices != null && factorCount > 1 && !attempt.isTokensSkipped()) {
+                trustDevice(request, response, username);
+            }
+            phaseStart = System.nanoTime();
+            returnToAuthenticationEngine(request, response);
+        } catch (LoginException e) {
+            if (recordedTokens != null) {
+                forgetTokens(username, recordedTokens);
+            }
+            outcome = getOutcome(e, attempt);
+            if (e instanceof MultiFactorAuthLoginException) {
+                reason = ((MultiFactorAuthLoginException) e).getReason();
+            }
+            phaseStart = System.nanoTime();
+            loginFailed(request, response, e);
+        } finally {
+            if (factors != null) {
+                factors.wipe(attempt == null || !attempt.isAbandoned());
+            }
+            if (outcome != null) {
+                long end = System.nanoTime();
+                loginMetrics.recordPhase(LoginMetrics.Phase.FORWARD, end - phaseStart);
+                loginMetrics.recordLogin(outcome, end - start);
+                if (auditLog != null) {
+                    auditLog.record(attempt, username, getClientAddress(request), outcome, reason, factorCount, end
+                            - start);
+                }
+            }
+        }
+    }
 
-    /** {@inheritDoc} */
-    public void init(ServletConfig config) throws ServletException {
-        super.init(config);
+    /**
+     * Extracts the authentication factors of a login from the request.
+     * 
+     * @param request current request
+     * 
+     * @return the authentication factors
+     * 
+     * @throws IOException thrown if the request can not be read
+     * @throws LoginException thrown if the request holds too many or too long factors
+     */
+    protected LoginFactors extractFactors(HttpServletRequest request) throws IOException, LoginException {
+        return factorExtractor.extract(request);
+    }
 
-        if (getInitParameter(jaasInitParam) != null) {
-            jaasConfigName = getInitParameter(jaasInitParam);
+    /**
+     * Sends the user back to the login page after a failed login, with the failure in the request attributes.
+     * 
+     * @param request current request
+     * @param response current response
+     * @param e the exception failing the login
+     * 
+     * @throws IOException thrown if the response can not be written
+     */
+    protected void loginFailed(HttpServletRequest request, HttpServletResponse response, LoginException e)
+            throws IOException {
+        request.setAttribute(failureParam, "true");
+        if (e instanceof MultiFactorAuthLoginException) {
+            request.setAttribute(failureReasonParam, ((MultiFactorAuthLoginException) e).getReason().name());
         }
+        request.setAttribute(LoginHandler.AUTHENTICATION_EXCEPTION_KEY, new AuthenticationException(e));
+        redirectToLoginPage(request, response);
+    }
 
-        if (getInitParameter(loginPageInitParam) != null) {
-            loginPage = getInitParameter(loginPageInitParam);
+    /**
+     * Returns control to the authentication engine after a successful login.
+     * 
+     * @param request current request
+     * @param response current response
+     */
+    protected void returnToAuthenticationEngine(HttpServletRequest request, HttpServletResponse response) {
+        AuthenticationEngine.returnToAuthenticationEngine(request, response);
+    }
+
+    /**
+     * Classifies a failed login.
+     * 
+     * @param e the exception failing the login
+     * @param attempt the failed login attempt, or null if it failed before the factors were extracted
+     * 
+     * @return outcome of the login
+     */
+    protected LoginMetrics.Outcome getOutcome(LoginException e, LoginAttempt attempt) {
+        if (e instanceof MultiFactorAuthLoginException) {
+            MultiFactorAuthLoginException.Reason reason = ((MultiFactorAuthLoginException) e).getReason();
+            return reason == MultiFactorAuthLoginException.Reason.BACKEND_TIMEOUT ? LoginMetrics.Outcome.ERROR
+                    : LoginMetrics.Outcome.REJECTED;
         }
-        if (!loginPage.startsWith("/")) {
-            loginPage = "/" + loginPage;
+        if (attempt == null) {
+            return LoginMetrics.Outcome.REJECTED;
         }
-        
-        String method =
-                DatatypeHelper.safeTrimOrNullString(config.getInitParameter(LoginHandler.AUTHENTICATION_METHOD_KEY));
-        if (method != null) {
-            authenticationMethod = method;
-        } else {
-            authenticationMethod = "urn:oasis:names:tc:SAML:2.0:ac:classes:Token";
+        if (attempt.getRejectedFactor() == LoginAttempt.Factor.PASSWORD) {
+            return LoginMetrics.Outcome.BAD_PASSWORD;
+        }
+        if (attempt.getRejectedFactor() == LoginAttempt.Factor.TOKEN) {
+            return LoginMetrics.Outcome.BAD_TOKEN;
+        }
+        if (LoginMetrics.BackendResult.of(e) == LoginMetrics.BackendResult.FAILURE) {
+            return LoginMetrics.Outcome.FAILED;
         }
+        return LoginMetrics.Outcome.ERROR;
     }
 
-    /** {@inheritDoc} */
-    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException,
-    IOException {
-        String username = request.getParameter(usernameAttribute);
-        /* The first factor is often a JAAS module that performs some kind of "legacy" authentication,
-         * like Kerberos or LDAP. Such JAAS modules are expected to get the password via a PasswordCallback.
-         */
-        String password = request.getParameter(passwordAttribute);
-        ArrayList<char[]> secrets = new ArrayList<char[]>();
+    /**
+     * Checks the authentication factors of a login before any authentication backend is consulted. Tokens are
+     * recorded in the token replay cache here, and must be removed with {@link #forgetTokens} if the login fails.
+     * 
+     * @param request current request
+     * @param username the user being authenticated
+     * @param secrets the authentication factors, password first
+     * 
+     * @throws LoginException thrown if the login must be rejected
+     */
+    protected void checkFactors(HttpServletRequest request, String username, List<char[]> secrets)
+            throws LoginException {
+        if (addressThrottle != null && !addressThrottle.tryAcquire(getClientAddress(request))) {
+            log.debug("Throttling login attempt for user {} from {}", username, getClientAddress(request));
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.THROTTLED,
+                    "Too many login attempts from client address");
+        }
+        if (userThrottle != null && !userThrottle.tryAcquire(username)) {
+            log.debug("Throttling login attempt for user {} from {}", username, getClientAddress(request));
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.THROTTLED,
+                    "Too many login attempts for user");
+        }
 
-        if (username == null || password == null) {
-            redirectToLoginPage(request, response);
-            return;
+        // tokens of users with registered YubiKeys must be OTPs of one of them, checked without any backend
+        if (yubiKeyIndex != null && secrets.size() > 1 && yubiKeyIndex.hasUser(username)) {
+            for (int i = 1; i < secrets.size(); i++) {
+                char[] token = secrets.get(i);
+                if (!YubiKeyOtpVerifier.isOtp(token) || !yubiKeyIndex.isBound(username, token)) {
+                    log.debug("Rejecting authentication token {} for user {}, not from a registered YubiKey", i - 1,
+                            username);
+                    throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.UNKNOWN_TOKEN,
+                            "Authentication token is not an OTP of a YubiKey registered to the user");
+                }
+            }
+        }
+
+        if (tokenReplayCache != null) {
+            for (int i = 1; i < secrets.size(); i++) {
+                if (!tokenReplayCache.add(username, secrets.get(i))) {
+                    log.debug("Rejecting replayed authentication token {} for user {}", i - 1, username);
+                    forgetTokens(username, secrets.subList(0, i));
+                    throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.TOKEN_REPLAYED,
+                            "Authentication token has already been used");
+                }
+            }
         }
+    }
 
-        /* Always store the first factor (password) in the first element of secrets. */ 
-        secrets.add(password.toCharArray());
+    /**
+     * Gets the address of the client of a request, which login attempts are throttled and audited by.
+     * 
+     * That is the remote address of the request, unless it comes from one of the <code>trustedProxies</code> and the
+     * <code>clientAddressHeader</code> is set : the client address is then the rightmost address of the header
+     * (a comma separated list as in <code>X-Forwarded-For</code>) that is not itself a trusted proxy.
+     * 
+     * @param request current request
+     * 
+     * @return the client address
+     */
+    protected String getClientAddress(HttpServletRequest request) {
+        String address = request.getRemoteAddr();
+        if (clientAddressHeader == null || !trustedProxies.contains(address)) {
+            return address;
+        }
+        String forwarded = request.getHeader(clientAddressHeader);
+        if (forwarded == null) {
+            return address;
+        }
+        String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (hop.length() == 0) {
+                continue;
+            }
+            address = hop;
+            if (!trustedProxies.contains(hop)) {
+                break;
+            }
+        }
+        return address;
+    }
 
-        /* Now look for additional authentication factor parameters in the request */
-        int i = 0;
-        String t = request.getParameter(tokenAttribute + "[" + i + "]"); 
-        while (t != null) {
-            secrets.add(t.toCharArray());
-            i++;
-            t = request.getParameter(tokenAttribute + "[" + i + "]"); 
+    /**
+     * Removes the tokens of a failed login from the token replay cache, so that the user can submit them again.
+     * 
+     * @param username the user
+     * @param secrets the authentication factors recorded by {@link #checkFactors}, password first
+     */
+    protected void forgetTokens(String username, List<char[]> secrets) {
+        if (tokenReplayCache != null) {
+            for (int i = 1; i < secrets.size(); i++) {
+                tokenReplayCache.remove(username, secrets.get(i));
+            }
         }
+    }
 
-        log.debug("Extracted {} authentication factors from request", secrets.size());
+    /**
+     * Determines whether the request comes from a device trusted for a user, so that its tokens need not be verified.
+     * Requests of a forced re-authentication are never trusted, nor are requests without a login context.
+     * 
+     * @param request current request
+     * @param username the user
+     * 
+     * @return true if the request carries a valid trusted-device cookie for the user
+     */
+    protected boolean isDeviceTrusted(HttpServletRequest request, String username) {
+        if (trustedDevices == null) {
+            return false;
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return false;
+        }
+        String value = null;
+        for (Cookie cookie : cookies) {
+            if (trustedDeviceCookieName.equals(cookie.getName())) {
+                value = cookie.getValue();
+            }
+        }
+        if (value == null) {
+            return false;
+        }
 
-        try {
-            authenticateUser(request, username, password, secrets);
-            AuthenticationEngine.returnToAuthenticationEngine(request, response);
-        } catch (LoginException e) {
-            request.setAttribute(failureParam, "true");
-            request.setAttribute(LoginHandler.AUTHENTICATION_EXCEPTION_KEY, new AuthenticationException(e));
-            redirectToLoginPage(request, response);
+        LoginContext loginContext = HttpServletHelper.getLoginContext(HttpServletHelper
+                .getStorageService(getServletContext()), getServletContext(), request);
+        if (loginContext == null || loginContext.isForceAuthRequired()) {
+            log.debug("Forced or unbound authentication of user {}, ignoring trusted-device cookie", username);
+            return false;
         }
+        return trustedDevices.isTrusted(username, value);
+    }
+
+    /**
+     * Trusts the device of a user who has just completed a multi-factor login, by setting the trusted-device cookie.
+     * 
+     * @param request current request
+     * @param response current response
+     * @param username the user
+     */
+    protected void trustDevice(HttpServletRequest request, HttpServletResponse response, String username) {
+        Cookie cookie = new Cookie(trustedDeviceCookieName, trustedDevices.issue(username));
+        cookie.setPath("".equals(request.getContextPath()) ? "/" : request.getContextPath());
+        cookie.setMaxAge((int) TimeUnit.MILLISECONDS.toSeconds(trustedDevices.getTimeToLive()));
+        cookie.setSecure(request.isSecure());
+        cookie.setHttpOnly(true);
+        response.addCookie(cookie);
+        log.debug("Trusting device of user {} for {} ms", username, trustedDevices.getTimeToLive());
     }
 
     /**
@@ -214,6 +1568,16 @@ public class MultiFactorAuthLoginServlet extends HttpServlet {
      * If authentication succeeds the name of the first principal, or the username if
      * that is empty, and the subject are placed into the request in their respective attributes.
      * 
+     * If factor verifiers are configured, the factors are verified by them in parallel. Otherwise the JAAS
+     * configuration registered in {@link JaasConfigurationRegistry} by the login handler for this servlet's
+     * path, or for the <code>jaasConfigurationPath</code> init-param, is used if there is one, or else the
+     * JVM-wide JAAS configuration.
+     * 
+     * If the password has been verified for the user within the first factor cache's time to live, only the tokens
+     * are verified : by the verifiers not handling the password, or by the <code>tokenOnlyJaasConfigName</code> JAAS
+     * configuration. Conversely, on a device trusted for the user (see {@link #isDeviceTrusted}) only the password is
+     * verified : by the verifiers handling it, or by the <code>passwordOnlyJaasConfigName</code> JAAS configuration.
+     * 
      * @param request current authentication request
      * @param username the principal name of the user to be authenticated
      * @param password the password of the user to be authenticated
@@ -221,49 +1585,240 @@ public class MultiFactorAuthLoginServlet extends HttpServlet {
      * @throws LoginException thrown if there is a problem authenticating the user
      */
     protected void authenticateUser(HttpServletRequest request, String username, String password, ArrayList<char[]> secrets) throws LoginException {
+        LoginAttempt attempt = new LoginAttempt(loginMetrics, circuitBreakers, username);
+        attempt.setBulkheads(bulkheads);
+        attempt.setFactorOrdering(factorOrdering);
+        authenticateUser(request, username, password, secrets, attempt);
+    }
+
+    /**
+     * Authenticate a username and one or more authentication factors, reporting each authentication backend called to
+     * a login attempt.
+     * 
+     * @param request current authentication request
+     * @param username the principal name of the user to be authenticated
+     * @param password the password of the user to be authenticated
+     * @param secrets the authentication factors, password first
+     * @param attempt the login attempt
+     * 
+     * @throws LoginException thrown if there is a problem authenticating the user
+     * 
+     * @see #authenticateUser(HttpServletRequest, String, String, ArrayList)
+     */
+    protected void authenticateUser(HttpServletRequest request, String username, String password,
+            ArrayList<char[]> secrets, LoginAttempt attempt) throws LoginException {
+        long phaseStart = System.nanoTime();
         try {
             log.debug("Attempting to MultiFactor-authenticate user {}", username);
 
-            MultiAuthCallbackHandler cbh = new MultiAuthCallbackHandler(username, secrets);
+            if (isDeviceTrusted(request, username)) {
+                log.debug("Device of user {} is trusted, verifying password only", username);
+                attempt.setTokensSkipped(true);
+                secrets = new ArrayList<char[]>(secrets.subList(0, 1));
+            }
 
-            javax.security.auth.login.LoginContext jaasLoginCtx = new javax.security.auth.login.LoginContext(
-                    jaasConfigName, cbh);
+            Set<Principal> verifiedPrincipals = null;
+            if (!attempt.isTokensSkipped() && firstFactorCache != null && secrets.size() > 1) {
+                verifiedPrincipals = firstFactorCache.getVerifiedPrincipals(username, secrets.get(0));
+            }
+            boolean passwordVerified = verifiedPrincipals != null;
+            if (passwordVerified) {
+                log.debug("Password of user {} recently verified, verifying tokens only", username);
+                attempt.setPasswordSkipped(true);
+            }
 
-            jaasLoginCtx.login();
+            Subject loginSubject = loginWithDeadline(getJaasConfigurationPath(request), username, secrets,
+                    passwordVerified, attempt);
             log.debug("Successfully authenticated user {}", username);
+            long now = System.nanoTime();
+            loginMetrics.recordPhase(LoginMetrics.Phase.AUTHENTICATION, now - phaseStart);
+            phaseStart = now;
 
-            Subject loginSubject = jaasLoginCtx.getSubject();
-
-            Set<Principal> principals = loginSubject.getPrincipals();
-            principals.add(new UsernamePrincipal(username));
-            
-            log.debug("MultiFactor authentication resulted in these principals :");
-            for (Principal p : principals) {
-                log.debug("   {} {}", p.getClass(), p.getName());
+            if (passwordVerified) {
+                loginSubject = withPrincipals(verifiedPrincipals, loginSubject);
+            } else if (firstFactorCache != null) {
+                firstFactorCache.put(username, secrets.get(0), loginSubject.getPrincipals());
             }
 
-            Set<Object> publicCredentials = loginSubject.getPublicCredentials();
+            Subject userSubject = subjectBuilder.build(username, password, loginSubject);
 
-            Set<Object> privateCredentials = loginSubject.getPrivateCredentials();
-            privateCredentials.add(new UsernamePasswordCredential(username, password));
+            if (log.isDebugEnabled()) {
+                log.debug("MultiFactor authentication resulted in these principals :");
+                for (Principal p : userSubject.getPrincipals()) {
+                    log.debug("   {} {}", p.getClass(), p.getName());
+                }
+            }
 
-            Subject userSubject = new Subject(false, principals, publicCredentials, privateCredentials);
             request.setAttribute(LoginHandler.SUBJECT_KEY, userSubject);
             request.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, authenticationMethod);
+            loginMetrics.recordPhase(LoginMetrics.Phase.SUBJECT, System.nanoTime() - phaseStart);
         } catch (LoginException e) {
-            log.debug("User authentication for " + username + " failed", e);
+            log.debug("User authentication for {} failed", username, e);
             throw e;
         } catch (Throwable e) {
-            log.debug("User authentication for " + username + " failed", e);
+            log.debug("User authentication for {} failed", username, e);
             throw new LoginException("unknown authentication error");
         }
     }
 
+    /**
+     * Creates a subject holding the principals of an earlier login followed by those, and the credentials, of another.
+     * 
+     * @param principals principals of the earlier login
+     * @param loginSubject subject of the other login
+     * 
+     * @return the merged subject
+     */
+    private Subject withPrincipals(Set<Principal> principals, Subject loginSubject) {
+        Subject merged = new Subject();
+        merged.getPrincipals().addAll(principals);
+        merged.getPrincipals().addAll(loginSubject.getPrincipals());
+        merged.getPublicCredentials().addAll(loginSubject.getPublicCredentials());
+        merged.getPrivateCredentials().addAll(loginSubject.getPrivateCredentials());
+        return merged;
+    }
+
+    /**
+     * Verifies the authentication factors of a user within the login deadline.
+     * 
+     * The backends are called on a thread of a bounded pool while the request thread waits for them until the
+     * deadline, counted from the start of the login attempt. A login still running then is interrupted and fails with
+     * {@link MultiFactorAuthLoginException.Reason#BACKEND_TIMEOUT}. A login finding every thread of the pool held by
+     * earlier logins fails at once with {@link MultiFactorAuthLoginException.Reason#BACKEND_UNAVAILABLE}, so hung
+     * backends can hold at most <code>loginTimeoutThreads</code> threads.
+     * 
+     * @param servletPath path of this servlet, under which the login handler registers its JAAS configuration
+     * @param username the user
+     * @param secrets the authentication factors, password first
+     * @param passwordVerified true if the password is known to be valid and only the tokens are verified
+     * @param attempt the login attempt
+     * 
+     * @return the subject of the successful login
+     * 
+     * @throws LoginException thrown if the factors are not valid or can not be verified in time
+     */
+    protected Subject loginWithDeadline(final String servletPath, final String username,
+            final ArrayList<char[]> secrets, final boolean passwordVerified, final LoginAttempt attempt)
+            throws LoginException {
+        if (loginTimeoutExecutor == null) {
+            return login(servletPath, username, secrets, passwordVerified, attempt);
+        }
+
+        long deadline = attempt.getStartTime() + TimeUnit.MILLISECONDS.toNanos(loginTimeout);
+        attempt.setDeadline(deadline, passwordVerified ? secrets.size() - 1 : secrets.size());
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.BACKEND_TIMEOUT,
+                    "Login deadline passed before authentication");
+        }
+
+        Future<Subject> result;
+        try {
+            result = loginTimeoutExecutor.submit(new Callable<Subject>() {
+                public Subject call() throws LoginException {
+                    return login(servletPath, username, secrets, passwordVerified, attempt);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("All login threads waiting on authentication backends, rejecting login of user {}", username);
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.BACKEND_UNAVAILABLE,
+                    "Too many logins waiting on authentication backends");
+        }
+
+        try {
+            return result.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Authentication of user {} did not complete within {} ms, cancelling it", username,
+                    loginTimeout);
+            throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.BACKEND_TIMEOUT,
+                    "Authentication backends did not answer in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while authenticating");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LoginException) {
+                throw (LoginException) e.getCause();
+            }
+            LoginException le = new LoginException("unknown authentication error");
+            le.initCause(e.getCause());
+            throw le;
+        } finally {
+            // interrupts a login still running after the deadline
+            if (result.cancel(true)) {
+                attempt.abandon();
+            }
+        }
+    }
+
+    /**
+     * Verifies the authentication factors of a user with the factor verifiers, or else the JAAS configuration.
+     * 
+     * @param servletPath path of this servlet, under which the login handler registers its JAAS configuration
+     * @param username the user
+     * @param secrets the authentication factors, password first
+     * @param passwordVerified true if the password is known to be valid and only the tokens are verified
+     * @param attempt the login attempt
+     * 
+     * @return the subject of the successful login
+     * 
+     * @throws LoginException thrown if the factors are not valid or can not be verified
+     */
+    protected Subject login(String servletPath, String username, ArrayList<char[]> secrets, boolean passwordVerified,
+            LoginAttempt attempt) throws LoginException {
+        if (factorVerification != null) {
+            return factorVerification.verify(username, secrets, passwordVerified, attempt);
+        }
+
+        MultiAuthCallbackHandler cbh;
+        String configName;
+        if (passwordVerified) {
+            cbh = new MultiAuthCallbackHandler(username, new ArrayList<char[]>(secrets.subList(1, secrets.size())));
+            configName = tokenOnlyJaasConfigName;
+        } else if (attempt.isTokensSkipped()) {
+            cbh = new MultiAuthCallbackHandler(username, new ArrayList<char[]>(secrets.subList(0, 1)));
+            configName = passwordOnlyJaasConfigName;
+        } else {
+            cbh = new MultiAuthCallbackHandler(username, secrets);
+            configName = jaasConfigName;
+        }
+        cbh.setLoginAttempt(attempt);
+
+        Configuration jaasConfig = getJaasConfiguration(servletPath);
+        if (attempt.getFactorOrdering() != null) {
+            jaasConfig = attempt.getFactorOrdering().reorder(jaasConfig);
+        }
+        javax.security.auth.login.LoginContext jaasLoginCtx = new javax.security.auth.login.LoginContext(configName,
+                null, cbh, jaasConfig);
+
+        jaasLoginCtx.login();
+        return jaasLoginCtx.getSubject();
+    }
+
+    /**
+     * Gets the JAAS configuration of this servlet : the one registered in {@link JaasConfigurationRegistry} by the
+     * login handler, else the JVM-wide one with its login modules wrapped in a {@link DelegatingLoginModule}, so that
+     * metrics, circuit breakers and bulkheads apply to both.
+     * 
+     * @param servletPath path of this servlet, under which the login handler registers its JAAS configuration
+     * 
+     * @return the JAAS configuration
+     * 
+     * @throws SecurityException thrown if the JVM-wide configuration can not be loaded
+     */
+    private Configuration getJaasConfiguration(String servletPath) {
+        Configuration jaasConfig = JaasConfigurationRegistry.lookup(servletPath);
+        if (jaasConfig != null) {
+            return jaasConfig;
+        }
+        return JaasConfiguration.withDelegatingLoginModules(Configuration.getConfiguration());
+    }
+
     /**
      * A callback handler that provides static name and authentication tokens
      * to a JAAS login process.
      * 
-     * This handler only supports {@link NameCallback} and {@link PasswordCallback}.
+     * This handler supports {@link NameCallback}, {@link PasswordCallback}, {@link ValidationClientCallback} and
+     * {@link DeadlineCallback}.
      */
     protected class MultiAuthCallbackHandler implements CallbackHandler {
 
@@ -273,6 +1828,12 @@ public class MultiFactorAuthLoginServlet extends HttpServlet {
         /** User's password. Kept in char[]'s to be possible to wipe from memory. */
         private ArrayList<char[]> secrets;
 
+        /** Number of login modules called in configuration order that asked for the secrets so far. */
+        private int passwordCalls;
+
+        /** The login attempt, or null. */
+        private LoginAttempt attempt;
+
         /**
          * Constructor.
          * 
@@ -285,7 +1846,26 @@ public class MultiFactorAuthLoginServlet extends HttpServlet {
         }
 
         /**
-         * Handle a callback.
+         * Sets the login attempt the login modules report to.
+         * 
+         * @param loginAttempt the login attempt
+         */
+        public void setLoginAttempt(LoginAttempt loginAttempt) {
+            attempt = loginAttempt;
+        }
+
+        /**
+         * Gets the login attempt the login modules report to.
+         * 
+         * @return the login attempt, or null
+         */
+        public LoginAttempt getLoginAttempt() {
+            return attempt;
+        }
+
+        /**
+         * Handle a callback. The n-th login module asking for the secrets is taken to verify the n-th factor, see
+         * {@link #handle(Callback[], int)}.
          * 
          * @param callbacks The list of callbacks to process.
          * 
@@ -293,29 +1873,64 @@ public class MultiFactorAuthLoginServlet extends HttpServlet {
          *             {@link PasswordCallback}.
          */
         public void handle(final Callback[] callbacks) throws UnsupportedCallbackException, IOException {
+            handle(callbacks, -1);
+        }
+
+        /**
+         * Handle the callbacks of a login module at a given position, handing password callbacks all secrets with
+         * the factor verified at that position last : the password at position 0, the first token at position 1,
+         * and so on. The secrets themselves are never reordered, so every login module gets the same order whatever
+         * the number of login modules and the order they are called in.
+         * 
+         * @param callbacks The list of callbacks to process.
+         * @param position position of the login module in its configured application, or -1 if called in
+         *            configuration order
+         * 
+         * @throws UnsupportedCallbackException If callbacks has a callback other than {@link NameCallback} or
+         *             {@link PasswordCallback}.
+         */
+        public void handle(final Callback[] callbacks, int position) throws UnsupportedCallbackException,
+                IOException {
 
             if (callbacks == null || callbacks.length == 0) {
                 return;
             }
 
+            int factor = -1;
             for (Callback cb : callbacks) {
                 if (cb instanceof NameCallback) {
                     NameCallback ncb = (NameCallback) cb;
                     ncb.setName(uname);
                 } else if (cb instanceof PasswordCallback) {
                     PasswordCallback pcb = (PasswordCallback) cb;
+                    if (secrets.isEmpty()) {
+                        continue;
+                    }
+                    if (factor < 0) {
+                        factor = position >= 0 ? position : passwordCalls++;
+                        if (factor >= secrets.size()) {
+                            factor = 0;
+                        }
+                    }
 
-                    ArrayList<char []> r_secrets = this.secrets;
-                    Collections.reverse(r_secrets);
-
-                    /* Add all our secrets. Since we reversed the list, the last
-                     * one to be added is the first token (j_password in HTTP request).
+                    /* Add all our secrets, the one of this login module last.
                      * If this instance of PasswordCallback only supports one value,
-                     * it will thus get the first token. If it supports multiple values,
-                     * all will be available.
+                     * it will thus get its own factor (j_password for the first
+                     * login module). If it supports multiple values, all will be
+                     * available.
                      */
-                    for (char[] c : r_secrets) {
-                        pcb.setPassword(c);
+                    for (int i = 0; i < secrets.size(); i++) {
+                        if (i != factor) {
+                            pcb.setPassword(secrets.get(i));
+                        }
+                    }
+                    pcb.setPassword(secrets.get(factor));
+                } else if (cb instanceof ValidationClientCallback) {
+                    ValidationClientCallback vcb = (ValidationClientCallback) cb;
+                    vcb.setClient(getValidationClient(vcb.getName()));
+                } else if (cb instanceof DeadlineCallback) {
+                    if (attempt != null) {
+                        ((DeadlineCallback) cb).setDeadline(attempt.getDeadline(), attempt.getFactorTimeout());
                     }
                 }
             }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This Servlet writes the {@link LoginMetrics} of all {@link MultiFactorAuthLoginServlet}s in the web application as
+ * plain text, one metric per line, for scraping by a metrics collector.
+ */
+public class MultiFactorAuthMetricsServlet extends HttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 3981325744019630712L;
+
+    /** {@inheritDoc} */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        StringBuilder report = new StringBuilder(4096);
+        for (LoginMetrics metrics : LoginMetrics.getRegistered()) {
+            metrics.writeReport(report);
+        }
+
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Writer out = response.getWriter();
+        out.write(report.toString());
+        out.flush();
+    }
+}
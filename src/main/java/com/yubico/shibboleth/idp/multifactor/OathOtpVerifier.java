@@ -0,0 +1,519 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FactorVerifier} checking OATH HOTP (RFC 4226) and TOTP (RFC 6238) codes locally, without calling a
+ * validation server.
+ *
+ * Every user has one credential, read from the secret file. Users are numbered when the file is read, and their state
+ * is kept in primitive arrays indexed by that number : for HOTP the next counter accepted, for TOTP the last time step
+ * used and the clock drift of the token. Codes within the look-ahead window (HOTP) or within the drift window around
+ * the token's last known drift (TOTP) are accepted, and a code is never accepted twice. Verification reuses a
+ * {@link Mac} and buffers per thread, and creates no garbage while searching the windows.
+ *
+ * With the <code>counterFile</code> option, the HOTP counters and last used TOTP time steps are also kept in a
+ * {@link YubiKeyCounterFile}, which survives restarts and is shared by all verifiers of the JVM naming the same file,
+ * so a code accepted by one endpoint is rejected by the others. Without it the state is kept in memory only and is
+ * private to this verifier : the verifier must then serve a single endpoint, and after a restart HOTP counters start
+ * again from the secret file and TOTP codes of the current window could be used once more. The TOTP clock drift is
+ * always kept in memory only.
+ *
+ * Options :
+ * <ul>
+ * <li><code>secretFile</code> - file listing the credentials, one per line as
+ * <code>username hotp|totp secret [counter]</code>, the secret in base32 (or hex, see <code>secretEncoding</code>) and
+ * the optional counter giving the next HOTP counter; lines starting with <code>#</code> are ignored (required)</li>
+ * <li><code>secretEncoding</code> - <code>base32</code> (default) or <code>hex</code></li>
+ * <li><code>algorithm</code> - MAC algorithm, default <code>HmacSHA1</code></li>
+ * <li><code>digits</code> - number of digits of a code, 6 to 8 (default 6)</li>
+ * <li><code>hotpWindow</code> - number of HOTP counters looked ahead (default 10)</li>
+ * <li><code>totpPeriod</code> - TOTP time step, in seconds (default 30)</li>
+ * <li><code>totpWindow</code> - number of TOTP time steps tried on each side of the expected one (default 1)</li>
+ * <li><code>counterFile</code> - file holding the counters, created if missing (default none, counters kept in
+ * memory)</li>
+ * <li><code>counterFileSync</code> - <code>true</code> to sync the counter file to disk on every accepted code
+ * (default <code>false</code>)</li>
+ * </ul>
+ */
+public class OathOtpVerifier implements FactorVerifier {
+
+    /** Charset of the usernames hashed into counter ids. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Powers of ten, by number of digits. */
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(OathOtpVerifier.class);
+
+    /** Name of this verifier. */
+    private String name;
+
+    /** MAC algorithm. */
+    private String algorithm;
+
+    /** Number of digits of a code. */
+    private int digits;
+
+    /** Number of HOTP counters looked ahead. */
+    private int hotpWindow;
+
+    /** TOTP time step, in milliseconds. */
+    private long totpPeriod;
+
+    /** Number of TOTP time steps tried on each side of the expected one. */
+    private int totpWindow;
+
+    /** Index of each user in the state arrays. */
+    private Map<String, Integer> userIndex;
+
+    /** Secret of each user. */
+    private SecretKeySpec[] secrets;
+
+    /** Whether each user has a TOTP rather than a HOTP credential. */
+    private boolean[] totp;
+
+    /** Next HOTP counter, or last TOTP time step used, of each user. */
+    private AtomicLongArray counters;
+
+    /** TOTP clock drift of each user, in time steps. */
+    private AtomicIntegerArray drifts;
+
+    /** Persistent counter of each user, or null if the counters are kept in memory only. */
+    private YubiKeyCounterFile.Counter[] fileCounters;
+
+    /** MAC and buffers, one set per thread. */
+    private final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>() {
+        protected ThreadState initialValue() {
+            try {
+                return new ThreadState(Mac.getInstance(algorithm));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("MAC algorithm " + algorithm + " not available", e);
+            }
+        }
+    };
+
+    /** {@inheritDoc} */
+    public void initialize(String newName, Map<String, String> options) throws IOException {
+        name = newName;
+
+        String secretFile = options.get("secretFile");
+        if (secretFile == null) {
+            throw new IllegalArgumentException("Option secretFile is required");
+        }
+        algorithm = options.containsKey("algorithm") ? options.get("algorithm") : "HmacSHA1";
+        digits = getIntOption(options, "digits", 6);
+        if (digits < 6 || digits > 8) {
+            throw new IllegalArgumentException("Option digits must be between 6 and 8");
+        }
+        hotpWindow = getIntOption(options, "hotpWindow", 10);
+        totpPeriod = getIntOption(options, "totpPeriod", 30) * 1000L;
+        totpWindow = getIntOption(options, "totpWindow", 1);
+        try {
+            Mac.getInstance(algorithm);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("MAC algorithm " + algorithm + " not available", e);
+        }
+
+        Map<String, Integer> users = readSecrets(new File(secretFile), "hex".equals(options.get("secretEncoding")));
+        String counterFile = options.get("counterFile");
+        if (counterFile != null) {
+            openCounterFile(new File(counterFile), users, Boolean.parseBoolean(options.get("counterFileSync")));
+        }
+        log.debug("Factor verifier {} loaded {} OATH credentials from {}", new Object[] {name, secrets.length,
+                secretFile});
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return name;
+    }
+
+    /** {@inheritDoc} */
+    public boolean handles(int position, char[] factor) {
+        if (position == 0 || factor.length != digits) {
+            return false;
+        }
+        for (char c : factor) {
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public void verify(String username, char[] factor, Subject subject) throws LoginException {
+        verify(username, factor, System.currentTimeMillis());
+    }
+
+    /**
+     * Verifies a code at a given time.
+     *
+     * @param username the user being authenticated
+     * @param factor the code
+     * @param time current time in milliseconds, used for TOTP codes
+     *
+     * @throws LoginException thrown if the code is not valid for the user
+     */
+    void verify(String username, char[] factor, long time) throws LoginException {
+        Integer index = userIndex.get(username);
+        if (index == null) {
+            throw new FailedLoginException("No OATH credential for " + username);
+        }
+        int code = 0;
+        for (char c : factor) {
+            code = code * 10 + (c - '0');
+        }
+
+        ThreadState state = threadStates.get();
+        try {
+            state.mac.init(secrets[index]);
+        } catch (GeneralSecurityException e) {
+            throw new LoginException("Unable to initialize " + algorithm + ": " + e);
+        }
+
+        if (totp[index]) {
+            verifyTotp(state, index, code, time);
+        } else {
+            verifyHotp(state, index, code);
+        }
+    }
+
+    /**
+     * Verifies a HOTP code, advancing the user's counter past it.
+     *
+     * @param state MAC and buffers of the current thread, the MAC initialized with the user's secret
+     * @param index index of the user
+     * @param code the code
+     *
+     * @throws LoginException thrown if the code is not valid
+     */
+    private void verifyHotp(ThreadState state, int index, int code) throws LoginException {
+        while (true) {
+            long next = counters.get(index);
+            long found = -1;
+            for (long counter = next; counter <= next + hotpWindow; counter++) {
+                if (computeCode(state, counter) == code) {
+                    found = counter;
+                    break;
+                }
+            }
+            if (found < 0) {
+                throw new FailedLoginException("Invalid HOTP code");
+            }
+            if (counters.compareAndSet(index, next, found + 1)) {
+                if (fileCounters == null || fileCounters[index].advance((int) (found + 1))) {
+                    return;
+                }
+                // a verifier of another endpoint advanced the counter further, search again from there
+                catchUp(index);
+            }
+            // another login of the same user advanced the counter, search again
+        }
+    }
+
+    /**
+     * Verifies a TOTP code, recording its time step as used and the token's clock drift.
+     *
+     * @param state MAC and buffers of the current thread, the MAC initialized with the user's secret
+     * @param index index of the user
+     * @param code the code
+     * @param time current time in milliseconds
+     *
+     * @throws LoginException thrown if the code is not valid or has already been used
+     */
+    private void verifyTotp(ThreadState state, int index, int code, long time) throws LoginException {
+        long now = time / totpPeriod;
+        while (true) {
+            long lastUsed = counters.get(index);
+            int drift = drifts.get(index);
+            long found = -1;
+            boolean replayed = false;
+            for (int i = 0; i <= 2 * totpWindow; i++) {
+                long step = now + drift + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+                if (computeCode(state, step) == code) {
+                    if (step > lastUsed) {
+                        found = step;
+                        break;
+                    }
+                    replayed = true;
+                }
+            }
+            if (found < 0) {
+                if (replayed) {
+                    throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.TOKEN_REPLAYED,
+                            "TOTP code already used");
+                }
+                throw new FailedLoginException("Invalid TOTP code");
+            }
+            if (counters.compareAndSet(index, lastUsed, found)) {
+                if (fileCounters == null || fileCounters[index].advance((int) found)) {
+                    drifts.set(index, (int) (found - now));
+                    return;
+                }
+                // a verifier of another endpoint used this or a later time step, search again knowing it
+                catchUp(index);
+            }
+            // another login of the same user used a time step, search again
+        }
+    }
+
+    /**
+     * Raises the in-memory counter of a user to its persistent counter.
+     *
+     * @param index index of the user
+     */
+    private void catchUp(int index) {
+        long persisted = fileCounters[index].getValue();
+        long current = counters.get(index);
+        while (persisted > current && !counters.compareAndSet(index, current, persisted)) {
+            current = counters.get(index);
+        }
+    }
+
+    /**
+     * Computes the code for a counter or time step.
+     *
+     * @param state MAC and buffers of the current thread, the MAC initialized with the user's secret
+     * @param counter the counter or time step
+     *
+     * @return the code
+     *
+     * @throws LoginException thrown if the MAC fails
+     */
+    private int computeCode(ThreadState state, long counter) throws LoginException {
+        byte[] message = state.message;
+        for (int i = message.length - 1; i >= 0; i--) {
+            message[i] = (byte) counter;
+            counter >>>= 8;
+        }
+        byte[] hash = state.hash;
+        try {
+            state.mac.update(message);
+            state.mac.doFinal(hash, 0);
+        } catch (GeneralSecurityException e) {
+            throw new LoginException("Unable to compute " + algorithm + ": " + e);
+        }
+        int offset = hash[state.macLength - 1] & 0xf;
+        int binary = (hash[offset] & 0x7f) << 24 | (hash[offset + 1] & 0xff) << 16 | (hash[offset + 2] & 0xff) << 8
+                | hash[offset + 3] & 0xff;
+        return binary % POWERS_OF_TEN[digits];
+    }
+
+    /**
+     * Reads the secret file and sets up the user state.
+     *
+     * @param file the secret file
+     * @param hex whether the secrets are in hex rather than base32
+     *
+     * @return index of each user in the state arrays
+     *
+     * @throws IOException thrown if the file can not be read or has a malformed line
+     */
+    private Map<String, Integer> readSecrets(File file, boolean hex) throws IOException {
+        Map<String, Integer> users = new HashMap<String, Integer>();
+        List<SecretKeySpec> keys = new ArrayList<SecretKeySpec>();
+        List<Boolean> types = new ArrayList<Boolean>();
+        List<Long> initialCounters = new ArrayList<Long>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[,\\s]+");
+                if (fields.length < 3 || fields.length > 4 || !("hotp".equals(fields[1])
+                        || "totp".equals(fields[1]))) {
+                    throw new IOException(file + " line " + lineNumber + ": expected username hotp|totp secret "
+                            + "[counter]");
+                }
+                byte[] secret = hex ? Hex.decode(fields[2]) : decodeBase32(fields[2]);
+                if (secret == null || secret.length == 0) {
+                    throw new IOException(file + " line " + lineNumber + ": invalid secret");
+                }
+                if (users.put(fields[0], keys.size()) != null) {
+                    throw new IOException(file + " line " + lineNumber + ": duplicate user " + fields[0]);
+                }
+                keys.add(new SecretKeySpec(secret, algorithm));
+                types.add("totp".equals(fields[1]));
+                try {
+                    initialCounters.add(fields.length == 4 ? Long.parseLong(fields[3]) : 0L);
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + " line " + lineNumber + ": invalid counter");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        userIndex = users;
+        secrets = keys.toArray(new SecretKeySpec[keys.size()]);
+        totp = new boolean[secrets.length];
+        counters = new AtomicLongArray(secrets.length);
+        drifts = new AtomicIntegerArray(secrets.length);
+        for (int i = 0; i < secrets.length; i++) {
+            totp[i] = types.get(i);
+            counters.set(i, totp[i] ? Long.MIN_VALUE : initialCounters.get(i));
+        }
+        return users;
+    }
+
+    /**
+     * Opens the counter file and continues each user's counter from it.
+     *
+     * @param file the counter file
+     * @param users index of each user in the state arrays
+     * @param sync whether every update is synced to disk
+     *
+     * @throws IOException thrown if the file can not be read or written
+     */
+    private void openCounterFile(File file, Map<String, Integer> users, boolean sync) throws IOException {
+        Map<String, String> ids = new HashMap<String, String>();
+        for (String username : users.keySet()) {
+            if (counters.get(users.get(username)) > Integer.MAX_VALUE) {
+                throw new IOException("HOTP counter of " + username + " too large for a counter file");
+            }
+            ids.put(username, getCounterId(username));
+        }
+        YubiKeyCounterFile counterFile = YubiKeyCounterFile.open(file, ids.values(), sync);
+        fileCounters = new YubiKeyCounterFile.Counter[secrets.length];
+        for (Map.Entry<String, Integer> user : users.entrySet()) {
+            fileCounters[user.getValue()] = counterFile.getCounter(ids.get(user.getKey()));
+            catchUp(user.getValue());
+        }
+    }
+
+    /**
+     * Gets the id of a user's counter in the counter file : 32 hex digits of the SHA-256 hash of the username, as
+     * counter ids are limited to 32 ASCII characters.
+     *
+     * @param username the user
+     *
+     * @return the counter id
+     */
+    private static String getCounterId(String username) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(username.getBytes(UTF8));
+            return Hex.encode(Arrays.copyOf(hash, 16));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Gets an integer option.
+     *
+     * @param options the options
+     * @param option name of the option
+     * @param defaultValue value if the option is not set
+     *
+     * @return the option value
+     */
+    private static int getIntOption(Map<String, String> options, String option, int defaultValue) {
+        String value = options.get(option);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Decodes a base32 (RFC 4648) string, ignoring case and padding.
+     *
+     * @param base32 the base32 string
+     *
+     * @return the bytes, or null if the string is not base32
+     */
+    private static byte[] decodeBase32(String base32) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        String encoded = base32.toUpperCase().replace("=", "");
+        byte[] bytes = new byte[encoded.length() * 5 / 8];
+        int buffer = 0;
+        int bits = 0;
+        int n = 0;
+        for (int i = 0; i < encoded.length(); i++) {
+            int value = alphabet.indexOf(encoded.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            buffer = buffer << 5 | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[n++] = (byte) (buffer >> bits);
+            }
+        }
+        return bytes;
+    }
+
+    /** MAC and buffers of one thread. */
+    private static class ThreadState {
+
+        /** The MAC. */
+        private final Mac mac;
+
+        /** Length of the MAC, in bytes. */
+        private final int macLength;
+
+        /** Counter or time step being hashed. */
+        private final byte[] message = new byte[8];
+
+        /** MAC output. */
+        private final byte[] hash;
+
+        /**
+         * Constructor.
+         *
+         * @param newMac the MAC
+         */
+        ThreadState(Mac newMac) {
+            mac = newMac;
+            macLength = newMac.getMacLength();
+            hash = new byte[macLength];
+        }
+    }
+}
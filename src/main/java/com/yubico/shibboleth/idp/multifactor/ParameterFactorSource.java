@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads the authentication factors from the request parameters : the username, the password and the tokens
+ * <code>j_tokens[i]</code>.
+ *
+ * The parameter map is walked once, token indices are parsed in place instead of looking up each possible parameter
+ * name, and need not be contiguous.
+ */
+public class ParameterFactorSource implements FactorSource {
+
+    /** Maximum number of digits of a token index. */
+    private static final int MAX_INDEX_DIGITS = 6;
+
+    /** Name of the parameter holding the username. */
+    private final String usernameParameter;
+
+    /** Name of the parameter holding the password. */
+    private final String passwordParameter;
+
+    /** Name of the parameter holding the tokens, without the index. */
+    private final String tokenParameter;
+
+    /**
+     * Constructor.
+     *
+     * @param usernameName name of the parameter holding the username
+     * @param passwordName name of the parameter holding the password
+     * @param tokenName name of the parameter holding the tokens, without the index
+     */
+    public ParameterFactorSource(String usernameName, String passwordName, String tokenName) {
+        usernameParameter = usernameName;
+        passwordParameter = passwordName;
+        tokenParameter = tokenName;
+    }
+
+    /** {@inheritDoc} */
+    public void extract(HttpServletRequest request, LoginFactors factors) throws MultiFactorAuthLoginException {
+        Map<String, String[]> parameters = request.getParameterMap();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String[] values = parameter.getValue();
+            if (values == null || values.length == 0) {
+                continue;
+            }
+            String name = parameter.getKey();
+            String value = values[0];
+
+            if (name.equals(usernameParameter)) {
+                factors.setUsername(value);
+            } else if (name.equals(passwordParameter)) {
+                factors.setPassword(factors.newSecret(value));
+            } else {
+                int index = parseIndex(name);
+                if (index >= 0 && value.length() > 0) {
+                    factors.addToken(index, factors.newSecret(value));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the index of a token parameter name.
+     *
+     * @param name parameter name
+     *
+     * @return the index, or -1 if the name is not that of a token parameter
+     */
+    private int parseIndex(String name) {
+        int start = tokenParameter.length() + 1;
+        int end = name.length() - 1;
+        if (end <= start || end - start > MAX_INDEX_DIGITS || !name.startsWith(tokenParameter)
+                || name.charAt(start - 1) != '[' || name.charAt(end) != ']') {
+            return -1;
+        }
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + c - '0';
+        }
+        return index;
+    }
+}
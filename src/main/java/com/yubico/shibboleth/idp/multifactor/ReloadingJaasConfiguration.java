@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JAAS {@link Configuration} backed by a {@link JaasConfiguration} parsed from a file or URL.
+ *
+ * When the configuration lives on the local filesystem it is checked for modification in the background, and a new
+ * snapshot is swapped in atomically when the file's modification time changes. A snapshot that fails to parse is
+ * logged and ignored, so a broken edit never takes down running logins.
+ */
+public class ReloadingJaasConfiguration extends Configuration {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ReloadingJaasConfiguration.class);
+
+    /** Timer shared by all instances, checking for modified configuration files. */
+    private static final ScheduledExecutorService RELOAD_TIMER = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("MultiFactorAuth JAAS configuration reloader"));
+
+    /** Location the configuration was read from. */
+    private final String location;
+
+    /** Local file holding the configuration, or null if it was loaded from a non-file URL. */
+    private final File file;
+
+    /** Current configuration snapshot. */
+    private volatile JaasConfiguration current;
+
+    /** Modification time of the file when the current snapshot was read. */
+    private volatile long lastModified;
+
+    /** Pending background modification check, if any. */
+    private ScheduledFuture<?> reloadTask;
+
+    /**
+     * Constructor. Reads and parses the configuration.
+     *
+     * @param configurationLocation file URL, other URL or local path of the JAAS configuration
+     *
+     * @throws IOException thrown if the configuration can not be read or parsed
+     */
+    public ReloadingJaasConfiguration(String configurationLocation) throws IOException {
+        super();
+        location = configurationLocation;
+        file = toFile(configurationLocation);
+        load();
+    }
+
+    /**
+     * Gets the location the configuration is read from.
+     *
+     * @return configuration location
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Gets the current configuration snapshot.
+     *
+     * @return current configuration snapshot
+     */
+    public JaasConfiguration getSnapshot() {
+        return current;
+    }
+
+    /** {@inheritDoc} */
+    public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+        return current.getAppConfigurationEntry(name);
+    }
+
+    /** {@inheritDoc} */
+    public void refresh() {
+        try {
+            load();
+        } catch (IOException e) {
+            log.error("Unable to reload JAAS configuration from " + location + ", keeping previous version", e);
+        }
+    }
+
+    /**
+     * Starts checking the configuration file for modifications in the background.
+     *
+     * Has no effect if the configuration was not read from the local filesystem.
+     *
+     * @param pollingFrequency milliseconds between checks
+     */
+    public synchronized void startPolling(long pollingFrequency) {
+        if (file == null || pollingFrequency <= 0 || reloadTask != null) {
+            return;
+        }
+        log.debug("Checking JAAS configuration {} for modifications every {} ms", file, pollingFrequency);
+        reloadTask = RELOAD_TIMER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reloadIfModified();
+            }
+        }, pollingFrequency, pollingFrequency, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops checking the configuration file for modifications. */
+    public synchronized void stopPolling() {
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+            reloadTask = null;
+        }
+    }
+
+    /** Reloads the configuration if the file's modification time has changed since it was last read. */
+    protected void reloadIfModified() {
+        try {
+            if (file.lastModified() != lastModified) {
+                log.info("JAAS configuration {} has been modified, reloading", file);
+                refresh();
+            }
+        } catch (Throwable t) {
+            log.error("Unexpected error checking JAAS configuration " + file + " for modifications", t);
+        }
+    }
+
+    /**
+     * Reads and parses the configuration, and swaps in the result.
+     *
+     * @throws IOException thrown if the configuration can not be read or parsed
+     */
+    private synchronized void load() throws IOException {
+        long modified = 0;
+        InputStream in;
+        if (file != null) {
+            modified = file.lastModified();
+            in = new FileInputStream(file);
+        } else {
+            in = new URL(location).openStream();
+        }
+
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            current = JaasConfiguration.parse(reader).withDelegatingLoginModules();
+            lastModified = modified;
+        } finally {
+            in.close();
+        }
+        log.debug("Loaded JAAS configuration from {}, applications {}", location, current.getApplicationNames());
+    }
+
+    /**
+     * Resolves a configuration location to a local file.
+     *
+     * @param configurationLocation file URL, other URL or local path
+     *
+     * @return the local file, or null if the location is a non-file URL
+     */
+    private static File toFile(String configurationLocation) {
+        try {
+            URL url = new URL(configurationLocation);
+            if (!"file".equals(url.getProtocol())) {
+                return null;
+            }
+            try {
+                return new File(url.toURI());
+            } catch (URISyntaxException e) {
+                return new File(url.getPath());
+            } catch (IllegalArgumentException e) {
+                return new File(url.getPath());
+            }
+        } catch (MalformedURLException e) {
+            return new File(configurationLocation);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reusable character buffers holding the password and tokens of logins, so that secrets are written only to buffers
+ * that are wiped once the login finishes instead of to fresh arrays left to the garbage collector.
+ *
+ * Buffers are pooled by their exact length, as the authentication backends expect arrays holding just the secret.
+ * Buffers longer than the longest pooled length, and buffers released to a full pool, are wiped and dropped. The free
+ * buffers of a length are kept in a bounded array-backed queue, created when the first buffer of that length is
+ * released, so that taking and releasing buffers does not allocate.
+ */
+public class SecretPool {
+
+    /** Free buffers, indexed by length, or null where no buffer of that length has been released yet. */
+    private final AtomicReferenceArray<ArrayBlockingQueue<char[]>> free;
+
+    /** Maximum number of free buffers of each length. */
+    private final int maxFree;
+
+    /**
+     * Constructor.
+     *
+     * @param maxLength length of the longest buffer pooled
+     * @param buffersPerLength maximum number of free buffers kept of each length
+     */
+    public SecretPool(int maxLength, int buffersPerLength) {
+        free = new AtomicReferenceArray<ArrayBlockingQueue<char[]>>(maxLength + 1);
+        maxFree = buffersPerLength;
+    }
+
+    /**
+     * Takes a buffer from the pool.
+     *
+     * @param length length of the buffer
+     *
+     * @return a zeroed buffer of exactly <code>length</code> characters
+     */
+    public char[] take(int length) {
+        if (length > 0 && length < free.length()) {
+            ArrayBlockingQueue<char[]> buffers = free.get(length);
+            char[] buffer = buffers != null ? buffers.poll() : null;
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new char[length];
+    }
+
+    /**
+     * Wipes a buffer and returns it to the pool. The caller must not keep any reference to the buffer, as it will be
+     * handed out to another login.
+     *
+     * @param buffer the buffer, may be null
+     */
+    public void release(char[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Arrays.fill(buffer, '\0');
+        int length = buffer.length;
+        if (length == 0 || length >= free.length() || maxFree <= 0) {
+            return;
+        }
+        ArrayBlockingQueue<char[]> buffers = free.get(length);
+        if (buffers == null) {
+            free.compareAndSet(length, null, new ArrayBlockingQueue<char[]>(maxFree));
+            buffers = free.get(length);
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Gets the number of free buffers.
+     *
+     * @param length length of the buffers
+     *
+     * @return number of free buffers of that length
+     */
+    public int getFree(int length) {
+        if (length <= 0 || length >= free.length()) {
+            return 0;
+        }
+        ArrayBlockingQueue<char[]> buffers = free.get(length);
+        return buffers != null ? buffers.size() : 0;
+    }
+}
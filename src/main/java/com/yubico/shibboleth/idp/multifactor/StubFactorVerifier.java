@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+/**
+ * A {@link FactorVerifier} standing in for another one during the warm-up : it handles the same factors, but accepts
+ * them all without calling any backend, so that the assignment and parallel verification of factors can be exercised
+ * at startup.
+ */
+class StubFactorVerifier implements FactorVerifier {
+
+    /** The verifier stood in for. */
+    private final FactorVerifier verifier;
+
+    /**
+     * Constructor.
+     *
+     * @param realVerifier the verifier stood in for
+     */
+    StubFactorVerifier(FactorVerifier realVerifier) {
+        verifier = realVerifier;
+    }
+
+    /** {@inheritDoc} */
+    public void initialize(String name, Map<String, String> options) {
+        // nothing to initialize
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return verifier.getName();
+    }
+
+    /** {@inheritDoc} */
+    public boolean handles(int position, char[] factor) {
+        return verifier.handles(position, factor);
+    }
+
+    /** {@inheritDoc} */
+    public void verify(String username, char[] factor, Subject subject) {
+        // accepted
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.Subject;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.UsernamePasswordCredential;
+
+/**
+ * Builds the {@link Subject} handed to the authentication engine from the subject of a successful login.
+ *
+ * The subject is kept in the IdP session for the whole session, and replicated with it in a cluster, so only what is
+ * asked for is copied into it : the {@link UsernamePrincipal} plus, optionally, only principals of chosen classes, and
+ * the credentials according to the {@link CredentialMode}. Principals of immutable classes can be interned, so that
+ * the sessions of a user share one instance of each.
+ */
+public class SubjectBuilder {
+
+    /** Which credentials are put in the subject. */
+    public static enum CredentialMode {
+
+        /**
+         * The credentials of the login subject, and a {@link UsernamePasswordCredential} holding the password instead
+         * of any the login modules added.
+         */
+        ALL,
+
+        /** The credentials of the login subject only, without any {@link UsernamePasswordCredential}. */
+        LOGIN,
+
+        /** No credentials. */
+        NONE,
+    }
+
+    /** Class names of the principals kept, or null to keep all principals. */
+    private final Set<String> keptPrincipals;
+
+    /** Which credentials are put in the subject. */
+    private final CredentialMode credentialMode;
+
+    /** Class names of the principals interned, besides {@link UsernamePrincipal}. */
+    private final Set<String> internedPrincipals;
+
+    /** Interned principals, or null if interning is disabled. */
+    private final ConcurrentMap<Principal, Principal> interner;
+
+    /** Largest number of interned principals. */
+    private final int maxInterned;
+
+    /**
+     * Constructor.
+     *
+     * @param principalClasses class names of the principals to keep besides the {@link UsernamePrincipal}, or null to
+     *            keep all principals
+     * @param mode which credentials to put in the subject
+     * @param internedClasses class names of immutable principals to intern besides the {@link UsernamePrincipal}
+     * @param internerSize largest number of interned principals, 0 to disable interning
+     */
+    public SubjectBuilder(Collection<String> principalClasses, CredentialMode mode,
+            Collection<String> internedClasses, int internerSize) {
+        keptPrincipals = principalClasses != null ? new HashSet<String>(principalClasses) : null;
+        credentialMode = mode;
+        internedPrincipals = new HashSet<String>(internedClasses);
+        internedPrincipals.add(UsernamePrincipal.class.getName());
+        maxInterned = internerSize;
+        interner = internerSize > 0 ? new ConcurrentHashMap<Principal, Principal>() : null;
+    }
+
+    /**
+     * Gets which credentials are put in the subject.
+     *
+     * @return the credential mode
+     */
+    public CredentialMode getCredentialMode() {
+        return credentialMode;
+    }
+
+    /**
+     * Builds the subject of an authenticated user.
+     *
+     * @param username the user
+     * @param password the user's password, only used in {@link CredentialMode#ALL}
+     * @param loginSubject subject of the successful login
+     *
+     * @return the subject
+     */
+    public Subject build(String username, String password, Subject loginSubject) {
+        Set<Principal> principals = new LinkedHashSet<Principal>();
+        for (Principal principal : loginSubject.getPrincipals()) {
+            if (keptPrincipals == null || keptPrincipals.contains(principal.getClass().getName())) {
+                principals.add(intern(principal));
+            }
+        }
+        principals.add(intern(new UsernamePrincipal(username)));
+
+        Set<Object> publicCredentials;
+        Set<Object> privateCredentials;
+        if (credentialMode == CredentialMode.NONE) {
+            publicCredentials = Collections.emptySet();
+            privateCredentials = Collections.emptySet();
+        } else {
+            publicCredentials = new LinkedHashSet<Object>(loginSubject.getPublicCredentials());
+            privateCredentials = new LinkedHashSet<Object>(loginSubject.getPrivateCredentials());
+            // a login module may have put the password there
+            removePasswords(publicCredentials);
+            removePasswords(privateCredentials);
+            if (credentialMode == CredentialMode.ALL) {
+                privateCredentials.add(new UsernamePasswordCredential(username, password));
+            }
+        }
+
+        return new Subject(false, principals, publicCredentials, privateCredentials);
+    }
+
+    /**
+     * Removes the {@link UsernamePasswordCredential}s from a set of credentials.
+     *
+     * @param credentials the credentials
+     */
+    private static void removePasswords(Set<Object> credentials) {
+        Iterator<Object> it = credentials.iterator();
+        while (it.hasNext()) {
+            if (it.next() instanceof UsernamePasswordCredential) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the shared instance of a principal, if its class is interned.
+     *
+     * @param principal the principal
+     *
+     * @return the shared instance equal to the principal, or the principal itself
+     */
+    private Principal intern(Principal principal) {
+        if (interner == null || !internedPrincipals.contains(principal.getClass().getName())) {
+            return principal;
+        }
+        Principal shared = interner.get(principal);
+        if (shared != null) {
+            return shared;
+        }
+        if (interner.size() >= maxInterned) {
+            // start over rather than track usage, users still logging in are interned again soon
+            interner.clear();
+        }
+        shared = interner.putIfAbsent(principal, principal);
+        return shared != null ? shared : principal;
+    }
+}
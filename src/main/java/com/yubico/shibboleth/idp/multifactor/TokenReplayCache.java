@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recently submitted authentication tokens, so that a token submitted again (double-clicks, browser
+ * resubmits, replay attempts) can be rejected locally before any authentication backend is consulted.
+ *
+ * A token is recorded when a login is admitted, so that concurrent submissions of it are rejected too, and removed
+ * again with {@link #remove} if the login fails, so that the user can retry with the same token, e.g. after
+ * mistyping the password.
+ *
+ * Only a salted 64-bit digest of each (username, token) pair is kept, never the token itself. Digests are spread
+ * over independently locked stripes, each holding its share of the configured memory ceiling. Within a stripe the
+ * digests are kept in insertion order, so expired digests are always found at the head and the oldest digest is
+ * evicted first when the stripe is full.
+ */
+public class TokenReplayCache {
+
+    /** Approximate heap usage of one cached digest, in bytes. */
+    public static final int ENTRY_SIZE = 80;
+
+    /** Random salt of the digests, so that they can not be precomputed. */
+    private final byte[] salt;
+
+    /** Milliseconds a token is remembered. */
+    private final long timeToLive;
+
+    /** Stripes holding the digests. */
+    private final Stripe[] stripes;
+
+    /** Number of tokens found in the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of tokens not found in the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of digests removed because they expired or the cache was full. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Per-thread digest state. */
+    private final ThreadLocal<DigestState> digestState = new ThreadLocal<DigestState>() {
+        protected DigestState initialValue() {
+            return new DigestState();
+        }
+    };
+
+    /**
+     * Constructor.
+     * 
+     * @param ttl milliseconds a token is remembered
+     * @param maxBytes approximate upper bound of the heap used by the cache
+     * @param concurrency number of stripes, rounded up to a power of two
+     */
+    public TokenReplayCache(long ttl, long maxBytes, int concurrency) {
+        timeToLive = ttl;
+
+        salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+
+        int stripeCount = 1;
+        while (stripeCount < concurrency) {
+            stripeCount <<= 1;
+        }
+        int entriesPerStripe = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / ENTRY_SIZE / stripeCount));
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(entriesPerStripe);
+        }
+    }
+
+    /**
+     * Records a token, unless it has been seen before and not yet expired.
+     * 
+     * @param username the user submitting the token
+     * @param token the token
+     * 
+     * @return true if the token was not in the cache, false if it is a replay
+     */
+    public boolean add(String username, char[] token) {
+        return add(username, token, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a token at a given time, unless it has been seen before and not yet expired.
+     * 
+     * @param username the user submitting the token
+     * @param token the token
+     * @param time current time, in milliseconds since the epoch
+     * 
+     * @return true if the token was not in the cache, false if it is a replay
+     */
+    boolean add(String username, char[] token, long time) {
+        long digest = digestState.get().digest(username, token);
+        Stripe stripe = stripes[(int) (digest >>> 32) & (stripes.length - 1)];
+
+        boolean added;
+        synchronized (stripe) {
+            stripe.expire(time);
+            added = stripe.add(digest, time + timeToLive);
+        }
+
+        if (added) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return added;
+    }
+
+    /**
+     * Forgets a token recorded by {@link #add}, e.g. because the login submitting it failed.
+     * 
+     * @param username the user who submitted the token
+     * @param token the token
+     */
+    public void remove(String username, char[] token) {
+        long digest = digestState.get().digest(username, token);
+        Stripe stripe = stripes[(int) (digest >>> 32) & (stripes.length - 1)];
+        synchronized (stripe) {
+            stripe.remove(Long.valueOf(digest));
+        }
+    }
+
+    /**
+     * Gets the number of tokens found in the cache, i.e. the number of replays detected.
+     * 
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of tokens not found in the cache.
+     * 
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of digests removed because they expired or the cache was full.
+     * 
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of stripes.
+     * 
+     * @return number of stripes, a power of two
+     */
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Gets the number of digests currently in the cache.
+     * 
+     * @return number of cached digests
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /** One independently locked part of the cache, mapping digests to their expiry time. */
+    private class Stripe extends LinkedHashMap<Long, Long> {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = -2210418734650920317L;
+
+        /** Maximum number of digests in this stripe. */
+        private final int maxEntries;
+
+        /**
+         * Constructor.
+         * 
+         * @param max maximum number of digests in this stripe
+         */
+        Stripe(int max) {
+            super(Math.min(max, 1024));
+            maxEntries = max;
+        }
+
+        /**
+         * Adds a digest, unless it is already present.
+         * 
+         * @param digest the digest
+         * @param expires expiry time of the digest
+         * 
+         * @return true if the digest was added
+         */
+        boolean add(long digest, long expires) {
+            Long key = Long.valueOf(digest);
+            if (containsKey(key)) {
+                return false;
+            }
+            put(key, Long.valueOf(expires));
+            return true;
+        }
+
+        /**
+         * Removes expired digests.
+         * 
+         * @param now current time
+         */
+        void expire(long now) {
+            Iterator<Long> it = values().iterator();
+            while (it.hasNext() && it.next().longValue() <= now) {
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        /** {@inheritDoc} */
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Per-thread digest and buffer, reused for every token. */
+    private class DigestState {
+
+        /** SHA-256 digest. */
+        private final MessageDigest md;
+
+        /** Buffer holding the bytes to digest. */
+        private byte[] buffer = new byte[256];
+
+        /** Constructor. */
+        DigestState() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not supported by this JVM", e);
+            }
+        }
+
+        /**
+         * Computes the salted 64-bit digest of a username and token.
+         * 
+         * @param username the username
+         * @param token the token
+         * 
+         * @return the first 64 bits of the digest
+         */
+        long digest(String username, char[] token) {
+            int length = 2 * (username.length() + 1 + token.length);
+            if (buffer.length < length) {
+                buffer = new byte[length];
+            }
+
+            int pos = 0;
+            for (int i = 0; i < username.length(); i++) {
+                char c = username.charAt(i);
+                buffer[pos++] = (byte) (c >> 8);
+                buffer[pos++] = (byte) c;
+            }
+            buffer[pos++] = 0;
+            buffer[pos++] = 0;
+            for (char c : token) {
+                buffer[pos++] = (byte) (c >> 8);
+                buffer[pos++] = (byte) c;
+            }
+
+            md.update(salt);
+            md.update(buffer, 0, pos);
+            byte[] d = md.digest();
+            Arrays.fill(buffer, 0, pos, (byte) 0);
+
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (d[i] & 0xff);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks trusted-device cookies, so that a device that recently completed a multi-factor login only needs
+ * the user's password for a while, without a call to the token backends.
+ *
+ * A cookie value is <code>expiry.mac</code> : the time the device stops being trusted, in milliseconds since the
+ * epoch as hex, and the HMAC-SHA256 of the username and that time, as hex. A cookie is thereby bound to the user it
+ * was issued to and can not be extended or moved to another user without the key. Checking a cookie needs no state
+ * and compares MACs in constant time. Changing the key revokes all cookies.
+ */
+public class TrustedDevices {
+
+    /** MAC algorithm. */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** Encoding of usernames in the MAC. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The MAC key. */
+    private final SecretKeySpec key;
+
+    /** Milliseconds a device is trusted after a multi-factor login. */
+    private final long timeToLive;
+
+    /** MAC, one per thread. */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("MAC algorithm " + ALGORITHM + " not available", e);
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param keyBytes the MAC key
+     * @param ttl milliseconds a device is trusted after a multi-factor login
+     */
+    public TrustedDevices(byte[] keyBytes, long ttl) {
+        key = new SecretKeySpec(keyBytes, ALGORITHM);
+        timeToLive = ttl;
+        try {
+            Mac.getInstance(ALGORITHM).init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("MAC algorithm " + ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Gets the time a device is trusted after a multi-factor login.
+     *
+     * @return time to live, in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Issues the cookie value trusting a device for a user, who has just completed a multi-factor login on it.
+     *
+     * @param username the user
+     *
+     * @return the cookie value
+     */
+    public String issue(String username) {
+        return issue(username, System.currentTimeMillis());
+    }
+
+    /**
+     * Issues the cookie value trusting a device for a user at a given time.
+     *
+     * @param username the user
+     * @param now current time in milliseconds
+     *
+     * @return the cookie value
+     */
+    String issue(String username, long now) {
+        long expiry = now + timeToLive;
+        return Long.toHexString(expiry) + '.' + Hex.encode(mac(username, expiry));
+    }
+
+    /**
+     * Checks whether a cookie value trusts the device for a user.
+     *
+     * @param username the user
+     * @param value the cookie value, may be null
+     *
+     * @return true if the value was issued for the user and has not expired
+     */
+    public boolean isTrusted(String username, String value) {
+        return isTrusted(username, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether a cookie value trusts the device for a user at a given time.
+     *
+     * @param username the user
+     * @param value the cookie value, may be null
+     * @param now current time in milliseconds
+     *
+     * @return true if the value was issued for the user and has not expired
+     */
+    boolean isTrusted(String username, String value, long now) {
+        if (value == null) {
+            return false;
+        }
+        int dot = value.indexOf('.');
+        if (dot <= 0 || dot > 16) {
+            return false;
+        }
+        long expiry;
+        try {
+            expiry = Long.parseLong(value.substring(0, dot), 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        // cookies issued under a longer time to live only last as long as the current one allows
+        if (expiry <= now || expiry > now + timeToLive) {
+            return false;
+        }
+        byte[] presented = Hex.decode(value.substring(dot + 1));
+        return presented != null && MessageDigest.isEqual(presented, mac(username, expiry));
+    }
+
+    /**
+     * Computes the MAC of a cookie.
+     *
+     * @param username the user
+     * @param expiry time the device stops being trusted, in milliseconds since the epoch
+     *
+     * @return the MAC
+     */
+    private byte[] mac(String username, long expiry) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(UTF8));
+        mac.update((byte) 0);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (expiry >>> shift));
+        }
+        return mac.doFinal();
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A shared HTTP client for OTP validation servers, such as the YubiCloud validation service or an OATH validation
+ * server, that login modules can look up with a {@link ValidationClientCallback}.
+ *
+ * A request is sent to one server, servers being taken in turn. If that server has not answered within the hedge delay,
+ * the same request is also sent to the next server, and so on, and the first final answer is returned. The hedge delay
+ * is the 95th percentile of the recent response times, but never less than the configured minimum, so only the slowest
+ * requests are duplicated. A server that fails is replaced by the next one right away.
+ *
+ * Validation servers that synchronize with each other, like YubiCloud, answer <code>status=REPLAYED_REQUEST</code> to
+ * a hedged request whose twin reached another server first. Such an answer is not final : the client keeps waiting for
+ * the other requests, and only returns it if no server gave a final answer.
+ *
+ * Connections are kept alive and reused by the JVM's HTTP keep-alive cache (see the <code>http.keepAlive</code> and
+ * <code>http.maxConnections</code> system properties), every response body being read completely. Requests still
+ * running once an answer is returned are aborted by closing their connection, so that a slow server does not hold on
+ * to the bounded pool of daemon threads running the requests.
+ */
+public class ValidationClient {
+
+    /** Number of response times recorded before the hedge delay is derived from them. */
+    private static final long MIN_SAMPLES = 20;
+
+    /** Number of requests between two updates of the hedge delay. */
+    private static final int HEDGE_DELAY_UPDATE_INTERVAL = 64;
+
+    /** Largest response body read, in bytes. */
+    private static final int MAX_RESPONSE_LENGTH = 64 * 1024;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ValidationClient.class);
+
+    /** Name of this client. */
+    private final String name;
+
+    /** Base URLs of the validation servers. */
+    private final List<String> urls;
+
+    /** Connect timeout, in milliseconds. */
+    private final int connectTimeout;
+
+    /** Read timeout, in milliseconds. */
+    private final int readTimeout;
+
+    /** Smallest hedge delay, in nanoseconds. */
+    private final long minHedgeDelay;
+
+    /** Threads sending the requests. */
+    private final ThreadPoolExecutor executor;
+
+    /** Response times of valid answers. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Current hedge delay, in nanoseconds. */
+    private volatile long hedgeDelay;
+
+    /** Number of requests sent, used to take the servers in turn. */
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /** Number of hedged requests sent. */
+    private final AtomicLong hedgedRequests = new AtomicLong();
+
+    /** Number of answers won by a hedged request. */
+    private final AtomicLong hedgedAnswers = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param clientName name of this client
+     * @param serverUrls base URLs of the validation servers
+     * @param newConnectTimeout connect timeout, in milliseconds
+     * @param newReadTimeout read timeout, in milliseconds
+     * @param newMinHedgeDelay smallest hedge delay, in milliseconds
+     * @param threads maximum number of concurrent requests
+     */
+    public ValidationClient(String clientName, List<String> serverUrls, int newConnectTimeout, int newReadTimeout,
+            long newMinHedgeDelay, int threads) {
+        if (serverUrls.isEmpty()) {
+            throw new IllegalArgumentException("No validation server URLs configured for " + clientName);
+        }
+        name = clientName;
+        urls = Collections.unmodifiableList(new ArrayList<String>(serverUrls));
+        connectTimeout = newConnectTimeout;
+        readTimeout = newReadTimeout;
+        minHedgeDelay = TimeUnit.MILLISECONDS.toNanos(newMinHedgeDelay);
+        hedgeDelay = minHedgeDelay;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                4 * threads), new DaemonThreadFactory("validation-" + clientName));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the name of this client.
+     *
+     * @return name of the client
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the base URLs of the validation servers.
+     *
+     * @return server URLs
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * Gets the response times of valid answers.
+     *
+     * @return response time histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the current hedge delay.
+     *
+     * @return hedge delay, in milliseconds
+     */
+    public long getHedgeDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(hedgeDelay);
+    }
+
+    /**
+     * Gets the number of hedged requests sent.
+     *
+     * @return number of hedged requests
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Gets the number of answers won by a hedged request.
+     *
+     * @return number of hedged answers
+     */
+    public long getHedgedAnswers() {
+        return hedgedAnswers.get();
+    }
+
+    /**
+     * Sends a validation request, hedging it to further servers if the first does not answer in time.
+     *
+     * @param query URL-encoded query string of the request, appended to the server URL
+     *
+     * @return the first final answer, or else a replayed answer
+     *
+     * @throws IOException thrown if no server gave a valid answer in time
+     */
+    public Response validate(String query) throws IOException {
+        return validate(query, connectTimeout + readTimeout);
+    }
+
+    /**
+     * Sends a validation request within a time limit, e.g. the factor timeout of a {@link DeadlineCallback}.
+     *
+     * @param query URL-encoded query string of the request, appended to the server URL
+     * @param timeout milliseconds to wait for a valid answer, at most the connect and read timeouts
+     *
+     * @return the first final answer, or else a replayed answer
+     *
+     * @throws IOException thrown if no server gave a valid answer in time
+     */
+    public Response validate(String query, long timeout) throws IOException {
+        int count = requestCount.getAndIncrement();
+        if (count % HEDGE_DELAY_UPDATE_INTERVAL == 0) {
+            updateHedgeDelay();
+        }
+
+        CompletionService<Response> completion = new ExecutorCompletionService<Response>(executor);
+        int first = (count & Integer.MAX_VALUE) % urls.size();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeout, connectTimeout
+                + readTimeout));
+        int sent = 0;
+        int pending = 0;
+        IOException lastError = null;
+        Response replayed = null;
+        List<Request> requests = new ArrayList<Request>(urls.size());
+
+        try {
+            submit(completion, requests, urls.get(first), query);
+            sent++;
+            pending++;
+
+            while (pending > 0) {
+                Future<Response> done;
+                if (sent < urls.size()) {
+                    done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        if (trySubmit(completion, requests, urls.get((first + sent) % urls.size()), query)) {
+                            hedgedRequests.incrementAndGet();
+                            pending++;
+                        }
+                        sent++;
+                        continue;
+                    }
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    done = remaining > 0 ? completion.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (done == null) {
+                        break;
+                    }
+                }
+                pending--;
+
+                try {
+                    Response response = done.get();
+                    if (response.isFinal()) {
+                        if (sent > 1 && !response.getUrl().equals(urls.get(first))) {
+                            hedgedAnswers.incrementAndGet();
+                        }
+                        return response;
+                    }
+                    if (response.isValid()) {
+                        replayed = response;
+                        lastError = new IOException("Replayed request answer from " + response.getUrl());
+                    } else {
+                        lastError = new IOException("Invalid answer from " + response.getUrl() + ": HTTP "
+                                + response.getStatus());
+                    }
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(
+                            e.getCause());
+                }
+                log.debug("Validation request of {} failed: {}", name, lastError.getMessage());
+
+                while (pending == 0 && sent < urls.size()) {
+                    if (trySubmit(completion, requests, urls.get((first + sent) % urls.size()), query)) {
+                        pending++;
+                    }
+                    sent++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for validation servers of " + name);
+        } finally {
+            for (Request request : requests) {
+                request.abort();
+            }
+        }
+
+        if (replayed != null) {
+            return replayed;
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+        throw new IOException("No answer from validation servers of " + name + " in time");
+    }
+
+    /** Releases the threads of this client. Requests still running are completed. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Derives the hedge delay from the recorded response times. */
+    private void updateHedgeDelay() {
+        if (latency.getCount() >= MIN_SAMPLES) {
+            hedgeDelay = Math.max(minHedgeDelay, TimeUnit.MICROSECONDS.toNanos(latency.getPercentileMicros(95)));
+        }
+    }
+
+    /**
+     * Sends a request to a server.
+     *
+     * @param completion completion service collecting the answers
+     * @param requests requests sent so far, the new request is added
+     * @param url base URL of the server
+     * @param query query string of the request
+     *
+     * @throws IOException thrown if the request can not be queued
+     */
+    private void submit(CompletionService<Response> completion, List<Request> requests, String url, String query)
+            throws IOException {
+        if (!trySubmit(completion, requests, url, query)) {
+            throw new IOException("Too many concurrent requests to validation servers of " + name);
+        }
+    }
+
+
+    /**
+     * Sends a request to a server, unless too many requests are already running.
+     *
+     * @param completion completion service collecting the answers
+     * @param requests requests sent so far, the new request is added if queued
+     * @param url base URL of the server
+     * @param query query string of the request
+     *
+     * @return true if the request was queued
+     */
+    private boolean trySubmit(CompletionService<Response> completion, List<Request> requests, String url,
+            String query) {
+        Request request = new Request(url, query);
+        try {
+            completion.submit(request);
+            requests.add(request);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("Too many concurrent requests to validation servers of {}, not sending to {}", name, url);
+            return false;
+        }
+    }
+
+    /** One HTTP request to one validation server. */
+    private class Request implements Callable<Response> {
+
+        /** Base URL of the server. */
+        private final String url;
+
+        /** Query string of the request. */
+        private final String query;
+
+        /** Whether the answer is no longer needed. */
+        private volatile boolean aborted;
+
+        /** The connection while the request is running. */
+        private volatile HttpURLConnection connection;
+
+        /**
+         * Constructor.
+         *
+         * @param serverUrl base URL of the server
+         * @param requestQuery query string of the request
+         */
+        Request(String serverUrl, String requestQuery) {
+            url = serverUrl;
+            query = requestQuery;
+        }
+
+        /**
+         * Gives up the request if it has not completed yet. The connection of a running request is closed rather than
+         * returned to the keep-alive cache, freeing the thread at once.
+         */
+        void abort() {
+            aborted = true;
+            HttpURLConnection running = connection;
+            if (running != null) {
+                running.disconnect();
+            }
+        }
+
+        /** {@inheritDoc} */
+        public Response call() throws IOException {
+            if (aborted) {
+                throw new IOException("Request to " + url + " no longer needed");
+            }
+            long start = System.nanoTime();
+            String separator = url.indexOf('?') < 0 ? "?" : "&";
+            connection = (HttpURLConnection) new URL(url + separator + query).openConnection();
+            if (aborted) {
+                throw new IOException("Request to " + url + " no longer needed");
+            }
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            connection.setInstanceFollowRedirects(false);
+
+            int status;
+            InputStream in;
+            try {
+                status = connection.getResponseCode();
+                in = status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection
+                        .getErrorStream();
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+
+            byte[] body = readFully(in);
+            connection = null;
+            Response response = new Response(url, status, new String(body, "UTF-8"));
+            if (response.isValid()) {
+                latency.record(System.nanoTime() - start);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Reads and closes a response body, so that the connection is returned to the keep-alive cache.
+     *
+     * @param in the response body, or null
+     *
+     * @return the body, at most {@link #MAX_RESPONSE_LENGTH} bytes
+     *
+     * @throws IOException thrown if the body can not be read
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+        byte[] buffer = new byte[4096];
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (body.size() < MAX_RESPONSE_LENGTH) {
+                    body.write(buffer, 0, Math.min(n, MAX_RESPONSE_LENGTH - body.size()));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return body.toByteArray();
+    }
+
+    /** The answer of a validation server. */
+    public static class Response {
+
+        /** Base URL of the server that answered. */
+        private final String url;
+
+        /** HTTP status code. */
+        private final int status;
+
+        /** Response body. */
+        private final String body;
+
+        /** Lazily parsed <code>key=value</code> lines of the body. */
+        private Map<String, String> fields;
+
+        /**
+         * Constructor.
+         *
+         * @param serverUrl base URL of the server that answered
+         * @param newStatus HTTP status code
+         * @param newBody response body
+         */
+        public Response(String serverUrl, int newStatus, String newBody) {
+            url = serverUrl;
+            status = newStatus;
+            body = newBody;
+        }
+
+        /**
+         * Gets the base URL of the server that answered.
+         *
+         * @return server URL
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Gets the HTTP status code.
+         *
+         * @return status code
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Gets the response body.
+         *
+         * @return the body
+         */
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * Whether this is a valid answer, an HTTP 200 with a body. Whether the OTP was accepted is up to the caller.
+         *
+         * @return true if the answer is valid
+         */
+        public boolean isValid() {
+            return status == HttpURLConnection.HTTP_OK && body.length() > 0;
+        }
+
+        /**
+         * Whether this is a final answer : a valid answer other than <code>status=REPLAYED_REQUEST</code>, which a
+         * synchronized validation server may give to a hedged request while another server answers the original one.
+         *
+         * @return true if the answer is final
+         */
+        public boolean isFinal() {
+            return isValid() && !"REPLAYED_REQUEST".equals(getField("status"));
+        }
+
+        /**
+         * Gets a field of a response made of <code>key=value</code> lines, such as the <code>status</code> of a
+         * YubiKey validation server.
+         *
+         * @param key the field name
+         *
+         * @return the field value, or null
+         */
+        public synchronized String getField(String key) {
+            if (fields == null) {
+                fields = new HashMap<String, String>();
+                for (String line : body.split("\r?\n")) {
+                    int eq = line.indexOf('=');
+                    if (eq > 0) {
+                        fields.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+                    }
+                }
+            }
+            return fields.get(key);
+        }
+    }
+}
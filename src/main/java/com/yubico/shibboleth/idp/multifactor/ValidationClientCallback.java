@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import javax.security.auth.callback.Callback;
+
+/**
+ * A JAAS {@link Callback} with which a login module looks up a shared {@link ValidationClient} of
+ * {@link MultiFactorAuthLoginServlet}, instead of opening its own connections to the validation servers:
+ *
+ * <pre>
+ * ValidationClientCallback vcb = new ValidationClientCallback(&quot;yubicloud&quot;);
+ * callbackHandler.handle(new Callback[] {vcb});
+ * ValidationClient client = vcb.getClient();
+ * </pre>
+ *
+ * The client is null if the servlet has no client of that name, login modules should then fall back to their own.
+ */
+public class ValidationClientCallback implements Callback {
+
+    /** Name of the requested client, or null for the default client. */
+    private final String name;
+
+    /** The client, set by the callback handler. */
+    private ValidationClient client;
+
+    /**
+     * Constructor.
+     *
+     * @param clientName name of the requested client, or null for the first configured client
+     */
+    public ValidationClientCallback(String clientName) {
+        name = clientName;
+    }
+
+    /**
+     * Gets the name of the requested client.
+     *
+     * @return client name, or null for the default client
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the client.
+     *
+     * @return the client, or null if not available
+     */
+    public ValidationClient getClient() {
+        return client;
+    }
+
+    /**
+     * Sets the client.
+     *
+     * @param validationClient the client
+     */
+    public void setClient(ValidationClient validationClient) {
+        client = validationClient;
+    }
+}
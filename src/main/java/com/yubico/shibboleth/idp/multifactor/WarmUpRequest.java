@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A synthetic login request, used to warm up the extraction of authentication factors without a container. It is a
+ * POST with the given parameters and body in UTF-8 and no headers; the body can be read once, and every other request
+ * method answers null, zero or false.
+ */
+class WarmUpRequest implements InvocationHandler {
+
+    /** Character encoding of the body. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Content type of the body. */
+    private final String contentType;
+
+    /** Length of the body. */
+    private final int contentLength;
+
+    /** The body, read once. */
+    private final ByteArrayInputStream in;
+
+    /** Request parameters. */
+    private final Map<String, String[]> parameters;
+
+    /**
+     * Constructor.
+     *
+     * @param bodyType content type of the body
+     * @param body the body, encoded in UTF-8
+     * @param requestParameters request parameters
+     */
+    private WarmUpRequest(String bodyType, byte[] body, Map<String, String[]> requestParameters) {
+        contentType = bodyType;
+        contentLength = body.length;
+        in = new ByteArrayInputStream(body);
+        parameters = Collections.unmodifiableMap(requestParameters);
+    }
+
+    /**
+     * Creates a request.
+     *
+     * @param contentType content type of the body
+     * @param body the body, encoded in UTF-8
+     * @param parameters request parameters
+     *
+     * @return the request
+     */
+    static HttpServletRequest newRequest(String contentType, byte[] body, Map<String, String[]> parameters) {
+        return (HttpServletRequest) Proxy.newProxyInstance(WarmUpRequest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new WarmUpRequest(contentType, body, parameters));
+    }
+
+    /** {@inheritDoc} */
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("getMethod".equals(name)) {
+            return "POST";
+        } else if ("getContentType".equals(name)) {
+            return contentType;
+        } else if ("getCharacterEncoding".equals(name)) {
+            return UTF8.name();
+        } else if ("getContentLength".equals(name)) {
+            return contentLength;
+        } else if ("getInputStream".equals(name)) {
+            return new ServletInputStream() {
+                /** {@inheritDoc} */
+                public int read() {
+                    return in.read();
+                }
+
+                /** {@inheritDoc} */
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+            };
+        } else if ("getReader".equals(name)) {
+            return new BufferedReader(new InputStreamReader(in, UTF8));
+        } else if ("getParameterMap".equals(name)) {
+            return parameters;
+        } else if ("getParameterNames".equals(name)) {
+            return Collections.enumeration(parameters.keySet());
+        } else if ("getParameterValues".equals(name)) {
+            return parameters.get(args[0]);
+        } else if ("getParameter".equals(name)) {
+            String[] values = parameters.get(args[0]);
+            return values != null && values.length > 0 ? values[0] : null;
+        } else if ("getHeaders".equals(name) || "getHeaderNames".equals(name)) {
+            return Collections.enumeration(Collections.<String> emptyList());
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("toString".equals(name)) {
+            return "warm-up request";
+        }
+
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
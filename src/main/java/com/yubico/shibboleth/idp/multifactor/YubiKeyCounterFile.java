@@ -0,0 +1,342 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Usage counters of YubiKeys, kept in a memory-mapped file.
+ *
+ * The file starts with a 16 byte header (magic and number of slots), followed by one 64 byte slot per key : the
+ * public id of the key, zero padded to 32 bytes, and two 16 byte records A and B, each holding a generation, the
+ * counter value and a CRC32 of the public id, generation and value. Updates alternate between the records, so a write
+ * torn by a crash only ever damages the record being written, and the valid record with the highest generation is the
+ * current one when the file is read back.
+ *
+ * Updates reach the page cache at once and survive a crash of the JVM. Unless the file is synced on every update,
+ * updates made shortly before a crash of the operating system may be lost.
+ *
+ * A counter is only checked and advanced in memory, so all verifiers of a JVM using the same file share one instance
+ * (see {@link #open}) and a key has a single counter however many endpoints accept its OTPs. The file must not be
+ * shared between JVMs.
+ */
+class YubiKeyCounterFile {
+
+    /** Magic number at the start of the file. */
+    private static final long MAGIC = 0x594b435452000001L;
+
+    /** Size of the header. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Size of a slot. */
+    private static final int SLOT_SIZE = 64;
+
+    /** Space for the public id in a slot. */
+    private static final int ID_SIZE = 32;
+
+    /** Size of a record. */
+    private static final int RECORD_SIZE = 16;
+
+    /** Smallest number of slots of a new file. */
+    private static final int MIN_SLOTS = 64;
+
+    /** Charset of the public ids. */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** Counter files opened so far, keyed by canonical file. */
+    private static final Map<File, YubiKeyCounterFile> OPEN_FILES = new HashMap<File, YubiKeyCounterFile>();
+
+    /** The counter file. */
+    private final File file;
+
+    /** The mapped file, remapped when it grows. */
+    private volatile MappedByteBuffer map;
+
+    /** Whether every update is synced to disk. */
+    private volatile boolean sync;
+
+    /** Counters, keyed by public id. */
+    private final Map<String, Counter> counters = new HashMap<String, Counter>();
+
+    /**
+     * Constructor.
+     *
+     * @param counterFile the counter file
+     */
+    private YubiKeyCounterFile(File counterFile) {
+        file = counterFile;
+    }
+
+    /**
+     * Opens or creates a counter file and assigns slots to all keys not in it yet. A file already opened in this JVM
+     * is shared, so every key has one counter however many verifiers use it.
+     *
+     * @param file the counter file
+     * @param publicIds public ids of all keys of the verifier
+     * @param syncUpdates whether every update is synced to disk; once set by a verifier, it applies to all
+     *
+     * @return the counter file
+     *
+     * @throws IOException thrown if the file can not be read, written or is not a counter file
+     */
+    static YubiKeyCounterFile open(File file, Collection<String> publicIds, boolean syncUpdates) throws IOException {
+        File canonicalFile = file.getCanonicalFile();
+        synchronized (OPEN_FILES) {
+            YubiKeyCounterFile counterFile = OPEN_FILES.get(canonicalFile);
+            if (counterFile == null) {
+                counterFile = new YubiKeyCounterFile(canonicalFile);
+            }
+            counterFile.addKeys(publicIds);
+            if (syncUpdates) {
+                counterFile.sync = true;
+            }
+            OPEN_FILES.put(canonicalFile, counterFile);
+            return counterFile;
+        }
+    }
+
+    /**
+     * Reads the file, creating it if missing, and assigns slots to all keys not in it yet.
+     *
+     * @param publicIds public ids of the keys
+     *
+     * @throws IOException thrown if the file can not be read, written or is not a counter file
+     */
+    private synchronized void addKeys(Collection<String> publicIds) throws IOException {
+        if (map != null && counters.keySet().containsAll(publicIds)) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            int slots = 0;
+            if (raf.length() > 0) {
+                if (raf.length() < HEADER_SIZE || raf.readLong() != MAGIC) {
+                    throw new IOException(file + " is not a YubiKey counter file");
+                }
+                slots = raf.readInt();
+                if (raf.length() < HEADER_SIZE + (long) slots * SLOT_SIZE) {
+                    throw new IOException(file + " is truncated");
+                }
+            }
+
+            MappedByteBuffer existing = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots
+                    * SLOT_SIZE);
+            int used = load(existing, slots);
+
+            int needed = used;
+            for (String publicId : publicIds) {
+                if (!counters.containsKey(publicId)) {
+                    needed++;
+                }
+            }
+            if (needed > slots || slots == 0) {
+                slots = Math.max(MIN_SLOTS, 2 * needed);
+                raf.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE);
+            }
+            MappedByteBuffer grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots
+                    * SLOT_SIZE);
+            grown.putLong(0, MAGIC);
+            grown.putInt(8, slots);
+
+            for (String publicId : publicIds) {
+                if (!counters.containsKey(publicId)) {
+                    byte[] id = toIdBytes(publicId);
+                    int offset = HEADER_SIZE + used * SLOT_SIZE;
+                    for (int i = 0; i < ID_SIZE; i++) {
+                        grown.put(offset + i, id[i]);
+                    }
+                    counters.put(publicId, new Counter(offset, id, 0, -1));
+                    used++;
+                }
+            }
+            grown.force();
+            // all mappings share the page cache, so counters still writing through the previous one stay consistent
+            map = grown;
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Gets the counter of a key.
+     *
+     * @param publicId public id of the key
+     *
+     * @return the counter, or null if the key has no slot
+     */
+    synchronized Counter getCounter(String publicId) {
+        return counters.get(publicId);
+    }
+
+    /**
+     * Reads the slots in use.
+     *
+     * @param buffer the mapped file
+     * @param slots number of slots in the file
+     *
+     * @return number of slots in use, which come first in the file
+     */
+    private int load(MappedByteBuffer buffer, int slots) {
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            byte[] id = new byte[ID_SIZE];
+            for (int i = 0; i < ID_SIZE; i++) {
+                id[i] = buffer.get(offset + i);
+            }
+            int length = 0;
+            while (length < ID_SIZE && id[length] != 0) {
+                length++;
+            }
+            if (length == 0) {
+                return slot;
+            }
+
+            long generation = 0;
+            int value = -1;
+            for (int record = 0; record < 2; record++) {
+                int recordOffset = offset + ID_SIZE + record * RECORD_SIZE;
+                long recordGeneration = buffer.getLong(recordOffset);
+                int recordValue = buffer.getInt(recordOffset + 8);
+                if (buffer.getInt(recordOffset + 12) == checksum(id, recordGeneration, recordValue)
+                        && recordGeneration > generation) {
+                    generation = recordGeneration;
+                    value = recordValue;
+                }
+            }
+            String publicId = new String(id, 0, length, ASCII);
+            // counters already handed out are the only writers of their slots, so they stay authoritative
+            if (!counters.containsKey(publicId)) {
+                counters.put(publicId, new Counter(offset, id, generation, value));
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Pads a public id to the size stored in a slot.
+     *
+     * @param publicId the public id
+     *
+     * @return the padded id
+     */
+    private static byte[] toIdBytes(String publicId) {
+        byte[] id = publicId.getBytes(ASCII);
+        if (id.length == 0 || id.length > ID_SIZE) {
+            throw new IllegalArgumentException("Invalid YubiKey public id '" + publicId + "'");
+        }
+        return Arrays.copyOf(id, ID_SIZE);
+    }
+
+    /**
+     * Computes the checksum of a record.
+     *
+     * @param id padded public id
+     * @param generation generation of the record
+     * @param value counter value
+     *
+     * @return the checksum
+     */
+    private static int checksum(byte[] id, long generation, int value) {
+        CRC32 crc = new CRC32();
+        crc.update(id);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (generation >>> shift));
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(value >>> shift);
+        }
+        return (int) crc.getValue();
+    }
+
+    /** The usage counter of one key. */
+    class Counter {
+
+        /** Offset of the slot in the file. */
+        private final int offset;
+
+        /** Padded public id. */
+        private final byte[] id;
+
+        /** Generation of the current record. */
+        private long generation;
+
+        /** Current value, -1 if the key has not been used. */
+        private int value;
+
+        /**
+         * Constructor.
+         *
+         * @param slotOffset offset of the slot in the file
+         * @param paddedId padded public id
+         * @param currentGeneration generation of the current record
+         * @param currentValue current value
+         */
+        Counter(int slotOffset, byte[] paddedId, long currentGeneration, int currentValue) {
+            offset = slotOffset;
+            id = paddedId;
+            generation = currentGeneration;
+            value = currentValue;
+        }
+
+        /**
+         * Gets the current value.
+         *
+         * @return current value, -1 if the key has not been used
+         */
+        synchronized int getValue() {
+            return value;
+        }
+
+        /**
+         * Advances the counter, if the new value is higher than the current one.
+         *
+         * @param newValue the new value
+         *
+         * @return true if the counter was advanced, false if the new value is not higher
+         */
+        synchronized boolean advance(int newValue) {
+            if (newValue <= value) {
+                return false;
+            }
+            long newGeneration = generation + 1;
+            int recordOffset = offset + ID_SIZE + (int) (newGeneration & 1) * RECORD_SIZE;
+            MappedByteBuffer buffer = map;
+            buffer.putLong(recordOffset, newGeneration);
+            buffer.putInt(recordOffset + 8, newValue);
+            buffer.putInt(recordOffset + 12, checksum(id, newGeneration, newValue));
+            if (sync) {
+                buffer.force();
+            }
+            generation = newGeneration;
+            value = newValue;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Which YubiKeys are registered to which users, so that OTPs from a YubiKey not registered to the user can be
+ * rejected before any authentication backend is called.
+ *
+ * The index is read from a file listing one key per line as <code>username publicId</code>, the public id in modhex;
+ * further fields are ignored, so the key file of a {@link YubiKeyOtpVerifier} can be used as is, and lines starting
+ * with <code>#</code> are ignored. The file is memory-mapped while it is read. Only two sorted arrays of 64-bit
+ * hashes are kept : one of the users and one of the (user, public id) pairs, so a lookup is a binary search without
+ * allocation. A hash collision can only make an unregistered key look registered, leaving the OTP to the backends.
+ *
+ * When the file is checked for modifications and has only been appended to, only the new lines are read and merged
+ * into the index; any other modification reloads the whole file. Keys are therefore best added by appending, and
+ * removed by rewriting the file.
+ */
+public class YubiKeyIndex {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(YubiKeyIndex.class);
+
+    /** Timer shared by all instances, checking for modified index files. */
+    private static final ScheduledExecutorService RELOAD_TIMER = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory("MultiFactorAuth YubiKey index reloader"));
+
+    /** Largest length of a public id, in modhex characters. */
+    private static final int MAX_PUBLIC_ID_LENGTH = 32;
+
+    /** Encoding of the index file. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The index file. */
+    private final File file;
+
+    /** Current index. */
+    private volatile Snapshot current;
+
+    /** Index of the complete lines read, without a last line that may still be being written. */
+    private Snapshot complete;
+
+    /** Modification time of the file when it was last read, or -1 if it has not been read. */
+    private long lastModified = -1;
+
+    /** Length of the file when it was last read. */
+    private long fileLength;
+
+    /** Number of bytes of the file read, up to the end of the last complete line. */
+    private long parsedLength;
+
+    /** CRC32 of the bytes read, to tell an appended file from a rewritten one. */
+    private long parsedCrc;
+
+    /** Pending background modification check, if any. */
+    private ScheduledFuture<?> reloadTask;
+
+    /**
+     * Constructor. Reads the index file.
+     *
+     * @param indexFile the index file
+     *
+     * @throws IOException thrown if the file can not be read or has a malformed line
+     */
+    public YubiKeyIndex(File indexFile) throws IOException {
+        file = indexFile;
+        current = new Snapshot(new long[0], new long[0]);
+        complete = current;
+        load();
+    }
+
+    /**
+     * Determines whether any YubiKey is registered to a user.
+     *
+     * @param username the user
+     *
+     * @return true if the user is in the index
+     */
+    public boolean hasUser(String username) {
+        return Arrays.binarySearch(current.users, hash(username)) >= 0;
+    }
+
+    /**
+     * Determines whether the YubiKey that generated an OTP is registered to a user.
+     *
+     * @param username the user
+     * @param otp the OTP, shaped as checked by {@link YubiKeyOtpVerifier#isOtp(char[])}
+     *
+     * @return true if the public id of the OTP is registered to the user
+     */
+    public boolean isBound(String username, char[] otp) {
+        long id = hash(otp, 0, otp.length - YubiKeyOtpVerifier.OTP_LENGTH);
+        return Arrays.binarySearch(current.bindings, binding(hash(username), id)) >= 0;
+    }
+
+    /**
+     * Gets the number of YubiKeys in the index.
+     *
+     * @return number of (user, public id) pairs
+     */
+    public int size() {
+        return current.bindings.length;
+    }
+
+    /** Reads the new lines of the index file, or all of it if it has been rewritten, keeping the index on failure. */
+    public void refresh() {
+        try {
+            load();
+        } catch (IOException e) {
+            log.error("Unable to reload YubiKey index from " + file + ", keeping previous version", e);
+        }
+    }
+
+    /**
+     * Starts checking the index file for modifications in the background.
+     *
+     * @param pollingFrequency milliseconds between checks
+     */
+    public synchronized void startPolling(long pollingFrequency) {
+        if (pollingFrequency <= 0 || reloadTask != null) {
+            return;
+        }
+        log.debug("Checking YubiKey index {} for modifications every {} ms", file, pollingFrequency);
+        reloadTask = RELOAD_TIMER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (Throwable t) {
+                    log.error("Unexpected error checking YubiKey index " + file + " for modifications", t);
+                }
+            }
+        }, pollingFrequency, pollingFrequency, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops checking the index file for modifications. */
+    public synchronized void stopPolling() {
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+            reloadTask = null;
+        }
+    }
+
+    /**
+     * Reads the index file if it has been modified since it was last read.
+     *
+     * @throws IOException thrown if the file can not be read or has a malformed line
+     */
+    private synchronized void load() throws IOException {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == lastModified && length == fileLength) {
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large for a YubiKey index");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            CRC32 crc = new CRC32();
+            int from = 0;
+            if (parsedLength > 0 && length >= parsedLength) {
+                update(crc, map, 0, (int) parsedLength);
+                if (crc.getValue() == parsedCrc) {
+                    from = (int) parsedLength;
+                } else {
+                    crc.reset();
+                }
+            }
+
+            Parser parser = new Parser(map, from, (int) length);
+            parser.parse();
+            update(crc, map, from, parser.end);
+            Snapshot base = from > 0 ? complete : new Snapshot(new long[0], new long[0]);
+            Snapshot merged = base.merge(parser.users, parser.completeCount, parser.bindings, parser.completeCount);
+            Snapshot loaded = merged;
+            int partial = parser.bindingCount - parser.completeCount;
+            if (partial > 0) {
+                loaded = merged.merge(Arrays.copyOfRange(parser.users, parser.completeCount, parser.userCount),
+                        partial, Arrays.copyOfRange(parser.bindings, parser.completeCount, parser.bindingCount),
+                        partial);
+            }
+            current = loaded;
+            complete = merged;
+            if (from > 0) {
+                log.debug("Read {} new YubiKeys from index {}", parser.bindingCount, file);
+            } else {
+                log.debug("Loaded {} YubiKeys from index {}", current.bindings.length, file);
+            }
+            parsedLength = parser.end;
+            parsedCrc = crc.getValue();
+            lastModified = modified;
+            fileLength = length;
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Adds a range of a mapped file to a CRC.
+     *
+     * @param crc the CRC
+     * @param map the mapped file
+     * @param from index of the first byte
+     * @param to index after the last byte
+     */
+    private static void update(CRC32 crc, MappedByteBuffer map, int from, int to) {
+        byte[] chunk = new byte[8192];
+        for (int position = from; position < to; position += chunk.length) {
+            int n = Math.min(chunk.length, to - position);
+            for (int i = 0; i < n; i++) {
+                chunk[i] = map.get(position + i);
+            }
+            crc.update(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Hashes a username.
+     *
+     * @param username the username
+     *
+     * @return 64-bit FNV-1a hash of the characters
+     */
+    static long hash(String username) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            h = (h ^ username.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Hashes a public id, ignoring case.
+     *
+     * @param chars the characters
+     * @param from index of the first character of the public id
+     * @param to index after the last character of the public id
+     *
+     * @return 64-bit FNV-1a hash of the lower case characters
+     */
+    static long hash(char[] chars, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            h = (h ^ Character.toLowerCase(chars[i])) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Combines the hashes of a user and a public id.
+     *
+     * @param user hash of the username
+     * @param publicId hash of the public id
+     *
+     * @return hash of the pair
+     */
+    private static long binding(long user, long publicId) {
+        long h = user ^ Long.rotateLeft(publicId, 31) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** The index at one point in time. */
+    private static class Snapshot {
+
+        /** Hashes of the users, sorted and distinct. */
+        private final long[] users;
+
+        /** Hashes of the (user, public id) pairs, sorted and distinct. */
+        private final long[] bindings;
+
+        /**
+         * Constructor.
+         *
+         * @param userHashes hashes of the users, sorted and distinct
+         * @param bindingHashes hashes of the pairs, sorted and distinct
+         */
+        Snapshot(long[] userHashes, long[] bindingHashes) {
+            users = userHashes;
+            bindings = bindingHashes;
+        }
+
+        /**
+         * Creates the snapshot holding this one's entries and new ones.
+         *
+         * @param newUsers hashes of new users, in any order
+         * @param userCount number of new users
+         * @param newBindings hashes of new pairs, in any order
+         * @param bindingCount number of new pairs
+         *
+         * @return the merged snapshot
+         */
+        Snapshot merge(long[] newUsers, int userCount, long[] newBindings, int bindingCount) {
+            return new Snapshot(merge(users, newUsers, userCount), merge(bindings, newBindings, bindingCount));
+        }
+
+        /**
+         * Merges new hashes into a sorted array.
+         *
+         * @param sorted sorted and distinct hashes
+         * @param added new hashes, in any order, sorted in place
+         * @param count number of new hashes
+         *
+         * @return sorted and distinct hashes of both
+         */
+        private static long[] merge(long[] sorted, long[] added, int count) {
+            Arrays.sort(added, 0, count);
+            long[] merged = new long[sorted.length + count];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < sorted.length || j < count) {
+                long next;
+                if (j == count || i < sorted.length && sorted[i] <= added[j]) {
+                    next = sorted[i++];
+                } else {
+                    next = added[j++];
+                }
+                if (n == 0 || merged[n - 1] != next) {
+                    merged[n++] = next;
+                }
+            }
+            return n == merged.length ? merged : Arrays.copyOf(merged, n);
+        }
+    }
+
+    /** Parser of a range of the index file. */
+    private class Parser {
+
+        /** The mapped file. */
+        private final MappedByteBuffer map;
+
+        /** Index of the first byte to parse, at the start of a line. */
+        private final int start;
+
+        /** Index after the last byte of the file. */
+        private final int limit;
+
+        /** Index after the last complete line parsed. */
+        private int end;
+
+        /** Hashes of the users read. */
+        private long[] users = new long[64];
+
+        /** Number of users read. */
+        private int userCount;
+
+        /** Hashes of the pairs read. */
+        private long[] bindings = new long[64];
+
+        /** Number of pairs read. */
+        private int bindingCount;
+
+        /** Number of users and pairs read from complete lines. */
+        private int completeCount;
+
+        /**
+         * Constructor.
+         *
+         * @param mappedFile the mapped file
+         * @param from index of the first byte to parse, at the start of a line
+         * @param to index after the last byte of the file
+         */
+        Parser(MappedByteBuffer mappedFile, int from, int to) {
+            map = mappedFile;
+            start = from;
+            limit = to;
+            end = from;
+        }
+
+        /**
+         * Parses all lines. A last line without a line break is parsed too, but kept out of the index of complete
+         * lines and read again on the next refresh as it may still be being written, and is skipped if malformed.
+         *
+         * @throws IOException thrown if a complete line is malformed
+         */
+        void parse() throws IOException {
+            byte[] line = new byte[256];
+            int lineStart = start;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && map.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                boolean complete = lineEnd < limit;
+                int length = lineEnd - lineStart;
+                if (line.length < length) {
+                    line = new byte[length];
+                }
+                for (int i = 0; i < length; i++) {
+                    line[i] = map.get(lineStart + i);
+                }
+                if (!parseLine(line, length) && complete) {
+                    throw new IOException(file + " at byte " + lineStart + ": expected username publicId");
+                }
+                if (complete) {
+                    end = lineEnd + 1;
+                    completeCount = bindingCount;
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+
+        /**
+         * Parses one line.
+         *
+         * @param line bytes of the line
+         * @param length length of the line
+         *
+         * @return false if the line is malformed
+         */
+        private boolean parseLine(byte[] line, int length) {
+            int i = skip(line, 0, length, true);
+            if (i == length || line[i] == '#') {
+                return true;
+            }
+            int userEnd = skip(line, i, length, false);
+            int idStart = skip(line, userEnd, length, true);
+            int idEnd = skip(line, idStart, length, false);
+            int idLength = idEnd - idStart;
+            if (idLength == 0 || idLength > MAX_PUBLIC_ID_LENGTH) {
+                return false;
+            }
+            char[] id = new char[idLength];
+            for (int c = 0; c < idLength; c++) {
+                id[c] = (char) line[idStart + c];
+            }
+            if (!ModHex.isModHex(id, 0, idLength)) {
+                return false;
+            }
+
+            long user = hash(new String(line, i, userEnd - i, UTF8));
+            if (userCount == users.length) {
+                users = Arrays.copyOf(users, 2 * users.length);
+                bindings = Arrays.copyOf(bindings, 2 * bindings.length);
+            }
+            users[userCount++] = user;
+            bindings[bindingCount++] = binding(user, hash(id, 0, idLength));
+            return true;
+        }
+
+        /**
+         * Skips separators, or the characters of a field.
+         *
+         * @param line bytes of the line
+         * @param from index to start at
+         * @param length length of the line
+         * @param separators true to skip separators, false to skip a field
+         *
+         * @return index of the first byte not skipped
+         */
+        private int skip(byte[] line, int from, int length, boolean separators) {
+            int i = from;
+            while (i < length && isSeparator(line[i]) == separators) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Determines whether a byte separates fields.
+         *
+         * @param b the byte
+         *
+         * @return true for white space and commas
+         */
+        private boolean isSeparator(byte b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == ',';
+        }
+    }
+}
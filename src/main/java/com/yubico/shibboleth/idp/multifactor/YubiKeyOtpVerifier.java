@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FactorVerifier} checking Yubico OTPs locally, without calling a validation server.
+ *
+ * The OTP is decrypted with the AES key of the YubiKey named by its public id, and accepted if the CRC and private id
+ * match and the session and usage counters are higher than in the last accepted OTP of the key. The counters are kept
+ * in a memory-mapped {@link YubiKeyCounterFile}, so they survive restarts, and are shared by all verifiers of the JVM
+ * using the same counter file, so an OTP accepted by one endpoint is rejected by the others.
+ *
+ * Options :
+ * <ul>
+ * <li><code>keyFile</code> - file listing the keys, one per line as
+ * <code>username publicId privateId aesKey</code>, the public id in modhex, the private id and AES key in hex; lines
+ * starting with <code>#</code> are ignored (required)</li>
+ * <li><code>counterFile</code> - file holding the counters, created if missing (required)</li>
+ * <li><code>counterFileSync</code> - <code>true</code> to sync the counter file to disk on every accepted OTP,
+ * surviving crashes of the operating system too (default <code>false</code>)</li>
+ * </ul>
+ *
+ * This verifier handles every token shaped like a Yubico OTP, and is typically configured next to a
+ * {@link JaasFactorVerifier} checking the password.
+ */
+public class YubiKeyOtpVerifier implements FactorVerifier {
+
+    /** Length of the encrypted part of an OTP, in modhex characters. */
+    static final int OTP_LENGTH = 32;
+
+    /** Largest length of a public id, in modhex characters. */
+    private static final int MAX_PUBLIC_ID_LENGTH = 32;
+
+    /** Length of the private id, in bytes. */
+    private static final int PRIVATE_ID_LENGTH = 6;
+
+    /** CRC16 residue of a valid OTP. */
+    private static final int CRC_OK_RESIDUE = 0xf0b8;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(YubiKeyOtpVerifier.class);
+
+    /** Name of this verifier. */
+    private String name;
+
+    /** Keys, by public id. */
+    private Map<String, Key> keys;
+
+    /** AES ciphers, one per thread. */
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/ECB/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES not available", e);
+            }
+        }
+    };
+
+    /** {@inheritDoc} */
+    public void initialize(String newName, Map<String, String> options) throws IOException {
+        name = newName;
+
+        String keyFile = options.get("keyFile");
+        if (keyFile == null) {
+            throw new IllegalArgumentException("Option keyFile is required");
+        }
+        String counterFile = options.get("counterFile");
+        if (counterFile == null) {
+            throw new IllegalArgumentException("Option counterFile is required");
+        }
+
+        keys = readKeys(new File(keyFile));
+        YubiKeyCounterFile counters = YubiKeyCounterFile.open(new File(counterFile), keys.keySet(),
+                Boolean.parseBoolean(options.get("counterFileSync")));
+        for (Key key : keys.values()) {
+            key.counter = counters.getCounter(key.publicId);
+        }
+        log.debug("Factor verifier {} loaded {} YubiKeys from {}", new Object[] {name, keys.size(), keyFile});
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return name;
+    }
+
+    /** {@inheritDoc} */
+    public boolean handles(int position, char[] factor) {
+        return position > 0 && isOtp(factor);
+    }
+
+    /**
+     * Determines whether a token is shaped like a Yubico OTP : a public id of up to 32 modhex characters followed by
+     * 32 modhex characters.
+     *
+     * @param factor the token
+     *
+     * @return true if the token has the length and characters of a Yubico OTP
+     */
+    static boolean isOtp(char[] factor) {
+        return factor.length > OTP_LENGTH && factor.length <= OTP_LENGTH + MAX_PUBLIC_ID_LENGTH
+                && ModHex.isModHex(factor, 0, factor.length);
+    }
+
+    /** {@inheritDoc} */
+    public void verify(String username, char[] factor, Subject subject) throws LoginException {
+        int idLength = factor.length - OTP_LENGTH;
+        String publicId = new String(factor, 0, idLength).toLowerCase();
+        Key key = keys.get(publicId);
+        if (key == null || !key.username.equals(username)) {
+            throw new FailedLoginException("YubiKey " + publicId + " is not registered to " + username);
+        }
+
+        byte[] encrypted = ModHex.decode(factor, idLength, factor.length);
+        byte[] otp;
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key.aesKey);
+            otp = cipher.doFinal(encrypted);
+        } catch (GeneralSecurityException e) {
+            throw new LoginException("Unable to decrypt OTP of YubiKey " + publicId + ": " + e);
+        }
+
+        try {
+            if (crc16(otp) != CRC_OK_RESIDUE
+                    || !MessageDigest.isEqual(key.privateId, Arrays.copyOf(otp, PRIVATE_ID_LENGTH))) {
+                throw new FailedLoginException("Invalid OTP from YubiKey " + publicId);
+            }
+
+            int sessionCounter = (otp[6] & 0xff | (otp[7] & 0xff) << 8) & 0x7fff;
+            int sessionUse = otp[11] & 0xff;
+            if (!key.counter.advance(sessionCounter << 8 | sessionUse)) {
+                throw new MultiFactorAuthLoginException(MultiFactorAuthLoginException.Reason.TOKEN_REPLAYED,
+                        "Replayed OTP from YubiKey " + publicId);
+            }
+        } finally {
+            Arrays.fill(otp, (byte) 0);
+        }
+    }
+
+    /**
+     * Reads the key file.
+     *
+     * @param file the key file
+     *
+     * @return the keys, by public id
+     *
+     * @throws IOException thrown if the file can not be read or has a malformed line
+     */
+    private static Map<String, Key> readKeys(File file) throws IOException {
+        Map<String, Key> keys = new HashMap<String, Key>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[,\\s]+");
+                if (fields.length != 4) {
+                    throw new IOException(file + " line " + lineNumber + ": expected username publicId privateId "
+                            + "aesKey");
+                }
+                String publicId = fields[1].toLowerCase();
+                if (publicId.length() > MAX_PUBLIC_ID_LENGTH || !ModHex.isModHex(publicId.toCharArray(), 0,
+                        publicId.length())) {
+                    throw new IOException(file + " line " + lineNumber + ": invalid public id");
+                }
+                byte[] privateId = Hex.decode(fields[2]);
+                byte[] aesKey = Hex.decode(fields[3]);
+                if (privateId == null || privateId.length != PRIVATE_ID_LENGTH || aesKey == null
+                        || aesKey.length != 16) {
+                    throw new IOException(file + " line " + lineNumber + ": invalid private id or AES key");
+                }
+                if (keys.put(publicId, new Key(fields[0], publicId, privateId, aesKey)) != null) {
+                    throw new IOException(file + " line " + lineNumber + ": duplicate public id " + publicId);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return keys;
+    }
+
+    /**
+     * Computes the ISO 13239 CRC16 of a decrypted OTP.
+     *
+     * @param otp the decrypted OTP
+     *
+     * @return the CRC, {@link #CRC_OK_RESIDUE} for a valid OTP
+     */
+    static int crc16(byte[] otp) {
+        int crc = 0xffff;
+        for (byte b : otp) {
+            crc ^= b & 0xff;
+            for (int i = 0; i < 8; i++) {
+                int carry = crc & 1;
+                crc >>= 1;
+                if (carry != 0) {
+                    crc ^= 0x8408;
+                }
+            }
+        }
+        return crc;
+    }
+
+    /** A YubiKey. */
+    private static class Key {
+
+        /** User owning the key. */
+        private final String username;
+
+        /** Public id, in modhex. */
+        private final String publicId;
+
+        /** Private id. */
+        private final byte[] privateId;
+
+        /** AES key. */
+        private final SecretKeySpec aesKey;
+
+        /** Usage counter. */
+        private YubiKeyCounterFile.Counter counter;
+
+        /**
+         * Constructor.
+         *
+         * @param owner user owning the key
+         * @param id public id, in modhex
+         * @param newPrivateId private id
+         * @param newAesKey AES key
+         */
+        Key(String owner, String id, byte[] newPrivateId, byte[] newAesKey) {
+            username = owner;
+            publicId = id;
+            privateId = newPrivateId;
+            aesKey = new SecretKeySpec(newAesKey, "AES");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of {@link AsyncLogin}. */
+public class AsyncLoginTest {
+
+    /** Calls made to the asynchronous context, e.g. "dispatch /login.jsp". */
+    private final List<String> calls = new ArrayList<String>();
+
+    /** Status set on the response. */
+    private final int[] status = {0};
+
+    /** Body written to the response. */
+    private final StringWriter body = new StringWriter();
+
+    /** The login under test. */
+    private AsyncLogin asyncLogin;
+
+    /** Creates the login. */
+    @Before
+    public void setUp() {
+        HttpServletRequest request = MockServlets.request("/Authn/MultiFactor", new HashMap<String, String[]>());
+        final HttpServletResponse response = MockServlets.response(status, body);
+        AsyncContext context = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {AsyncContext.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getResponse".equals(method.getName())) {
+                            return response;
+                        }
+                        calls.add(args == null ? method.getName() : method.getName() + " " + args[0]);
+                        return null;
+                    }
+                });
+        asyncLogin = new AsyncLogin(context, request, response, 5000);
+        calls.clear();
+    }
+
+    /** A forward of the login is dispatched by the container, and ends the asynchronous request. */
+    @Test
+    public void testForwardDispatches() throws Exception {
+        asyncLogin.getRequest().getRequestDispatcher("/login.jsp").forward(asyncLogin.getRequest(),
+                asyncLogin.getResponse());
+        asyncLogin.complete();
+
+        assertEquals(1, calls.size());
+        assertEquals("dispatch /login.jsp", calls.get(0));
+        assertTrue(asyncLogin.isCompleted());
+    }
+
+    /** A login ended by a timeout no longer reaches the response. */
+    @Test
+    public void testTimeoutEndsLogin() throws Exception {
+        asyncLogin.onTimeout(new AsyncEvent(null));
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, status[0]);
+
+        asyncLogin.getResponse().setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        asyncLogin.getResponse().getWriter().write("late");
+        asyncLogin.getRequest().getRequestDispatcher("/login.jsp").forward(asyncLogin.getRequest(),
+                asyncLogin.getResponse());
+        asyncLogin.complete();
+        asyncLogin.onError(new AsyncEvent(null));
+
+        assertEquals(1, calls.size());
+        assertEquals("complete", calls.get(0));
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, status[0]);
+        assertEquals("", body.toString());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of {@link AuditLog}. */
+public class AuditLogTest {
+
+    /** The audit log file. */
+    private File file;
+
+    /** Creates the audit log file. */
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("audit", ".log");
+    }
+
+    /** Deletes the audit log file and its rolled files. */
+    @After
+    public void tearDown() {
+        file.delete();
+        for (int i = 1; i <= 3; i++) {
+            new File(file.getPath() + "." + i).delete();
+        }
+    }
+
+    /** Recorded logins are written as JSON lines, in order. */
+    @Test
+    public void testRecord() throws Exception {
+        AuditLog auditLog = new AuditLog(file, 16, 1024 * 1024, 2);
+        assertTrue(record(auditLog, "alice", LoginMetrics.Outcome.SUCCESS));
+        assertTrue(auditLog.record(null, "b\"ob", "192.0.2.2", LoginMetrics.Outcome.REJECTED,
+                MultiFactorAuthLoginException.Reason.TOKEN_REPLAYED, 1, 2000));
+        auditLog.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches(
+                "\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z\","
+                + "\"user\":\"alice\",\"client\":\"192.0.2.1\",\"outcome\":\"SUCCESS\",\"reason\":null,"
+                + "\"factors\":2,\"micros\":1000,\"backends\":\\[\\]\\}"));
+        assertTrue(lines.get(1), lines.get(1).contains("\"user\":\"b\\\"ob\",\"client\":\"192.0.2.2\","
+                + "\"outcome\":\"REJECTED\",\"reason\":\"TOKEN_REPLAYED\",\"factors\":1,\"micros\":2,"));
+    }
+
+    /** Logins recorded while the ring buffer is full are dropped and counted. */
+    @Test
+    public void testDropped() throws Exception {
+        AuditLog auditLog = new AuditLog(file, 3, 1024 * 1024, 2, false);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(record(auditLog, "user" + i, LoginMetrics.Outcome.SUCCESS));
+        }
+        assertFalse(record(auditLog, "user4", LoginMetrics.Outcome.SUCCESS));
+        assertEquals(1, auditLog.getDropped());
+        auditLog.start();
+        auditLog.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(3), lines.get(3).contains("\"user\":\"user3\""));
+    }
+
+    /** An event that can not be formatted is skipped without stopping the writer. */
+    @Test
+    public void testMalformedEvent() throws Exception {
+        AuditLog auditLog = new AuditLog(file, 16, 1024 * 1024, 2, false);
+        assertTrue(record(auditLog, "alice", null));
+        assertTrue(record(auditLog, "bob", LoginMetrics.Outcome.SUCCESS));
+        auditLog.start();
+        auditLog.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\"user\":\"bob\""));
+    }
+
+    /** A file grown to the maximum size is rolled, and the oldest rolled file deleted. */
+    @Test
+    public void testRoll() throws Exception {
+        for (int run = 0; run < 3; run++) {
+            AuditLog auditLog = new AuditLog(file, 16, 1, 2, false);
+            for (int i = 0; i <= run; i++) {
+                record(auditLog, "run" + run, LoginMetrics.Outcome.SUCCESS);
+            }
+            auditLog.start();
+            auditLog.close();
+        }
+
+        assertEquals(0, file.length());
+        assertEquals(3, readLines(new File(file.getPath() + ".1")).size());
+        assertEquals(2, readLines(new File(file.getPath() + ".2")).size());
+        assertFalse(new File(file.getPath() + ".3").exists());
+    }
+
+    /** The size of the file is counted in bytes, not characters. */
+    @Test
+    public void testSizeInBytes() throws Exception {
+        String username = "\u00e5\u00e4\u00f6\u00e5\u00e4\u00f6\u00e5\u00e4\u00f6\u00e5\u00e4\u00f6";
+        AuditLog auditLog = new AuditLog(file, 16, 1024 * 1024, 2);
+        record(auditLog, username, LoginMetrics.Outcome.SUCCESS);
+        auditLog.close();
+        long lineBytes = file.length();
+        assertTrue(file.delete());
+
+        auditLog = new AuditLog(file, 16, lineBytes - username.length() / 2, 2);
+        record(auditLog, username, LoginMetrics.Outcome.SUCCESS);
+        auditLog.close();
+        assertEquals(0, file.length());
+        assertEquals(lineBytes, new File(file.getPath() + ".1").length());
+
+        assertEquals(1 + 2 + 3 + 4 + 1, AuditLog.utf8Length("a\u00e5\u20ac\ud83d\ude00\ud83d"));
+    }
+
+    /**
+     * Records a login without backend calls.
+     *
+     * @param auditLog the audit log
+     * @param username the user
+     * @param outcome outcome of the login
+     *
+     * @return false if the login was dropped
+     */
+    private static boolean record(AuditLog auditLog, String username, LoginMetrics.Outcome outcome) {
+        return auditLog.record(null, username, "192.0.2.1", outcome, null, 2, 1000000);
+    }
+
+    /**
+     * Reads the lines of a file.
+     *
+     * @param logFile the file
+     *
+     * @return the lines
+     *
+     * @throws IOException thrown if the file can not be read
+     */
+    private static List<String> readLines(File logFile) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yubico.shibboleth.idp.multifactor.LoginMetrics.BackendResult;
+
+/** Tests of {@link CircuitBreaker}. */
+public class CircuitBreakerTest {
+
+    /** Milliseconds a breaker stays open. */
+    private static final long OPEN_MILLIS = 100;
+
+    /** Settings of the breakers under test. */
+    private CircuitBreakers breakers;
+
+    /** The breaker under test, without a background probe. */
+    private CircuitBreaker breaker;
+
+    /** Creates a breaker opening after two failed calls. */
+    @Before
+    public void setUp() {
+        breakers = new CircuitBreakers(50, 2, 5000, 10000, OPEN_MILLIS, null, null);
+        breaker = breakers.getOrCreate("backend", null);
+    }
+
+    /** Stops the background probes. */
+    @After
+    public void tearDown() {
+        breakers.shutdown();
+    }
+
+    /** The breaker opens once the failure rate is reached, and closes after a successful trial call. */
+    @Test
+    public void testTrialClosesBreaker() throws Exception {
+        openBreaker();
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.checkAllowed();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertRejected();
+
+        breaker.record(BackendResult.SUCCESS, 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.checkAllowed();
+    }
+
+    /** A trial call that is never recorded does not leave the breaker half-open forever. */
+    @Test
+    public void testUnrecordedTrialReopensBreaker() throws Exception {
+        openBreaker();
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.checkAllowed();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        assertRejected();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenCount());
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.checkAllowed();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    /**
+     * Opens the breaker with two failed calls.
+     *
+     * @throws Exception thrown if the breaker does not open
+     */
+    private void openBreaker() throws Exception {
+        breaker.checkAllowed();
+        breaker.record(BackendResult.ERROR, 1000);
+        breaker.record(BackendResult.ERROR, 1000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertRejected();
+    }
+
+    /** Checks that the breaker rejects a call. */
+    private void assertRejected() {
+        try {
+            breaker.checkAllowed();
+            fail("Call allowed through circuit breaker in state " + breaker.getState());
+        } catch (MultiFactorAuthLoginException e) {
+            assertEquals(MultiFactorAuthLoginException.Reason.BACKEND_UNAVAILABLE, e.getReason());
+        }
+    }
+}
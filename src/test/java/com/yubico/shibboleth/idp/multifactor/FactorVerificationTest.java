@@ -0,0 +1,237 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests of {@link FactorVerification}. */
+public class FactorVerificationTest {
+
+    /** The verification under test. */
+    private FactorVerification verification;
+
+    /** Shuts down the verification. */
+    @After
+    public void tearDown() {
+        if (verification != null) {
+            verification.shutdown();
+        }
+    }
+
+    /** A login succeeds if every verifier accepts its factors, with the principals of all of them. */
+    @Test
+    public void testAllVerifiersPass() throws Exception {
+        verification = newVerification(new TestVerifier("password", false), new TestVerifier("token", false));
+        Subject subject = verification.verify("alice", secrets("valid", "valid"));
+
+        assertEquals(2, subject.getPrincipals().size());
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("password")));
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("token")));
+    }
+
+    /** The first failing factor fails the login and interrupts the verifications still running. */
+    @Test
+    public void testFailureCancelsOthers() throws Exception {
+        TestVerifier token = new TestVerifier("token", true);
+        verification = newVerification(new TestVerifier("password", false, token.started), token);
+        LoginAttempt attempt = new LoginAttempt(null, "alice");
+        try {
+            verification.verify("alice", secrets("wrong", "valid"), false, attempt);
+            fail("Login with a wrong password accepted");
+        } catch (FailedLoginException e) {
+            assertEquals("password rejected", e.getMessage());
+        }
+
+        assertTrue(token.interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(attempt.isAbandoned());
+    }
+
+    /** The buffers of a login whose verifications were abandoned are wiped, but not returned to the pool. */
+    @Test
+    public void testAbandonedAttemptDoesNotRecycle() throws Exception {
+        TestVerifier token = new TestVerifier("token", true);
+        verification = newVerification(new TestVerifier("password", false, token.started), token);
+        SecretPool pool = new SecretPool(16, 4);
+        LoginFactors factors = new LoginFactors(1, 16, pool);
+        factors.setPassword(factors.newSecret("wrong"));
+        factors.addToken(LoginFactors.UNINDEXED, factors.newSecret("valid"));
+        List<char[]> secrets = factors.getSecrets();
+        LoginAttempt attempt = new LoginAttempt(null, "alice");
+        try {
+            verification.verify("alice", secrets, false, attempt);
+            fail("Login with a wrong password accepted");
+        } catch (FailedLoginException e) {
+            factors.wipe(!attempt.isAbandoned());
+        }
+
+        assertTrue(attempt.isAbandoned());
+        assertArrayEquals(new char[5], secrets.get(0));
+        assertArrayEquals(new char[5], secrets.get(1));
+        assertEquals(0, pool.getFree(5));
+    }
+
+    /** A factor no verifier handles, or a verifier given no factor, fails the login without verifying anything. */
+    @Test
+    public void testUnhandledFactor() throws Exception {
+        TestVerifier password = new TestVerifier("password", false);
+        verification = newVerification(password, new TestVerifier("token", false));
+        try {
+            verification.verify("alice", secrets("valid", "valid", "valid"));
+            fail("Login with an unhandled factor accepted");
+        } catch (FailedLoginException e) {
+            assertEquals("No verifier handles authentication factor 2", e.getMessage());
+        }
+        try {
+            verification.verify("alice", secrets("valid"));
+            fail("Login without a token accepted");
+        } catch (FailedLoginException e) {
+            assertEquals("No authentication factor for verifier token", e.getMessage());
+        }
+        assertEquals(0, password.calls);
+    }
+
+    /**
+     * Creates a verification by a password and a token verifier.
+     *
+     * @param password verifier of the password
+     * @param token verifier of the first token
+     *
+     * @return the verification
+     */
+    private static FactorVerification newVerification(TestVerifier password, TestVerifier token) {
+        return new FactorVerification(Arrays.<FactorVerifier> asList(password, token), FactorVerification
+                .newExecutor(2));
+    }
+
+    /**
+     * Creates the secrets of a login.
+     *
+     * @param factors the password and tokens
+     *
+     * @return the secrets
+     */
+    private static List<char[]> secrets(String... factors) {
+        char[][] secrets = new char[factors.length][];
+        for (int i = 0; i < factors.length; i++) {
+            secrets[i] = factors[i].toCharArray();
+        }
+        return Arrays.asList(secrets);
+    }
+
+    /**
+     * Verifier of the password, or of the first token, accepting the factor "valid". It can wait for another
+     * verification to start before answering, or block until interrupted.
+     */
+    private static class TestVerifier implements FactorVerifier {
+
+        /** Name of the verifier, also "password" for the verifier of the password. */
+        private final String name;
+
+        /** Whether verifications block until interrupted. */
+        private final boolean blocking;
+
+        /** Verification to wait for, or null. */
+        private final CountDownLatch waitFor;
+
+        /** Counted down once a verification has started. */
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        /** Counted down once a blocked verification has been interrupted. */
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        /** Number of verifications. */
+        private volatile int calls;
+
+        /**
+         * Constructor.
+         *
+         * @param verifierName name of the verifier
+         * @param block whether verifications block until interrupted
+         */
+        TestVerifier(String verifierName, boolean block) {
+            this(verifierName, block, null);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param verifierName name of the verifier
+         * @param block whether verifications block until interrupted
+         * @param other verification to wait for before answering, or null
+         */
+        TestVerifier(String verifierName, boolean block, CountDownLatch other) {
+            name = verifierName;
+            blocking = block;
+            waitFor = other;
+        }
+
+        /** {@inheritDoc} */
+        public void initialize(String verifierName, Map<String, String> options) {
+        }
+
+        /** {@inheritDoc} */
+        public String getName() {
+            return name;
+        }
+
+        /** {@inheritDoc} */
+        public boolean handles(int position, char[] factor) {
+            return "password".equals(name) ? position == 0 : position == 1;
+        }
+
+        /** {@inheritDoc} */
+        public void verify(String username, char[] factor, Subject subject) throws LoginException {
+            calls++;
+            started.countDown();
+            try {
+                if (waitFor != null) {
+                    waitFor.await(5, TimeUnit.SECONDS);
+                }
+                if (blocking) {
+                    Thread.sleep(10000);
+                }
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new LoginException(name + " interrupted");
+            }
+            if (!"valid".equals(new String(factor))) {
+                throw new FailedLoginException(name + " rejected");
+            }
+            subject.getPrincipals().add(new UsernamePrincipal(name));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests of {@link FirstFactorCache}. */
+public class FirstFactorCacheTest {
+
+    /** PBKDF2 iteration count, low to keep the tests fast. */
+    private static final int ITERATIONS = 10;
+
+    /** A verified password is remembered, with the principals of its login, until its time to live has passed. */
+    @Test
+    public void testTimeToLive() {
+        FirstFactorCache cache = new FirstFactorCache(1000, 10, ITERATIONS);
+        long now = System.currentTimeMillis();
+        Set<Principal> principals = new LinkedHashSet<Principal>(Arrays.<Principal> asList(new UsernamePrincipal(
+                "uid=alice,ou=people")));
+        cache.put("alice", "secret".toCharArray(), principals, now);
+
+        assertEquals(principals, cache.getVerifiedPrincipals("alice", "secret".toCharArray(), now + 999));
+        assertNull(cache.getVerifiedPrincipals("alice", "secret".toCharArray(), now + 1000));
+        assertNull(cache.getHash("alice", now));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /** Another password, or the password of another user, does not match. */
+    @Test
+    public void testWrongPassword() {
+        FirstFactorCache cache = new FirstFactorCache(60000, 10, ITERATIONS);
+        long now = System.currentTimeMillis();
+        cache.put("alice", "secret".toCharArray(), Collections.<Principal> emptySet(), now);
+
+        assertNull(cache.getVerifiedPrincipals("alice", "Secret".toCharArray(), now));
+        assertNull(cache.getVerifiedPrincipals("bob", "secret".toCharArray(), now));
+        assertNotNull(cache.getVerifiedPrincipals("alice", "secret".toCharArray(), now));
+        assertEquals(2, cache.getMisses());
+    }
+
+    /** A full cache forgets the least recently used user first. */
+    @Test
+    public void testLeastRecentlyUsed() {
+        FirstFactorCache cache = new FirstFactorCache(60000, 2, ITERATIONS);
+        long now = System.currentTimeMillis();
+        Set<Principal> none = Collections.<Principal> emptySet();
+        cache.put("alice", "secret".toCharArray(), none, now);
+        cache.put("bob", "secret".toCharArray(), none, now);
+        assertNotNull(cache.getVerifiedPrincipals("alice", "secret".toCharArray(), now));
+        cache.put("carol", "secret".toCharArray(), none, now);
+
+        assertNotNull(cache.getVerifiedPrincipals("alice", "secret".toCharArray(), now));
+        assertNull(cache.getVerifiedPrincipals("bob", "secret".toCharArray(), now));
+        assertNotNull(cache.getVerifiedPrincipals("carol", "secret".toCharArray(), now));
+    }
+
+    /** Every hash has a salt of its own, so the same password gives different hashes. */
+    @Test
+    public void testSalt() {
+        FirstFactorCache cache = new FirstFactorCache(60000, 10, ITERATIONS);
+        long now = System.currentTimeMillis();
+        Set<Principal> none = Collections.<Principal> emptySet();
+        cache.put("alice", "secret".toCharArray(), none, now);
+        cache.put("bob", "secret".toCharArray(), none, now);
+        byte[] alice = cache.getHash("alice", now);
+        byte[] bob = cache.getHash("bob", now);
+
+        assertEquals(20, alice.length);
+        assertFalse(Arrays.equals(alice, bob));
+        cache.put("alice", "secret".toCharArray(), none, now);
+        assertFalse(Arrays.equals(alice, cache.getHash("alice", now)));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/** Tests of {@link FormBodyFactorSource}. */
+public class FormBodyFactorSourceTest {
+
+    /** Content type of a form body. */
+    private static final String FORM = "application/x-www-form-urlencoded";
+
+    /** The source under test. */
+    private final FormBodyFactorSource source = new FormBodyFactorSource("j_username", "j_password", "j_tokens",
+            4096);
+
+    /** A form is decoded in its declared character encoding. */
+    @Test
+    public void testDeclaredEncoding() throws Exception {
+        LoginFactors factors = extract(FORM, "ISO-8859-1", "j_username=bj%F6rn&j_password=s%E5");
+        assertEquals("bj\u00f6rn", factors.getUsername());
+        assertEquals("s\u00e5", new String(factors.getPassword()));
+    }
+
+    /** An unsupported character encoding fails the login as invalid factors. */
+    @Test
+    public void testUnsupportedEncoding() throws Exception {
+        assertInvalid(FORM, "x-no-such-charset", "j_username=alice&j_password=secret");
+    }
+
+    /** An illegal character encoding name fails the login as invalid factors. */
+    @Test
+    public void testIllegalEncodingName() throws Exception {
+        assertInvalid(FORM, "utf 8!", "j_username=alice&j_password=secret");
+    }
+
+    /** Tokens are ordered by index, and other fields are skipped. */
+    @Test
+    public void testTokensAndOtherFields() throws Exception {
+        LoginFactors factors = extract(FORM, null, "j_tokens%5B1%5D=654321&remember=on&j_tokens[0]=123456"
+                + "&j_tokens[x]=1&j_username=alice&j_password=a+b%26c&&=");
+        assertEquals("alice", factors.getUsername());
+        assertEquals("a b&c", new String(factors.getPassword()));
+        assertEquals(2, factors.getTokenCount());
+        assertEquals("123456", new String(factors.getSecrets().get(1)));
+        assertEquals("654321", new String(factors.getSecrets().get(2)));
+    }
+
+    /** A body of another content type is ignored. */
+    @Test
+    public void testOtherContentType() throws Exception {
+        assertNull(extract("text/plain", null, "j_username=alice").getUsername());
+    }
+
+    /** Malformed or truncated percent escapes fail the login as invalid factors. */
+    @Test
+    public void testMalformed() throws Exception {
+        assertInvalid(FORM, null, "j_username=alice&j_password=%zz");
+        assertInvalid(FORM, null, "j_username=alice&j_password=%4");
+        assertInvalid(FORM, null, "j_password=ab%4&j_username=alice");
+        assertInvalid(FORM, null, "j_user%g0name=alice");
+        assertInvalid(FORM, null, "j_username%=alice");
+    }
+
+    /** Too long bodies, too long factors and too many tokens fail the login as invalid factors. */
+    @Test
+    public void testLimits() throws Exception {
+        StringBuilder password = new StringBuilder("j_password=");
+        for (int i = 0; i <= 256; i++) {
+            password.append('x');
+        }
+        assertInvalid(FORM, null, password.toString());
+        assertInvalid(FORM, null, "j_tokens[0]=1&j_tokens[1]=2&j_tokens[2]=3&j_tokens[3]=4&j_tokens[4]=5");
+
+        StringBuilder body = new StringBuilder("j_username=alice");
+        while (body.length() <= 4096) {
+            body.append("&remember=on");
+        }
+        assertInvalid(FORM, null, body.toString());
+    }
+
+    /**
+     * Extracts the factors of a form.
+     *
+     * @param contentType content type of the body
+     * @param encoding character encoding of the body, or null
+     * @param body the body
+     *
+     * @return the factors
+     *
+     * @throws Exception thrown if the body can not be read or is invalid
+     */
+    private LoginFactors extract(String contentType, String encoding, String body) throws Exception {
+        LoginFactors factors = new LoginFactors(4, 256);
+        source.extract(MockServlets.request("/Authn/MultiFactor", contentType, encoding, body), factors);
+        return factors;
+    }
+
+    /**
+     * Checks that a form fails with invalid factors.
+     *
+     * @param contentType content type of the body
+     * @param encoding character encoding of the body, or null
+     * @param body the body
+     *
+     * @throws Exception thrown if the body can not be read
+     */
+    private void assertInvalid(String contentType, String encoding, String body) throws Exception {
+        try {
+            extract(contentType, encoding, body);
+            fail("Form accepted: " + body);
+        } catch (MultiFactorAuthLoginException e) {
+            assertEquals(MultiFactorAuthLoginException.Reason.INVALID_FACTORS, e.getReason());
+        }
+    }
+}
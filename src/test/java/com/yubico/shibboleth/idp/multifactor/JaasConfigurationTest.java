@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+
+import org.junit.Test;
+
+/** Tests of {@link JaasConfiguration}. */
+public class JaasConfigurationTest {
+
+    /** Applications, login modules, control flags and options are parsed, skipping comments. */
+    @Test
+    public void testParse() throws Exception {
+        System.setProperty("multifactor.test.host", "ldap.example.org");
+        JaasConfiguration config = JaasConfiguration.parse(new StringReader("// the login handler\n"
+                + "MultiFactor {\n"
+                + "  com.example.LdapLoginModule required url=\"ldap://${multifactor.test.host}/\" debug=true;\n"
+                + "  /* token */ com.example.OtpLoginModule Requisite;\n"
+                + "};\n"));
+
+        assertEquals(1, config.getApplicationNames().size());
+        assertNull(config.getAppConfigurationEntry("Other"));
+        AppConfigurationEntry[] entries = config.getAppConfigurationEntry("MultiFactor");
+        assertEquals(2, entries.length);
+        assertEquals("com.example.LdapLoginModule", entries[0].getLoginModuleName());
+        assertEquals(LoginModuleControlFlag.REQUIRED, entries[0].getControlFlag());
+        assertEquals("ldap://ldap.example.org/", entries[0].getOptions().get("url"));
+        assertEquals("true", entries[0].getOptions().get("debug"));
+        assertEquals(LoginModuleControlFlag.REQUISITE, entries[1].getControlFlag());
+        assertTrue(entries[1].getOptions().isEmpty());
+    }
+
+    /** Malformed configurations are rejected with the line of the error. */
+    @Test
+    public void testMalformed() throws Exception {
+        assertMalformed("MultiFactor com.example.Module required; };", 1);
+        assertMalformed("MultiFactor {\n com.example.Module required\n};", 3);
+        assertMalformed("MultiFactor {\n com.example.Module mandatory;\n};", 2);
+        assertMalformed("MultiFactor {\n com.example.Module required debug;\n};", 2);
+        assertMalformed("MultiFactor {\n com.example.Module required debug=;\n};", 2);
+        assertMalformed("MultiFactor {\n};", 2);
+        assertMalformed("MultiFactor {\n com.example.Module required;\n}", 3);
+        assertMalformed("MultiFactor {\n com.example.Module required;\n};\nMultiFactor {\n};", 4);
+        assertMalformed("MultiFactor {\n com.example.Module required url=\"${no.such.property}\";\n};", 2);
+        assertMalformed("MultiFactor {\n com.example.Module required url=\"${java.home\";\n};", 2);
+        assertMalformed("{\n};", 1);
+        assertMalformed("MultiFactor {\n com.example.Module required;", 2);
+    }
+
+    /** Wrapped login modules are named after their application and position, unless configured otherwise. */
+    @Test
+    public void testBackendNames() throws Exception {
+        JaasConfiguration config = JaasConfiguration.parse(new StringReader("MultiFactor {\n"
+                + "  com.example.LdapLoginModule required;\n"
+                + "  com.example.LdapLoginModule required multifactor.backendName=directory;\n"
+                + "};\n")).withDelegatingLoginModules();
+
+        AppConfigurationEntry[] entries = config.getAppConfigurationEntry("MultiFactor");
+        assertEquals(DelegatingLoginModule.class.getName(), entries[0].getLoginModuleName());
+        assertEquals("com.example.LdapLoginModule", entries[0].getOptions().get(DelegatingLoginModule.DELEGATE_OPTION));
+        assertEquals("MultiFactor.0", entries[0].getOptions().get(DelegatingLoginModule.BACKEND_OPTION));
+        assertEquals("directory", entries[1].getOptions().get(DelegatingLoginModule.BACKEND_OPTION));
+    }
+
+    /** The view of a configuration whose applications can not be listed wraps its login modules in the same way. */
+    @Test
+    public void testWrappingView() throws Exception {
+        Configuration config = JaasConfiguration.withDelegatingLoginModules(JaasConfiguration.parse(new StringReader(
+                "MultiFactor {\n"
+                + "  com.example.LdapLoginModule required;\n"
+                + "  com.example.OtpLoginModule requisite multifactor.backendName=otp;\n"
+                + "};\n")));
+
+        assertNull(config.getAppConfigurationEntry("Other"));
+        AppConfigurationEntry[] entries = config.getAppConfigurationEntry("MultiFactor");
+        assertEquals(DelegatingLoginModule.class.getName(), entries[0].getLoginModuleName());
+        assertEquals(LoginModuleControlFlag.REQUIRED, entries[0].getControlFlag());
+        assertEquals("com.example.LdapLoginModule", entries[0].getOptions().get(DelegatingLoginModule.DELEGATE_OPTION));
+        assertEquals("MultiFactor.0", entries[0].getOptions().get(DelegatingLoginModule.BACKEND_OPTION));
+        assertEquals(LoginModuleControlFlag.REQUISITE, entries[1].getControlFlag());
+        assertEquals("otp", entries[1].getOptions().get(DelegatingLoginModule.BACKEND_OPTION));
+    }
+
+    /**
+     * Checks that a configuration is rejected.
+     *
+     * @param config the configuration
+     * @param line line of the error
+     */
+    private static void assertMalformed(String config, int line) {
+        try {
+            JaasConfiguration.parse(new StringReader(config));
+            fail("Configuration accepted: " + config);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("JAAS configuration error at line " + line + ":"));
+        }
+    }
+}
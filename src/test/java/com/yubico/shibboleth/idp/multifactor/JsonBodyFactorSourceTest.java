@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/** Tests of {@link JsonBodyFactorSource}. */
+public class JsonBodyFactorSourceTest {
+
+    /** Content type of a JSON body. */
+    private static final String JSON = "application/json";
+
+    /** The source under test. */
+    private final JsonBodyFactorSource source = new JsonBodyFactorSource("username", "password", "tokens", 4096);
+
+    /** A body without a declared character encoding is read as UTF-8. */
+    @Test
+    public void testDefaultEncoding() throws Exception {
+        LoginFactors factors = extract(JSON, null, "{\"username\": \"bj\u00f6rn\", \"password\": \"secret\"}");
+        assertEquals("bj\u00f6rn", factors.getUsername());
+        assertEquals("secret", new String(factors.getPassword()));
+    }
+
+    /** An unsupported character encoding fails the login as invalid factors. */
+    @Test
+    public void testUnsupportedEncoding() throws Exception {
+        assertInvalid(JSON, "x-no-such-charset", "{\"username\": \"alice\", \"password\": \"secret\"}");
+    }
+
+    /** Tokens are read in order, and unknown members of any type are skipped. */
+    @Test
+    public void testTokensAndUnknownMembers() throws Exception {
+        LoginFactors factors = extract(JSON, null, "{\"remember\": true, \"device\": {\"id\": [1, -2.5e3, null]}, "
+                + "\"tokens\": [\"123456\", \"\\u0037\\/8\"], \"username\": \"alice\", \"password\": \"s\\\"\"}");
+        assertEquals("alice", factors.getUsername());
+        assertEquals("s\"", new String(factors.getPassword()));
+        assertEquals(2, factors.getTokenCount());
+        assertEquals("7/8", new String(factors.getSecrets().get(2)));
+    }
+
+    /** A body of another content type is ignored. */
+    @Test
+    public void testOtherContentType() throws Exception {
+        assertNull(extract("text/plain", null, "{\"username\": \"alice\"}").getUsername());
+    }
+
+    /** Malformed bodies fail the login as invalid factors. */
+    @Test
+    public void testMalformed() throws Exception {
+        assertInvalid(JSON, null, "");
+        assertInvalid(JSON, null, "[\"alice\"]");
+        assertInvalid(JSON, null, "{\"username\": \"alice\"");
+        assertInvalid(JSON, null, "{\"username\" \"alice\"}");
+        assertInvalid(JSON, null, "{username: \"alice\"}");
+        assertInvalid(JSON, null, "{\"username\": \"alice\" \"password\": \"secret\"}");
+        assertInvalid(JSON, null, "{\"username\": \"al\nice\"}");
+        assertInvalid(JSON, null, "{\"username\": \"al\\xice\"}");
+        assertInvalid(JSON, null, "{\"username\": \"al\\u00gice\"}");
+        assertInvalid(JSON, null, "{\"username\": \"alice}");
+        assertInvalid(JSON, null, "{\"password\": 1234}");
+        assertInvalid(JSON, null, "{\"tokens\": \"123456\"}");
+        assertInvalid(JSON, null, "{\"tokens\": [123456]}");
+        assertInvalid(JSON, null, "{\"other\": }");
+        assertInvalid(JSON, null, "{\"other\": [[[[[[[[[[[]]]]]]]]]]]}");
+    }
+
+    /** Too long or too many factors fail the login as invalid factors. */
+    @Test
+    public void testLimits() throws Exception {
+        StringBuilder password = new StringBuilder();
+        for (int i = 0; i <= 256; i++) {
+            password.append('x');
+        }
+        assertInvalid(JSON, null, "{\"password\": \"" + password + "\"}");
+        assertInvalid(JSON, null, "{\"tokens\": [\"1\", \"2\", \"3\", \"4\", \"5\"]}");
+    }
+
+    /**
+     * Extracts the factors of a body.
+     *
+     * @param contentType content type of the body
+     * @param encoding character encoding of the body, or null
+     * @param body the body
+     *
+     * @return the factors
+     *
+     * @throws Exception thrown if the body can not be read or is invalid
+     */
+    private LoginFactors extract(String contentType, String encoding, String body) throws Exception {
+        LoginFactors factors = new LoginFactors(4, 256);
+        source.extract(MockServlets.request("/Authn/MultiFactorJson", contentType, encoding, body), factors);
+        return factors;
+    }
+
+    /**
+     * Checks that a body fails with invalid factors.
+     *
+     * @param contentType content type of the body
+     * @param encoding character encoding of the body, or null
+     * @param body the body
+     *
+     * @throws Exception thrown if the body can not be read
+     */
+    private void assertInvalid(String contentType, String encoding, String body) throws Exception {
+        try {
+            extract(contentType, encoding, body);
+            fail("Body accepted: " + body);
+        } catch (MultiFactorAuthLoginException e) {
+            assertEquals(MultiFactorAuthLoginException.Reason.INVALID_FACTORS, e.getReason());
+        }
+    }
+}
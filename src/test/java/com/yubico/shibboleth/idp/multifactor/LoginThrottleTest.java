@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests of {@link LoginThrottle}. */
+public class LoginThrottleTest {
+
+    /** A key can make burst attempts in a row, and is then throttled. */
+    @Test
+    public void testBurst() {
+        LoginThrottle throttle = new LoginThrottle(3, 1, 16);
+        long now = System.currentTimeMillis();
+        assertTrue(throttle.tryAcquire("alice", now));
+        assertTrue(throttle.tryAcquire("alice", now));
+        assertTrue(throttle.tryAcquire("alice", now));
+        assertFalse(throttle.tryAcquire("alice", now));
+        assertEquals(3, throttle.getAdmitted());
+        assertEquals(1, throttle.getThrottled());
+    }
+
+    /** Frequent throttled attempts do not slow down the refill : fractions of a token are not lost. */
+    @Test
+    public void testRefillAccuracy() {
+        LoginThrottle throttle = new LoginThrottle(1, 1, 16);
+        long start = System.currentTimeMillis();
+        assertTrue(throttle.tryAcquire("alice", start));
+
+        // every attempt 119 ms apart refills 1.98 thousandths of a token, of which only 1 is whole
+        long time = start;
+        do {
+            time += 119;
+        } while (!throttle.tryAcquire("alice", time));
+        assertTrue("Refilled after " + (time - start) + " ms", time - start >= 60000 && time - start < 60000 + 119);
+    }
+
+    /** A full bucket does not keep refilling beyond its capacity. */
+    @Test
+    public void testCapacity() {
+        LoginThrottle throttle = new LoginThrottle(2, 60, 16);
+        long start = System.currentTimeMillis();
+        assertTrue(throttle.tryAcquire("alice", start));
+        assertTrue(throttle.tryAcquire("alice", start + 600000));
+        assertTrue(throttle.tryAcquire("alice", start + 600000));
+        assertFalse(throttle.tryAcquire("alice", start + 600000));
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal in-memory implementations of the servlet API interfaces used by the login servlet, built as dynamic
+ * proxies so that they do not depend on a particular servlet API version.
+ */
+public final class MockServlets {
+
+    /** Constructor. */
+    private MockServlets() {
+    }
+
+    /**
+     * Creates a request without a body.
+     *
+     * @param servletPath servlet path of the request
+     * @param parameters request parameters
+     *
+     * @return the request
+     */
+    public static HttpServletRequest request(String servletPath, Map<String, String[]> parameters) {
+        return request(servletPath, parameters, null, null, null);
+    }
+
+    /**
+     * Creates a POST request with a body.
+     *
+     * @param servletPath servlet path of the request
+     * @param contentType content type of the body
+     * @param encoding character encoding of the body, or null if not declared (the body is then encoded in UTF-8, as
+     *            it is if the encoding is not supported)
+     * @param body the body
+     *
+     * @return the request
+     */
+    public static HttpServletRequest request(String servletPath, String contentType, String encoding, String body) {
+        return request(servletPath, new HashMap<String, String[]>(), contentType, encoding, body);
+    }
+
+    /**
+     * Creates a POST request.
+     *
+     * @param servletPath servlet path of the request
+     * @param parameters request parameters
+     * @param contentType content type of the body, or null
+     * @param encoding character encoding of the body, or null if not declared (the body is then encoded in UTF-8)
+     * @param body the body, or null
+     *
+     * @return the request
+     */
+    private static HttpServletRequest request(final String servletPath, final Map<String, String[]> parameters,
+            final String contentType, String encoding, String body) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final String[] characterEncoding = {encoding};
+        byte[] bytes;
+        try {
+            bytes = body == null ? new byte[0] : body.getBytes(encoding != null ? encoding : "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            bytes = body.getBytes(Charset.forName("UTF-8"));
+        }
+        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                String name = method.getName();
+                if ("getParameter".equals(name)) {
+                    String[] values = parameters.get(args[0]);
+                    return values == null || values.length == 0 ? null : values[0];
+                } else if ("getParameterValues".equals(name)) {
+                    return parameters.get(args[0]);
+                } else if ("getParameterMap".equals(name)) {
+                    return Collections.unmodifiableMap(parameters);
+                } else if ("getParameterNames".equals(name)) {
+                    return Collections.enumeration(parameters.keySet());
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                } else if ("removeAttribute".equals(name)) {
+                    attributes.remove(args[0]);
+                    return null;
+                } else if ("getServletPath".equals(name)) {
+                    return servletPath;
+                } else if ("getContextPath".equals(name)) {
+                    return "/idp";
+                } else if ("getRemoteAddr".equals(name)) {
+                    return "192.0.2.1";
+                } else if ("getMethod".equals(name)) {
+                    return "POST";
+                } else if ("getContentType".equals(name)) {
+                    return contentType;
+                } else if ("getCharacterEncoding".equals(name)) {
+                    return characterEncoding[0];
+                } else if ("setCharacterEncoding".equals(name)) {
+                    characterEncoding[0] = (String) args[0];
+                    return null;
+                } else if ("getReader".equals(name)) {
+                    return new BufferedReader(new InputStreamReader(in, characterEncoding[0] != null
+                            ? characterEncoding[0] : "ISO-8859-1"));
+                } else if ("getInputStream".equals(name)) {
+                    return new ServletInputStream() {
+                        public int read() {
+                            return in.read();
+                        }
+
+                        public int read(byte[] b, int off, int len) {
+                            return in.read(b, off, len);
+                        }
+                    };
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a response recording its status and body.
+     *
+     * @param status receives the status code set on the response
+     * @param body receives the body written to the response
+     *
+     * @return the response
+     */
+    public static HttpServletResponse response(final int[] status, final StringWriter body) {
+        final PrintWriter writer = new PrintWriter(body);
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("setStatus".equals(name) || "sendError".equals(name)) {
+                    status[0] = (Integer) args[0];
+                    return null;
+                } else if ("getStatus".equals(name)) {
+                    return status[0];
+                } else if ("getWriter".equals(name)) {
+                    return writer;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a servlet configuration.
+     *
+     * @param servletName name of the servlet
+     * @param initParameters init-params of the servlet
+     *
+     * @return the servlet configuration
+     */
+    public static ServletConfig config(final String servletName, final Map<String, String> initParameters) {
+        final ServletContext context = proxy(ServletContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method);
+            }
+        });
+        return proxy(ServletConfig.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getServletName".equals(name)) {
+                    return servletName;
+                } else if ("getInitParameter".equals(name)) {
+                    return initParameters.get(args[0]);
+                } else if ("getInitParameterNames".equals(name)) {
+                    return Collections.enumeration(initParameters.keySet());
+                } else if ("getServletContext".equals(name)) {
+                    return context;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a dynamic proxy.
+     *
+     * @param <T> the proxied interface
+     * @param type the proxied interface
+     * @param handler handler of the proxy's method calls
+     *
+     * @return the proxy
+     */
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(MockServlets.class.getClassLoader(), new Class<?>[] {type},
+                handler));
+    }
+
+    /**
+     * Gets the value returned by methods not implemented by a mock.
+     *
+     * @param method the method
+     *
+     * @return null, or the zero value of primitive return types
+     */
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests of {@link MultiFactorAuthJsonLoginServlet}. */
+public class MultiFactorAuthJsonLoginServletTest {
+
+    /** Path of the login handler's authentication servlet, under which its JAAS configuration is registered. */
+    private static final String HANDLER_PATH = "/Authn/MultiFactor";
+
+    /** Path of the JSON servlet. */
+    private static final String JSON_PATH = "/Authn/MultiFactorJson";
+
+    /** Usernames and passwords the login module has been called with. */
+    private static final List<String> CALLS = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The JAAS configuration registered by the "login handler". */
+    private Configuration configuration;
+
+    /** The servlet under test. */
+    private TestServlet servlet;
+
+    /** Registers the JAAS configuration and initializes the servlet. */
+    @Before
+    public void setUp() throws Exception {
+        CALLS.clear();
+        final AppConfigurationEntry[] entries = {new AppConfigurationEntry(RecordingLoginModule.class.getName(),
+                AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, new HashMap<String, Object>())};
+        configuration = new Configuration() {
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return "ShibUserPassAuth".equals(name) ? entries : null;
+            }
+        };
+        JaasConfigurationRegistry.register(HANDLER_PATH, configuration);
+
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("jaasConfigurationPath", HANDLER_PATH);
+        initParameters.put("tokenReplayCache", "true");
+        servlet = new TestServlet();
+        servlet.init(MockServlets.config("MultiFactorAuthJsonTest", initParameters));
+    }
+
+    /** Unregisters the JAAS configuration and destroys the servlet. */
+    @After
+    public void tearDown() {
+        servlet.destroy();
+        JaasConfigurationRegistry.unregister(HANDLER_PATH, configuration);
+    }
+
+    /** A JSON login is authenticated by the login modules of the login handler's configuration. */
+    @Test
+    public void testLoginReachesLoginModules() throws Exception {
+        HttpServletRequest request = MockServlets.request(JSON_PATH, "application/json", null,
+                "{\"username\": \"alice\", \"password\": \"secret\"}");
+        int[] status = {0};
+        servlet.service(request, MockServlets.response(status, new StringWriter()));
+
+        assertEquals(Arrays.asList("alice:secret"), CALLS);
+        assertTrue(servlet.returned);
+        assertEquals(0, status[0]);
+        Subject subject = (Subject) request.getAttribute(LoginHandler.SUBJECT_KEY);
+        assertNotNull(subject);
+        assertFalse(subject.getPrincipals().isEmpty());
+    }
+
+    /** A JSON login rejected by the login modules is answered with a JSON status. */
+    @Test
+    public void testRejectedLogin() throws Exception {
+        HttpServletRequest request = MockServlets.request(JSON_PATH, "application/json", null,
+                "{\"username\": \"alice\", \"password\": \"wrong\"}");
+        int[] status = {0};
+        StringWriter body = new StringWriter();
+        servlet.service(request, MockServlets.response(status, body));
+
+        assertEquals(Arrays.asList("alice:wrong"), CALLS);
+        assertFalse(servlet.returned);
+        assertEquals(HttpServletResponse.SC_UNAUTHORIZED, status[0]);
+        assertEquals("{\"status\":\"failed\",\"reason\":\"AUTHENTICATION_FAILED\"}", body.toString());
+    }
+
+    /** A token of a failed login can be submitted again, but a token of a successful login can not. */
+    @Test
+    public void testTokenReplayAfterFailedLogin() throws Exception {
+        assertEquals("{\"status\":\"failed\",\"reason\":\"AUTHENTICATION_FAILED\"}", login("wrong", "123456"));
+        servlet.returned = false;
+        assertEquals("", login("secret", "123456"));
+        assertTrue(servlet.returned);
+        assertEquals("{\"status\":\"failed\",\"reason\":\"TOKEN_REPLAYED\"}", login("secret", "123456"));
+        assertEquals(Arrays.asList("alice:wrong", "alice:secret"), CALLS);
+    }
+
+    /** Without a configuration registered by the login handler, bulkheads apply to the JVM-wide configuration. */
+    @Test
+    public void testBulkheadWithJvmWideConfiguration() throws Exception {
+        Configuration previous;
+        try {
+            previous = Configuration.getConfiguration();
+        } catch (SecurityException e) {
+            previous = null;
+        }
+        Configuration.setConfiguration(configuration);
+        try {
+            Map<String, String> initParameters = new HashMap<String, String>();
+            initParameters.put("bulkhead", "true");
+            initParameters.put("bulkheadMaxConcurrent.ShibUserPassAuth.0", "0");
+            initParameters.put("bulkheadMaxWaiting", "0");
+            TestServlet bulkheaded = new TestServlet();
+            bulkheaded.init(MockServlets.config("MultiFactorAuthJsonTest", initParameters));
+            StringWriter body = new StringWriter();
+            bulkheaded.service(MockServlets.request(JSON_PATH, "application/json", null,
+                    "{\"username\": \"alice\", \"password\": \"secret\"}"), MockServlets.response(new int[1], body));
+            bulkheaded.destroy();
+
+            assertTrue(CALLS.isEmpty());
+            assertEquals("{\"status\":\"failed\",\"reason\":\"BACKEND_UNAVAILABLE\"}", body.toString());
+        } finally {
+            Configuration.setConfiguration(previous);
+        }
+    }
+
+    /** By default the warm-up does not log in to the backends. */
+    @Test
+    public void testWarmUpWithoutBackends() throws Exception {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("jaasConfigurationPath", HANDLER_PATH);
+        initParameters.put("warmUp", "true");
+        initParameters.put("warmUpLogins", "5");
+        TestServlet warmedUp = new TestServlet();
+        warmedUp.init(MockServlets.config("MultiFactorAuthJsonTest", initParameters));
+        warmedUp.destroy();
+
+        assertTrue(CALLS.isEmpty());
+    }
+
+    /** The warm-up logs in to the backends with the configured credentials. */
+    @Test
+    public void testWarmUpWithBackends() throws Exception {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("jaasConfigurationPath", HANDLER_PATH);
+        initParameters.put("warmUp", "true");
+        initParameters.put("warmUpLogins", "2");
+        initParameters.put("warmUpUsername", "warmup");
+        initParameters.put("warmUpPassword", "secret");
+        TestServlet warmedUp = new TestServlet();
+        warmedUp.init(MockServlets.config("MultiFactorAuthJsonTest", initParameters));
+        warmedUp.destroy();
+
+        assertEquals(Arrays.asList("warmup:secret", "warmup:secret"), CALLS);
+    }
+
+    /** A backend login still running when the warm-up time has passed is cancelled and ends the warm-up. */
+    @Test
+    public void testWarmUpWithHungBackend() throws Exception {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("jaasConfigurationPath", HANDLER_PATH);
+        initParameters.put("warmUp", "true");
+        initParameters.put("warmUpLogins", "2");
+        initParameters.put("warmUpTime", "1000");
+        initParameters.put("warmUpUsername", "warmup");
+        initParameters.put("warmUpPassword", "hang");
+        TestServlet warmedUp = new TestServlet();
+        long start = System.nanoTime();
+        warmedUp.init(MockServlets.config("MultiFactorAuthJsonTest", initParameters));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        warmedUp.destroy();
+
+        assertTrue("Warm-up took " + millis + " ms", millis < 5000);
+        assertEquals(Arrays.asList("warmup:hang"), CALLS);
+    }
+
+    /** The synthetic request of the in-process warm-up holds the factors as a JSON body. */
+    @Test
+    public void testWarmUpRequest() throws Exception {
+        HttpServletRequest request = servlet.createWarmUpRequest("al\"ice", "secret", Arrays.asList("123456",
+                "654321"));
+        LoginFactors factors = new LoginFactors(8, 64);
+        new JsonBodyFactorSource("username", "password", "tokens", 1024).extract(request, factors);
+
+        assertEquals("al\"ice", factors.getUsername());
+        assertEquals("secret", new String(factors.getPassword()));
+        assertEquals(2, factors.getTokenCount());
+        assertEquals("654321", new String(factors.getSecrets().get(2)));
+    }
+
+    /**
+     * Logs alice in with a password and a token.
+     *
+     * @param password the password
+     * @param token the token
+     *
+     * @return the response body
+     *
+     * @throws Exception thrown if the login can not be processed
+     */
+    private String login(String password, String token) throws Exception {
+        String json = "{\"username\": \"alice\", \"password\": \"" + password + "\", \"tokens\": [\"" + token
+                + "\"]}";
+        StringWriter body = new StringWriter();
+        servlet.service(MockServlets.request(JSON_PATH, "application/json", null, json), MockServlets.response(
+                new int[1], body));
+        return body.toString();
+    }
+
+    /** JSON servlet remembering whether it returned to the authentication engine. */
+    private static class TestServlet extends MultiFactorAuthJsonLoginServlet {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Whether control was returned to the authentication engine. */
+        private boolean returned;
+
+        /** {@inheritDoc} */
+        protected void returnToAuthenticationEngine(HttpServletRequest request, HttpServletResponse response) {
+            returned = true;
+        }
+    }
+
+    /**
+     * Login module accepting the password "secret" and recording the credentials it has been called with. The
+     * password "hang" blocks it until interrupted.
+     */
+    public static class RecordingLoginModule implements LoginModule {
+
+        /** The subject being authenticated. */
+        private Subject subject;
+
+        /** Handler of the callbacks for the credentials. */
+        private CallbackHandler callbackHandler;
+
+        /** The authenticated username. */
+        private String username;
+
+        /** {@inheritDoc} */
+        public void initialize(Subject loginSubject, CallbackHandler handler, Map<String, ?> sharedState,
+                Map<String, ?> options) {
+            subject = loginSubject;
+            callbackHandler = handler;
+        }
+
+        /** {@inheritDoc} */
+        public boolean login() throws LoginException {
+            NameCallback name = new NameCallback("username");
+            PasswordCallback password = new PasswordCallback("password", false);
+            try {
+                callbackHandler.handle(new Callback[] {name, password});
+            } catch (Exception e) {
+                throw new LoginException(e.toString());
+            }
+            String secret = new String(password.getPassword());
+            CALLS.add(name.getName() + ":" + secret);
+            if ("hang".equals(secret)) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    throw new LoginException("Interrupted");
+                }
+            }
+            if (!"secret".equals(secret)) {
+                throw new FailedLoginException("Wrong password");
+            }
+            username = name.getName();
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean commit() {
+            subject.getPrincipals().add(new UsernamePrincipal(username));
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean abort() {
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean logout() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+
+/** Tests of handing control from the login handler to the authentication servlet. */
+public class MultiFactorAuthLoginHandlerTest {
+
+    /** Paths the mock requests were asked to dispatch to. */
+    private final List<String> dispatchPaths = new ArrayList<String>();
+
+    /** Requests forwarded by the mock dispatchers. */
+    private final List<ServletRequest> forwarded = new ArrayList<ServletRequest>();
+
+    /** Locations the mock responses were redirected to. */
+    private final List<String> redirects = new ArrayList<String>();
+
+    /**
+     * The request is forwarded to the servlet path, made context-relative, instead of redirecting the browser.
+     */
+    @Test
+    public void testForwardsToServlet() {
+        MultiFactorAuthLoginHandler handler = handler("Authn/MultiFactor", new LoginContext());
+        assertSame(MultiFactorAuthLoginHandler.DispatchMode.FORWARD, handler.getDispatchMode());
+        HttpServletRequest request = request(null);
+        handler.login(request, response(false));
+
+        assertEquals(Collections.singletonList("/Authn/MultiFactor"), dispatchPaths);
+        assertEquals(1, forwarded.size());
+        assertSame(request, forwarded.get(0));
+        assertTrue(redirects.isEmpty());
+    }
+
+    /**
+     * Without a login context bound to the request the servlet could not find it after a forward, so the request
+     * must be redirected instead.
+     */
+    @Test
+    public void testNoForwardWithoutLoginContext() {
+        MultiFactorAuthLoginHandler handler = handler("/Authn/MultiFactor", null);
+        assertFalse(handler.forwardToServlet(request(null), response(false)));
+        assertTrue(dispatchPaths.isEmpty());
+        assertTrue(forwarded.isEmpty());
+    }
+
+    /**
+     * A failed forward falls back to a redirect while the response can still be redirected.
+     */
+    @Test
+    public void testFailedForwardBeforeCommit() {
+        MultiFactorAuthLoginHandler handler = handler("/Authn/MultiFactor", new LoginContext());
+        assertFalse(handler.forwardToServlet(request(new ServletException("broken")), response(false)));
+        assertEquals(Collections.singletonList("/Authn/MultiFactor"), dispatchPaths);
+        assertTrue(forwarded.isEmpty());
+    }
+
+    /**
+     * A failed forward that already committed the response must not be followed by a redirect.
+     */
+    @Test
+    public void testFailedForwardAfterCommit() {
+        MultiFactorAuthLoginHandler handler = handler("/Authn/MultiFactor", new LoginContext());
+        HttpServletResponse response = response(true);
+        assertTrue(handler.forwardToServlet(request(new ServletException("broken")), response));
+        assertTrue(redirects.isEmpty());
+    }
+
+    /**
+     * Creates a login handler seeing a fixed login context on every request.
+     * 
+     * @param servletPath path of the authentication servlet
+     * @param loginContext login context bound to the requests, may be null
+     * 
+     * @return the login handler
+     */
+    private static MultiFactorAuthLoginHandler handler(String servletPath, final LoginContext loginContext) {
+        return new MultiFactorAuthLoginHandler(servletPath) {
+            protected LoginContext getLoginContext(HttpServletRequest httpRequest) {
+                return loginContext;
+            }
+        };
+    }
+
+    /**
+     * Creates a request whose dispatchers record the forwards made through them.
+     * 
+     * @param failure thrown by the dispatchers' forward, or null to forward successfully
+     * 
+     * @return the request
+     */
+    private HttpServletRequest request(final ServletException failure) {
+        final HttpServletRequest delegate = MockServlets.request("/profile/SAML2/Redirect/SSO",
+                Collections.<String, String[]> emptyMap());
+        final RequestDispatcher dispatcher = proxy(RequestDispatcher.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws ServletException {
+                if (failure != null) {
+                    throw failure;
+                }
+                if ("forward".equals(method.getName())) {
+                    forwarded.add((ServletRequest) args[0]);
+                }
+                return null;
+            }
+        });
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getRequestDispatcher".equals(method.getName())) {
+                    dispatchPaths.add((String) args[0]);
+                    return dispatcher;
+                }
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a response recording the redirects sent through it.
+     * 
+     * @param committed whether the response reports itself as committed
+     * 
+     * @return the response
+     */
+    private HttpServletResponse response(final boolean committed) {
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("isCommitted".equals(name)) {
+                    return committed;
+                } else if ("sendRedirect".equals(name)) {
+                    redirects.add((String) args[0]);
+                } else if (method.getReturnType() == boolean.class) {
+                    return Boolean.FALSE;
+                } else if (method.getReturnType() == int.class) {
+                    return Integer.valueOf(0);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a dynamic proxy.
+     * 
+     * @param <T> the proxied interface
+     * @param type the proxied interface
+     * @param handler handler of the proxy's method calls
+     * 
+     * @return the proxy
+     */
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(MultiFactorAuthLoginHandlerTest.class.getClassLoader(),
+                new Class<?>[] {type}, handler));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of {@link OathOtpVerifier}. */
+public class OathOtpVerifierTest {
+
+    /** Secret of the RFC 4226 and RFC 6238 test vectors, in hex. */
+    private static final String RFC_SECRET = "3132333435363738393031323334353637383930";
+
+    /** The secret file. */
+    private File secretFile;
+
+    /** The counter file. */
+    private File counterFile;
+
+    /** Creates the secret and counter files. */
+    @Before
+    public void setUp() throws Exception {
+        secretFile = File.createTempFile("oath", ".txt");
+        counterFile = File.createTempFile("oath", ".ctr");
+        Writer out = new OutputStreamWriter(new FileOutputStream(secretFile), "UTF-8");
+        try {
+            out.write("alice hotp " + RFC_SECRET + "\n");
+            out.write("bob totp " + RFC_SECRET + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Deletes the secret and counter files. */
+    @After
+    public void tearDown() {
+        secretFile.delete();
+        counterFile.delete();
+    }
+
+    /** The HOTP codes of RFC 4226 appendix D are accepted in order, and each only once. */
+    @Test
+    public void testHotpVectors() throws Exception {
+        String[] codes = {"755224", "287082", "359152", "969429", "338314", "254676", "287922", "162583", "399871",
+            "520489"};
+        OathOtpVerifier verifier = newVerifier("hotp", 6);
+        for (String code : codes) {
+            verifier.verify("alice", code.toCharArray(), new Subject());
+            assertRejected(verifier, code);
+        }
+    }
+
+    /** A HOTP code within the look-ahead window is accepted, and the codes before it are then rejected. */
+    @Test
+    public void testHotpLookAhead() throws Exception {
+        OathOtpVerifier verifier = newVerifier("hotp", 6);
+        verifier.verify("alice", "162583".toCharArray(), new Subject());
+        assertRejected(verifier, "755224");
+        assertRejected(verifier, "287922");
+        verifier.verify("alice", "399871".toCharArray(), new Subject());
+    }
+
+    /** The SHA-1 TOTP codes of RFC 6238 appendix B are accepted at their time. */
+    @Test
+    public void testTotpVectors() throws Exception {
+        long[] times = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+        String[] codes = {"94287082", "07081804", "14050471", "89005924", "69279037", "65353130"};
+        OathOtpVerifier verifier = newVerifier("totp", 8);
+        for (int i = 0; i < times.length; i++) {
+            verifier.verify("bob", codes[i].toCharArray(), times[i] * 1000);
+        }
+    }
+
+    /** A TOTP code is rejected as replayed once used, and rejected as invalid outside the drift window. */
+    @Test
+    public void testTotpReplayAndWindow() throws Exception {
+        OathOtpVerifier verifier = newVerifier("totp", 8);
+        try {
+            verifier.verify("bob", "07081804".toCharArray(), 1111111169000L);
+            fail("Code accepted two time steps late");
+        } catch (FailedLoginException e) {
+            // expected
+        }
+        verifier.verify("bob", "07081804".toCharArray(), 1111111139000L);
+        try {
+            verifier.verify("bob", "07081804".toCharArray(), 1111111139000L);
+            fail("Code accepted twice");
+        } catch (MultiFactorAuthLoginException e) {
+            assertEquals(MultiFactorAuthLoginException.Reason.TOKEN_REPLAYED, e.getReason());
+        }
+    }
+
+    /** A HOTP code accepted by one verifier is rejected by another one sharing the counter file. */
+    @Test
+    public void testCounterSharedBetweenVerifiers() throws Exception {
+        OathOtpVerifier login = newVerifier("login");
+        OathOtpVerifier json = newVerifier("json");
+
+        login.verify("alice", "755224".toCharArray(), new Subject());
+        assertRejected(json, "755224");
+        json.verify("alice", "287082".toCharArray(), new Subject());
+        assertRejected(login, "287082");
+
+        // a verifier created later, e.g. after a reload, continues from the counter file
+        OathOtpVerifier reloaded = newVerifier("reloaded");
+        assertRejected(reloaded, "287082");
+        reloaded.verify("alice", "359152".toCharArray(), new Subject());
+    }
+
+    /**
+     * Creates a verifier of 6 digit codes of the secret file with the counter file.
+     *
+     * @param name name of the verifier
+     *
+     * @return the verifier
+     *
+     * @throws IOException thrown if the files can not be read
+     */
+    private OathOtpVerifier newVerifier(String name) throws IOException {
+        return newVerifier(name, 6);
+    }
+
+    /**
+     * Creates a verifier of the secret file with the counter file.
+     *
+     * @param name name of the verifier
+     * @param digits number of digits of the codes
+     *
+     * @return the verifier
+     *
+     * @throws IOException thrown if the files can not be read
+     */
+    private OathOtpVerifier newVerifier(String name, int digits) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("digits", Integer.toString(digits));
+        options.put("secretFile", secretFile.getPath());
+        options.put("secretEncoding", "hex");
+        options.put("counterFile", counterFile.getPath());
+        OathOtpVerifier verifier = new OathOtpVerifier();
+        verifier.initialize(name, options);
+        return verifier;
+    }
+
+    /**
+     * Checks that a verifier rejects a code of alice.
+     *
+     * @param verifier the verifier
+     * @param code the code
+     *
+     * @throws Exception thrown if the code is rejected with another exception than a failed login
+     */
+    private static void assertRejected(OathOtpVerifier verifier, String code) throws Exception {
+        try {
+            verifier.verify("alice", code.toCharArray(), new Subject());
+            fail("Code " + code + " accepted");
+        } catch (FailedLoginException e) {
+            // expected
+        }
+    }
+}
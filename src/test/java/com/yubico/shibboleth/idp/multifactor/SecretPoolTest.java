@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/** Tests of {@link SecretPool}. */
+public class SecretPoolTest {
+
+    /** A released buffer is wiped and handed out again for the same length only. */
+    @Test
+    public void testReuse() {
+        SecretPool pool = new SecretPool(16, 2);
+        char[] buffer = pool.take(6);
+        "secret".getChars(0, 6, buffer, 0);
+        pool.release(buffer);
+        assertEquals(1, pool.getFree(6));
+
+        assertNotSame(buffer, pool.take(5));
+        char[] reused = pool.take(6);
+        assertSame(buffer, reused);
+        assertArrayEquals(new char[6], reused);
+        assertEquals(0, pool.getFree(6));
+    }
+
+    /** No more than the configured number of buffers of a length are kept, nor buffers longer than the longest. */
+    @Test
+    public void testLimits() {
+        SecretPool pool = new SecretPool(16, 2);
+        pool.release(new char[8]);
+        pool.release(new char[8]);
+        pool.release(new char[8]);
+        assertEquals(2, pool.getFree(8));
+
+        char[] longBuffer = {'s', 'e', 'c', 'r', 'e', 't'};
+        new SecretPool(4, 2).release(longBuffer);
+        assertArrayEquals(new char[6], longBuffer);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+import javax.security.auth.x500.X500Principal;
+
+import org.junit.Test;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.UsernamePasswordCredential;
+
+/** Tests of {@link SubjectBuilder}. */
+public class SubjectBuilderTest {
+
+    /** Only principals of the listed classes are kept, besides the {@link UsernamePrincipal} of the user. */
+    @Test
+    public void testPrincipalFilter() {
+        SubjectBuilder builder = new SubjectBuilder(Arrays.asList(X500Principal.class.getName()),
+                SubjectBuilder.CredentialMode.NONE, Collections.<String> emptyList(), 0);
+        Subject subject = builder.build("alice", null, loginSubject());
+
+        Set<Principal> expected = new LinkedHashSet<Principal>(Arrays.<Principal> asList(new X500Principal(
+                "CN=alice"), new UsernamePrincipal("alice")));
+        assertEquals(expected, subject.getPrincipals());
+
+        builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.NONE, Collections.<String> emptyList(), 0);
+        assertEquals(3, builder.build("alice", null, loginSubject()).getPrincipals().size());
+    }
+
+    /** All credentials are kept, with one password, without changing the login subject. */
+    @Test
+    public void testAllCredentials() {
+        SubjectBuilder builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.ALL,
+                Collections.<String> emptyList(), 0);
+        Subject login = loginSubject();
+        Subject subject = builder.build("alice", "secret", login);
+
+        assertEquals(1, countPasswords(subject.getPrivateCredentials()));
+        assertTrue(subject.getPrivateCredentials().contains("ticket"));
+        assertTrue(subject.getPublicCredentials().contains("certificate"));
+        assertEquals(2, login.getPrivateCredentials().size());
+    }
+
+    /** The credentials of the login are kept, but never a password. */
+    @Test
+    public void testLoginCredentials() {
+        SubjectBuilder builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.LOGIN,
+                Collections.<String> emptyList(), 0);
+        Subject login = loginSubject();
+        login.getPublicCredentials().add(new UsernamePasswordCredential("alice", "secret"));
+        Subject subject = builder.build("alice", "secret", login);
+
+        assertEquals(0, countPasswords(subject.getPrivateCredentials()));
+        assertEquals(0, countPasswords(subject.getPublicCredentials()));
+        assertTrue(subject.getPrivateCredentials().contains("ticket"));
+        assertTrue(subject.getPublicCredentials().contains("certificate"));
+        assertEquals(1, countPasswords(login.getPrivateCredentials()));
+    }
+
+    /** No credentials are kept. */
+    @Test
+    public void testNoCredentials() {
+        SubjectBuilder builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.NONE,
+                Collections.<String> emptyList(), 0);
+        Subject subject = builder.build("alice", "secret", loginSubject());
+
+        assertTrue(subject.getPrivateCredentials().isEmpty());
+        assertTrue(subject.getPublicCredentials().isEmpty());
+    }
+
+    /** Principals of interned classes are shared between subjects, up to the interner size. */
+    @Test
+    public void testInterning() {
+        SubjectBuilder builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.NONE,
+                Arrays.asList(X500Principal.class.getName()), 10);
+        Principal first = find(builder.build("alice", null, loginSubject()), X500Principal.class);
+        Principal second = find(builder.build("alice", null, loginSubject()), X500Principal.class);
+        assertSame(first, second);
+        assertSame(find(builder.build("alice", null, new Subject()), UsernamePrincipal.class), find(builder.build(
+                "alice", null, new Subject()), UsernamePrincipal.class));
+
+        builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.NONE, Collections.<String> emptyList(), 10);
+        assertNotSame(find(builder.build("alice", null, loginSubject()), X500Principal.class), find(builder.build(
+                "alice", null, loginSubject()), X500Principal.class));
+
+        builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.NONE, Collections.<String> emptyList(), 0);
+        assertNotSame(find(builder.build("alice", null, new Subject()), UsernamePrincipal.class), find(builder
+                .build("alice", null, new Subject()), UsernamePrincipal.class));
+    }
+
+    /** A full interner starts over. */
+    @Test
+    public void testInternerSize() {
+        SubjectBuilder builder = new SubjectBuilder(null, SubjectBuilder.CredentialMode.NONE,
+                Collections.<String> emptyList(), 1);
+        Principal alice = find(builder.build("alice", null, new Subject()), UsernamePrincipal.class);
+        builder.build("bob", null, new Subject());
+
+        assertNotSame(alice, find(builder.build("alice", null, new Subject()), UsernamePrincipal.class));
+    }
+
+    /**
+     * Creates the subject of a login, with a username and an X.500 principal, a public credential, and a private
+     * credential next to the password.
+     *
+     * @return the subject
+     */
+    private static Subject loginSubject() {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal("uid=alice"));
+        subject.getPrincipals().add(new X500Principal("CN=alice"));
+        subject.getPublicCredentials().add("certificate");
+        subject.getPrivateCredentials().add("ticket");
+        subject.getPrivateCredentials().add(new UsernamePasswordCredential("alice", "secret"));
+        return subject;
+    }
+
+    /**
+     * Finds the principal of a class.
+     *
+     * @param subject the subject
+     * @param principalClass class of the principal
+     *
+     * @return the first principal of the class
+     */
+    private static Principal find(Subject subject, Class<? extends Principal> principalClass) {
+        return subject.getPrincipals(principalClass).iterator().next();
+    }
+
+    /**
+     * Counts the passwords among credentials.
+     *
+     * @param credentials the credentials
+     *
+     * @return number of {@link UsernamePasswordCredential}s
+     */
+    private static int countPasswords(Set<Object> credentials) {
+        int count = 0;
+        for (Object credential : credentials) {
+            if (credential instanceof UsernamePasswordCredential) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Tests of {@link TokenReplayCache}. */
+public class TokenReplayCacheTest {
+
+    /** A token is a replay until its time to live has passed, and only for the same user. */
+    @Test
+    public void testTimeToLive() {
+        TokenReplayCache cache = new TokenReplayCache(1000, 1024 * 1024, 4);
+        long now = System.currentTimeMillis();
+        assertTrue(cache.add("alice", "123456".toCharArray(), now));
+        assertFalse(cache.add("alice", "123456".toCharArray(), now + 999));
+        assertTrue(cache.add("bob", "123456".toCharArray(), now + 999));
+        assertTrue(cache.add("alice", "123456".toCharArray(), now + 1000));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+    }
+
+    /** A removed token, e.g. of a failed login, can be submitted again. */
+    @Test
+    public void testRemove() {
+        TokenReplayCache cache = new TokenReplayCache(1000, 1024 * 1024, 4);
+        long now = System.currentTimeMillis();
+        assertTrue(cache.add("alice", "123456".toCharArray(), now));
+        cache.remove("alice", "123456".toCharArray());
+        assertTrue(cache.add("alice", "123456".toCharArray(), now));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    /** A full cache evicts the oldest token first. */
+    @Test
+    public void testMemoryCeiling() {
+        TokenReplayCache cache = new TokenReplayCache(60000, 3 * TokenReplayCache.ENTRY_SIZE, 1);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache.add("alice", token(i), now + i));
+        }
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.getEvictions());
+
+        assertFalse(cache.add("alice", token(4), now + 5));
+        assertTrue(cache.add("alice", token(0), now + 5));
+        assertEquals(1, cache.getHits());
+        assertEquals(6, cache.getMisses());
+    }
+
+    /** The stripes are a power of two, each holding its share of the memory ceiling. */
+    @Test
+    public void testStripes() {
+        assertEquals(4, new TokenReplayCache(1000, 1024 * 1024, 3).getStripeCount());
+
+        TokenReplayCache cache = new TokenReplayCache(60000, 4 * TokenReplayCache.ENTRY_SIZE, 4);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++) {
+            cache.add("alice", token(i), now);
+        }
+        assertTrue("size " + cache.size(), cache.size() >= 1 && cache.size() <= 4);
+        assertEquals(200, cache.getMisses());
+        assertEquals(200 - cache.size(), cache.getEvictions());
+    }
+
+    /** Of concurrent submissions of the same token, only one is admitted. */
+    @Test
+    public void testConcurrentReplay() throws Exception {
+        final TokenReplayCache cache = new TokenReplayCache(60000, 1024 * 1024, 16);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger admitted = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (cache.add("alice", "123456".toCharArray())) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, admitted.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(threads.length - 1, cache.getHits());
+    }
+
+    /**
+     * Creates a distinct token.
+     *
+     * @param i number of the token
+     *
+     * @return the token
+     */
+    private static char[] token(int i) {
+        return ("token" + i).toCharArray();
+    }
+}
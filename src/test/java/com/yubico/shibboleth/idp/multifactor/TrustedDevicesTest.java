@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests of {@link TrustedDevices}. */
+public class TrustedDevicesTest {
+
+    /** Time to live of the cookies, one hour. */
+    private static final long TTL = 3600000L;
+
+    /** Time the cookies are issued. */
+    private static final long NOW = 1300000000000L;
+
+    /** The trusted devices under test. */
+    private final TrustedDevices devices = new TrustedDevices("0123456789abcdef0123456789abcdef".getBytes(), TTL);
+
+    /** A cookie trusts the device for the user it was issued to until it expires. */
+    @Test
+    public void testExpiry() {
+        String cookie = devices.issue("alice", NOW);
+        assertTrue(devices.isTrusted("alice", cookie, NOW));
+        assertTrue(devices.isTrusted("alice", cookie, NOW + TTL - 1));
+        assertFalse(devices.isTrusted("alice", cookie, NOW + TTL));
+    }
+
+    /** A cookie issued under a longer time to live only lasts as long as the current one allows. */
+    @Test
+    public void testShorterTimeToLive() {
+        TrustedDevices shorter = new TrustedDevices("0123456789abcdef0123456789abcdef".getBytes(), TTL / 2);
+        String cookie = devices.issue("alice", NOW);
+        assertFalse(shorter.isTrusted("alice", cookie, NOW));
+        assertTrue(shorter.isTrusted("alice", cookie, NOW + TTL / 2));
+    }
+
+    /** A cookie can not be moved to another user, extended, or checked with another key. */
+    @Test
+    public void testTamper() {
+        String cookie = devices.issue("alice", NOW);
+        int dot = cookie.indexOf('.');
+        assertFalse(devices.isTrusted("bob", cookie, NOW));
+        assertFalse(devices.isTrusted("alice", Long.toHexString(NOW + TTL + 1) + cookie.substring(dot), NOW + 2));
+
+        char last = cookie.charAt(cookie.length() - 1);
+        String flipped = cookie.substring(0, cookie.length() - 1) + (last == '0' ? '1' : '0');
+        assertFalse(devices.isTrusted("alice", flipped, NOW));
+
+        TrustedDevices otherKey = new TrustedDevices("fedcba9876543210fedcba9876543210".getBytes(), TTL);
+        assertFalse(otherKey.isTrusted("alice", cookie, NOW));
+    }
+
+    /** Malformed cookie values are rejected. */
+    @Test
+    public void testMalformed() {
+        String cookie = devices.issue("alice", NOW);
+        int dot = cookie.indexOf('.');
+        assertFalse(devices.isTrusted("alice", null, NOW));
+        assertFalse(devices.isTrusted("alice", "", NOW));
+        assertFalse(devices.isTrusted("alice", cookie.substring(dot), NOW));
+        assertFalse(devices.isTrusted("alice", cookie.substring(0, dot), NOW));
+        assertFalse(devices.isTrusted("alice", "xyz" + cookie.substring(dot), NOW));
+        assertFalse(devices.isTrusted("alice", cookie.substring(0, dot + 1) + "zz", NOW));
+        assertFalse(devices.isTrusted("alice", cookie.substring(0, cookie.length() - 2), NOW));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** Tests of {@link ValidationClient}. */
+public class ValidationClientTest {
+
+    /** Servers started by a test. */
+    private final List<HttpServer> servers = new ArrayList<HttpServer>();
+
+    /** Stops the servers. */
+    @After
+    public void tearDown() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    /** A replayed request answer to the hedged request does not win over the slower answer of the first server. */
+    @Test
+    public void testReplayedHedgedAnswerIsNotFinal() throws Exception {
+        String slow = startServer("status=OK", 300);
+        String fast = startServer("status=REPLAYED_REQUEST", 0);
+        ValidationClient client = new ValidationClient("test", Arrays.asList(slow, fast), 2000, 2000, 20, 4);
+        try {
+            ValidationClient.Response response = client.validate("otp=x");
+            assertEquals(slow, response.getUrl());
+            assertEquals("OK", response.getField("status"));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /** A replayed request answer is returned if no server gives a final answer. */
+    @Test
+    public void testReplayedAnswerReturnedWithoutFinalAnswer() throws Exception {
+        String first = startServer("status=REPLAYED_REQUEST", 0);
+        String second = startServer("status=REPLAYED_REQUEST", 0);
+        ValidationClient client = new ValidationClient("test", Arrays.asList(first, second), 2000, 2000, 20, 4);
+        try {
+            assertEquals("REPLAYED_REQUEST", client.validate("otp=x").getField("status"));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Starts a validation server.
+     *
+     * @param body body of every answer
+     * @param delay milliseconds to wait before answering
+     *
+     * @return base URL of the server
+     *
+     * @throws IOException thrown if the server can not be started
+     */
+    private String startServer(final String body, final long delay) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/verify";
+    }
+}
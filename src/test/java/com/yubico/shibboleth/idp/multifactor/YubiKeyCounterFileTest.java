@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of {@link YubiKeyCounterFile}. */
+public class YubiKeyCounterFileTest {
+
+    /** The counter file. */
+    private File file;
+
+    /** Creates the counter file. */
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("yubikeys", ".ctr");
+    }
+
+    /** Deletes the counter file. */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** Verifiers opening the same file share the counter of a key, so an OTP can not be replayed to another one. */
+    @Test
+    public void testCounterSharedBetweenVerifiers() throws Exception {
+        YubiKeyCounterFile first = YubiKeyCounterFile.open(file, Arrays.asList("cccccccccccb"), false);
+        File samePath = new File(new File(file.getParentFile(), "."), file.getName());
+        YubiKeyCounterFile second = YubiKeyCounterFile.open(samePath, Arrays.asList("cccccccccccb", "cccccccccccd"),
+                false);
+
+        assertSame(first.getCounter("cccccccccccb"), second.getCounter("cccccccccccb"));
+        assertTrue(first.getCounter("cccccccccccb").advance(0x0105));
+        assertFalse(second.getCounter("cccccccccccb").advance(0x0105));
+        assertEquals(0x0105, second.getCounter("cccccccccccb").getValue());
+        assertEquals(-1, first.getCounter("cccccccccccd").getValue());
+    }
+
+    /** Counters keep their values when the file grows for the keys of another verifier. */
+    @Test
+    public void testGrowKeepsCounters() throws Exception {
+        YubiKeyCounterFile counters = YubiKeyCounterFile.open(file, Arrays.asList("cccccccccccb"), false);
+        YubiKeyCounterFile.Counter counter = counters.getCounter("cccccccccccb");
+        assertTrue(counter.advance(7));
+
+        List<String> publicIds = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            publicIds.add("key" + i);
+        }
+        YubiKeyCounterFile.open(file, publicIds, false);
+        assertSame(counter, counters.getCounter("cccccccccccb"));
+        assertTrue(counter.advance(8));
+        assertTrue(counters.getCounter("key199").advance(1));
+        assertEquals(8, counter.getValue());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of {@link YubiKeyIndex}. */
+public class YubiKeyIndexTest {
+
+    /** The index file. */
+    private File file;
+
+    /** Creates the index file. */
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("yubikeys", ".idx");
+    }
+
+    /** Deletes the index file. */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** Keys are bound to the users listed with them, ignoring comments and the case of public ids. */
+    @Test
+    public void testLoad() throws Exception {
+        write("# user publicId\nalice cccccccccccb\nbob CCCCCCCCCCCD extra fields\n", false);
+        YubiKeyIndex index = new YubiKeyIndex(file);
+
+        assertEquals(2, index.size());
+        assertTrue(index.hasUser("alice"));
+        assertFalse(index.hasUser("carol"));
+        assertTrue(index.isBound("alice", otp("cccccccccccb")));
+        assertTrue(index.isBound("bob", otp("cccccccccccd")));
+        assertFalse(index.isBound("alice", otp("cccccccccccd")));
+    }
+
+    /** Appended lines are merged into the index. */
+    @Test
+    public void testAppend() throws Exception {
+        write("alice cccccccccccb\n", false);
+        YubiKeyIndex index = new YubiKeyIndex(file);
+        write("bob cccccccccccd\n", true);
+        index.refresh();
+
+        assertEquals(2, index.size());
+        assertTrue(index.isBound("alice", otp("cccccccccccb")));
+        assertTrue(index.isBound("bob", otp("cccccccccccd")));
+    }
+
+    /** A rewritten file replaces the index. */
+    @Test
+    public void testRewrite() throws Exception {
+        write("alice cccccccccccb\n", false);
+        YubiKeyIndex index = new YubiKeyIndex(file);
+        write("alice cccccccccccd\nbob cccccccccccb\n", false);
+        index.refresh();
+
+        assertEquals(2, index.size());
+        assertFalse(index.isBound("alice", otp("cccccccccccb")));
+        assertTrue(index.isBound("alice", otp("cccccccccccd")));
+        assertTrue(index.isBound("bob", otp("cccccccccccb")));
+    }
+
+    /** A truncated file replaces the index. */
+    @Test
+    public void testTruncation() throws Exception {
+        write("alice cccccccccccb\nbob cccccccccccd\n", false);
+        YubiKeyIndex index = new YubiKeyIndex(file);
+        write("alice cccccccccccb\n", false);
+        index.refresh();
+
+        assertEquals(1, index.size());
+        assertFalse(index.hasUser("bob"));
+        assertTrue(index.isBound("alice", otp("cccccccccccb")));
+    }
+
+    /** A last line without a line break is used, but dropped again if it turns out to be only partly written. */
+    @Test
+    public void testPartialLine() throws Exception {
+        write("alice cccccccccccb\nbob ccccccccc", false);
+        YubiKeyIndex index = new YubiKeyIndex(file);
+        assertTrue(index.isBound("bob", otp("ccccccccc")));
+
+        write("ccd\n", true);
+        index.refresh();
+
+        assertEquals(2, index.size());
+        assertFalse(index.isBound("bob", otp("ccccccccc")));
+        assertTrue(index.isBound("bob", otp("cccccccccccd")));
+        assertTrue(index.isBound("alice", otp("cccccccccccb")));
+    }
+
+    /** A malformed line is rejected, leaving the previous index in place. */
+    @Test
+    public void testMalformedLine() throws Exception {
+        write("alice cccccccccccb\n", false);
+        YubiKeyIndex index = new YubiKeyIndex(file);
+        write("bob cccccccccccd\ncarol not-modhex\n", true);
+        index.refresh();
+
+        assertEquals(1, index.size());
+        assertFalse(index.hasUser("bob"));
+        assertTrue(index.isBound("alice", otp("cccccccccccb")));
+
+        try {
+            new YubiKeyIndex(file);
+            fail("Malformed index accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("expected username publicId"));
+        }
+    }
+
+    /**
+     * Writes to the index file, moving its modification time so that the change is seen.
+     *
+     * @param content the lines to write
+     * @param append true to append to the file, false to rewrite it
+     *
+     * @throws IOException thrown if the file can not be written
+     */
+    private void write(String content, boolean append) throws IOException {
+        long modified = file.lastModified();
+        OutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(modified + 2000);
+    }
+
+    /**
+     * Builds an OTP of a YubiKey.
+     *
+     * @param publicId public id of the YubiKey
+     *
+     * @return the public id followed by an encrypted part
+     */
+    private static char[] otp(String publicId) {
+        return (publicId + "cbdefghijklnrtuvcbdefghijklnrtuv").toCharArray();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011 Yubico AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.yubico.shibboleth.idp.multifactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of {@link YubiKeyOtpVerifier}. */
+public class YubiKeyOtpVerifierTest {
+
+    /** Public id of the YubiKey of the Yubico test vector. */
+    private static final String PUBLIC_ID = "dteffuje";
+
+    /** Encrypted part of the OTP of the Yubico test vector. */
+    private static final String OTP = "hknhfjbrjnlnldnhcujvddbikngjrtgh";
+
+    /** Private id of the YubiKey of the Yubico test vector, in hex. */
+    private static final String PRIVATE_ID = "8792ebfe26cc";
+
+    /** AES key of the YubiKey of the Yubico test vector, in hex. */
+    private static final String AES_KEY = "ecde18dbe76fbd0c33330f1c354871db";
+
+    /** The key file. */
+    private File keyFile;
+
+    /** The counter file. */
+    private File counterFile;
+
+    /** Creates the key file. */
+    @Before
+    public void setUp() throws Exception {
+        keyFile = File.createTempFile("yubikey", ".txt");
+        counterFile = File.createTempFile("yubikey", ".ctr");
+        counterFile.delete();
+        writeKey(PRIVATE_ID);
+    }
+
+    /** Deletes the key and counter files. */
+    @After
+    public void tearDown() {
+        keyFile.delete();
+        counterFile.delete();
+    }
+
+    /** The decrypted OTP of the test vector has the CRC16 residue of a valid OTP, and a modified one does not. */
+    @Test
+    public void testCrcResidue() {
+        byte[] otp = Hex.decode("8792ebfe26cc130030c20011c89f23c8");
+        assertEquals(0xf0b8, YubiKeyOtpVerifier.crc16(otp));
+        otp[8] ^= 1;
+        assertFalse(0xf0b8 == YubiKeyOtpVerifier.crc16(otp));
+    }
+
+    /** The OTP of the test vector is accepted for the owner of the key, once. */
+    @Test
+    public void testVector() throws Exception {
+        YubiKeyOtpVerifier verifier = newVerifier();
+        assertTrue(verifier.handles(1, (PUBLIC_ID + OTP).toCharArray()));
+        assertFalse(verifier.handles(0, (PUBLIC_ID + OTP).toCharArray()));
+
+        verifier.verify("alice", (PUBLIC_ID + OTP).toCharArray(), new Subject());
+        try {
+            verifier.verify("alice", (PUBLIC_ID + OTP).toCharArray(), new Subject());
+            fail("OTP accepted twice");
+        } catch (MultiFactorAuthLoginException e) {
+            assertEquals(MultiFactorAuthLoginException.Reason.TOKEN_REPLAYED, e.getReason());
+        }
+    }
+
+    /** The OTP of the test vector is rejected for another user, or if it has been modified. */
+    @Test
+    public void testRejected() throws Exception {
+        YubiKeyOtpVerifier verifier = newVerifier();
+        assertRejected(verifier, "bob", PUBLIC_ID + OTP);
+        assertRejected(verifier, "alice", PUBLIC_ID + OTP.substring(0, 31) + "c");
+        assertRejected(verifier, "alice", "dteffujf" + OTP);
+    }
+
+    /** The OTP of the test vector is rejected if the private id does not match. */
+    @Test
+    public void testPrivateIdMismatch() throws Exception {
+        writeKey("8792ebfe26cd");
+        assertRejected(newVerifier(), "alice", PUBLIC_ID + OTP);
+    }
+
+    /**
+     * Writes the key file, with alice owning the key of the test vector.
+     *
+     * @param privateId private id of the key, in hex
+     *
+     * @throws IOException thrown if the file can not be written
+     */
+    private void writeKey(String privateId) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(keyFile), "UTF-8");
+        try {
+            out.write("# username publicId privateId aesKey\n");
+            out.write("alice " + PUBLIC_ID + " " + privateId + " " + AES_KEY + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a verifier of the key file.
+     *
+     * @return the verifier
+     *
+     * @throws IOException thrown if the files can not be read
+     */
+    private YubiKeyOtpVerifier newVerifier() throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("keyFile", keyFile.getPath());
+        options.put("counterFile", counterFile.getPath());
+        YubiKeyOtpVerifier verifier = new YubiKeyOtpVerifier();
+        verifier.initialize("yubikey", options);
+        return verifier;
+    }
+
+    /**
+     * Checks that a verifier rejects an OTP.
+     *
+     * @param verifier the verifier
+     * @param username the user
+     * @param otp the OTP
+     *
+     * @throws Exception thrown if the OTP is rejected with another exception than a failed login
+     */
+    private static void assertRejected(YubiKeyOtpVerifier verifier, String username, String otp) throws Exception {
+        try {
+            verifier.verify(username, otp.toCharArray(), new Subject());
+            fail("OTP " + otp + " accepted for " + username);
+        } catch (FailedLoginException e) {
+            // expected
+        }
+    }
+}